@@ -0,0 +1,165 @@
+package gl2vk4p;
+
+import static org.lwjgl.vulkan.VK10.VK_PIPELINE_BIND_POINT_GRAPHICS;
+import static org.lwjgl.vulkan.VK10.VK_SHADER_STAGE_FRAGMENT_BIT;
+import static org.lwjgl.vulkan.VK10.VK_SHADER_STAGE_VERTEX_BIT;
+import static org.lwjgl.vulkan.VK10.vkCmdBindPipeline;
+import static org.lwjgl.vulkan.VK10.vkCmdPushConstants;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+// What a ThreadNode currently has bound in its command buffer, so it can skip
+// binds and push constants that wouldn't change anything.
+// Processing tends to draw the same mesh with the same buffers over and over, so
+// without this we'd be recording the same vkCmdBindVertexBuffers again and again.
+// Only used by the node's thread. Needs to be reset() whenever a new command buffer
+// is started, since that starts with nothing bound (or carryOver() into it).
+public class BoundState {
+
+	private long pipeline = 0L;
+
+	private long[] vertexBuffers = new long[ThreadNode.MAX_VERTEX_BUFFERS];
+	private int numVertexBuffers = -1;
+
+	private long indexBuffer = 0L;
+	private long indexOffset = -1L;
+	private int indexType = -1;
+
+	// Indexed by GLUniform.VERTEX/FRAGMENT
+	private ByteBuffer[] pushData = new ByteBuffer[3];
+	private boolean[][] pushValid = new boolean[3][];
+	private long[] pushLayout = new long[3];
+
+	public BoundState(int pushConstantsSizeLimit) {
+		for (int i = 0; i < pushData.length; i++) {
+			pushData[i] = BufferUtils.createByteBuffer(pushConstantsSizeLimit);
+			pushValid[i] = new boolean[pushConstantsSizeLimit];
+		}
+	}
+
+	public void reset() {
+		pipeline = 0L;
+		numVertexBuffers = -1;
+		indexBuffer = 0L;
+		indexOffset = -1L;
+		indexType = -1;
+		for (int stage = 0; stage < pushData.length; stage++) {
+			pushLayout[stage] = 0L;
+			boolean[] valid = pushValid[stage];
+			for (int i = 0; i < valid.length; i++) {
+				valid[i] = false;
+			}
+		}
+	}
+
+	// For a new command buffer that carries on where the last one left off (see
+	// ThreadNode.nextSegment()). Binds the same pipeline and pushes the same push constants
+	// into it, vertex/index buffers just get bound again by the next draw.
+	// scratch needs to be at least the push constant size limit.
+	public void carryOver(VkCommandBuffer cmdbuffer, ByteBuffer scratch) {
+		numVertexBuffers = -1;
+		indexBuffer = 0L;
+		indexOffset = -1L;
+		indexType = -1;
+
+		if (pipeline != 0L) {
+			vkCmdBindPipeline(cmdbuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+		}
+		for (int stage = GLUniform.VERTEX; stage <= GLUniform.FRAGMENT; stage++) {
+			if (pushLayout[stage] == 0L) continue;
+			int vkStage = stage == GLUniform.FRAGMENT ? VK_SHADER_STAGE_FRAGMENT_BIT : VK_SHADER_STAGE_VERTEX_BIT;
+			ByteBuffer data = pushData[stage];
+			boolean[] valid = pushValid[stage];
+			// One push per run of bytes we know the value of.
+			int i = 0;
+			while (i < valid.length) {
+				if (!valid[i]) {
+					i++;
+					continue;
+				}
+				int start = i;
+				while (i < valid.length && valid[i]) i++;
+				scratch.clear();
+				for (int j = start; j < i; j++) {
+					scratch.put(data.get(j));
+				}
+				scratch.flip();
+				vkCmdPushConstants(cmdbuffer, pushLayout[stage], vkStage, start, scratch);
+			}
+		}
+	}
+
+	public boolean pipelineChanged(long pipeline) {
+		if (pipeline == this.pipeline) {
+			return false;
+		}
+		this.pipeline = pipeline;
+		return true;
+	}
+
+	// Compares the count buffers at index in the queue with what's bound.
+	// Returns true (and remembers the new ones) if they need binding.
+	public boolean vertexBuffersChanged(CommandQueue queue, int index, int count) {
+		boolean changed = count != numVertexBuffers;
+		if (count > vertexBuffers.length) {
+			vertexBuffers = new long[count];
+			changed = true;
+		}
+		for (int i = 0; i < count; i++) {
+			long buffer = queue.getLong(index+i*8);
+			if (vertexBuffers[i] != buffer) {
+				vertexBuffers[i] = buffer;
+				changed = true;
+			}
+		}
+		numVertexBuffers = count;
+		return changed;
+	}
+
+	public boolean indexBufferChanged(long buffer, long offset, int type) {
+		if (buffer == indexBuffer && offset == indexOffset && type == indexType) {
+			return false;
+		}
+		indexBuffer = buffer;
+		indexOffset = offset;
+		indexType = type;
+		return true;
+	}
+
+	// Compares the push constant bytes at index in the queue with what was last pushed.
+	// Returns false only if every byte in the range has already been pushed with the
+	// same value (and the same layout), otherwise remembers the new values and returns true.
+	public boolean pushConstantChanged(CommandQueue queue, int index, long layout, int vertexOrFragment, int offset, int size) {
+		int stage = vertexOrFragment == GLUniform.FRAGMENT ? GLUniform.FRAGMENT : GLUniform.VERTEX;
+		ByteBuffer data = pushData[stage];
+		boolean[] valid = pushValid[stage];
+
+		if (offset < 0 || offset+size > valid.length) {
+			// Vulkan will complain about this, not our problem.
+			return true;
+		}
+
+		boolean changed = false;
+		if (pushLayout[stage] != layout) {
+			// Pushed with a different layout before, so the old values don't count.
+			for (int i = 0; i < valid.length; i++) {
+				valid[i] = false;
+			}
+			pushLayout[stage] = layout;
+			changed = true;
+		}
+
+		for (int i = 0; i < size; i++) {
+			byte b = queue.getByte(index+i);
+			if (!valid[offset+i] || data.get(offset+i) != b) {
+				data.put(offset+i, b);
+				valid[offset+i] = true;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,214 @@
+package gl2vk4p;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// A ThreadNode's command queue. Most of the time it's just one CommandRing, but when the
+// ring fills up the main thread has a few options (see ThreadNode.setBackpressurePolicy()):
+// - grow:  carry on in a new ring twice the size. The consumer moves onto it once it's
+//          finished the old one, and the old one gets thrown away.
+// - spill: carry on in another ring the same size (an "overflow segment"). Once the consumer
+//          is done with the old ring it gets recycled for the next spill.
+// - park:  wait for the consumer to free up some space (claimOrPark()).
+//
+// The producer (main thread) only ever touches the tail ring and the consumer (node thread)
+// only the head ring; they're the same ring unless we've grown/spilled and the consumer
+// hasn't caught up yet.
+public class CommandQueue {
+
+	public final static int NO_CMD = CommandRing.NO_CMD;
+
+	// How long the producer parks for before checking again on its own.
+	// The consumer unparks it as soon as it frees space, but that can be missed
+	// (on purpose, we don't want a full fence on every command), so this is the worst case.
+	private final static long PARK_NANOS = 100000L;
+
+	// Producer only
+	private CommandRing tail;
+	// Consumer only
+	private CommandRing head;
+
+	// An empty ring left over from a spill, ready to be used for the next one.
+	private final AtomicReference<CommandRing> spare = new AtomicReference<CommandRing>(null);
+
+	private volatile Thread parkedProducer = null;
+
+	public CommandQueue(int capacity) {
+		tail = new CommandRing(capacity);
+		head = tail;
+	}
+
+
+	// ======================
+	// PRODUCER
+	// ======================
+
+	// Same as CommandRing.claim(), -1 if there's no space.
+	public int claim(int opcode, int payloadSize) {
+		return tail.claim(opcode, payloadSize);
+	}
+
+	// Doesn't return until there's space, parking in between tries.
+	public int claimOrPark(int opcode, int payloadSize) {
+		int ret = tail.claim(opcode, payloadSize);
+		if (ret != -1) return ret;
+
+		parkedProducer = Thread.currentThread();
+		while ((ret = tail.claim(opcode, payloadSize)) == -1) {
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		parkedProducer = null;
+		return ret;
+	}
+
+	// Carry on in a new ring twice the size. Returns false if that would go
+	// over maxCapacity (and nothing changes).
+	public boolean grow(int maxCapacity) {
+		int newCapacity = tail.capacity()*2;
+		if (newCapacity > maxCapacity || newCapacity <= 0) {
+			return false;
+		}
+		moveTo(new CommandRing(newCapacity));
+		return true;
+	}
+
+	// Carry on in another ring the same size, reusing an old one if there's one.
+	public void spill() {
+		CommandRing ring = spare.getAndSet(null);
+		if (ring == null || ring.capacity() != tail.capacity()) {
+			ring = new CommandRing(tail.capacity());
+		}
+		moveTo(ring);
+	}
+
+	private void moveTo(CommandRing ring) {
+		// Anything left in the old ring needs to be visible before the consumer
+		// can see the new one.
+		tail.publish();
+		tail.seal(ring);
+		tail = ring;
+	}
+
+	public void publish() {
+		tail.publish();
+	}
+
+	public boolean hasUnpublished() {
+		return tail.hasUnpublished();
+	}
+
+	public int unpublished() {
+		return tail.unpublished();
+	}
+
+	// Capacity of the ring we're currently writing to.
+	public int capacity() {
+		return tail.capacity();
+	}
+
+	public void putInt(int index, int value) {
+		tail.putInt(index, value);
+	}
+
+	public void putLong(int index, long value) {
+		tail.putLong(index, value);
+	}
+
+	public void putFloat(int index, float value) {
+		tail.putFloat(index, value);
+	}
+
+	public void putBytes(int index, ByteBuffer src, int srcOffset, int size) {
+		tail.buffer().put(index, src, srcOffset, size);
+	}
+
+
+	// ======================
+	// CONSUMER
+	// ======================
+
+	public int next() {
+		while (true) {
+			int cmd = head.next();
+			if (cmd != NO_CMD) return cmd;
+
+			CommandRing n = head.getNext();
+			if (n == null) return NO_CMD;
+			// The next ring is only set after the last publish to this one, so if
+			// there's still nothing here, we're done with it.
+			if (head.available()) continue;
+
+			CommandRing old = head;
+			head = n;
+			// Spilled rings get recycled, grown ones get left for the GC.
+			if (old.capacity() == n.capacity()) {
+				old.reset();
+				spare.set(old);
+			}
+		}
+	}
+
+	public boolean available() {
+		return head.available() || head.getNext() != null;
+	}
+
+	public int payload() {
+		return head.payload();
+	}
+
+	public int payloadLength() {
+		return head.payloadLength();
+	}
+
+	public void release() {
+		head.release();
+		Thread producer = parkedProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+	}
+
+	public int getInt(int index) {
+		return head.getInt(index);
+	}
+
+	public long getLong(int index) {
+		return head.getLong(index);
+	}
+
+	public float getFloat(int index) {
+		return head.getFloat(index);
+	}
+
+	public byte getByte(int index) {
+		return head.getByte(index);
+	}
+
+	public void getBytes(int index, ByteBuffer dst, int dstOffset, int size) {
+		dst.put(dstOffset, head.buffer(), index, size);
+	}
+
+	// Consumer: size of all the rings still in use, which goes past capacity() once
+	// we've grown or spilled (occupancy() can too).
+	public int usedCapacity() {
+		int total = 0;
+		CommandRing ring = head;
+		while (ring != null) {
+			total += ring.capacity();
+			ring = ring.getNext();
+		}
+		return total;
+	}
+
+	// Bytes published but not executed yet, across all the rings.
+	public int occupancy() {
+		int total = 0;
+		CommandRing ring = head;
+		while (ring != null) {
+			total += ring.occupancy();
+			ring = ring.getNext();
+		}
+		return total;
+	}
+}
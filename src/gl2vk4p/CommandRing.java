@@ -0,0 +1,269 @@
+package gl2vk4p;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The command queue that sits between the main thread and a ThreadNode.
+// It used to be a bunch of AtomicIntegerArrays/AtomicLongArrays (one "column" per
+// argument), which meant a single draw call would touch a dozen cache lines and do a
+// volatile write for every argument.
+// Now it's one big chunk of off-heap memory where each command is packed one after
+// the other as a variable-length record:
+//
+//   [int opcode][int payload length][payload ... padded to 8 bytes]
+//
+// Single producer (main thread), single consumer (the node's thread).
+// The producer writes the whole record with plain writes and then publishes it with
+// ONE release-store of writeSeq. The consumer does one acquire-read of writeSeq when it
+// runs out of records it knows about, reads the record with plain reads, and then hands
+// the space back with a release-store of readSeq.
+// Sequences are byte positions that only ever go up; (seq & mask) is the position in
+// the buffer.
+public class CommandRing {
+
+	public final static int HEADER_SIZE = 8;
+
+	// Opcode used to pad out the end of the buffer when a record doesn't fit
+	// in the remaining space. Consumer skips it and goes back to the start.
+	public final static int CMD_WRAP = -1;
+
+	// Returned by next() when there's nothing to do.
+	public final static int NO_CMD = 0;
+
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+
+	// Shared between the 2 threads.
+	private final AtomicLong writeSeq = new AtomicLong(0L);
+	private final AtomicLong readSeq = new AtomicLong(0L);
+
+	// Producer-only
+	private long writePos = 0L;
+	private long cachedReadSeq = 0L;
+
+	// Consumer-only
+	private long readPos = 0L;
+	private long cachedWriteSeq = 0L;
+	private int currentRecordSize = 0;
+	private int currentPayload = 0;
+	private int currentPayloadLength = 0;
+
+	// When the ring's full, CommandQueue can carry on in a new ring. This gets set
+	// (after the last publish) to point to it, so the consumer knows where to go once
+	// it's finished this one.
+	private volatile CommandRing next = null;
+
+
+	// Capacity must be a power of 2 (so we can mask instead of mod)
+	public CommandRing(int capacity) {
+		if (capacity < 64 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("CommandRing capacity must be a power of 2 (and at least 64), got "+capacity);
+		}
+		this.capacity = capacity;
+		this.mask = capacity-1;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		buffer.order(ByteOrder.nativeOrder());
+	}
+
+	public static int align8(int size) {
+		return (size+7) & ~7;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	// Producer: no more records will be written to this ring, carry on in the next one.
+	// Everything needs to be published before this is called.
+	public void seal(CommandRing next) {
+		this.next = next;
+	}
+
+	public CommandRing getNext() {
+		return next;
+	}
+
+	// Puts the ring back to empty so it can be reused.
+	// Only safe once neither thread is using it any more.
+	public void reset() {
+		writeSeq.set(0L);
+		readSeq.set(0L);
+		writePos = 0L;
+		cachedReadSeq = 0L;
+		readPos = 0L;
+		cachedWriteSeq = 0L;
+		currentRecordSize = 0;
+		next = null;
+	}
+
+	// The raw buffer, for bulk copies in/out of payloads.
+	// Always use absolute indexes.
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+
+	// ======================
+	// PRODUCER
+	// ======================
+
+	// Reserves space for a record and writes its header.
+	// Returns the buffer index of where the payload should be written to,
+	// or -1 if the ring doesn't have enough free space right now (in which case
+	// nothing is written).
+	// The record isn't visible to the consumer until publish() is called.
+	public int claim(int opcode, int payloadSize) {
+		int recordSize = HEADER_SIZE + align8(payloadSize);
+		if (recordSize > capacity/2) {
+			throw new IllegalArgumentException("Command of "+payloadSize+" bytes is too big for a queue of "+capacity+" bytes");
+		}
+
+		int index = (int)(writePos & mask);
+		// If it doesn't fit in the remaining space at the end of the buffer, we need
+		// to pad the end and start again from the beginning.
+		int padding = 0;
+		if (index + recordSize > capacity) {
+			padding = capacity-index;
+		}
+
+		if (writePos + padding + recordSize - cachedReadSeq > capacity) {
+			// Only bother with the (expensive) read of the consumer's position
+			// when our cached one says we're full.
+			cachedReadSeq = readSeq.getAcquire();
+			if (writePos + padding + recordSize - cachedReadSeq > capacity) {
+				return -1;
+			}
+		}
+
+		if (padding > 0) {
+			buffer.putInt(index, CMD_WRAP);
+			buffer.putInt(index+4, padding-HEADER_SIZE);
+			writePos += padding;
+			index = 0;
+		}
+
+		buffer.putInt(index, opcode);
+		buffer.putInt(index+4, payloadSize);
+		writePos += recordSize;
+		return index+HEADER_SIZE;
+	}
+
+	// Makes every record claimed so far visible to the consumer.
+	public void publish() {
+		writeSeq.setRelease(writePos);
+	}
+
+	// True if there are records that have been claimed but not published yet.
+	public boolean hasUnpublished() {
+		return writePos != writeSeq.getPlain();
+	}
+
+	// Number of bytes claimed but not published yet.
+	public int unpublished() {
+		return (int)(writePos - writeSeq.getPlain());
+	}
+
+	// Position of the last published byte.
+	public long published() {
+		return writeSeq.getPlain();
+	}
+
+	// True once the consumer has executed everything we've published.
+	public boolean isDrained() {
+		return readSeq.getAcquire() >= writeSeq.getPlain();
+	}
+
+	public void putInt(int index, int value) {
+		buffer.putInt(index, value);
+	}
+
+	public void putLong(int index, long value) {
+		buffer.putLong(index, value);
+	}
+
+	public void putFloat(int index, float value) {
+		buffer.putFloat(index, value);
+	}
+
+
+	// ======================
+	// CONSUMER
+	// ======================
+
+	// Moves onto the next record and returns its opcode, or NO_CMD if the
+	// producer hasn't published anything new.
+	// Don't forget to call release() once the record has been executed.
+	public int next() {
+		while (true) {
+			if (readPos == cachedWriteSeq) {
+				cachedWriteSeq = writeSeq.getAcquire();
+				if (readPos == cachedWriteSeq) {
+					return NO_CMD;
+				}
+			}
+
+			int index = (int)(readPos & mask);
+			int opcode = buffer.getInt(index);
+			int length = buffer.getInt(index+4);
+
+			if (opcode == CMD_WRAP) {
+				// Padding, jump back to the start of the buffer.
+				readPos += HEADER_SIZE + length;
+				continue;
+			}
+
+			currentPayload = index+HEADER_SIZE;
+			currentPayloadLength = length;
+			currentRecordSize = HEADER_SIZE + align8(length);
+			return opcode;
+		}
+	}
+
+	// True if there's something published that we haven't read yet.
+	// Same as next() but without moving onto the record, used by the
+	// wait strategies to check whether they can stop waiting.
+	public boolean available() {
+		if (readPos != cachedWriteSeq) return true;
+		cachedWriteSeq = writeSeq.getAcquire();
+		return readPos != cachedWriteSeq;
+	}
+
+	// Buffer index of the current record's payload
+	public int payload() {
+		return currentPayload;
+	}
+
+	public int payloadLength() {
+		return currentPayloadLength;
+	}
+
+	// Hands the space of the current record back to the producer.
+	public void release() {
+		readPos += currentRecordSize;
+		currentRecordSize = 0;
+		readSeq.setRelease(readPos);
+	}
+
+	public int getInt(int index) {
+		return buffer.getInt(index);
+	}
+
+	public long getLong(int index) {
+		return buffer.getLong(index);
+	}
+
+	public byte getByte(int index) {
+		return buffer.get(index);
+	}
+
+	public float getFloat(int index) {
+		return buffer.getFloat(index);
+	}
+
+	// Number of bytes published but not yet executed.
+	public int occupancy() {
+		return (int)(writeSeq.getAcquire()-readSeq.getAcquire());
+	}
+}
@@ -0,0 +1,191 @@
+package gl2vk4p;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+// Automatically spreads a frame's commands across the thread nodes.
+// Without this, everything goes on whatever node was selectNode()'d, which for
+// Processing sketches is always node 0.
+//
+// The command stream gets cut into contiguous segments, segment 0 goes to node 0,
+// segment 1 to node 1 and so on. Since vkCmdExecuteCommands runs the secondary command
+// buffers in node order, the draws still end up on the GPU in the order they were called.
+// We don't know how big this frame's going to be until it's over, so the segment size is
+// based on the last frame (total / number of nodes).
+//
+// Each node starts with a fresh command buffer, so at the start of each segment we
+// replay the state the previous segment left behind (bound pipeline and push constants).
+public class CommandSharder {
+
+	public final static int MANUAL = 0;
+	// Each draw counts as 1.
+	public final static int BY_DRAWS = 1;
+	// Estimated recording cost, see the COST_ constants.
+	public final static int BY_COST = 2;
+
+	// Rough relative costs of recording each command on a node.
+	// Draws also bind all their vertex buffers, and pipeline binds are
+	// famously not cheap for the driver.
+	public final static int COST_DRAW = 4;
+	public final static int COST_PER_BUFFER = 1;
+	public final static int COST_PUSH_CONSTANT = 1;
+	public final static int COST_BIND_PIPELINE = 2;
+
+	// No point splitting a really small frame up, the overhead of
+	// another secondary command buffer isn't worth it.
+	public final static long MIN_SHARD_SIZE = 16;
+
+	private int mode = MANUAL;
+
+	private long frameLoad = 0L;
+	private long lastFrameLoad = 0L;
+	private long shardLoad = 0L;
+	private long shardTarget = Long.MAX_VALUE;
+
+	// Shadow state (what the current segment's node has bound right now)
+	private long pipeline = 0L;
+	// Indexed by GLUniform.VERTEX/FRAGMENT. Push constant offsets are absolute,
+	// so these are the size of the whole push constant block.
+	private ByteBuffer[] pushData = new ByteBuffer[3];
+	private long[] pushLayout = new long[3];
+	private int[] pushStart = new int[3];
+	private int[] pushEnd = new int[3];
+
+	public CommandSharder(int pushConstantsSizeLimit) {
+		for (int i = 0; i < pushData.length; i++) {
+			// Same byte order as the command queue, they get copied straight in.
+			pushData[i] = BufferUtils.createByteBuffer(pushConstantsSizeLimit);
+		}
+		resetShadow();
+	}
+
+	public void setMode(int mode) {
+		if (mode != MANUAL && mode != BY_DRAWS && mode != BY_COST) {
+			throw new IllegalArgumentException("Unknown shard mode "+mode);
+		}
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public boolean enabled() {
+		return mode != MANUAL;
+	}
+
+	public void beginFrame(int nodeCount) {
+		frameLoad = 0L;
+		shardLoad = 0L;
+		if (lastFrameLoad == 0L || nodeCount <= 1) {
+			// First frame (or only one node), no idea how big it is so it all goes on one node.
+			shardTarget = Long.MAX_VALUE;
+		}
+		else {
+			shardTarget = Math.max(MIN_SHARD_SIZE, (lastFrameLoad+nodeCount-1)/nodeCount);
+		}
+		// Every node starts the frame with a fresh command buffer, so nothing's bound.
+		resetShadow();
+	}
+
+	public void endFrame() {
+		lastFrameLoad = frameLoad;
+	}
+
+	// For the non-draw commands, only count in BY_COST mode
+	public void addCost(int cost) {
+		if (mode == BY_COST) {
+			frameLoad += cost;
+			shardLoad += cost;
+		}
+	}
+
+	// Called after each draw. Returns true if the current segment is full and the
+	// next command should go to the next node.
+	public boolean afterDraw(int numBuffers) {
+		int cost = 1;
+		if (mode == BY_COST) {
+			cost = COST_DRAW + numBuffers*COST_PER_BUFFER;
+		}
+		frameLoad += cost;
+		shardLoad += cost;
+		if (shardLoad >= shardTarget) {
+			shardLoad = 0L;
+			return true;
+		}
+		return false;
+	}
+
+	public long getShardTarget() {
+		return shardTarget;
+	}
+
+	public long getLastFrameLoad() {
+		return lastFrameLoad;
+	}
+
+
+	// ======================
+	// SHADOW STATE
+	// ======================
+
+	private void resetShadow() {
+		pipeline = 0L;
+		for (int i = 0; i < pushData.length; i++) {
+			pushLayout[i] = 0L;
+			pushStart[i] = Integer.MAX_VALUE;
+			pushEnd[i] = 0;
+		}
+	}
+
+	public void recordPipeline(long pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public long getPipeline() {
+		return pipeline;
+	}
+
+	// Marks [offset, offset+size) of a stage's push constants as set and returns
+	// the buffer to write the new values into (at offset).
+	public ByteBuffer recordPushConstant(long pipelineLayout, int vertexOrFragment, int offset, int size) {
+		int stage = vertexOrFragment == GLUniform.FRAGMENT ? GLUniform.FRAGMENT : GLUniform.VERTEX;
+		// Values pushed with another layout are for a different program, forget them.
+		if (pushLayout[stage] != pipelineLayout) {
+			pushLayout[stage] = pipelineLayout;
+			pushStart[stage] = Integer.MAX_VALUE;
+			pushEnd[stage] = 0;
+		}
+		pushStart[stage] = Math.min(pushStart[stage], offset);
+		pushEnd[stage] = Math.max(pushEnd[stage], offset+size);
+		return pushData[stage];
+	}
+
+	public void recordPushConstant(long pipelineLayout, int vertexOrFragment, int offset, ByteBuffer buffer) {
+		int size = buffer.capacity();
+		ByteBuffer shadow = recordPushConstant(pipelineLayout, vertexOrFragment, offset, size);
+		shadow.put(offset, buffer, 0, size);
+	}
+
+	// Puts the shadow state onto the node that's about to start a new segment.
+	public void replay(ThreadNode node) {
+		if (pipeline != 0L) {
+			node.bindPipeline(pipeline);
+		}
+		for (int stage = GLUniform.VERTEX; stage <= GLUniform.FRAGMENT; stage++) {
+			if (pushEnd[stage] > pushStart[stage]) {
+				node.pushConstant(pushLayout[stage], stage, pushStart[stage], pushData[stage], pushStart[stage], pushEnd[stage]-pushStart[stage]);
+			}
+		}
+	}
+
+	// For testing
+	public int getPushStart(int vertexOrFragment) {
+		return pushStart[vertexOrFragment];
+	}
+
+	public int getPushEnd(int vertexOrFragment) {
+		return pushEnd[vertexOrFragment];
+	}
+}
@@ -0,0 +1,358 @@
+package gl2vk4p;
+
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandBufferInheritanceInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+
+// A retained list of draw commands, like glNewList/glEndList/glCallList in old OpenGL.
+// Normally every node re-records its secondary command buffer from scratch every frame, even
+// if the scene hasn't changed. A display list gets recorded into its own secondary command
+// buffers (one per swapchain image, since they're tied to the framebuffer) and those just get
+// executed again every frame until something they use changes.
+//
+// We keep the GL-level commands (which program, which GraphicsBuffers) rather than the vulkan
+// handles, because buffers get recreated when their size changes and pipelines when they're
+// rebuilt. Every time the list's called, we check the versions of everything it uses; if any
+// of them changed, it gets re-recorded from the GL-level commands with the new handles.
+// Uniforms aren't inherited between command buffers in vulkan, so the list starts each program
+// with the values that were last set for it, and a new uniform value for a program the list
+// uses means a rebuild too.
+//
+// Recording itself happens on a thread node (see ThreadNode.beginList()).
+public class DisplayList {
+
+	private final static int OP_BIND_PROGRAM = 1;
+	private final static int OP_DRAW_ARRAYS = 2;
+	private final static int OP_DRAW_INDEXED = 3;
+	private final static int OP_PUSH_CONSTANT = 4;
+
+	private static class Op {
+		int type;
+		GL2VKPipeline program;
+		// Which of the program's pipeline variants (OP_BIND_PROGRAM)
+		long pipeline;
+		GraphicsBuffer[] vertexBuffers;
+		GraphicsBuffer indexBuffer;
+		int count;
+		int first;
+		int offset;
+		int type2;
+		int instanceCount = 1;
+		int firstInstance = 0;
+		ByteBuffer data;
+	}
+
+	public final int id;
+	private VulkanSystem system;
+
+	private ArrayList<Op> ops = new ArrayList<Op>();
+	private GL2VKPipeline currentProgram = null;
+	private long currentPipeline = -1;
+
+	// Everything the list uses, and their versions when it was last recorded.
+	private ArrayList<GraphicsBuffer> bufferRefs = new ArrayList<GraphicsBuffer>();
+	private ArrayList<GL2VKPipeline> programRefs = new ArrayList<GL2VKPipeline>();
+	private int[] bufferVersions = new int[0];
+	private int[] programVersions = new int[0];
+	private int[] uniformVersions = new int[0];
+
+	// Per swapchain image
+	private boolean[] recorded;
+	private VkCommandBuffer[] cmdbuffers = null;
+	private VkCommandBufferBeginInfo[] beginInfos = null;
+	private long commandPool = -1;
+
+	private int rebuildCount = 0;
+
+	public DisplayList(int id, VulkanSystem system, int imageCount) {
+		this.id = id;
+		this.system = system;
+		recorded = new boolean[imageCount];
+		if (system != null) {
+			createObjects(imageCount);
+		}
+	}
+
+	// Each list gets its own pool since the nodes record into it while the main thread
+	// might be allocating other lists.
+	private void createObjects(int imageCount) {
+        try(MemoryStack stack = stackPush()) {
+	        VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.calloc(stack);
+	        poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+	        poolInfo.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+	        poolInfo.queueFamilyIndex(system.vkbase.queueIndicies.graphicsFamily);
+
+	        LongBuffer pCommandPool = stack.mallocLong(1);
+	        if (vkCreateCommandPool(system.device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+	            throw new RuntimeException("Failed to create command pool");
+	        }
+	        commandPool = pCommandPool.get(0);
+
+            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack);
+            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            allocInfo.commandPool(commandPool);
+            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_SECONDARY);
+            allocInfo.commandBufferCount(imageCount);
+
+            PointerBuffer pCommandBuffers = stack.mallocPointer(imageCount);
+            if(vkAllocateCommandBuffers(system.device, allocInfo, pCommandBuffers) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to allocate command buffers");
+            }
+
+            cmdbuffers = new VkCommandBuffer[imageCount];
+            for(int i = 0; i < imageCount; i++) {
+            	cmdbuffers[i] = new VkCommandBuffer(pCommandBuffers.get(i), system.device);
+            }
+        }
+
+        beginInfos = new VkCommandBufferBeginInfo[imageCount];
+        for(int i = 0; i < imageCount; i++) {
+        	VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.create();
+        	inheritanceInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO);
+        	inheritanceInfo.renderPass(system.renderPass);
+        	inheritanceInfo.framebuffer(system.swapChainFramebuffers.get(i));
+
+			beginInfos[i] = VkCommandBufferBeginInfo.create();
+			beginInfos[i].sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+			// Simultaneous use so the same list can be called more than once in a frame.
+			beginInfos[i].flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT | VK_COMMAND_BUFFER_USAGE_SIMULTANEOUS_USE_BIT);
+			beginInfos[i].pInheritanceInfo(inheritanceInfo);
+        }
+	}
+
+
+	// ======================
+	// COMPILING (main thread, between glNewList and glEndList)
+	// ======================
+
+	public void begin() {
+		ops.clear();
+		bufferRefs.clear();
+		programRefs.clear();
+		currentProgram = null;
+		currentPipeline = -1;
+		invalidate();
+	}
+
+	public void end() {
+		snapshotVersions();
+	}
+
+	public void bindProgram(GL2VKPipeline program, long pipeline) {
+		if (program == currentProgram && pipeline == currentPipeline) return;
+		currentProgram = program;
+		currentPipeline = pipeline;
+		Op op = new Op();
+		op.type = OP_BIND_PROGRAM;
+		op.program = program;
+		op.pipeline = pipeline;
+		addRef(program);
+		ops.add(op);
+	}
+
+	public void drawArrays(GL2VKPipeline program, int first, int count) {
+		drawArrays(program, first, count, 1, 0);
+	}
+
+	public void drawArrays(GL2VKPipeline program, int first, int count, int instanceCount, int firstInstance) {
+		Op op = new Op();
+		op.type = OP_DRAW_ARRAYS;
+		op.program = program;
+		op.vertexBuffers = program.getBoundBuffers();
+		op.first = first;
+		op.count = count;
+		op.instanceCount = instanceCount;
+		op.firstInstance = firstInstance;
+		for (GraphicsBuffer b : op.vertexBuffers) addRef(b);
+		ops.add(op);
+	}
+
+	public void drawIndexed(GL2VKPipeline program, GraphicsBuffer indexBuffer, int count, int offset, int type) {
+		drawIndexed(program, indexBuffer, count, offset, type, 1, 0);
+	}
+
+	public void drawIndexed(GL2VKPipeline program, GraphicsBuffer indexBuffer, int count, int offset, int type, int instanceCount, int firstInstance) {
+		Op op = new Op();
+		op.type = OP_DRAW_INDEXED;
+		op.program = program;
+		op.vertexBuffers = program.getBoundBuffers();
+		op.indexBuffer = indexBuffer;
+		op.count = count;
+		op.offset = offset;
+		op.type2 = type;
+		op.instanceCount = instanceCount;
+		op.firstInstance = firstInstance;
+		for (GraphicsBuffer b : op.vertexBuffers) addRef(b);
+		addRef(indexBuffer);
+		ops.add(op);
+	}
+
+	public void pushConstant(GL2VKPipeline program, int vertexOrFragment, int offset, float... values) {
+		ByteBuffer data = BufferUtils.createByteBuffer(values.length*4);
+		for (int i = 0; i < values.length; i++) {
+			data.putFloat(i*4, values[i]);
+		}
+		pushConstant(program, vertexOrFragment, offset, data, data.capacity());
+	}
+
+	public void pushConstant(GL2VKPipeline program, int vertexOrFragment, int offset, ByteBuffer buffer, int size) {
+		Op op = new Op();
+		op.type = OP_PUSH_CONSTANT;
+		op.program = program;
+		op.type2 = vertexOrFragment;
+		op.offset = offset;
+		op.count = size;
+		op.data = BufferUtils.createByteBuffer(size);
+		op.data.put(0, buffer, 0, size);
+		addRef(program);
+		ops.add(op);
+	}
+
+	private void addRef(GraphicsBuffer buffer) {
+		if (buffer != null && !bufferRefs.contains(buffer)) bufferRefs.add(buffer);
+	}
+
+	private void addRef(GL2VKPipeline program) {
+		if (!programRefs.contains(program)) programRefs.add(program);
+	}
+
+
+	// ======================
+	// CALLING (main thread, during a frame)
+	// ======================
+
+	private void snapshotVersions() {
+		bufferVersions = Arrays.copyOf(bufferVersions, bufferRefs.size());
+		for (int i = 0; i < bufferRefs.size(); i++) {
+			bufferVersions[i] = bufferRefs.get(i).version;
+		}
+		programVersions = Arrays.copyOf(programVersions, programRefs.size());
+		uniformVersions = Arrays.copyOf(uniformVersions, programRefs.size());
+		for (int i = 0; i < programRefs.size(); i++) {
+			programVersions[i] = programRefs.get(i).version;
+			uniformVersions[i] = programRefs.get(i).uniformVersion;
+		}
+	}
+
+	// True if anything the list uses has changed since it was recorded.
+	public boolean isStale() {
+		for (int i = 0; i < bufferVersions.length; i++) {
+			if (bufferRefs.get(i).version != bufferVersions[i]) return true;
+		}
+		for (int i = 0; i < programVersions.length; i++) {
+			GL2VKPipeline program = programRefs.get(i);
+			if (program.version != programVersions[i] || program.uniformVersion != uniformVersions[i]) return true;
+		}
+		return false;
+	}
+
+	public void invalidate() {
+		for (int i = 0; i < recorded.length; i++) {
+			recorded[i] = false;
+		}
+	}
+
+	// Whether the command buffer for this image needs (re)recording before it can be used.
+	public boolean needsRecord(int image) {
+		if (isStale()) {
+			// All the images need doing again, not just this one.
+			invalidate();
+			snapshotVersions();
+		}
+		return !recorded[image];
+	}
+
+	// Sends the commands to the node to record into this image's command buffer.
+	public void record(ThreadNode node, int image) {
+		node.beginList(id, image);
+
+		long[] handles = new long[0];
+		for (Op op : ops) {
+			switch (op.type) {
+			case OP_BIND_PROGRAM:
+				node.bindPipeline(op.pipeline);
+				// Nothing's inherited from the command buffer we're called from.
+				op.program.pushUniforms(node);
+				break;
+			case OP_DRAW_ARRAYS:
+				handles = getHandles(op.vertexBuffers, handles);
+				if (op.instanceCount == 1 && op.firstInstance == 0) {
+					node.drawArrays(handles, op.count, op.first);
+				}
+				else {
+					node.drawArraysInstanced(handles, op.count, op.first, op.instanceCount, op.firstInstance);
+				}
+				break;
+			case OP_DRAW_INDEXED:
+				handles = getHandles(op.vertexBuffers, handles);
+				if (op.instanceCount == 1 && op.firstInstance == 0) {
+					node.drawIndexed(op.count, op.indexBuffer.bufferID, handles, op.offset, op.type2);
+				}
+				else {
+					node.drawIndexedInstanced(op.count, op.indexBuffer.bufferID, handles, op.offset, op.type2, op.instanceCount, op.firstInstance);
+				}
+				break;
+			case OP_PUSH_CONSTANT:
+				node.pushConstant(op.program.pipelineLayout, op.type2, op.offset, op.data, 0, op.count);
+				break;
+			}
+		}
+
+		node.endList();
+		recorded(image);
+	}
+
+	private long[] getHandles(GraphicsBuffer[] buffers, long[] out) {
+		if (out.length != buffers.length) {
+			out = new long[buffers.length];
+		}
+		for (int i = 0; i < buffers.length; i++) {
+			out[i] = buffers[i] != null ? buffers[i].bufferID : 0L;
+		}
+		return out;
+	}
+
+	public void recorded(int image) {
+		recorded[image] = true;
+		rebuildCount++;
+	}
+
+	// Number of times a command buffer's been (re)recorded.
+	public int getRebuildCount() {
+		return rebuildCount;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+	// Node thread
+	public VkCommandBuffer getBuffer(int image) {
+		return cmdbuffers[image];
+	}
+
+	public VkCommandBufferBeginInfo getBeginInfo(int image) {
+		return beginInfos[image];
+	}
+
+	// Only once nothing's using it any more.
+	public void destroy() {
+		if (commandPool != -1) {
+			vkDestroyCommandPool(system.device, commandPool, null);
+			commandPool = -1;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package gl2vk4p;
+
+import java.util.Arrays;
+
+// Works out the order everything recorded this frame goes into vkCmdExecuteCommands.
+// Each glCallList starts a new "epoch". When a node that's already recording gets given
+// something in a later epoch than the one it's recording in, it has to start a new segment
+// (a new secondary command buffer, see ThreadNode.nextSegment()), so that whatever's drawn
+// after the call gets executed after the list, even on the same node.
+// Within an epoch, segments go in node order, same as without any lists.
+// Main thread only.
+public class ExecuteOrder {
+	// getNode() for a display list, getIndex() is then which call it was.
+	public final static int LIST = -1;
+
+	private int epoch = 0;
+	// Per node, how many segments it's started this frame, and the epoch each one's in.
+	private int[] segmentCount = new int[0];
+	private int[][] segmentEpoch = new int[0][];
+
+	// Filled in by build()
+	private int[] orderNode = new int[16];
+	private int[] orderIndex = new int[16];
+	private int orderCount = 0;
+
+	public void beginFrame(int nodeCount) {
+		epoch = 0;
+		orderCount = 0;
+		if (segmentCount.length != nodeCount) {
+			segmentCount = new int[nodeCount];
+			segmentEpoch = new int[nodeCount][4];
+		}
+		else {
+			Arrays.fill(segmentCount, 0);
+		}
+	}
+
+	// True if the node isn't recording yet, or what it's recording was started before
+	// the last list call.
+	public boolean needsSegment(int node) {
+		int count = segmentCount[node];
+		return count == 0 || segmentEpoch[node][count-1] != epoch;
+	}
+
+	// Node's begun recording (first segment) or moved onto a new segment.
+	public void startSegment(int node) {
+		int count = segmentCount[node];
+		if (count == segmentEpoch[node].length) {
+			segmentEpoch[node] = Arrays.copyOf(segmentEpoch[node], count*2);
+		}
+		segmentEpoch[node][count] = epoch;
+		segmentCount[node] = count+1;
+	}
+
+	public int getSegmentCount(int node) {
+		return segmentCount[node];
+	}
+
+	public void callList() {
+		epoch++;
+	}
+
+	// Returns how many command buffers there are to execute, then use getNode()/getIndex()
+	// for each one.
+	public int build() {
+		orderCount = 0;
+		for (int e = 0; e <= epoch; e++) {
+			for (int node = 0; node < segmentCount.length; node++) {
+				// A node has at most one segment per epoch.
+				for (int s = 0; s < segmentCount[node]; s++) {
+					if (segmentEpoch[node][s] == e) {
+						add(node, s);
+						break;
+					}
+				}
+			}
+			if (e < epoch) {
+				add(LIST, e);
+			}
+		}
+		return orderCount;
+	}
+
+	private void add(int node, int index) {
+		if (orderCount == orderNode.length) {
+			orderNode = Arrays.copyOf(orderNode, orderCount*2);
+			orderIndex = Arrays.copyOf(orderIndex, orderCount*2);
+		}
+		orderNode[orderCount] = node;
+		orderIndex[orderCount] = index;
+		orderCount++;
+	}
+
+	// Node id, or LIST
+	public int getNode(int i) {
+		return orderNode[i];
+	}
+
+	// Segment of the node, or the call for LIST (index into the frame's called lists).
+	public int getIndex(int i) {
+		return orderIndex[i];
+	}
+}
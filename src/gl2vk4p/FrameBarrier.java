@@ -0,0 +1,81 @@
+package gl2vk4p;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Lets the main thread wait for all the ThreadNodes to finish recording a frame.
+// We used to poll each node one by one with Thread.sleep(1), which could waste
+// up to a millisecond per node per frame just from the sleep granularity.
+// Now it's just a counter: the main thread sets it to the number of nodes,
+// each node knocks one off once it's done CMD_END_RECORD, and whoever
+// takes it to 0 unparks the main thread.
+public class FrameBarrier {
+
+	// Same idea as WaitStrategy, the nodes are usually only a few us away
+	// from finishing by the time we get here so it's worth a quick spin first.
+	private final static int SPIN_TRIES = 1000;
+
+	// Print a warning if we've been waiting this long, something's probably stuck.
+	private final static long STUCK_WARNING_TIME = 500L*1000000L;
+
+	private final AtomicInteger remaining = new AtomicInteger(0);
+	private volatile Thread waiter = null;
+
+	private long lastWaitTime = 0L;
+	private long totalWaitTime = 0L;
+
+	// Call before any node can arrive (i.e. before sending out the end record commands)
+	public void reset(int parties) {
+		remaining.set(parties);
+	}
+
+	// Called by the nodes.
+	public void arrive() {
+		if (remaining.decrementAndGet() == 0) {
+			Thread w = waiter;
+			if (w != null) {
+				LockSupport.unpark(w);
+			}
+		}
+	}
+
+	public boolean isDone() {
+		return remaining.get() <= 0;
+	}
+
+	// Called by the main thread, returns once every node has arrived.
+	public void await() {
+		long before = System.nanoTime();
+
+		for (int i = 0; i < SPIN_TRIES && !isDone(); i++) {
+			Thread.onSpinWait();
+		}
+
+		if (!isDone()) {
+			// Both volatile, so either the last node sees us here and unparks us,
+			// or we see that it's already finished and don't park at all.
+			waiter = Thread.currentThread();
+			boolean warned = false;
+			while (!isDone()) {
+				LockSupport.parkNanos(this, STUCK_WARNING_TIME);
+				if (!warned && !isDone() && System.nanoTime()-before > STUCK_WARNING_TIME) {
+					System.err.println("BUG WARNING  looplock'd waiting for "+remaining.get()+" node(s) that won't respond");
+					warned = true;
+				}
+			}
+			waiter = null;
+		}
+
+		lastWaitTime = System.nanoTime()-before;
+		totalWaitTime += lastWaitTime;
+	}
+
+	// How long (in nanoseconds) the main thread spent waiting in the last await()
+	public long getLastWaitTime() {
+		return lastWaitTime;
+	}
+
+	public long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+}
@@ -1,7 +1,9 @@
 package gl2vk4p;
 
+import java.io.File;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.Future;
 
 import gl2vk4p.ShaderSPIRVUtils.SPIRV;
 import gl2vk4p.ShaderSPIRVUtils.ShaderKind;
@@ -9,16 +11,20 @@ import gl2vk4p.ShaderSPIRVUtils.ShaderKind;
 import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_VERTEX_BUFFER_BIT;
 import static gl2vk4p.ShaderSPIRVUtils.compileShader;
 import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_INDEX_BUFFER_BIT;
+import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT;
 
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
+import org.lwjgl.system.MemoryUtil;
+
 public class GL2VK {
 	
 	public static final int GL_VERTEX_BUFFER = 1;
 	public static final int GL_INDEX_BUFFER = 2;
+	public static final int GL_DRAW_INDIRECT_BUFFER = 3;
 	
 	public static final int GL_VERTEX_SHADER = 1;
 	public static final int GL_FRAGMENT_SHADER = 2;
@@ -33,6 +39,77 @@ public class GL2VK {
 	public static final int GL_TRUE = 1;
 	public static final int GL_FALSE = 0;
 	
+	// glBufferData usage, same values as real GL
+	public static final int GL_STREAM_DRAW = 0x88E0;
+	public static final int GL_STATIC_DRAW = 0x88E4;
+	public static final int GL_DYNAMIC_DRAW = 0x88E8;
+	
+	// glMapBufferRange / glBufferStorage flags, same values as real GL
+	public static final int GL_MAP_READ_BIT = GraphicsBuffer.MAP_READ_BIT;
+	public static final int GL_MAP_WRITE_BIT = GraphicsBuffer.MAP_WRITE_BIT;
+	public static final int GL_MAP_INVALIDATE_RANGE_BIT = GraphicsBuffer.MAP_INVALIDATE_RANGE_BIT;
+	public static final int GL_MAP_INVALIDATE_BUFFER_BIT = GraphicsBuffer.MAP_INVALIDATE_BUFFER_BIT;
+	public static final int GL_MAP_FLUSH_EXPLICIT_BIT = GraphicsBuffer.MAP_FLUSH_EXPLICIT_BIT;
+	public static final int GL_MAP_UNSYNCHRONIZED_BIT = GraphicsBuffer.MAP_UNSYNCHRONIZED_BIT;
+	public static final int GL_MAP_PERSISTENT_BIT = GraphicsBuffer.MAP_PERSISTENT_BIT;
+	public static final int GL_MAP_COHERENT_BIT = GraphicsBuffer.MAP_COHERENT_BIT;
+	
+	// glMapBuffer access
+	public static final int GL_READ_ONLY = 0x88B8;
+	public static final int GL_WRITE_ONLY = 0x88B9;
+	public static final int GL_READ_WRITE = 0x88BA;
+	
+	// Draw modes
+	public static final int GL_POINTS = PipelineState.GL_POINTS;
+	public static final int GL_LINES = PipelineState.GL_LINES;
+	public static final int GL_LINE_LOOP = PipelineState.GL_LINE_LOOP;
+	public static final int GL_LINE_STRIP = PipelineState.GL_LINE_STRIP;
+	public static final int GL_TRIANGLES = PipelineState.GL_TRIANGLES;
+	public static final int GL_TRIANGLE_STRIP = PipelineState.GL_TRIANGLE_STRIP;
+	public static final int GL_TRIANGLE_FAN = PipelineState.GL_TRIANGLE_FAN;
+	
+	// glEnable/glDisable
+	public static final int GL_CULL_FACE = 0x0B44;
+	public static final int GL_DEPTH_TEST = 0x0B71;
+	public static final int GL_BLEND = 0x0BE2;
+	
+	public static final int GL_FRONT = PipelineState.GL_FRONT;
+	public static final int GL_BACK = PipelineState.GL_BACK;
+	public static final int GL_FRONT_AND_BACK = PipelineState.GL_FRONT_AND_BACK;
+	public static final int GL_CW = PipelineState.GL_CW;
+	public static final int GL_CCW = PipelineState.GL_CCW;
+	
+	public static final int GL_NEVER = 0x0200;
+	public static final int GL_LESS = 0x0201;
+	public static final int GL_EQUAL = 0x0202;
+	public static final int GL_LEQUAL = 0x0203;
+	public static final int GL_GREATER = 0x0204;
+	public static final int GL_NOTEQUAL = 0x0205;
+	public static final int GL_GEQUAL = 0x0206;
+	public static final int GL_ALWAYS = 0x0207;
+	
+	public static final int GL_ZERO = PipelineState.GL_ZERO;
+	public static final int GL_ONE = PipelineState.GL_ONE;
+	public static final int GL_SRC_COLOR = PipelineState.GL_SRC_COLOR;
+	public static final int GL_ONE_MINUS_SRC_COLOR = PipelineState.GL_ONE_MINUS_SRC_COLOR;
+	public static final int GL_SRC_ALPHA = PipelineState.GL_SRC_ALPHA;
+	public static final int GL_ONE_MINUS_SRC_ALPHA = PipelineState.GL_ONE_MINUS_SRC_ALPHA;
+	public static final int GL_DST_ALPHA = PipelineState.GL_DST_ALPHA;
+	public static final int GL_ONE_MINUS_DST_ALPHA = PipelineState.GL_ONE_MINUS_DST_ALPHA;
+	public static final int GL_DST_COLOR = PipelineState.GL_DST_COLOR;
+	public static final int GL_ONE_MINUS_DST_COLOR = PipelineState.GL_ONE_MINUS_DST_COLOR;
+	public static final int GL_SRC_ALPHA_SATURATE = PipelineState.GL_SRC_ALPHA_SATURATE;
+	
+	public static final int GL_FUNC_ADD = PipelineState.GL_FUNC_ADD;
+	public static final int GL_MIN = PipelineState.GL_MIN;
+	public static final int GL_MAX = PipelineState.GL_MAX;
+	public static final int GL_FUNC_SUBTRACT = PipelineState.GL_FUNC_SUBTRACT;
+	public static final int GL_FUNC_REVERSE_SUBTRACT = PipelineState.GL_FUNC_REVERSE_SUBTRACT;
+	
+	// glNewList modes
+	public static final int GL_COMPILE = 0x1300;
+	public static final int GL_COMPILE_AND_EXECUTE = 0x1301;
+	
 	public static final int DEBUG_MODE = 42;
 
 	// Shaders aren't actually anything significant, they're really temporary data structures
@@ -43,6 +120,8 @@ public class GL2VK {
 		public int type;
 		public SPIRV spirv = null;
 		public String log = "";
+		// Set while an async compile's still running, see resolveShader()
+		public Future<SPIRV> pending = null;
 		
 		// Use for vertex shaders only. See notes in glCompileShader
 		// for why we're oddly putting this here.
@@ -83,6 +162,11 @@ public class GL2VK {
 	private GraphicsBuffer[] buffers = new GraphicsBuffer[4096];
 	private GL2VKPipeline[] programs = new GL2VKPipeline[1024];
 	private GLShader[] shaders = new GLShader[1024];
+	private DisplayList[] lists = new DisplayList[1024];
+	
+	// Between glNewList and glEndList, draws and uniforms go into this instead of the nodes.
+	private DisplayList compilingList = null;
+	private int compilingMode = GL_COMPILE;
 	
 	// Vulkan locations != OpenGL attrib locations
 	// Attribs are universally unique, meaning that any 2 programs will never have any
@@ -105,11 +189,23 @@ public class GL2VK {
 	private int programIndex = 1;
 	private int shaderIndex = 1;
 	private int attribIndex = 1;
+	private int listIndex = 1;
 	
 	private int boundBuffer = 0;
+	// The indirect draws need to know the index buffer and the indirect buffer at the
+	// same time, so these are remembered separately.
+	private int boundIndexBuffer = 0;
+	private int boundIndirectBuffer = 0;
 	private int boundProgram = 0;
 	private boolean changeProgram = true;
 	
+	private PipelineState pipelineState = new PipelineState();
+	private PipelineCompiler compiler;
+	// Separate from the pipeline threads so shaders can use every core at startup.
+	private PipelineCompiler shaderCompiler;
+	private boolean asyncShaderCompile = true;
+	private int lastMode = GL_TRIANGLES;
+	
 	// Used to convert shaders
 	// Is an instance because it keeps the state from the
 	// fragment shader.
@@ -121,12 +217,23 @@ public class GL2VK {
 	public GL2VK() {
 		system = new VulkanSystem();
 		system.initVulkan();
+		compiler = new PipelineCompiler(PipelineCompiler.defaultThreadCount());
+		shaderCompiler = new PipelineCompiler(Runtime.getRuntime().availableProcessors(), "GL2VK shader compiler");
+		useSpirvCacheDirectory(system.getCacheDirectory());
 	}
 
 	public GL2VK(int debugNumber) {
 		if (debugNumber != DEBUG_MODE) {
 			system = new VulkanSystem();
 			system.initVulkan();
+			compiler = new PipelineCompiler(PipelineCompiler.defaultThreadCount());
+			shaderCompiler = new PipelineCompiler(Runtime.getRuntime().availableProcessors(), "GL2VK shader compiler");
+			useSpirvCacheDirectory(system.getCacheDirectory());
+		}
+		else {
+			// Nothing to wait for in debug mode
+			compiler = new PipelineCompiler(Runnable::run);
+			shaderCompiler = new PipelineCompiler(Runnable::run);
 		}
 	}
 	
@@ -157,19 +264,25 @@ public class GL2VK {
 	
 	public void glBindBuffer(int type, int vbo) {
 		boundBuffer = vbo;
+		if (type == GL_INDEX_BUFFER) boundIndexBuffer = vbo;
+		if (type == GL_DRAW_INDIRECT_BUFFER) boundIndirectBuffer = vbo;
 	}
 	
-	public void glBufferData(int target, int size, ByteBuffer data, int usage) {
-		// Get VK usage
-		int vkusage = 0;
+	private int vkBufferUsage(int target) {
 		switch (target) {
 		case GL_VERTEX_BUFFER:
-			vkusage = VK_BUFFER_USAGE_VERTEX_BUFFER_BIT;
-			break;
+			return VK_BUFFER_USAGE_VERTEX_BUFFER_BIT;
 		case GL_INDEX_BUFFER:
-			vkusage = VK_BUFFER_USAGE_INDEX_BUFFER_BIT;
-			break;
+			return VK_BUFFER_USAGE_INDEX_BUFFER_BIT;
+		case GL_DRAW_INDIRECT_BUFFER:
+			return VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT;
 		}
+		return 0;
+	}
+	
+	public void glBufferData(int target, int size, ByteBuffer data, int usage) {
+		// Get VK usage
+		int vkusage = vkBufferUsage(target);
 		
 		if (boundBuffer <= 0) {
 			warn("glBufferData: no bound buffer.");
@@ -180,15 +293,231 @@ public class GL2VK {
 			return;
 		}
 		
-		// Note: target is for specifying vertex_array, indicies_array
-		// which we'll likely need. Usage, I have no idea what it does.
+		// GL_STATIC_DRAW (or anything else) is device local, uploaded once.
+		// GL_DYNAMIC_DRAW/GL_STREAM_DRAW are host visible with a copy per frame in flight,
+		// every glBufferData goes to the next free copy and gets written directly,
+		// no staging and no waiting on the GPU.
+		boolean dynamic = usage == GL_DYNAMIC_DRAW || usage == GL_STREAM_DRAW;
 		
 		// Create buffer if not exist or currentSize != size.
-		buffers[boundBuffer].createBufferAuto(size, vkusage);
+		buffers[boundBuffer].createBufferAuto(size, vkusage, dynamic, dynamic);
 		
 		buffers[boundBuffer].bufferData(data, size, dangerMode);
 	}
 	
+	// Updates size bytes of the bound buffer at offset, without reallocating it.
+	// Lots of small updates in a frame are fine, they get merged and uploaded together
+	// at the end of the frame.
+	public void glBufferSubData(int target, int offset, int size, ByteBuffer data) {
+		if (boundBuffer <= 0) {
+			warn("glBufferSubData: no bound buffer.");
+			return;
+		}
+		if (buffers[boundBuffer] == null) {
+			warn("glBufferSubData: buffer "+boundBuffer+" doesn't exist.");
+			return;
+		}
+		if (offset < 0 || offset+size > buffers[boundBuffer].getSize()) {
+			warn("glBufferSubData: range "+offset+" to "+(offset+size)+" is outside buffer of size "+buffers[boundBuffer].getSize()+".");
+			return;
+		}
+		if (data == null || size <= 0) return;
+		
+		buffers[boundBuffer].bufferSubData(offset, data, size);
+	}
+	
+	// Like glBufferData but for buffers you want to map (glMapBufferRange).
+	// With GL_MAP_WRITE_BIT/GL_MAP_READ_BIT/GL_MAP_PERSISTENT_BIT in flags the buffer
+	// goes in host visible memory (device local too if the GPU has any), which stays
+	// mapped, so mapping it is free and you can write into it directly.
+	// data can be null.
+	public void glBufferStorage(int target, int size, ByteBuffer data, int flags) {
+		if (boundBuffer <= 0) {
+			warn("glBufferStorage: no bound buffer.");
+			return;
+		}
+		if (buffers[boundBuffer] == null) {
+			warn("glBufferStorage: buffer "+boundBuffer+" doesn't exist.");
+			return;
+		}
+		
+		boolean hostVisible = (flags & (GL_MAP_READ_BIT | GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT)) != 0;
+		buffers[boundBuffer].createBufferAuto(size, vkBufferUsage(target), hostVisible);
+		
+		if (data == null) return;
+		if (hostVisible) {
+			// Nothing's using it yet, so no need to go through the staging ring.
+			ByteBuffer mapped = buffers[boundBuffer].map(0, size, GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+			StagingRing.copy(data, MemoryUtil.memAddress(mapped), size);
+			buffers[boundBuffer].unmap();
+		}
+		else {
+			buffers[boundBuffer].bufferData(data, size, dangerMode);
+		}
+	}
+	
+	// Returns a direct ByteBuffer to write into the bound buffer, see glMapBufferRange.
+	public ByteBuffer glMapBuffer(int target, int access) {
+		int flags = 0;
+		switch (access) {
+		case GL_READ_ONLY:
+			flags = GL_MAP_READ_BIT;
+			break;
+		case GL_WRITE_ONLY:
+			flags = GL_MAP_WRITE_BIT;
+			break;
+		case GL_READ_WRITE:
+			flags = GL_MAP_READ_BIT | GL_MAP_WRITE_BIT;
+			break;
+		default:
+			warn("glMapBuffer: unknown access "+access+".");
+			return null;
+		}
+		if (boundBuffer <= 0 || buffers[boundBuffer] == null) {
+			warn("glMapBuffer: no bound buffer.");
+			return null;
+		}
+		return glMapBufferRange(target, 0, buffers[boundBuffer].getSize(), flags);
+	}
+	
+	// Buffers made with glBufferStorage (with map flags) give you a pointer straight into
+	// the buffer's memory. Unless GL_MAP_UNSYNCHRONIZED_BIT or GL_MAP_PERSISTENT_BIT
+	// is set, this waits for the GPU to be done with the frames in flight first.
+	// With GL_MAP_PERSISTENT_BIT you can keep the ByteBuffer and keep writing into it
+	// after glUnmapBuffer, it's always coherent. Just don't write to anything the GPU
+	// might still be drawing with (use a different part of the buffer each frame).
+	// Everything else is device local memory the CPU can't see, so you get write-only
+	// staging memory which gets copied into the buffer on glUnmapBuffer (or
+	// glFlushMappedBufferRange with GL_MAP_FLUSH_EXPLICIT_BIT).
+	public ByteBuffer glMapBufferRange(int target, int offset, int length, int access) {
+		if (boundBuffer <= 0) {
+			warn("glMapBufferRange: no bound buffer.");
+			return null;
+		}
+		GraphicsBuffer buffer = buffers[boundBuffer];
+		if (buffer == null) {
+			warn("glMapBufferRange: buffer "+boundBuffer+" doesn't exist.");
+			return null;
+		}
+		if (buffer.isMapped()) {
+			warn("glMapBufferRange: buffer "+boundBuffer+" is already mapped.");
+			return null;
+		}
+		if (offset < 0 || length <= 0 || offset+length > buffer.getSize()) {
+			warn("glMapBufferRange: range "+offset+" to "+(offset+length)+" is outside buffer of size "+buffer.getSize()+".");
+			return null;
+		}
+		if ((access & (GL_MAP_READ_BIT | GL_MAP_WRITE_BIT)) == 0) {
+			warn("glMapBufferRange: needs GL_MAP_READ_BIT or GL_MAP_WRITE_BIT.");
+			return null;
+		}
+		if (!buffer.isHostVisible()) {
+			if ((access & GL_MAP_READ_BIT) != 0) {
+				warn("glMapBufferRange: buffer "+boundBuffer+" isn't host visible, reading it isn't supported (use glBufferStorage with GL_MAP_READ_BIT).");
+			}
+			if ((access & GL_MAP_PERSISTENT_BIT) != 0) {
+				warn("glMapBufferRange: buffer "+boundBuffer+" isn't host visible, it can't be mapped persistently (use glBufferStorage with GL_MAP_PERSISTENT_BIT).");
+				access &= ~GL_MAP_PERSISTENT_BIT;
+			}
+			if ((access & GL_MAP_WRITE_BIT) != 0 && (access & (GL_MAP_INVALIDATE_RANGE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT)) == 0 && !buffer.knowsContents()) {
+				warn("glMapBufferRange: buffer "+boundBuffer+" isn't host visible and its contents aren't kept on the CPU yet, "
+						+ "bytes in the range that don't get written will be undefined (map with GL_MAP_INVALIDATE_RANGE_BIT, "
+						+ "or glBufferData it again first, it's kept from then on).");
+			}
+		}
+		return buffer.map(offset, length, access);
+	}
+	
+	// offset is relative to the start of the mapped range.
+	public void glFlushMappedBufferRange(int target, int offset, int length) {
+		if (boundBuffer <= 0 || buffers[boundBuffer] == null || !buffers[boundBuffer].isMapped()) {
+			warn("glFlushMappedBufferRange: bound buffer isn't mapped.");
+			return;
+		}
+		buffers[boundBuffer].flushMappedRange(offset, length);
+	}
+	
+	public boolean glUnmapBuffer(int target) {
+		if (boundBuffer <= 0 || buffers[boundBuffer] == null || !buffers[boundBuffer].isMapped()) {
+			warn("glUnmapBuffer: bound buffer isn't mapped.");
+			return false;
+		}
+		return buffers[boundBuffer].unmap();
+	}
+	
+	public GraphicsBuffer getBuffer(int buffer) {
+		return buffers[buffer];
+	}
+	
+	// Fixed function state that goes into the pipelines
+	
+	public void glEnable(int cap) {
+		setCapability(cap, true);
+	}
+	
+	public void glDisable(int cap) {
+		setCapability(cap, false);
+	}
+	
+	private void setCapability(int cap, boolean enabled) {
+		switch (cap) {
+		case GL_BLEND:
+			pipelineState.blend = enabled;
+			break;
+		case GL_CULL_FACE:
+			pipelineState.setCullEnabled(enabled);
+			break;
+		case GL_DEPTH_TEST:
+			pipelineState.depthTest = enabled;
+			break;
+		default:
+			warn("glEnable/glDisable: capability "+cap+" isn't supported.");
+		}
+	}
+	
+	public void glBlendFunc(int sfactor, int dfactor) {
+		glBlendFuncSeparate(sfactor, dfactor, sfactor, dfactor);
+	}
+	
+	public void glBlendFuncSeparate(int srcRGB, int dstRGB, int srcAlpha, int dstAlpha) {
+		if (!pipelineState.setBlendFunc(srcRGB, dstRGB, srcAlpha, dstAlpha)) {
+			warn("glBlendFuncSeparate: unsupported blend factor.");
+		}
+	}
+	
+	public void glBlendEquation(int mode) {
+		if (!pipelineState.setBlendEquation(mode)) {
+			warn("glBlendEquation: unsupported mode "+mode+".");
+		}
+	}
+	
+	public void glCullFace(int mode) {
+		if (!pipelineState.setCullFace(mode)) {
+			warn("glCullFace: unknown mode "+mode+".");
+		}
+	}
+	
+	public void glFrontFace(int mode) {
+		if (!pipelineState.setFrontFace(mode)) {
+			warn("glFrontFace: unknown mode "+mode+".");
+		}
+	}
+	
+	public void glDepthFunc(int func) {
+		if (!pipelineState.setDepthFunc(func)) {
+			warn("glDepthFunc: unknown function "+func+".");
+		}
+	}
+	
+	public void glDepthMask(boolean flag) {
+		pipelineState.depthWrite = flag;
+	}
+	
+	public PipelineState getPipelineState() {
+		return pipelineState;
+	}
+	
+	// Uniforms only need the program's layout, not a pipeline.
 	private boolean checkAndPrepareProgram() {
 		if (boundProgram <= 0) {
 			warn("glDrawArrays: No program bound.");
@@ -199,10 +528,37 @@ public class GL2VK {
 			return false;
 		}
 		
-		if (!programs[boundProgram].initiated) {
-			programs[boundProgram].createGraphicsPipeline();
+		// Usually already done in the background since glLinkProgram.
+		programs[boundProgram].ensureInitiated();
+		return true;
+	}
+	
+	// Each program has a pipeline per state it's drawn with (mode, blending etc), they
+	// get created in the background the first time they're needed and reused after that.
+	// Returns false if the draw should be skipped (see PipelineCompiler).
+	private boolean checkAndPrepareProgram(int mode) {
+		if (mode != lastMode) {
+			if (!pipelineState.setMode(mode)) {
+				warn("Draw: unknown mode "+mode+", drawing triangles.");
+				pipelineState.setMode(GL_TRIANGLES);
+			}
+			else if (mode == GL_LINE_LOOP) {
+				warn("GL_LINE_LOOP isn't supported, drawing GL_LINE_STRIP instead.");
+			}
+			lastMode = mode;
+		}
+		
+		if (checkAndPrepareProgram() == false) return false;
+		
+		// Display lists can't skip a draw, it'd be missing every time the list's called.
+		long pipeline = programs[boundProgram].getPipeline(pipelineState, compilingList != null ? null : compiler);
+		if (pipeline == -1) return false;
+		if (compilingList != null) {
+			compilingList.bindProgram(programs[boundProgram], pipeline);
+		}
+		else {
+			system.updateNodePipeline(pipeline);
 		}
-		system.updateNodePipeline(programs[boundProgram].graphicsPipeline);
 		
 		if (changeProgram) {
 //			system.bindPipelineAllNodes(programs[boundProgram].graphicsPipeline);
@@ -214,14 +570,17 @@ public class GL2VK {
 	}
 	
 	public void glDrawArrays(int mode, int first, int count) {
-		// Mode not used
-		if (checkAndPrepareProgram() == false) return;
+		if (checkAndPrepareProgram(mode) == false) return;
 		
 //		int stride = programs[boundProgram].attribInfo.bindingSize;
 //		System.out.println("CHECK YOUR STRIDE: "+stride);
 //		for (Long val : programs[boundProgram].getVKBuffers()) {
 //			System.out.println(val);
 //		}
+		if (compilingList != null) {
+			compilingList.drawArrays(programs[boundProgram], first, count);
+			return;
+		}
 		system.nodeDrawArrays(programs[boundProgram].getVKBuffers(), count, first);
 	}
 	
@@ -230,13 +589,190 @@ public class GL2VK {
 	// in jogl it's the bound buffer??
 	// Either way, it's java and Processing we're writing this for, so it is what it is.
 	public void glDrawElements(int mode, int count, int type, int offset) {
-		// Mode not used
-		if (checkAndPrepareProgram() == false) return;
+		if (checkAndPrepareProgram(mode) == false) return;
 		
+		if (compilingList != null) {
+			compilingList.drawIndexed(programs[boundProgram], buffers[boundBuffer], count, offset, type);
+			return;
+		}
 		system.nodeDrawIndexed(count, buffers[boundBuffer].bufferID, programs[boundProgram].getVKBuffers(), offset, type);
 	}
 	
 	
+	// Draws instanceCount copies, attribs with a divisor (glVertexAttribDivisor) move
+	// on once per instance instead of once per vertex.
+	public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+		glDrawArraysInstancedBaseInstance(mode, first, count, instanceCount, 0);
+	}
+	
+	public void glDrawArraysInstancedBaseInstance(int mode, int first, int count, int instanceCount, int baseInstance) {
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		if (compilingList != null) {
+			compilingList.drawArrays(programs[boundProgram], first, count, instanceCount, baseInstance);
+			return;
+		}
+		system.nodeDrawArraysInstanced(programs[boundProgram].getVKBuffers(), count, first, instanceCount, baseInstance);
+	}
+	
+	public void glDrawElementsInstanced(int mode, int count, int type, int offset, int instanceCount) {
+		glDrawElementsInstancedBaseInstance(mode, count, type, offset, instanceCount, 0);
+	}
+	
+	public void glDrawElementsInstancedBaseInstance(int mode, int count, int type, int offset, int instanceCount, int baseInstance) {
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		if (compilingList != null) {
+			compilingList.drawIndexed(programs[boundProgram], buffers[boundBuffer], count, offset, type, instanceCount, baseInstance);
+			return;
+		}
+		system.nodeDrawIndexedInstanced(count, buffers[boundBuffer].bufferID, programs[boundProgram].getVKBuffers(), offset, type, instanceCount, baseInstance);
+	}
+	
+	// Draws count[i] vertices starting at first[i], for each i < drawcount.
+	// All of it goes to the node as one command, which turns it into one indirect draw
+	// where the GPU supports it.
+	public void glMultiDrawArrays(int mode, int[] first, int[] count, int drawcount) {
+		if (checkDrawCount("glMultiDrawArrays", drawcount, first, count) == false) return;
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		if (compilingList != null) {
+			for (int i = 0; i < drawcount; i++) {
+				compilingList.drawArrays(programs[boundProgram], first[i], count[i]);
+			}
+			return;
+		}
+		system.nodeMultiDrawArrays(programs[boundProgram].getVKBuffers(), first, count, drawcount);
+	}
+	
+	// Like glDrawElements, offsets are byte offsets into the bound index buffer.
+	public void glMultiDrawElements(int mode, int[] count, int type, int[] offsets, int drawcount) {
+		if (checkDrawCount("glMultiDrawElements", drawcount, count, offsets) == false) return;
+		if (boundIndexBuffer <= 0 || buffers[boundIndexBuffer] == null) {
+			warn("glMultiDrawElements: no index buffer bound.");
+			return;
+		}
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		if (compilingList != null) {
+			for (int i = 0; i < drawcount; i++) {
+				compilingList.drawIndexed(programs[boundProgram], buffers[boundIndexBuffer], count[i], offsets[i], type);
+			}
+			return;
+		}
+		system.nodeMultiDrawIndexed(buffers[boundIndexBuffer].bufferID, programs[boundProgram].getVKBuffers(), count, offsets, type, drawcount);
+	}
+	
+	// The arrays need at least drawcount entries each.
+	private boolean checkDrawCount(String func, int drawcount, int[] a, int[] b) {
+		if (drawcount < 0) {
+			warn(func+": drawcount "+drawcount+" is negative.");
+			return false;
+		}
+		if (a == null || b == null || a.length < drawcount || b.length < drawcount) {
+			warn(func+": drawcount "+drawcount+" is more than the arrays passed in hold.");
+			return false;
+		}
+		return true;
+	}
+	
+	// Indirect draws read their draw parameters from the buffer bound to GL_DRAW_INDIRECT_BUFFER,
+	// at the byte offset. Same layout as GL: (count, instanceCount, first, baseInstance) for arrays,
+	// (count, instanceCount, firstIndex, baseVertex, baseInstance) for elements.
+	// stride 0 means tightly packed.
+	public void glDrawArraysIndirect(int mode, int offset) {
+		glMultiDrawArraysIndirect(mode, offset, 1, 0);
+	}
+	
+	public void glDrawElementsIndirect(int mode, int type, int offset) {
+		glMultiDrawElementsIndirect(mode, type, offset, 1, 0);
+	}
+	
+	public void glMultiDrawArraysIndirect(int mode, int offset, int drawcount, int stride) {
+		if (checkIndirectBuffer() == false) return;
+		if (stride == 0) stride = 16;
+		if (checkIndirect("glMultiDrawArraysIndirect", offset, drawcount, stride, 16) == false) return;
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		system.nodeDrawIndirect(buffers[boundIndirectBuffer].bufferID, offset, drawcount, stride, programs[boundProgram].getVKBuffers());
+	}
+	
+	public void glMultiDrawElementsIndirect(int mode, int type, int offset, int drawcount, int stride) {
+		if (checkIndirectBuffer() == false) return;
+		if (stride == 0) stride = 20;
+		if (checkIndirect("glMultiDrawElementsIndirect", offset, drawcount, stride, 20) == false) return;
+		if (boundIndexBuffer <= 0 || buffers[boundIndexBuffer] == null) {
+			warn("glMultiDrawElementsIndirect: no index buffer bound.");
+			return;
+		}
+		if (checkAndPrepareProgram(mode) == false) return;
+		
+		system.nodeDrawIndexedIndirect(buffers[boundIndirectBuffer].bufferID, offset, drawcount, stride, buffers[boundIndexBuffer].bufferID, programs[boundProgram].getVKBuffers(), type);
+	}
+	
+	private boolean checkIndirectBuffer() {
+		if (compilingList != null) {
+			// The draws live on the GPU, nothing for us to keep.
+			warn("Indirect draws aren't supported in display lists.");
+			return false;
+		}
+		if (boundIndirectBuffer <= 0 || buffers[boundIndirectBuffer] == null) {
+			warn("Indirect draw: no buffer bound to GL_DRAW_INDIRECT_BUFFER.");
+			return false;
+		}
+		return true;
+	}
+	
+	// Also false for drawcount 0, there's nothing to draw.
+	private boolean checkIndirect(String func, int offset, int drawcount, int stride, int commandSize) {
+		String problem = indirectProblem(offset, drawcount, stride, commandSize, buffers[boundIndirectBuffer].getSize());
+		if (problem != null) {
+			warn(func+": "+problem);
+			return false;
+		}
+		return drawcount > 0;
+	}
+	
+	// Same rules as GL (and vulkan, which would read past the end otherwise): offset and
+	// stride 4 byte aligned, stride at least the size of a command, and every command
+	// inside the buffer. null if it's fine.
+	static String indirectProblem(int offset, int drawcount, int stride, int commandSize, int bufferSize) {
+		if (drawcount < 0) {
+			return "drawcount "+drawcount+" is negative.";
+		}
+		if (offset < 0 || offset % 4 != 0) {
+			return "offset "+offset+" needs to be a positive multiple of 4.";
+		}
+		if (stride % 4 != 0 || stride < commandSize) {
+			return "stride "+stride+" needs to be a multiple of 4 and at least "+commandSize+".";
+		}
+		if (drawcount == 0) return null;
+		long end = (long)offset + (long)(drawcount-1)*stride + commandSize;
+		if (end > bufferSize) {
+			return "draws go up to byte "+end+" but the indirect buffer's only "+bufferSize+" bytes.";
+		}
+		return null;
+	}
+	
+	// 0 = per vertex (default), 1 = per instance.
+	// Vulkan sets this per buffer binding rather than per attrib, so all the attribs in a
+	// buffer need the same divisor. Divisors above 1 need an extension we don't use, so
+	// they're treated as 1.
+	// Like the rest of the vertex layout, changing it gets the program a new pipeline.
+	public void glVertexAttribDivisor(int glindex, int divisor) {
+		if (glindex == -1 || glAttribs[glindex] == null) {
+			warn("glVertexAttribDivisor: Vertex attrib "+glindex+" doesn't exist.");
+			return;
+		}
+		if (divisor > 1) {
+			warn("glVertexAttribDivisor: divisor "+divisor+" isn't supported, using 1.");
+			divisor = 1;
+		}
+		GL2VKPipeline program = glAttribs[glindex].program;
+		program.vertexAttribDivisor(program.getVKAttribLocation(glindex), divisor);
+	}
+	
+	
 	// Probably not going to fully implement glEnableVertexAttribArray or glDisableVertexAttribArray
 	// because chances are, when we use glVertexAttribPointer, we're being pretty clear that we do,
 	// indeed, want to use the vertexAttrib. And it's not like glDisableVertexAttribArray is going to
@@ -305,6 +841,12 @@ public class GL2VK {
 	}
 	
 	public void glDeleteShader(int shader) {
+		GLShader sh = shaders[shader];
+		if (sh != null && sh.pending != null) {
+			// Never got attached so nothing else has its SPIR-V
+			resolveShader(sh);
+			if (sh.spirv != null) sh.spirv.free();
+		}
 		shaders[shader] = null;
 	}
 	
@@ -339,8 +881,33 @@ public class GL2VK {
 		}
 		else shaderKind = ShaderKind.VERTEX_SHADER;
 		
+		// Compiled again before the last one finished, that one's SPIR-V isn't going anywhere.
+		if (sh.pending != null) {
+			resolveShader(sh);
+			if (sh.spirv != null) sh.spirv.free();
+		}
+		sh.spirv = null;
+		sh.successfulCompile = false;
+		sh.log = "";
+		
+		// shaderc runs on the shader threads, the results get picked up by resolveShader()
+		// the first time they're needed (compile status, info log or glAttachShader), so
+		// all the shaders compiled at startup compile at the same time.
+		String source = sh.source;
+		sh.pending = shaderCompiler.submit(() -> compileShader(source, shaderKind));
+		if (!asyncShaderCompile) {
+			resolveShader(sh);
+		}
+	}
+	
+	// Waits for the shader's compile if it's still going and fills in the results.
+	private void resolveShader(GLShader sh) {
+		if (sh.pending == null) return;
+		Future<SPIRV> pending = sh.pending;
+		sh.pending = null;
+		
 		try {
-			sh.spirv = compileShader(sh.source, shaderKind);
+			sh.spirv = PipelineCompiler.join(pending);
 			sh.successfulCompile = true;
 		}
 		catch (RuntimeException e) {
@@ -348,10 +915,6 @@ public class GL2VK {
 			sh.log = e.getMessage();
 		}
 		
-		
-		// TODO: failed compiles just throws an exception. Actually check to see if it compiled successfully
-		// or not.
-		
 		if (sh.successfulCompile) {
 			// Here, we must get attribute information.
 			//
@@ -390,6 +953,7 @@ public class GL2VK {
 			warn("glGetShaderiv: shader "+shader+" doesn't exist.");
 			return;
 		}
+		resolveShader(sh);
 		if (!sh.successfulCompile) {
 			warn("glAttachShader: Can't attach shader that hasn't been compiled or failed compilation.");
 			return;
@@ -427,6 +991,7 @@ public class GL2VK {
 			warn("glGetShaderiv: shader "+shader+" doesn't exist.");
 			return;
 		}
+		resolveShader(sh);
 		if (pname == GL_COMPILE_STATUS) {
 			int status = GL_FALSE;
 			if (sh.successfulCompile == true) {
@@ -444,12 +1009,20 @@ public class GL2VK {
 			warn("glGetShaderInfoLog: shader "+shader+" doesn't exist.");
 			return "";
 		}
+		resolveShader(shaders[shader]);
 		return shaders[shader].log;
 	}
 	
 	// Because we create our pipeline on draw command calls, this effectively does nothing.
+	// Starts creating the program's shader modules and layout in the background, so
+	// they're (hopefully) ready by the time it's used.
 	public void glLinkProgram(int program) {
-		
+		if (programs[program] == null) {
+			warn("glLinkProgram: program "+program+" doesn't exist.");
+			return;
+		}
+		if (system == null) return;
+		programs[program].prepare(compiler);
 	}
 	
 	public void useProgram(int program) {
@@ -473,7 +1046,11 @@ public class GL2VK {
 		
 		GLUniform uniform = programs[boundProgram].getUniform(location);
 		
-		
+		if (compilingList != null) {
+			compilingList.pushConstant(programs[boundProgram], uniform.vertexFragment, uniform.offset, value0);
+			return;
+		}
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset, value0);
 		system.nodePushConstants(programs[boundProgram].pipelineLayout, uniform.vertexFragment, uniform.offset, value0);
 	}
 
@@ -483,7 +1060,12 @@ public class GL2VK {
 		
 		GLUniform uniform = programs[boundProgram].getUniform(location);
 		
-		
+		if (compilingList != null) {
+			compilingList.pushConstant(programs[boundProgram], uniform.vertexFragment, uniform.offset, value0, value1);
+			return;
+		}
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset, value0);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+4, value1);
 		system.nodePushConstants(programs[boundProgram].pipelineLayout, uniform.vertexFragment, uniform.offset, value0, value1);
 	}
 	
@@ -492,7 +1074,13 @@ public class GL2VK {
 		
 		GLUniform uniform = programs[boundProgram].getUniform(location);
 		
-		
+		if (compilingList != null) {
+			compilingList.pushConstant(programs[boundProgram], uniform.vertexFragment, uniform.offset, value0, value1, value2);
+			return;
+		}
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset, value0);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+4, value1);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+8, value2);
 		system.nodePushConstants(programs[boundProgram].pipelineLayout, uniform.vertexFragment, uniform.offset, value0, value1, value2);
 	}
 
@@ -502,7 +1090,14 @@ public class GL2VK {
 		
 		GLUniform uniform = programs[boundProgram].getUniform(location);
 		
-		
+		if (compilingList != null) {
+			compilingList.pushConstant(programs[boundProgram], uniform.vertexFragment, uniform.offset, value0, value1, value2, value3);
+			return;
+		}
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset, value0);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+4, value1);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+8, value2);
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset+12, value3);
 		system.nodePushConstants(programs[boundProgram].pipelineLayout, uniform.vertexFragment, uniform.offset, value0, value1, value2, value3);
 	}
 	
@@ -515,6 +1110,11 @@ public class GL2VK {
 		
 		GLUniform uniform = programs[boundProgram].getUniform(location);
 		
+		if (compilingList != null) {
+			compilingList.pushConstant(programs[boundProgram], uniform.vertexFragment, uniform.offset, mat, mat.capacity());
+			return;
+		}
+		programs[boundProgram].setUniform(uniform.vertexFragment, uniform.offset, mat);
 		system.nodePushConstants(programs[boundProgram].pipelineLayout, uniform.vertexFragment, uniform.offset, mat);
 	}
 	
@@ -539,8 +1139,105 @@ public class GL2VK {
 	
 	
 
+	// ======================
+	// DISPLAY LISTS
+	// ======================
+	// Records draws once and replays them every frame without the nodes having to
+	// record them again (see DisplayList). Only draws and uniforms get compiled into
+	// the list; everything else (binding buffers, glBufferData, useProgram etc) happens
+	// straight away like normal.
+	
+	// Returns the first of range new list ids.
+	public int glGenLists(int range) {
+		int first = listIndex;
+		for (int i = 0; i < range; i++) {
+			if (system == null) {
+				// Debug mode, nothing to record into.
+				lists[listIndex] = new DisplayList(listIndex, null, 1);
+			}
+			else {
+				lists[listIndex] = system.createDisplayList(listIndex);
+			}
+			listIndex++;
+		}
+		return first;
+	}
+	
+	public boolean glIsList(int list) {
+		return list > 0 && list < lists.length && lists[list] != null;
+	}
+	
+	// mode is GL_COMPILE or GL_COMPILE_AND_EXECUTE
+	public void glNewList(int list, int mode) {
+		if (compilingList != null) {
+			warn("glNewList: already compiling list "+compilingList.id+", call glEndList first.");
+			return;
+		}
+		if (!glIsList(list)) {
+			warn("glNewList: list "+list+" doesn't exist.");
+			return;
+		}
+		compilingList = lists[list];
+		compilingMode = mode;
+		compilingList.begin();
+	}
+	
+	public void glEndList() {
+		if (compilingList == null) {
+			warn("glEndList: glNewList wasn't called.");
+			return;
+		}
+		DisplayList list = compilingList;
+		compilingList = null;
+		list.end();
+		if (compilingMode == GL_COMPILE_AND_EXECUTE) {
+			glCallList(list.id);
+		}
+	}
+	
+	public void glCallList(int list) {
+		if (compilingList != null) {
+			warn("glCallList: calling a list inside another list isn't supported.");
+			return;
+		}
+		if (!glIsList(list)) {
+			warn("glCallList: list "+list+" doesn't exist.");
+			return;
+		}
+		system.callList(lists[list]);
+	}
+	
+	public void glDeleteLists(int list, int range) {
+		for (int i = list; i < list+range; i++) {
+			if (!glIsList(i)) continue;
+			if (lists[i] == compilingList) {
+				compilingList = null;
+			}
+			if (system != null) {
+				system.deleteDisplayList(i);
+			}
+			lists[i] = null;
+		}
+	}
+	
+	public DisplayList getDisplayList(int list) {
+		return lists[list];
+	}
+	
+
 	private void cleanup() {
 		system.cleanupNodes();
+		// Anything still compiling needs to finish before the programs are cleaned up.
+		compiler.shutdown();
+		shaderCompiler.shutdown();
+		ShaderSPIRVUtils.releaseCompilers();
+		// Compiled but never attached
+		for (int i = 0; i < shaders.length; i++) {
+			if (shaders[i] != null && shaders[i].pending != null) {
+				resolveShader(shaders[i]);
+				if (shaders[i].spirv != null) shaders[i].spirv.free();
+			}
+		}
 		
 		// Clean up graphics buffers
 		for (int i = 0; i < buffers.length; i++) {
@@ -586,10 +1283,133 @@ public class GL2VK {
 		return system.getNodesCount();
 	}
 	
+	// Grows/shrinks the number of thread nodes, takes effect next frame.
+	// Defaults to one per cpu core (minus one for the main thread).
+	public void setNodeCount(int count) {
+		system.setNodeCount(count);
+	}
+	
+	// Nodes that were actually used in the last frame (unused ones get skipped).
+	public int getActiveNodeCount() {
+		return system.getActiveNodeCount();
+	}
+	
+	// Spreads draw calls across all the nodes automatically so you don't have to
+	// selectNode() yourself. CommandSharder.BY_DRAWS, BY_COST or MANUAL (default).
+	public void setShardMode(int mode) {
+		system.setShardMode(mode);
+	}
+	
 	public void setDangerMode(boolean mode) {
 		dangerMode = mode;
 	}
 	
+	// Commands are sent to the nodes in batches, this sends out whatever's
+	// been batched up so far. endRecord() does this for you.
+	public void flush() {
+		system.flushNodes();
+	}
+	
+	// Size of the batches in bytes (0 to turn batching off)
+	public void setBatchSize(int bytes) {
+		system.setBatchSize(bytes);
+	}
+	
+	// Nanoseconds spent waiting for the nodes at the end of the last frame.
+	public long getNodeWaitTime() {
+		return system.getNodeWaitTime();
+	}
+	
+	// What to do when a node's queue is full, see ThreadNode.BACKPRESSURE_*
+	public void setBackpressurePolicy(int policy) {
+		system.setBackpressurePolicy(policy);
+	}
+	
+	public long getBackpressureCount(int policy) {
+		return system.getBackpressureCount(policy);
+	}
+	
+	// How many redundant vertex/index buffer binds, pipeline binds and push constants
+	// were skipped last frame.
+	public long getElidedCount() {
+		return system.getElidedCount();
+	}
+	
+	// Buffers get their memory out of blocks of this size (default 64MB). Only affects
+	// blocks allocated after this is called.
+	public void setMemoryBlockSize(long bytes) {
+		system.vkbase.allocator.setBlockSize(bytes);
+	}
+	
+	// Block counts, usage and fragmentation of buffer memory.
+	public MemoryAllocator getMemoryAllocator() {
+		return system.vkbase.allocator;
+	}
+	
+	// Where compiled pipelines and shaders get kept between runs, so later launches don't have to
+	// compile them all again (default ~/.gl2vk4p). null to turn it off.
+	// Needs calling before the first draw, the cache's loaded when the first pipeline's created,
+	// and it's saved on close().
+	public void setCacheDirectory(String path) {
+		system.setCacheDirectory(path != null ? new File(path) : null);
+		useSpirvCacheDirectory(system.getCacheDirectory());
+	}
+	
+	// SPIR-V goes in its own folder, one file per shader.
+	private void useSpirvCacheDirectory(File directory) {
+		SpirvCache cache = ShaderSPIRVUtils.getCache();
+		if (cache == null) return;
+		cache.setDirectory(directory != null ? new File(directory, "spirv") : null);
+	}
+	
+	// Compiled shaders, shared by every GL2VK. null if it's been turned off.
+	public SpirvCache getSpirvCache() {
+		return ShaderSPIRVUtils.getCache();
+	}
+	
+	public PipelineCache getPipelineCache() {
+		return system.getPipelineCacheObject();
+	}
+	
+	// What draws do while their pipeline's still being created in the background:
+	// PipelineCompiler.BLOCK, SKIP or FALLBACK (default, uses a similar pipeline the
+	// program already has, or waits if there isn't one).
+	public void setPipelinePolicy(int policy) {
+		compiler.setPolicy(policy);
+	}
+	
+	// How many times each policy's been used, and how many pipelines have been compiled.
+	public PipelineCompiler getPipelineCompiler() {
+		return compiler;
+	}
+	
+	// On by default. When off, glCompileShader waits for the shader to finish compiling
+	// like it used to.
+	public void setAsyncShaderCompile(boolean async) {
+		asyncShaderCompile = async;
+	}
+	
+	public boolean isAsyncShaderCompile() {
+		return asyncShaderCompile;
+	}
+	
+	// Per-node timing/queue/command stats, off by default since it costs a
+	// couple of System.nanoTime() calls per command.
+	public void setMetricsEnabled(boolean enabled) {
+		system.setMetricsEnabled(enabled);
+	}
+	
+	// Stats from the last frame for a node (null if metrics are off or the node doesn't exist).
+	// Reuses the same object each frame so don't hold onto it expecting it not to change.
+	public NodeMetrics getNodeMetrics(int node) {
+		return system.getNodeMetrics(node);
+	}
+	
+	// WaitStrategy.BUSY_SPIN, SPIN_YIELD, SPIN_PARK (default) or BLOCKING
+	public void setWaitPolicy(int policy) {
+		system.setWaitPolicy(policy);
+	}
+	
 	public GL2VKPipeline getPipeline(int program) {
 		return programs[program];
 	}
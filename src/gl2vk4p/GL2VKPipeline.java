@@ -5,17 +5,15 @@ import static org.lwjgl.vulkan.VK10.VK_COLOR_COMPONENT_A_BIT;
 import static org.lwjgl.vulkan.VK10.VK_COLOR_COMPONENT_B_BIT;
 import static org.lwjgl.vulkan.VK10.VK_COLOR_COMPONENT_G_BIT;
 import static org.lwjgl.vulkan.VK10.VK_COLOR_COMPONENT_R_BIT;
-import static org.lwjgl.vulkan.VK10.VK_CULL_MODE_BACK_BIT;
-import static org.lwjgl.vulkan.VK10.VK_FRONT_FACE_CLOCKWISE;
 import static org.lwjgl.vulkan.VK10.VK_LOGIC_OP_COPY;
 import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
 import static org.lwjgl.vulkan.VK10.VK_POLYGON_MODE_FILL;
-import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
 import static org.lwjgl.vulkan.VK10.VK_SAMPLE_COUNT_1_BIT;
 import static org.lwjgl.vulkan.VK10.VK_SHADER_STAGE_FRAGMENT_BIT;
 import static org.lwjgl.vulkan.VK10.VK_SHADER_STAGE_VERTEX_BIT;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO;
+import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO;
@@ -35,14 +33,20 @@ import static org.lwjgl.vulkan.VK10.vkDestroyShaderModule;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import org.lwjgl.BufferUtils;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkExtent2D;
 import org.lwjgl.vulkan.VkGraphicsPipelineCreateInfo;
 import org.lwjgl.vulkan.VkOffset2D;
 import org.lwjgl.vulkan.VkPipelineColorBlendAttachmentState;
 import org.lwjgl.vulkan.VkPipelineColorBlendStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineDepthStencilStateCreateInfo;
 import org.lwjgl.vulkan.VkPipelineInputAssemblyStateCreateInfo;
 import org.lwjgl.vulkan.VkPipelineLayoutCreateInfo;
 import org.lwjgl.vulkan.VkPipelineMultisampleStateCreateInfo;
@@ -123,15 +127,78 @@ public class GL2VKPipeline {
 	private HashMap<Integer, VertexAttribsBinding> gl2vkBinding = new HashMap<Integer, VertexAttribsBinding>();
 	private HashMap<String, Integer> attribNameToGLLocation = new HashMap<String, Integer>();
 	private int[] GLLocationToVKLocation = new int[1024];
+	// Set by glVertexAttribDivisor, 0 = per vertex (the default), 1 = per instance.
+	private int[] vkLocationDivisor = new int[1024];
 	private HashMap<String, Integer> name2UniformLocation = new HashMap<String, Integer>();
 	public ArrayList<GLUniform> uniforms = new ArrayList<GLUniform>();
 	
 	private int boundBinding = 0;
 	private int totalVertexAttribsBindings = 0;
 	
-	// TODO: replace with checking the hashState instead
+	// Shader modules and layout have been created (createGraphicsPipeline()).
 	public boolean initiated = false;
 	
+	// Shared by every variant
+	private long vertShaderModule = -1;
+	private long fragShaderModule = -1;
+	// Set by prepare(), the modules and layout being created in the background.
+	private Future<Long> layoutFuture = null;
+	
+	// A pipeline, or one that's still being created.
+	private static class Variant {
+		long pipeline = -1;
+		Future<Long> future;
+		int topology;
+	}
+	
+	// The whole vertex layout (see VertexAttribsBinding.getLayout()), so two different
+	// layouts can never end up sharing a pipeline even if their hashes collide.
+	static final class VertexLayout {
+		private final long[] values;
+		private final int hash;
+		
+		VertexLayout(long[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof VertexLayout)) return false;
+			VertexLayout other = (VertexLayout)o;
+			return hash == other.hash && Arrays.equals(values, other.values);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+	
+	// Vertex layout -> PipelineState key -> pipeline.
+	// graphicsPipeline is whichever was used last.
+	private HashMap<VertexLayout, HashMap<Long, Variant>> variants = new HashMap<VertexLayout, HashMap<Long, Variant>>();
+	private int variantCount = 0;
+	private long lastKey = 0L;
+	private VertexLayout lastLayout = null;
+	private long lastPipeline = -1;
+	// getLayout() gets recalculated when this is set.
+	private boolean layoutChanged = true;
+	private VertexLayout layout = null;
+	
+	// Goes up every time the pipeline (and layout) is created, and every time a uniform
+	// is set to a new value. Display lists use these to tell when they need re-recording.
+	public int version = 0;
+	public int uniformVersion = 0;
+	
+	// Last values each uniform was set to, indexed by GLUniform.VERTEX/FRAGMENT. Push
+	// constants don't carry over between command buffers, so display lists need these
+	// to start off with the same values as everything else.
+	private ByteBuffer[] uniformData = new ByteBuffer[3];
+	private int[] uniformStart = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+	private int[] uniformEnd = new int[3];
+	
 	
 	
 	public GL2VKPipeline(VulkanSystem system) {
@@ -166,8 +233,47 @@ public class GL2VKPipeline {
     
     
 
+    // Creates the shader modules and pipeline layout, which every variant shares.
+    // The pipelines themselves get created when they're first drawn with (getPipeline()).
     public void createGraphicsPipeline() {
-
+    	createLayout();
+    	finishLayout();
+    }
+    
+    // Starts createGraphicsPipeline() on the compiler's threads (glLinkProgram).
+    public void prepare(PipelineCompiler compiler) {
+    	if (initiated || layoutFuture != null) return;
+    	if (vertShaderSPIRV == null || fragShaderSPIRV == null) return;
+    	layoutFuture = compiler.submit(() -> {
+    		createLayout();
+    		return pipelineLayout;
+    	});
+    }
+    
+    // Makes sure createGraphicsPipeline()'s been done, waiting for prepare() if it was
+    // started, or doing it right now if it wasn't.
+    public void ensureInitiated() {
+    	if (initiated) return;
+    	if (layoutFuture != null) {
+    		PipelineCompiler.join(layoutFuture);
+    		layoutFuture = null;
+    		finishLayout();
+    	}
+    	else {
+    		createGraphicsPipeline();
+    	}
+    }
+    
+    // Main thread side of it
+    private void finishLayout() {
+    	version++;
+        destroyVariants();
+        initiated = true;
+    }
+    
+    // Can run on a compiler thread, only touches the shaders/uniforms which don't change
+    // after linking.
+    private void createLayout() {
         try(MemoryStack stack = stackPush()) {
 
             // Let's compile the GLSL shaders into SPIR-V at runtime using the shaderc library
@@ -176,97 +282,10 @@ public class GL2VKPipeline {
         		throw new RuntimeException("Shaders must be compiled before calling createGraphicsPipeline()");
         	}
         	
-        	// Completely unnecessary code
-    		long vertShaderModule = createShaderModule(vertShaderSPIRV.bytecode());
-    		long fragShaderModule = createShaderModule(fragShaderSPIRV.bytecode());
-            
-            
-//            long vertShaderModule = createShaderModule(vertShaderSPIRV.bytecode());
-//            long fragShaderModule = createShaderModule(fragShaderSPIRV.bytecode());
-
-            ByteBuffer entryPoint = stack.UTF8("main");
-
-            VkPipelineShaderStageCreateInfo.Buffer shaderStages = VkPipelineShaderStageCreateInfo.calloc(2, stack);
-
-            VkPipelineShaderStageCreateInfo vertShaderStageInfo = shaderStages.get(0);
-
-            vertShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
-            vertShaderStageInfo.stage(VK_SHADER_STAGE_VERTEX_BIT);
-            vertShaderStageInfo.module(vertShaderModule);
-            vertShaderStageInfo.pName(entryPoint);
-
-            VkPipelineShaderStageCreateInfo fragShaderStageInfo = shaderStages.get(1);
-
-            fragShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
-            fragShaderStageInfo.stage(VK_SHADER_STAGE_FRAGMENT_BIT);
-            fragShaderStageInfo.module(fragShaderModule);
-            fragShaderStageInfo.pName(entryPoint);
-
-            // ===> VERTEX STAGE <===
-
-            VkPipelineVertexInputStateCreateInfo vertexInputInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack);
-            vertexInputInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
-            vertexInputInfo.pVertexBindingDescriptions(getBindingDescriptions());
-            vertexInputInfo.pVertexAttributeDescriptions(getAttributeDescriptions());
-
-            // ===> ASSEMBLY STAGE <===
-
-            VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.calloc(stack);
-            inputAssembly.sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
-            inputAssembly.topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST);
-            inputAssembly.primitiveRestartEnable(false);
-
-            // ===> VIEWPORT & SCISSOR
-
-            VkViewport.Buffer viewport = VkViewport.calloc(1, stack);
-            viewport.x(0.0f);
-            viewport.y(0.0f);
-            viewport.width(vkbase.swapChainExtent.width());
-            viewport.height(vkbase.swapChainExtent.height());
-            viewport.minDepth(0.0f);
-            viewport.maxDepth(1.0f);
-
-            VkRect2D.Buffer scissor = VkRect2D.calloc(1, stack);
-            scissor.offset(VkOffset2D.calloc(stack).set(0, 0));
-            scissor.extent(vkbase.swapChainExtent);
-
-            VkPipelineViewportStateCreateInfo viewportState = VkPipelineViewportStateCreateInfo.calloc(stack);
-            viewportState.sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO);
-            viewportState.pViewports(viewport);
-            viewportState.pScissors(scissor);
-
-            // ===> RASTERIZATION STAGE <===
-
-            VkPipelineRasterizationStateCreateInfo rasterizer = VkPipelineRasterizationStateCreateInfo.calloc(stack);
-            rasterizer.sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO);
-            rasterizer.depthClampEnable(false);
-            rasterizer.rasterizerDiscardEnable(false);
-            rasterizer.polygonMode(VK_POLYGON_MODE_FILL);
-            rasterizer.lineWidth(1.0f);
-            rasterizer.cullMode(VK_CULL_MODE_BACK_BIT);
-            rasterizer.frontFace(VK_FRONT_FACE_CLOCKWISE);
-            rasterizer.depthBiasEnable(false);
-
-            // ===> MULTISAMPLING <===
-
-            VkPipelineMultisampleStateCreateInfo multisampling = VkPipelineMultisampleStateCreateInfo.calloc(stack);
-            multisampling.sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO);
-            multisampling.sampleShadingEnable(false);
-            multisampling.rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
-
-            // ===> COLOR BLENDING <===
-
-            VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachment = VkPipelineColorBlendAttachmentState.calloc(1, stack);
-            colorBlendAttachment.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
-            colorBlendAttachment.blendEnable(false);
-
-            VkPipelineColorBlendStateCreateInfo colorBlending = VkPipelineColorBlendStateCreateInfo.calloc(stack);
-            colorBlending.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
-            colorBlending.logicOpEnable(false);
-            colorBlending.logicOp(VK_LOGIC_OP_COPY);
-            colorBlending.pAttachments(colorBlendAttachment);
-            colorBlending.blendConstants(stack.floats(0.0f, 0.0f, 0.0f, 0.0f));
-
+        	// Kept until clean(), every new variant needs them.
+    		vertShaderModule = createShaderModule(vertShaderSPIRV.bytecode());
+    		fragShaderModule = createShaderModule(fragShaderSPIRV.bytecode());
+    		
             // ===> PIPELINE LAYOUT CREATION <===
 
             // PUSH CONSTANTS
@@ -362,10 +381,226 @@ public class GL2VKPipeline {
 
             pipelineLayout = pPipelineLayout.get(0);
 
-            /////////////////////////////////////////////////////////////////////////////////
-            /////////////////////////////////////////////////////////////////////////////////
-            
+            // ===> RELEASE RESOURCES <===
+            vertShaderSPIRV.free();
+            fragShaderSPIRV.free();
+        }
+    }
+    
+    // Returns the pipeline for drawing with state and the current vertex layout, creating
+    // it right away.
+    public long getPipeline(PipelineState state) {
+    	return getPipeline(state, null);
+    }
+    
+    // Same but the pipeline gets created on the compiler's threads, and if it's not ready
+    // yet what we return depends on the compiler's policy (another variant, or -1 to skip
+    // the draw).
+    // Debug mode makes up handles so the caching can still be tested.
+    public long getPipeline(PipelineState state, PipelineCompiler compiler) {
+    	long key = state.getKey();
+    	VertexLayout layout = getLayout();
+    	// Usually the same as last time
+    	if (key == lastKey && layout.equals(lastLayout) && lastPipeline != -1) return lastPipeline;
+    	
+    	HashMap<Long, Variant> layoutVariants = variants.get(layout);
+    	if (layoutVariants == null) {
+    		layoutVariants = new HashMap<Long, Variant>();
+    		variants.put(layout, layoutVariants);
+    	}
+    	Variant variant = layoutVariants.get(key);
+    	if (variant == null) {
+    		variant = new Variant();
+    		variant.topology = state.topology;
+    		Callable<Long> task = variantTask(state);
+    		if (compiler != null) {
+    			variant.future = compiler.submit(task);
+    		}
+    		else {
+    			try {
+    				variant.pipeline = task.call();
+    			}
+    			catch (Exception e) {
+    				throw new RuntimeException(e);
+    			}
+    		}
+    		layoutVariants.put(key, variant);
+    		variantCount++;
+    	}
+    	
+    	if (variant.pipeline == -1 && variant.future.isDone()) {
+    		variant.pipeline = PipelineCompiler.join(variant.future);
+    	}
+    	if (variant.pipeline == -1) {
+    		// No compiler = always wait
+    		switch (compiler != null ? compiler.getPolicy() : PipelineCompiler.BLOCK) {
+    		case PipelineCompiler.BLOCK:
+    			if (compiler != null) compiler.blocked();
+    			variant.pipeline = PipelineCompiler.join(variant.future);
+    			break;
+    		case PipelineCompiler.FALLBACK:
+    			for (Variant v : layoutVariants.values()) {
+    				if (v.topology == variant.topology && isReady(v)) {
+    					compiler.fellBack();
+    					// Not remembered as the last one, we want to switch as soon as it's ready.
+    					return v.pipeline;
+    				}
+    			}
+    			// Nothing to fall back to, wait for it rather than skip it.
+    			compiler.blocked();
+    			variant.pipeline = PipelineCompiler.join(variant.future);
+    			break;
+    		default:
+    			compiler.skipped();
+    			return -1;
+    		}
+    	}
+    	
+    	lastKey = key;
+    	lastLayout = layout;
+    	lastPipeline = variant.pipeline;
+    	graphicsPipeline = variant.pipeline;
+    	return variant.pipeline;
+    }
+    
+    private static boolean isReady(Variant v) {
+    	if (v.pipeline == -1 && v.future != null && v.future.isDone()) {
+    		v.pipeline = PipelineCompiler.join(v.future);
+    	}
+    	return v.pipeline != -1;
+    }
+    
+    // Everything the pipeline needs from the main thread's state gets copied now, since
+    // that can change while it's being created.
+    private Callable<Long> variantTask(PipelineState state) {
+    	if (system == null) {
+    		long fake = (long)(Math.random()*100000.)+1L;
+    		return () -> fake;
+    	}
+    	// Created here rather than on the compiler threads.
+    	system.getPipelineCache();
+    	PipelineState s = state.copy();
+    	VkVertexInputBindingDescription.Buffer bindings = getBindingDescriptions();
+    	VkVertexInputAttributeDescription.Buffer attribs = getAttributeDescriptions();
+    	int width = vkbase.swapChainExtent.width();
+    	int height = vkbase.swapChainExtent.height();
+    	return () -> {
+    		try {
+    			return createVariant(s, bindings, attribs, width, height);
+    		}
+    		finally {
+    			bindings.free();
+    			attribs.free();
+    		}
+    	};
+    }
+    
+    public int getVariantCount() {
+    	return variantCount;
+    }
+    
+    private long createVariant(PipelineState state, VkVertexInputBindingDescription.Buffer bindings,
+    		VkVertexInputAttributeDescription.Buffer attribs, int width, int height) {
+        try(MemoryStack stack = stackPush()) {
+            ByteBuffer entryPoint = stack.UTF8("main");
+
+            VkPipelineShaderStageCreateInfo.Buffer shaderStages = VkPipelineShaderStageCreateInfo.calloc(2, stack);
+
+            VkPipelineShaderStageCreateInfo vertShaderStageInfo = shaderStages.get(0);
+
+            vertShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
+            vertShaderStageInfo.stage(VK_SHADER_STAGE_VERTEX_BIT);
+            vertShaderStageInfo.module(vertShaderModule);
+            vertShaderStageInfo.pName(entryPoint);
+
+            VkPipelineShaderStageCreateInfo fragShaderStageInfo = shaderStages.get(1);
+
+            fragShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
+            fragShaderStageInfo.stage(VK_SHADER_STAGE_FRAGMENT_BIT);
+            fragShaderStageInfo.module(fragShaderModule);
+            fragShaderStageInfo.pName(entryPoint);
+
+            // ===> VERTEX STAGE <===
+
+            VkPipelineVertexInputStateCreateInfo vertexInputInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack);
+            vertexInputInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
+            vertexInputInfo.pVertexBindingDescriptions(bindings);
+            vertexInputInfo.pVertexAttributeDescriptions(attribs);
+
+            // ===> ASSEMBLY STAGE <===
+
+            VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.calloc(stack);
+            inputAssembly.sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
+            inputAssembly.topology(state.topology);
+            inputAssembly.primitiveRestartEnable(false);
+
+            // ===> VIEWPORT & SCISSOR
+
+            VkViewport.Buffer viewport = VkViewport.calloc(1, stack);
+            viewport.x(0.0f);
+            viewport.y(0.0f);
+            viewport.width(width);
+            viewport.height(height);
+            viewport.minDepth(0.0f);
+            viewport.maxDepth(1.0f);
+
+            VkRect2D.Buffer scissor = VkRect2D.calloc(1, stack);
+            scissor.offset(VkOffset2D.calloc(stack).set(0, 0));
+            scissor.extent(VkExtent2D.calloc(stack).set(width, height));
+
+            VkPipelineViewportStateCreateInfo viewportState = VkPipelineViewportStateCreateInfo.calloc(stack);
+            viewportState.sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO);
+            viewportState.pViewports(viewport);
+            viewportState.pScissors(scissor);
+
+            // ===> RASTERIZATION STAGE <===
+
+            VkPipelineRasterizationStateCreateInfo rasterizer = VkPipelineRasterizationStateCreateInfo.calloc(stack);
+            rasterizer.sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO);
+            rasterizer.depthClampEnable(false);
+            rasterizer.rasterizerDiscardEnable(false);
+            rasterizer.polygonMode(VK_POLYGON_MODE_FILL);
+            rasterizer.lineWidth(1.0f);
+            rasterizer.cullMode(state.cullMode);
+            rasterizer.frontFace(state.frontFace);
+            rasterizer.depthBiasEnable(false);
+
+            // ===> MULTISAMPLING <===
+
+            VkPipelineMultisampleStateCreateInfo multisampling = VkPipelineMultisampleStateCreateInfo.calloc(stack);
+            multisampling.sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO);
+            multisampling.sampleShadingEnable(false);
+            multisampling.rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+
+            // ===> COLOR BLENDING <===
 
+            VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachment = VkPipelineColorBlendAttachmentState.calloc(1, stack);
+            colorBlendAttachment.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
+            colorBlendAttachment.blendEnable(state.blend);
+            colorBlendAttachment.srcColorBlendFactor(state.srcColor);
+            colorBlendAttachment.dstColorBlendFactor(state.dstColor);
+            colorBlendAttachment.colorBlendOp(state.blendOp);
+            colorBlendAttachment.srcAlphaBlendFactor(state.srcAlpha);
+            colorBlendAttachment.dstAlphaBlendFactor(state.dstAlpha);
+            colorBlendAttachment.alphaBlendOp(state.blendOp);
+
+            VkPipelineColorBlendStateCreateInfo colorBlending = VkPipelineColorBlendStateCreateInfo.calloc(stack);
+            colorBlending.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
+            colorBlending.logicOpEnable(false);
+            colorBlending.logicOp(VK_LOGIC_OP_COPY);
+            colorBlending.pAttachments(colorBlendAttachment);
+            colorBlending.blendConstants(stack.floats(0.0f, 0.0f, 0.0f, 0.0f));
+
+            // ===> DEPTH <===
+            // (ignored while the render pass has no depth attachment)
+            
+            VkPipelineDepthStencilStateCreateInfo depthStencil = VkPipelineDepthStencilStateCreateInfo.calloc(stack);
+            depthStencil.sType(VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO);
+            depthStencil.depthTestEnable(state.depthTest);
+            depthStencil.depthWriteEnable(state.depthTest && state.depthWrite);
+            depthStencil.depthCompareOp(state.depthCompare);
+            depthStencil.depthBoundsTestEnable(false);
+            depthStencil.stencilTestEnable(false);
 
             VkGraphicsPipelineCreateInfo.Buffer pipelineInfo = VkGraphicsPipelineCreateInfo.calloc(1, stack);
             pipelineInfo.sType(VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO);
@@ -376,6 +611,7 @@ public class GL2VKPipeline {
             pipelineInfo.pRasterizationState(rasterizer);
             pipelineInfo.pMultisampleState(multisampling);
             pipelineInfo.pColorBlendState(colorBlending);
+            pipelineInfo.pDepthStencilState(depthStencil);
             pipelineInfo.layout(pipelineLayout);
             pipelineInfo.renderPass(system.renderPass);
             pipelineInfo.subpass(0);
@@ -384,34 +620,35 @@ public class GL2VKPipeline {
             
             LongBuffer pGraphicsPipeline = stack.mallocLong(1);
 
-            if(vkCreateGraphicsPipelines(vkbase.device, VK_NULL_HANDLE, pipelineInfo, null, pGraphicsPipeline) != VK_SUCCESS) {
+            if(vkCreateGraphicsPipelines(vkbase.device, system.getPipelineCache(), pipelineInfo, null, pGraphicsPipeline) != VK_SUCCESS) {
                 throw new RuntimeException("Failed to create graphics pipeline");
             }
 
-            graphicsPipeline = pGraphicsPipeline.get(0);
-            
 
-            // ===> RELEASE RESOURCES <===
-            vertShaderSPIRV.free();
-            fragShaderSPIRV.free();
-            
-    		vkDestroyShaderModule(vkbase.device, vertShaderModule, null);
-    		vkDestroyShaderModule(vkbase.device, fragShaderModule, null);
-
-            vertShaderModule = -1;
-            fragShaderModule = -1;
-
-            initiated = true;
+            return pGraphicsPipeline.get(0);
         }
     }
     
+    // Waits for any that are still being created.
+    private void destroyVariants() {
+    	for (HashMap<Long, Variant> layoutVariants : variants.values()) {
+    		for (Variant v : layoutVariants.values()) {
+    			if (v.pipeline == -1 && v.future != null) v.pipeline = PipelineCompiler.join(v.future);
+    			if (system != null) vkDestroyPipeline(system.device, v.pipeline, null);
+    		}
+    	}
+    	variants.clear();
+    	variantCount = 0;
+    	lastPipeline = -1;
+    }
+    
     public VkVertexInputBindingDescription.Buffer getBindingDescriptions() {
 		VkVertexInputBindingDescription.Buffer bindingDescriptions =
 		VkVertexInputBindingDescription.calloc(gl2vkBinding.size());
 		
 		int i = 0;
     	for (VertexAttribsBinding vab : gl2vkBinding.values()) {
-    		vab.updateBindingDescription(bindingDescriptions.get(i++));
+    		vab.updateBindingDescription(bindingDescriptions.get(i++), vkLocationDivisor);
     	}
     	
     	return bindingDescriptions.rewind();
@@ -430,13 +667,31 @@ public class GL2VKPipeline {
 		return attributeDescriptions;
     }
     
-    public int getHashState() {
-    	int hash = 0;
-    	// TODO: Hash vertex and fragment shader code.
-    	for (VertexAttribsBinding vab : gl2vkBinding.values()) {
-    		hash += vab.getHashState();
+    // The vertex layout (bindings, attribs and divisors), in binding order. The shaders can't
+    // change after linking, so they don't need to be in it.
+    VertexLayout getLayout() {
+    	if (layoutChanged) {
+    		long[][] parts = new long[bindingsByIndex.length][];
+    		int length = 0;
+	    	for (int i = 0; i < bindingsByIndex.length; i++) {
+	    		parts[i] = bindingsByIndex[i].getLayout(vkLocationDivisor);
+	    		length += parts[i].length;
+	    	}
+	    	long[] values = new long[length];
+	    	int pos = 0;
+	    	for (long[] part : parts) {
+	    		System.arraycopy(part, 0, values, pos, part.length);
+	    		pos += part.length;
+	    	}
+	    	layout = new VertexLayout(values);
+	    	layoutChanged = false;
     	}
-    	return hash;
+    	return layout;
+    }
+    
+    // Hash of the vertex layout, only for telling whether it changed.
+    public int getHashState() {
+    	return getLayout().hashCode();
     }
     
     // Used when glBindBuffer is called, so that we know to create a new binding
@@ -444,9 +699,15 @@ public class GL2VKPipeline {
     // function.
     public void bind(int glIndex, GraphicsBuffer buffer) {
     	boundBinding = glIndex;
+    	layoutChanged = true;
     	// Automatically allocate new binding and increate binding count by one.
     	if (!gl2vkBinding.containsKey(boundBinding)) {
-        	gl2vkBinding.put(glIndex, new VertexAttribsBinding(totalVertexAttribsBindings++, attribInfo));
+    		VertexAttribsBinding binding = new VertexAttribsBinding(totalVertexAttribsBindings++, attribInfo);
+        	gl2vkBinding.put(glIndex, binding);
+        	// Also keep them in binding order so getVKBuffers() doesn't need to go through the map.
+        	bindingsByIndex = Arrays.copyOf(bindingsByIndex, totalVertexAttribsBindings);
+        	bindingsByIndex[binding.myBinding] = binding;
+        	bufferArray = new long[totalVertexAttribsBindings];
     	}
     	// It all flowssss. In a very complicated, spaghetti'd way.
     	// Tell me a better way to do it though.
@@ -461,23 +722,72 @@ public class GL2VKPipeline {
     }
     
     // Create global variable so it can be cached and hence avoiding garbage collection
-    private ArrayList<Long> bufferArray = new ArrayList<Long>();
-    
-    // This is a pretty bad solution, but efficient.
-    // Loop through the list, making sure the position in the array
-    // aligns with the myBinding value in VertexAttribsBinding.
-    // We just naively add an item if the list isn't big enough
-    public ArrayList<Long> getVKBuffers() {
-    	for (VertexAttribsBinding binding : gl2vkBinding.values()) {
-    		while (binding.myBinding > bufferArray.size()-1) {
-    			bufferArray.add(0L);
-    		}
-    		bufferArray.set(binding.myBinding, binding.buffer.bufferID);
+    // (used to be an ArrayList<Long>, which boxed every buffer on every draw)
+    private long[] bufferArray = new long[0];
+    private VertexAttribsBinding[] bindingsByIndex = new VertexAttribsBinding[0];
+    
+    // Position in the array is the myBinding value in VertexAttribsBinding.
+    // The buffer of a binding can change at any time so we refresh it each call,
+    // but it's the same array every time so don't hold onto it.
+    public long[] getVKBuffers() {
+    	for (int i = 0; i < bindingsByIndex.length; i++) {
+    		GraphicsBuffer buffer = bindingsByIndex[i].buffer;
+    		bufferArray[i] = buffer != null ? buffer.bufferID : 0L;
     	}
-    	
     	return bufferArray;
     }
     
+    // The actual buffer objects (rather than their current handles), same order as getVKBuffers().
+    public GraphicsBuffer[] getBoundBuffers() {
+    	GraphicsBuffer[] ret = new GraphicsBuffer[bindingsByIndex.length];
+    	for (int i = 0; i < bindingsByIndex.length; i++) {
+    		ret[i] = bindingsByIndex[i].buffer;
+    	}
+    	return ret;
+    }
+    
+    private ByteBuffer uniformBuffer(int vertexOrFragment, int offset, int size) {
+    	int stage = vertexOrFragment == GLUniform.FRAGMENT ? GLUniform.FRAGMENT : GLUniform.VERTEX;
+    	if (uniformData[stage] == null) {
+    		uniformData[stage] = BufferUtils.createByteBuffer(vkbase != null ? vkbase.pushConstantsSizeLimit : 256);
+    	}
+    	uniformStart[stage] = Math.min(uniformStart[stage], offset);
+    	uniformEnd[stage] = Math.max(uniformEnd[stage], offset+size);
+    	return uniformData[stage];
+    }
+    
+    // Remembers a uniform value (called alongside pushing it to the nodes).
+    public void setUniform(int vertexOrFragment, int offset, float value) {
+    	ByteBuffer data = uniformBuffer(vertexOrFragment, offset, 4);
+    	if (data.getInt(offset) != Float.floatToRawIntBits(value)) {
+    		data.putFloat(offset, value);
+    		uniformVersion++;
+    	}
+    }
+    
+    public void setUniform(int vertexOrFragment, int offset, ByteBuffer buffer) {
+    	int size = buffer.capacity();
+    	ByteBuffer data = uniformBuffer(vertexOrFragment, offset, size);
+    	boolean changed = false;
+    	for (int i = 0; i < size; i++) {
+    		byte b = buffer.get(i);
+    		if (data.get(offset+i) != b) {
+    			data.put(offset+i, b);
+    			changed = true;
+    		}
+    	}
+    	if (changed) uniformVersion++;
+    }
+    
+    // Pushes all the remembered uniform values to a node.
+    public void pushUniforms(ThreadNode node) {
+    	for (int stage = GLUniform.VERTEX; stage <= GLUniform.FRAGMENT; stage++) {
+    		if (uniformEnd[stage] > uniformStart[stage]) {
+    			node.pushConstant(pipelineLayout, stage, uniformStart[stage], uniformData[stage], uniformStart[stage], uniformEnd[stage]-uniformStart[stage]);
+    		}
+    	}
+    }
+    
     public void vertexAttribPointer(int vklocation, int size, int offset, int stride) {
     	// Remember, a gl buffer binding of 0 means no bound buffer,
     	// and by default in this class, means bind() hasn't been called.
@@ -485,9 +795,15 @@ public class GL2VKPipeline {
     		System.err.println("BUG WARNING  vertexAttribPointer called with no bound buffer.");
     		return;
     	}
+    	layoutChanged = true;
     	gl2vkBinding.get(boundBinding).vertexAttribPointer(vklocation, size, offset, stride);
     }
     
+    public void vertexAttribDivisor(int vklocation, int divisor) {
+    	vkLocationDivisor[vklocation] = divisor;
+    	layoutChanged = true;
+    }
+    
     // Not actually used but cool to have
     public void vertexAttribPointer(int location) {
     	gl2vkBinding.get(boundBinding).vertexAttribPointer(location);
@@ -561,7 +877,15 @@ public class GL2VKPipeline {
 	
     
     public void clean() {
-        vkDestroyPipeline(system.device, graphicsPipeline, null);
+    	if (layoutFuture != null) {
+    		PipelineCompiler.join(layoutFuture);
+    		layoutFuture = null;
+    		initiated = true;
+    	}
+    	if (!initiated) return;
+    	destroyVariants();
         vkDestroyPipelineLayout(system.device, pipelineLayout, null);
+        vkDestroyShaderModule(vkbase.device, vertShaderModule, null);
+        vkDestroyShaderModule(vkbase.device, fragShaderModule, null);
     }
 }
\ No newline at end of file
@@ -273,7 +273,7 @@ public class GLExample {
     		
         	gl.glBindBuffer(GL2VK.GL_INDEX_BUFFER, glIndexBuff);
         	
-    		gl.glDrawElements(0, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
+    		gl.glDrawElements(GL2VK.GL_TRIANGLES, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
     		gl.endRecord();
     		
 //    		frameWait();
@@ -392,7 +392,7 @@ public class GLExample {
 //    		gl.glUniform2f(u_pos_secondary, 0, (float)Math.cos(qtime*2.238f)*0.2f);
 //    		gl.glUniform2f(u_pos_secondary, 0, (float)Math.cos(qtime*2.238f)*0.2f);
     		
-    		gl.glDrawElements(0, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
+    		gl.glDrawElements(GL2VK.GL_TRIANGLES, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
     		gl.endRecord();
     		
 //    		frameWait();
@@ -469,7 +469,7 @@ public class GLExample {
     		else gl.selectNode(0);
 
         	gl.glBindBuffer(GL2VK.GL_INDEX_BUFFER, glIndexBuff);
-    		gl.glDrawElements(0, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
+    		gl.glDrawElements(GL2VK.GL_TRIANGLES, 6, GL2VK.GL_UNSIGNED_SHORT, 0);
     		gl.endRecord();
     		
     		frameWait();
@@ -589,14 +589,14 @@ public class GLExample {
         	buff.rewind();
     		memcpy(buff, vertices);
         	gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, vertexBuffer);
-        	gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, size, buff, 0);
+        	gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, size, buff, GL2VK.GL_STREAM_DRAW);
 
     		gl.beginRecord();
 
     		if (multithreaded) gl.selectNode((int)(threadIndex++)%gl.getNodesCount());
     		else gl.selectNode(0);
     		
-    		gl.glDrawArrays(0, 0, vertices.length);
+    		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, vertices.length);
     		gl.endRecord();
     		
     		frameWait();
@@ -681,7 +681,7 @@ public class GLExample {
     		if (multithreaded) gl.selectNode((int)(threadIndex++)%gl.getNodesCount());
     		else gl.selectNode(0);
     		
-    		gl.glDrawArrays(0, 0, vertices.length);
+    		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, vertices.length);
     		gl.endRecord();
     		
     		frameWait();
@@ -737,7 +737,7 @@ public class GLExample {
         		else gl.selectNode(0);
         		
         		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, vertexBuffer[buffindex]);
-	    		gl.glDrawArrays(0, 0, vertices.length);
+	    		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, vertices.length);
         	}
         	
     		buffindex++;
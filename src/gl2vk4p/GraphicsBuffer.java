@@ -2,34 +2,93 @@ package gl2vk4p;
 
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_TRANSFER_DST_BIT;
-import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT;
 import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_VERTEX_BUFFER_BIT;
 import static org.lwjgl.vulkan.VK10.VK_MEMORY_HEAP_DEVICE_LOCAL_BIT;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT;
 import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
 import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT;
-import static org.lwjgl.vulkan.VK10.vkDestroyBuffer;
-import static org.lwjgl.vulkan.VK10.vkFreeMemory;
-import static org.lwjgl.vulkan.VK10.vkMapMemory;
-import static org.lwjgl.vulkan.VK10.vkUnmapMemory;
 import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
 import static org.lwjgl.vulkan.VK10.vkCmdCopyBuffer;
 
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
-import java.nio.BufferOverflowException;
+import java.util.Arrays;
 
-import org.lwjgl.PointerBuffer;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VkBufferCopy;
 
 public class GraphicsBuffer {
 
     public long bufferID = -1;
-    private long bufferMemoryID = -1;
+    // Goes up every time bufferID changes (see DisplayList)
+    public int version = 0;
+    private MemoryAllocator.Allocation bufferMemory = null;
     private boolean bufferAssigned = false;
     private int bufferSize = 0;
-    private long stagingBuffer = -1;
-    private long stagingBufferMemory = -1;
+    
+    // Ranges written by bufferSubData since the last flush (start inclusive, end exclusive).
+    // They get written into shadow, then merged and uploaded once per frame from there.
+    // shadow's only created the first time bufferSubData is used.
+    private ByteBuffer shadow = null;
+    // Whether shadow holds the whole buffer (bufferData's filled it since it was made, or the
+    // contents are undefined anyway, e.g. after bufferData(null)). Until then only the dirty
+    // ranges in it are right, so only ranges that touch get merged, otherwise the bytes between
+    // them would get uploaded over with zeros.
+    private boolean shadowValid = true;
+    // Set once the buffer's been mapped through staging memory, bufferData keeps the shadow
+    // from then on so later maps know what's in the rest of the range.
+    private boolean keepShadow = false;
+    private int[] dirtyStart = new int[16];
+    private int[] dirtyEnd = new int[16];
+    private int dirtyCount = 0;
+    private boolean dirtyListed = false;
+    // Ranges closer together than this get uploaded as one, saves on copy regions.
+    public final static int DIRTY_MERGE_GAP = 256;
+    
+    // Host visible buffers live in memory we can write to directly (and stays mapped),
+    // so map() can hand out a pointer straight into it.
+    private boolean hostVisible = false;
+    
+    // Dynamic (GL_DYNAMIC_DRAW/GL_STREAM_DRAW) buffers are host visible and get several
+    // copies of the buffer ("regions"). bufferData moves on to a region the GPU's done
+    // with and writes straight into it, instead of over what an in flight frame might
+    // still be drawing with (same thing as orphaning in GL).
+    // Starts with one per frame in flight, more get added if they're all still in use
+    // (e.g. bufferData more than once a frame).
+    // Everything else has just the one region.
+    // bufferID/bufferMemory are always the current region's.
+    private boolean dynamic = false;
+    private int usage = 0;
+    private long[] regionBuffers = new long[0];
+    private MemoryAllocator.Allocation[] regionMemory = new MemoryAllocator.Allocation[0];
+    // VulkanSystem.frameNumber when each region stopped being the current one.
+    private long[] regionFrame = new long[0];
+    private int region = 0;
+    // Debug mode stand-in for the buffer's memory, per region (see getDebugContents()).
+    private ByteBuffer[] debugMemory = new ByteBuffer[0];
+    
+    // Current map() (or -1 if not mapped)
+    private int mapOffset = -1;
+    private int mapLength = 0;
+    private int mapFlags = 0;
+    // Device local buffers get mapped through the staging ring, these are where.
+    private long mapStagingBuffer = 0L;
+    private long mapStagingOffset = 0L;
+    private long mapStagingAddress = 0L;
+    // Debug mode stand-in for the staging memory
+    private ByteBuffer debugMapBuffer = null;
+    
+    // Same as GL's
+    public final static int MAP_READ_BIT = 0x0001;
+    public final static int MAP_WRITE_BIT = 0x0002;
+    public final static int MAP_INVALIDATE_RANGE_BIT = 0x0004;
+    public final static int MAP_INVALIDATE_BUFFER_BIT = 0x0008;
+    public final static int MAP_FLUSH_EXPLICIT_BIT = 0x0010;
+    public final static int MAP_UNSYNCHRONIZED_BIT = 0x0020;
+    public final static int MAP_PERSISTENT_BIT = 0x0040;
+    public final static int MAP_COHERENT_BIT = 0x0080;
     
     private VulkanSystem system;
     private VKSetup vkbase;
@@ -48,59 +107,104 @@ public class GraphicsBuffer {
     // - There's no previous buffer
     // - Buffer size != new size.
     public void createBufferAuto(int size, int usage) {
-    	if (!bufferAssigned || bufferSize != size) {
+    	createBufferAuto(size, usage, hostVisible, dynamic);
+    }
+    
+    // - Or it's not the right kind of memory.
+    public void createBufferAuto(int size, int usage, boolean hostVisible) {
+    	createBufferAuto(size, usage, hostVisible, false);
+    }
+    
+    public void createBufferAuto(int size, int usage, boolean hostVisible, boolean dynamic) {
+    	if (!bufferAssigned || bufferSize != size || this.hostVisible != (hostVisible || dynamic) || this.dynamic != dynamic) {
     		// Delete old buffers
     		destroy();
     		// Create new one
-    		createBuffer(size, usage);
+    		createBuffer(size, usage, hostVisible, dynamic);
     	}
     }
     
     
     // Creates a buffer without allocating any data
     public void createBuffer(int size, int usage) {
+    	createBuffer(size, usage, false);
+    }
+    
+    public void createBuffer(int size, int usage, boolean hostVisible) {
+    	createBuffer(size, usage, hostVisible, false);
+    }
+    
+    public void createBuffer(int size, int usage, boolean hostVisible, boolean dynamic) {
+    	version++;
+    	// Different size, old contents are gone.
+    	shadow = null;
+    	// Nothing's been written yet
+    	shadowValid = true;
+    	dirtyCount = 0;
+    	mapOffset = -1;
+    	this.hostVisible = hostVisible || dynamic;
+    	this.dynamic = dynamic;
+    	this.usage = usage;
+    	this.bufferSize = size;
+    	
+    	int count = dynamic ? VulkanSystem.MAX_FRAMES_IN_FLIGHT : 1;
+    	regionBuffers = new long[count];
+    	regionMemory = new MemoryAllocator.Allocation[count];
+    	regionFrame = new long[count];
+    	debugMemory = new ByteBuffer[count];
+    	for (int i = 0; i < count; i++) {
+    		createRegion(i);
+    	}
+    	region = 0;
+    	bufferID = regionBuffers[0];
+    	bufferMemory = regionMemory[0];
+    	bufferAssigned = true;
+    }
+    
+    private void createRegion(int i) {
+    	regionFrame[i] = -1L;
     	// If in debug mode, just assign a dummy value
     	if (system == null) {
-    		this.bufferID = (long)(Math.random()*100000.);
+    		regionBuffers[i] = (long)(Math.random()*100000.);
+    		debugMemory[i] = BufferUtils.createByteBuffer(bufferSize);
     		
     		return;
     	}
+    	int size = bufferSize;
     	
     	try(MemoryStack stack = stackPush()) {
 
     		// Not from anywhere, just alloc pointers we can use
     		// to get back from createbuffer method
             LongBuffer pBuffer = stack.mallocLong(1);
-            LongBuffer pBufferMemory = stack.mallocLong(1);
             
 
             // Actually create our buffer.
-            vkbase.createBuffer(size,
-                    VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage,
-                    VK_MEMORY_HEAP_DEVICE_LOCAL_BIT,
-                    pBuffer,
-                    pBufferMemory);
+            // Memory comes out of one of the allocator's blocks.
+            if (hostVisible) {
+            	// Device local as well if there's any (resizable BAR), otherwise the GPU
+            	// reads it over PCIe.
+	            regionMemory[i] = vkbase.allocateBuffer(size,
+	                    VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage,
+	                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+	                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+	                    system.uploader.exclusiveBuffers(),
+	                    pBuffer);
+            }
+            else {
+	            regionMemory[i] = vkbase.allocateBuffer(size,
+	                    VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage,
+	                    VK_MEMORY_HEAP_DEVICE_LOCAL_BIT,
+	                    system.uploader.exclusiveBuffers(),
+	                    pBuffer);
+            }
             
             // Pointer variables now populated
             
             // GraphicsBuffedr object, set with our new pointer variables.
-            this.bufferID = pBuffer.get(0);
-            this.bufferMemoryID = pBufferMemory.get(0);
-            this.bufferAssigned = true;
-            this.bufferSize = size;
-            
-            // STAGING BUFFER
-	        pBuffer = stack.mallocLong(1);
-	        pBufferMemory = stack.mallocLong(1);
-	        vkbase.createBuffer(size,
-	                VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-	                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
-	                pBuffer,
-	                pBufferMemory);
-	
-	        this.stagingBuffer = pBuffer.get(0);
-	        this.stagingBufferMemory = pBufferMemory.get(0);
+            regionBuffers[i] = pBuffer.get(0);
             
+            // No staging buffer, uploads go through the system's StagingRing.
     	}
     }
     
@@ -108,74 +212,316 @@ public class GraphicsBuffer {
     	// If debug mode enabled
     	if (system == null) return;
     	
-    	if (bufferID != -1 && bufferMemoryID != -1) {
-	        vkDestroyBuffer(system.device, bufferID, null);
-	        vkFreeMemory(system.device, bufferMemoryID, null);
-	        vkDestroyBuffer(system.device, stagingBuffer, null);
-	        vkFreeMemory(system.device, stagingBufferMemory, null);
+    	if (bufferID != -1 && bufferMemory != null) {
+    		dirtyCount = 0;
+    		if (dirtyListed) {
+    			system.dirtyBuffers.remove(this);
+    			dirtyListed = false;
+    		}
+    		for (int i = 0; i < regionBuffers.length; i++) {
+	    		// Don't want a copy into it getting submitted after it's gone.
+	    		system.uploader.cancel(regionBuffers[i]);
+	    		// Frames in flight could still be drawing with it, so it only gets freed
+	    		// once they're done.
+	    		system.retireBuffer(regionBuffers[i], regionMemory[i]);
+    		}
+    		regionBuffers = new long[0];
+    		regionMemory = new MemoryAllocator.Allocation[0];
+	        bufferMemory = null;
     	}
     }
     
+    // Moves on to a region the GPU's done with (regions get used by every frame they're
+    // current in), adding a new one if they're all still in use.
+    private void orphan() {
+    	regionFrame[region] = system != null ? system.frameNumber : 0L;
+    	int next = -1;
+    	for (int i = 1; i < regionBuffers.length; i++) {
+    		int r = (region+i) % regionBuffers.length;
+    		if (system == null || regionFrame[r] <= system.completedFrame) {
+    			next = r;
+    			break;
+    		}
+    	}
+    	if (next == -1) {
+    		next = regionBuffers.length;
+    		regionBuffers = Arrays.copyOf(regionBuffers, next+1);
+    		regionMemory = Arrays.copyOf(regionMemory, next+1);
+    		regionFrame = Arrays.copyOf(regionFrame, next+1);
+    		debugMemory = Arrays.copyOf(debugMemory, next+1);
+    		createRegion(next);
+    	}
+    	region = next;
+    	bufferID = regionBuffers[region];
+    	bufferMemory = regionMemory[region];
+    	version++;
+    }
+    
+    // Where the current region is mapped (host visible only).
+    private long mappedAddress() {
+    	if (system == null) return MemoryUtil.memAddress(debugMemory[region]);
+    	return bufferMemory.mapped;
+    }
+    
     
     // Sends data straight to the gpu
-    // TODO: version where memory is constantly unmapped
+    // Staged through the ring (already mapped, bulk copied), then copied over on the GPU.
+    // Dynamic buffers skip all that and get written straight into a free region.
     public void bufferData(ByteBuffer data, int size, boolean nodeMode) {
+    	// Contents get replaced, so the GPU can keep the old ones.
+    	if (dynamic) orphan();
 
-    	// If debug mode enabled
-    	if (system == null) return;
+    	// Just allocating, contents are undefined so the shadow's as good as anything.
+    	if (data == null) {
+    		shadowValid = true;
+    		dirtyCount = 0;
+    		return;
+    	}
+    	
+    	if (shadow == null && keepShadow) {
+    		shadow = BufferUtils.createByteBuffer(bufferSize);
+    	}
+    	if (shadow != null) {
+    		// Keep the shadow up to date, and anything dirty's being replaced anyway.
+    		StagingRing.copy(data, 0, MemoryUtil.memAddress(shadow), Math.min(size, shadow.capacity()));
+    		shadowValid = size >= bufferSize;
+    		dirtyCount = 0;
+    	}
+    	else {
+    		shadowValid = false;
+    	}
+    	
+    	if (dynamic) {
+    		StagingRing.copy(data, 0, mappedAddress(), Math.min(size, bufferSize));
+    		return;
+    	}
 
-    	try(MemoryStack stack = stackPush()) {
-	    	
-	        
-	        // alloc pointer for our data
-	        PointerBuffer pointer = stack.mallocPointer(1);
-	        
-	        vkMapMemory(system.device, stagingBufferMemory, 0, size, 0, pointer);
-	        
-	        // Here instead of some mem copy function we can just 
-	        // copy each and every byte of buffer.
-        	ByteBuffer datato = pointer.getByteBuffer(0, size);
-	        try {
-	        	// Now for some reason we need to put in floats instead of bytes.
-	        	// Maybe something to do with the ordering of bytes in a float.
-	        	// Whatever, it works and that's what matters.
-	    		datato.rewind();
-	    		data.rewind();
-	    		
-	    		while (datato.hasRemaining()) {
-	    			datato.put(data.get());
-	    		}
-	    		datato.rewind();
-	    		
-//	    		FloatBuffer printout = (FloatBuffer)
+    	// If debug mode enabled
+    	if (system == null) {
+    		StagingRing.copy(data, 0, mappedAddress(), Math.min(size, bufferSize));
+    		return;
+    	}
 
-	    		// Just to print out stuff
-//	    		data.rewind();
-//	    		datato.rewind();
-//	    		while (datato.hasRemaining()) {
-//	    			System.out.println(datato.getFloat());
-//	    			System.out.println(data.getFloat());
-//	    		}
-//	    		datato.rewind();
-	        }
-	        catch (BufferOverflowException e) {
-	        	System.err.println("Buffer overflow: tried to write buffer of size "+size+" into buffer of size "+datato.capacity());
-	        }
-	            
-	        vkUnmapMemory(system.device, stagingBufferMemory);
-	        
-	        
-	        if (nodeMode) {
-		        system.nodeBufferData(stagingBuffer, bufferID, size);
-	        }
-	        else {
-	        	vkbase.copyBufferAndWait(stagingBuffer, bufferID, size);
-	        }
-	        
-	        
-//	        vkDestroyBuffer(system.device, stagingBuffer, null);
-//	        vkFreeMemory(system.device, stagingBufferMemory, null);
+    	StagingRing ring = system.stagingRing;
+    	long offset = ring.stage(data, size);
+    	
+    	if (nodeMode) {
+    		// Into this frame's upload command buffer, which runs before the render pass.
+    		system.uploader.copyInFrame(ring.stagedBuffer, offset, bufferID, 0, size);
+    	}
+    	else {
+    		// Goes off with the rest of the frame's uploads, no waiting.
+    		system.uploader.copy(ring.stagedBuffer, offset, bufferID, size, ring.getSection());
+    	}
+    }
+    
+    // Updates part of the buffer. Nothing gets uploaded yet, the range is just marked dirty,
+    // and all the dirty ranges get merged and uploaded together at the end of the frame
+    // (flushDirty()).
+    public void bufferSubData(int offset, ByteBuffer data, int size) {
+    	if (shadow == null) {
+    		// Whatever was in the buffer before this isn't kept anywhere on the CPU,
+    		// so until the next bufferData only the dirty ranges themselves get uploaded
+    		// from this (see shadowValid).
+    		shadow = BufferUtils.createByteBuffer(bufferSize);
+    	}
+    	StagingRing.copy(data, 0, MemoryUtil.memAddress(shadow)+offset, size);
+    	
+    	if (dirtyCount == dirtyStart.length) {
+    		// Merge now rather than growing forever
+    		dirtyCount = mergeRanges(dirtyStart, dirtyEnd, dirtyCount, mergeGap());
+    		if (dirtyCount == dirtyStart.length) {
+    			dirtyStart = Arrays.copyOf(dirtyStart, dirtyStart.length*2);
+    			dirtyEnd = Arrays.copyOf(dirtyEnd, dirtyEnd.length*2);
+    		}
+    	}
+    	dirtyStart[dirtyCount] = offset;
+    	dirtyEnd[dirtyCount] = offset+size;
+    	dirtyCount++;
+    	
+    	if (system != null && !dirtyListed) {
+    		system.dirtyBuffers.add(this);
+    		dirtyListed = true;
+    	}
+    }
+    
+    // Gaps can only be filled in from the shadow if it's got the whole buffer.
+    private int mergeGap() {
+    	return shadowValid ? DIRTY_MERGE_GAP : 0;
+    }
+    
+    // Uploads the merged dirty ranges, each range is one region of one copy.
+    // Called by VulkanSystem before the frame's submitted.
+    public void flushDirty() {
+    	dirtyListed = false;
+    	if (dirtyCount == 0) return;
+    	dirtyCount = mergeRanges(dirtyStart, dirtyEnd, dirtyCount, mergeGap());
+    	
+    	// If debug mode enabled
+    	if (system == null) {
+    		for (int i = 0; i < dirtyCount; i++) {
+    			StagingRing.copy(shadow, dirtyStart[i], mappedAddress()+dirtyStart[i], dirtyEnd[i]-dirtyStart[i]);
+    		}
+    		dirtyCount = 0;
+    		return;
+    	}
+    	
+    	StagingRing ring = system.stagingRing;
+    	for (int i = 0; i < dirtyCount; i++) {
+    		int size = dirtyEnd[i]-dirtyStart[i];
+    		long offset = ring.stage(shadow, dirtyStart[i], size);
+    		// Graphics queue even without danger mode, the transfer queue would need to own
+    		// the buffer to keep the rest of its contents.
+    		system.uploader.copyInFrame(ring.stagedBuffer, offset, bufferID, dirtyStart[i], size);
+    	}
+    	dirtyCount = 0;
+    }
+    
+    public int getDirtyCount() {
+    	return dirtyCount;
+    }
+    
+    // Debug mode only, what the GPU would have in the buffer after the uploads so far.
+    public ByteBuffer getDebugContents() {
+    	return debugMemory[region];
+    }
+    
+    public boolean isHostVisible() {
+    	return hostVisible;
+    }
+    
+    public boolean isDynamic() {
+    	return dynamic;
+    }
+    
+    public int getRegionCount() {
+    	return regionBuffers.length;
+    }
+    
+    public boolean isMapped() {
+    	return mapOffset != -1;
+    }
+    
+    // Whether the buffer's contents are known on the CPU, i.e. whether mapping part of a device
+    // local buffer without invalidating it keeps the bytes that don't get written.
+    public boolean knowsContents() {
+    	return hostVisible || shadowValid;
+    }
+    
+    // Returns a buffer pointing at length bytes of the buffer from offset, flags are
+    // GL's MAP_ bits.
+    // Host visible buffers give a pointer straight into the buffer's memory, which stays
+    // mapped, so with MAP_PERSISTENT_BIT it's fine to keep using it after unmap()
+    // (the memory's always coherent). Unless it's MAP_UNSYNCHRONIZED_BIT or persistent,
+    // we wait for the GPU to finish the frames in flight first, like GL would.
+    // Dynamic buffers mapped with MAP_INVALIDATE_BUFFER_BIT get orphaned instead of waiting.
+    // Device local buffers get a piece of the staging ring instead which gets copied over
+    // on unmap(), so it's write only and shouldn't be kept mapped across frames. The range
+    // starts off with what's in the shadow, which is only the buffer's real contents if
+    // knowsContents(), so they keep a shadow from their first map on.
+    public ByteBuffer map(int offset, int length, int flags) {
+    	mapOffset = offset;
+    	mapLength = length;
+    	mapFlags = flags;
+    	
+    	if (hostVisible) {
+    		// Written straight into the memory, the shadow won't have it.
+    		if ((flags & MAP_WRITE_BIT) != 0 && shadow != null) shadowValid = false;
+    		if (dynamic && (flags & MAP_INVALIDATE_BUFFER_BIT) != 0) {
+    			orphan();
+    		}
+    		else if (system != null && (flags & (MAP_UNSYNCHRONIZED_BIT | MAP_PERSISTENT_BIT)) == 0) {
+    			system.waitForFrames();
+    		}
+    		return MemoryUtil.memByteBuffer(mappedAddress()+offset, length);
+    	}
+    	
+    	keepShadow = true;
+    	if (shadow == null) {
+    		shadow = BufferUtils.createByteBuffer(bufferSize);
+    	}
+    	// Whole buffer's undefined now, and the range gets written into the shadow on unmap.
+    	if ((flags & MAP_INVALIDATE_BUFFER_BIT) != 0) shadowValid = true;
+    	
+    	if (system == null) {
+    		debugMapBuffer = BufferUtils.createByteBuffer(length);
+    		mapStagingAddress = MemoryUtil.memAddress(debugMapBuffer);
+    	}
+    	else {
+	    	StagingRing ring = system.stagingRing;
+	    	mapStagingOffset = ring.reserve(length);
+	    	mapStagingBuffer = ring.stagedBuffer;
+	    	mapStagingAddress = ring.stagedAddress;
+    	}
+    	// Whatever's not written keeps its old value in GL.
+    	if ((flags & (MAP_INVALIDATE_RANGE_BIT | MAP_INVALIDATE_BUFFER_BIT)) == 0) {
+    		MemoryUtil.memCopy(MemoryUtil.memAddress(shadow)+offset, mapStagingAddress, length);
+    	}
+    	return MemoryUtil.memByteBuffer(mapStagingAddress, length);
+    }
+    
+    // Only does anything for device local buffers with MAP_FLUSH_EXPLICIT_BIT,
+    // offset is relative to the mapped range.
+    public void flushMappedRange(int offset, int length) {
+    	if (hostVisible) return;
+    	uploadMapped(offset, length);
+    }
+    
+    public boolean unmap() {
+    	if (mapOffset == -1) return false;
+    	if (!hostVisible && (mapFlags & MAP_FLUSH_EXPLICIT_BIT) == 0) {
+    		uploadMapped(0, mapLength);
+    	}
+    	mapOffset = -1;
+    	debugMapBuffer = null;
+    	return true;
+    }
+    
+    private void uploadMapped(int offset, int length) {
+    	if (shadow != null) {
+    		MemoryUtil.memCopy(mapStagingAddress+offset, MemoryUtil.memAddress(shadow)+mapOffset+offset, length);
+    	}
+    	// If debug mode enabled
+    	if (system == null) {
+    		MemoryUtil.memCopy(mapStagingAddress+offset, mappedAddress()+mapOffset+offset, length);
+    		return;
+    	}
+    	system.uploader.copyInFrame(mapStagingBuffer, mapStagingOffset+offset, bufferID, mapOffset+offset, length);
+    }
+    
+    public int getSize() {
+    	return bufferSize;
+    }
+    
+    // Sorts the ranges and merges any that overlap or are within gap of each other.
+    // Returns the new count.
+    public static int mergeRanges(int[] start, int[] end, int count, int gap) {
+    	// Insertion sort, there's never that many.
+    	for (int i = 1; i < count; i++) {
+    		int s = start[i];
+    		int e = end[i];
+    		int j = i-1;
+    		while (j >= 0 && start[j] > s) {
+    			start[j+1] = start[j];
+    			end[j+1] = end[j];
+    			j--;
+    		}
+    		start[j+1] = s;
+    		end[j+1] = e;
+    	}
+    	
+    	int merged = 0;
+    	for (int i = 0; i < count; i++) {
+    		if (merged > 0 && start[i] <= end[merged-1]+gap) {
+    			end[merged-1] = Math.max(end[merged-1], end[i]);
+    		}
+    		else {
+    			start[merged] = start[i];
+    			end[merged] = end[i];
+    			merged++;
+    		}
     	}
+    	return merged;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,364 @@
+package gl2vk4p;
+
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT;
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO;
+import static org.lwjgl.vulkan.VK10.VK_WHOLE_SIZE;
+import static org.lwjgl.vulkan.VK10.vkAllocateMemory;
+import static org.lwjgl.vulkan.VK10.vkFreeMemory;
+import static org.lwjgl.vulkan.VK10.vkMapMemory;
+import static org.lwjgl.vulkan.VK10.vkUnmapMemory;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+
+// Carves buffers out of big VkDeviceMemory blocks instead of doing a vkAllocateMemory
+// for every single buffer. Drivers only allow so many allocations (maxMemoryAllocationCount,
+// can be as low as 4096) and they're slow, and sketches with lots of PShapes make lots
+// of buffers.
+// Each memory type gets its own list of blocks. Each block is a buddy allocator:
+// sizes get rounded up to a power of 2 and every chunk is aligned to its own size,
+// so any alignment up to the chunk size comes for free.
+// Host visible blocks are mapped once when they're created and stay mapped, since
+// a VkDeviceMemory can't be mapped twice (and several buffers share one now).
+// Anything bigger than half a block gets its own dedicated allocation.
+// Not thread safe, only used from the main thread.
+public class MemoryAllocator {
+
+	public final static long DEFAULT_BLOCK_SIZE = 64L*1024L*1024L;
+	// Smallest chunk a block will hand out.
+	public final static long MIN_CHUNK_SIZE = 256L;
+
+	// One piece of memory handed out to a buffer.
+	public static class Allocation {
+		public long memory;
+		public long offset;
+		// What was asked for
+		public long size;
+		// Set when host visible, points to offset (not the start of the block).
+		public long mapped = 0L;
+
+		private Block block;
+		private int memoryType;
+
+		// Host visible allocations only. size can be less than what the allocation
+		// is (the driver tends to round buffers up).
+		public ByteBuffer getMapped(int size) {
+			return MemoryUtil.memByteBuffer(mapped, size);
+		}
+	}
+
+	// A single VkDeviceMemory, split up buddy-style.
+	public static class Block {
+		public long memory = 0L;
+		public long mapped = 0L;
+		public final long size;
+		// Dedicated blocks hold one allocation and are never split.
+		public final boolean dedicated;
+
+		private final int maxOrder;
+		// free[order] = offsets of free chunks of size MIN_CHUNK_SIZE << order
+		private final ArrayList<HashSet<Long>> free = new ArrayList<HashSet<Long>>();
+		// offset -> order of chunks in use
+		private final HashMap<Long, Integer> used = new HashMap<Long, Integer>();
+		private long usedBytes = 0L;
+
+		// size needs to be MIN_CHUNK_SIZE times a power of 2.
+		public Block(long size) {
+			this(size, false);
+		}
+
+		private Block(long size, boolean dedicated) {
+			this.size = size;
+			this.dedicated = dedicated;
+			int order = 0;
+			while ((MIN_CHUNK_SIZE << order) < size) order++;
+			maxOrder = order;
+			for (int i = 0; i <= maxOrder; i++) {
+				free.add(new HashSet<Long>());
+			}
+			if (!dedicated) {
+				free.get(maxOrder).add(0L);
+			}
+		}
+
+		// Returns the offset, or -1 if there's no room.
+		public long allocate(long size, long alignment) {
+			long needed = Math.max(Math.max(size, alignment), MIN_CHUNK_SIZE);
+			int order = 0;
+			while ((MIN_CHUNK_SIZE << order) < needed) order++;
+			if (order > maxOrder) return -1;
+
+			// Smallest free chunk that fits
+			int o = order;
+			while (o <= maxOrder && free.get(o).isEmpty()) o++;
+			if (o > maxOrder) return -1;
+
+			long offset = free.get(o).iterator().next();
+			free.get(o).remove(offset);
+			// Split it down, putting the upper halves back as free.
+			while (o > order) {
+				o--;
+				free.get(o).add(offset + (MIN_CHUNK_SIZE << o));
+			}
+			used.put(offset, order);
+			usedBytes += MIN_CHUNK_SIZE << order;
+			return offset;
+		}
+
+		public void free(long offset) {
+			Integer order = used.remove(offset);
+			if (order == null) {
+				System.err.println("BUG WARNING  MemoryAllocator: freeing offset "+offset+" which isn't allocated.");
+				return;
+			}
+			usedBytes -= MIN_CHUNK_SIZE << order;
+			// Merge with the buddy for as long as it's free too.
+			int o = order;
+			while (o < maxOrder) {
+				long buddy = offset ^ (MIN_CHUNK_SIZE << o);
+				if (!free.get(o).remove(buddy)) break;
+				offset = Math.min(offset, buddy);
+				o++;
+			}
+			free.get(o).add(offset);
+		}
+
+		public boolean isEmpty() {
+			return used.isEmpty();
+		}
+
+		public int getAllocationCount() {
+			return used.size();
+		}
+
+		// Including the rounding up to powers of 2.
+		public long getUsedBytes() {
+			return dedicated ? size : usedBytes;
+		}
+
+		public long getLargestFree() {
+			for (int o = maxOrder; o >= 0; o--) {
+				if (!free.get(o).isEmpty()) return MIN_CHUNK_SIZE << o;
+			}
+			return 0L;
+		}
+	}
+
+
+	private VKSetup vkbase;
+	private long blockSize;
+	// Indexed by memory type
+	private ArrayList<ArrayList<Block>> blocks = new ArrayList<ArrayList<Block>>();
+
+	private int allocationCount = 0;
+	private long requestedBytes = 0L;
+
+	// vkbase can be null for debug mode, memory handles are just made up.
+	public MemoryAllocator(VKSetup vkbase, long blockSize) {
+		this.vkbase = vkbase;
+		setBlockSize(blockSize);
+	}
+
+	// Only affects blocks created after this. Rounded up to MIN_CHUNK_SIZE times a power of 2.
+	public void setBlockSize(long blockSize) {
+		long size = MIN_CHUNK_SIZE;
+		while (size < blockSize) size <<= 1;
+		this.blockSize = size;
+	}
+
+	public long getBlockSize() {
+		return blockSize;
+	}
+
+	// typeFlags needs to be the memory type's propertyFlags (not just what the caller asked for),
+	// it's used to tell whether to map the memory. Every block of a host visible type gets mapped,
+	// since on UMA/software drivers the device local type's usually host visible too and the same
+	// block ends up shared by buffers that asked for either.
+	public Allocation allocate(long size, long alignment, int memoryType, int typeFlags) {
+		while (blocks.size() <= memoryType) {
+			blocks.add(new ArrayList<Block>());
+		}
+		ArrayList<Block> typeBlocks = blocks.get(memoryType);
+		boolean hostVisible = (typeFlags & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0;
+
+		Block block = null;
+		long offset = -1;
+		if (size > blockSize/2) {
+			// Would waste most of a block, give it its own memory.
+			block = new Block(size, true);
+			block.memory = allocateMemory(size, memoryType, hostVisible, block);
+			block.used.put(0L, 0);
+			offset = 0;
+			typeBlocks.add(block);
+		}
+		else {
+			for (Block b : typeBlocks) {
+				if (b.dedicated) continue;
+				offset = b.allocate(size, alignment);
+				if (offset != -1) {
+					block = b;
+					break;
+				}
+			}
+			if (block == null) {
+				block = new Block(blockSize);
+				block.memory = allocateMemory(blockSize, memoryType, hostVisible, block);
+				typeBlocks.add(block);
+				offset = block.allocate(size, alignment);
+			}
+		}
+
+		Allocation alloc = new Allocation();
+		alloc.memory = block.memory;
+		alloc.offset = offset;
+		alloc.size = size;
+		alloc.block = block;
+		alloc.memoryType = memoryType;
+		if (block.mapped != 0L) {
+			alloc.mapped = block.mapped + offset;
+		}
+		allocationCount++;
+		requestedBytes += size;
+		return alloc;
+	}
+
+	public void free(Allocation alloc) {
+		Block block = alloc.block;
+		if (block == null) return;
+		block.free(alloc.offset);
+		alloc.block = null;
+		allocationCount--;
+		requestedBytes -= alloc.size;
+
+		// Give empty blocks back to the driver, but keep one normal block per
+		// type around so we're not allocating and freeing the same block over and over.
+		if (block.isEmpty()) {
+			ArrayList<Block> typeBlocks = blocks.get(alloc.memoryType);
+			boolean keep = false;
+			if (!block.dedicated) {
+				keep = true;
+				for (Block b : typeBlocks) {
+					if (b != block && !b.dedicated) keep = false;
+				}
+			}
+			if (!keep) {
+				typeBlocks.remove(block);
+				freeMemory(block);
+			}
+		}
+	}
+
+	private long allocateMemory(long size, int memoryType, boolean hostVisible, Block block) {
+		// Debug mode
+		if (vkbase == null) return (long)(Math.random()*100000.)+1L;
+
+		try(MemoryStack stack = stackPush()) {
+			VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.calloc(stack);
+			allocInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
+			allocInfo.allocationSize(size);
+			allocInfo.memoryTypeIndex(memoryType);
+
+			LongBuffer pMemory = stack.mallocLong(1);
+			if(vkAllocateMemory(vkbase.device, allocInfo, null, pMemory) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate memory block of size "+size);
+			}
+			long memory = pMemory.get(0);
+
+			if (hostVisible) {
+				PointerBuffer pData = stack.mallocPointer(1);
+				vkMapMemory(vkbase.device, memory, 0, VK_WHOLE_SIZE, 0, pData);
+				block.mapped = pData.get(0);
+			}
+			return memory;
+		}
+	}
+
+	private void freeMemory(Block block) {
+		// Debug mode
+		if (vkbase == null) return;
+
+		if (block.mapped != 0L) {
+			vkUnmapMemory(vkbase.device, block.memory);
+		}
+		vkFreeMemory(vkbase.device, block.memory, null);
+	}
+
+	public void destroy() {
+		for (ArrayList<Block> typeBlocks : blocks) {
+			for (Block block : typeBlocks) {
+				freeMemory(block);
+			}
+			typeBlocks.clear();
+		}
+	}
+
+
+	// Stats
+
+	// Number of actual VkDeviceMemory allocations.
+	public int getBlockCount() {
+		int count = 0;
+		for (ArrayList<Block> typeBlocks : blocks) {
+			count += typeBlocks.size();
+		}
+		return count;
+	}
+
+	// Number of buffers living in the blocks.
+	public int getAllocationCount() {
+		return allocationCount;
+	}
+
+	// Total size of all the blocks.
+	public long getReservedBytes() {
+		long bytes = 0L;
+		for (ArrayList<Block> typeBlocks : blocks) {
+			for (Block block : typeBlocks) {
+				bytes += block.size;
+			}
+		}
+		return bytes;
+	}
+
+	// What the buffers actually asked for.
+	public long getRequestedBytes() {
+		return requestedBytes;
+	}
+
+	// Chunks handed out, including rounding up.
+	public long getUsedBytes() {
+		long bytes = 0L;
+		for (ArrayList<Block> typeBlocks : blocks) {
+			for (Block block : typeBlocks) {
+				bytes += block.getUsedBytes();
+			}
+		}
+		return bytes;
+	}
+
+	// For the worst block: 0 = its free space is all in one piece, close to 1 = it's
+	// all in tiny pieces (so a big buffer would need a new block even though there's
+	// room in total). Only counts the normal (non-dedicated) blocks.
+	public float getFragmentation() {
+		float worst = 0f;
+		for (ArrayList<Block> typeBlocks : blocks) {
+			for (Block block : typeBlocks) {
+				if (block.dedicated) continue;
+				long free = block.size - block.getUsedBytes();
+				if (free == 0L) continue;
+				worst = Math.max(worst, 1f - (float)block.getLargestFree() / (float)free);
+			}
+		}
+		return worst;
+	}
+}
@@ -0,0 +1,181 @@
+package gl2vk4p;
+
+// Per-node stats for the last frame, so you can tell if a slow frame is because of the
+// GL front-end (main thread), a node that's got too much to do, or the GPU.
+// Turned on with GL2VK.setMetricsEnabled(); when it's off the nodes don't have one of these
+// at all, so the only cost is a null check.
+// Nothing in here allocates after it's created.
+//
+// Some counters are written by the node's thread and some by the main thread. Each
+// side keeps its own running totals and copies them into the "last frame" values at the
+// end of the frame (node: when it's done CMD_END_RECORD, main: after the frame barrier),
+// so the last frame values are safe to read on the main thread after endRecord().
+public class NodeMetrics {
+
+	// Opcodes bigger than this don't get counted individually.
+	public final static int MAX_OPCODES = 32;
+
+	// Node thread, current frame
+	long busyTime = 0L;
+	long idleTime = 0L;
+	long occupancySum = 0L;
+	long occupancySamples = 0L;
+	int peakOccupancy = 0;
+	// The queue can grow or spill during the frame, so each sample's measured against
+	// the capacity at the time.
+	double occupancyPercentSum = 0.0;
+	float peakOccupancyPercent = 0f;
+	int queueCapacity = 0;
+	final long[] cmdCounts = new long[MAX_OPCODES];
+
+	// Main thread, current frame
+	long stallSpins = 0L;
+	long publishes = 0L;
+	long wakeups = 0L;
+
+	// Last frame
+	private long lastBusyTime = 0L;
+	private long lastIdleTime = 0L;
+	private int lastPeakOccupancy = 0;
+	private int lastAverageOccupancy = 0;
+	private float lastPeakOccupancyPercent = 0f;
+	private float lastAverageOccupancyPercent = 0f;
+	private int lastQueueCapacity = 0;
+	private final long[] lastCmdCounts = new long[MAX_OPCODES];
+	private long lastStallSpins = 0L;
+	private long lastPublishes = 0L;
+	private long lastWakeups = 0L;
+
+	// Node thread, every command. capacity is the queue's at the time (CommandQueue.usedCapacity()).
+	void countCommand(int cmd, int occupancy, int capacity) {
+		if (cmd >= 0 && cmd < MAX_OPCODES) {
+			cmdCounts[cmd]++;
+		}
+		occupancySum += occupancy;
+		occupancySamples++;
+		if (occupancy > peakOccupancy) {
+			peakOccupancy = occupancy;
+		}
+		float percent = capacity > 0 ? occupancy*100f/capacity : 0f;
+		occupancyPercentSum += percent;
+		if (percent > peakOccupancyPercent) {
+			peakOccupancyPercent = percent;
+		}
+		if (capacity > queueCapacity) {
+			queueCapacity = capacity;
+		}
+	}
+
+	// Node thread, once it's done with CMD_END_RECORD (before it arrives at the barrier).
+	void nodeFrameDone() {
+		lastBusyTime = busyTime;
+		lastIdleTime = idleTime;
+		lastPeakOccupancy = peakOccupancy;
+		lastAverageOccupancy = occupancySamples == 0 ? 0 : (int)(occupancySum/occupancySamples);
+		lastPeakOccupancyPercent = peakOccupancyPercent;
+		lastAverageOccupancyPercent = occupancySamples == 0 ? 0f : (float)(occupancyPercentSum/occupancySamples);
+		lastQueueCapacity = queueCapacity;
+		System.arraycopy(cmdCounts, 0, lastCmdCounts, 0, MAX_OPCODES);
+
+		busyTime = 0L;
+		idleTime = 0L;
+		occupancySum = 0L;
+		occupancySamples = 0L;
+		peakOccupancy = 0;
+		occupancyPercentSum = 0.0;
+		peakOccupancyPercent = 0f;
+		queueCapacity = 0;
+		for (int i = 0; i < MAX_OPCODES; i++) {
+			cmdCounts[i] = 0L;
+		}
+	}
+
+	// Main thread, after the frame barrier.
+	void mainFrameDone() {
+		lastStallSpins = stallSpins;
+		lastPublishes = publishes;
+		lastWakeups = wakeups;
+		stallSpins = 0L;
+		publishes = 0L;
+		wakeups = 0L;
+	}
+
+	// Main thread, for nodes that weren't used this frame (so never ended a frame
+	// and won't touch the node side).
+	void skippedFrame() {
+		lastBusyTime = 0L;
+		lastIdleTime = 0L;
+		lastPeakOccupancy = 0;
+		lastAverageOccupancy = 0;
+		lastPeakOccupancyPercent = 0f;
+		lastAverageOccupancyPercent = 0f;
+		lastQueueCapacity = 0;
+		for (int i = 0; i < MAX_OPCODES; i++) {
+			lastCmdCounts[i] = 0L;
+		}
+		mainFrameDone();
+	}
+
+	// Time spent executing commands, in ns.
+	public long getBusyTime() {
+		return lastBusyTime;
+	}
+
+	// Time spent waiting for commands (between beginning and ending the frame), in ns.
+	public long getIdleTime() {
+		return lastIdleTime;
+	}
+
+	// In bytes of the command queue. The queue might have grown/spilled during the frame,
+	// so use the percent ones to compare against its size.
+	public int getPeakOccupancy() {
+		return lastPeakOccupancy;
+	}
+
+	public int getAverageOccupancy() {
+		return lastAverageOccupancy;
+	}
+
+	// 0-100, of the queue's capacity at the time.
+	public float getPeakOccupancyPercent() {
+		return lastPeakOccupancyPercent;
+	}
+
+	public float getAverageOccupancyPercent() {
+		return lastAverageOccupancyPercent;
+	}
+
+	// Biggest the queue was (all its rings, in bytes) last frame.
+	public int getQueueCapacity() {
+		return lastQueueCapacity;
+	}
+
+	// How many times a command was executed, e.g. getCommandCount(ThreadNode.CMD_DRAW_ARRAYS)
+	public long getCommandCount(int cmd) {
+		if (cmd < 0 || cmd >= MAX_OPCODES) return 0L;
+		return lastCmdCounts[cmd];
+	}
+
+	public long getTotalCommandCount() {
+		long total = 0L;
+		for (int i = 0; i < MAX_OPCODES; i++) {
+			total += lastCmdCounts[i];
+		}
+		return total;
+	}
+
+	// Number of times the main thread had to spin because the node's queue was full.
+	public long getStallSpins() {
+		return lastStallSpins;
+	}
+
+	// Number of batches published to the node.
+	public long getPublishes() {
+		return lastPublishes;
+	}
+
+	// Number of times the node was actually asleep and had to be woken up.
+	public long getWakeups() {
+		return lastWakeups;
+	}
+}
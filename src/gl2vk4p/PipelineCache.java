@@ -0,0 +1,164 @@
+package gl2vk4p;
+
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
+import static org.lwjgl.vulkan.VK10.VK_PIPELINE_CACHE_HEADER_VERSION_ONE;
+import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO;
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+import static org.lwjgl.vulkan.VK10.VK_UUID_SIZE;
+import static org.lwjgl.vulkan.VK10.vkCreatePipelineCache;
+import static org.lwjgl.vulkan.VK10.vkDestroyPipelineCache;
+import static org.lwjgl.vulkan.VK10.vkGetPipelineCacheData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+
+// A VkPipelineCache that's saved to disk, so the driver doesn't have to compile every
+// pipeline from scratch on every launch.
+// Loaded from the cache directory when it's created and written back on save()
+// (GL2VK.close()). Each GPU gets its own file, and a file's only used if its header
+// matches the GPU and driver (vendor, device and pipelineCacheUUID, which changes with
+// driver updates), otherwise we start with an empty cache and overwrite it on save.
+// Main thread only.
+public class PipelineCache {
+
+	// Vulkan's header: length, version, vendorID, deviceID, pipelineCacheUUID
+	public final static int HEADER_SIZE = 16+VK_UUID_SIZE;
+
+	private VKSetup vkbase;
+	private File file;
+
+	public long handle = VK_NULL_HANDLE;
+
+	private int loadedBytes = 0;
+	private int savedBytes = 0;
+
+	// directory can be null to not use the disk at all.
+	public PipelineCache(VKSetup vkbase, File directory) {
+		this.vkbase = vkbase;
+		if (directory != null) {
+			file = new File(directory, fileName(vkbase.vendorID, vkbase.deviceID));
+		}
+
+		ByteBuffer initialData = null;
+		if (file != null && file.isFile()) {
+			try {
+				byte[] data = Files.readAllBytes(file.toPath());
+				if (isValid(data, vkbase.vendorID, vkbase.deviceID, vkbase.pipelineCacheUUID)) {
+					initialData = MemoryUtil.memAlloc(data.length);
+					initialData.put(data).flip();
+					loadedBytes = data.length;
+				}
+			}
+			catch (IOException e) {
+				System.err.println("GL2VK WARNING  Couldn't read pipeline cache "+file+": "+e.getMessage());
+			}
+		}
+
+		try(MemoryStack stack = stackPush()) {
+			VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.calloc(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO);
+			if (initialData != null) {
+				createInfo.pInitialData(initialData);
+			}
+
+			LongBuffer pCache = stack.mallocLong(1);
+			int result = vkCreatePipelineCache(vkbase.device, createInfo, null, pCache);
+			if (result != VK_SUCCESS && initialData != null) {
+				// Driver didn't like it after all, start from nothing.
+				loadedBytes = 0;
+				createInfo.pInitialData(null);
+				result = vkCreatePipelineCache(vkbase.device, createInfo, null, pCache);
+			}
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create pipeline cache");
+			}
+			handle = pCache.get(0);
+		}
+		finally {
+			if (initialData != null) MemoryUtil.memFree(initialData);
+		}
+	}
+
+	public static String fileName(int vendorID, int deviceID) {
+		return "pipelines-"+Integer.toHexString(vendorID)+"-"+Integer.toHexString(deviceID)+".bin";
+	}
+
+	// Checks the header vkGetPipelineCacheData puts at the start, so we never hand the
+	// driver a cache from a different GPU/driver or a file that's been cut short.
+	public static boolean isValid(byte[] data, int vendorID, int deviceID, byte[] uuid) {
+		if (data == null || data.length < HEADER_SIZE) return false;
+		ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		int length = header.getInt(0);
+		if (length < HEADER_SIZE || length > data.length) return false;
+		if (header.getInt(4) != VK_PIPELINE_CACHE_HEADER_VERSION_ONE) return false;
+		if (header.getInt(8) != vendorID) return false;
+		if (header.getInt(12) != deviceID) return false;
+		for (int i = 0; i < VK_UUID_SIZE; i++) {
+			if (data[16+i] != uuid[i]) return false;
+		}
+		return true;
+	}
+
+	// Writes the cache to disk. Written to a temporary file first and moved over the
+	// old one, so a crash halfway through never leaves a broken cache behind.
+	public void save() {
+		if (file == null) return;
+		try(MemoryStack stack = stackPush()) {
+			PointerBuffer pSize = stack.mallocPointer(1);
+			if (vkGetPipelineCacheData(vkbase.device, handle, pSize, null) != VK_SUCCESS) return;
+			int size = (int)pSize.get(0);
+			if (size == 0) return;
+
+			ByteBuffer data = MemoryUtil.memAlloc(size);
+			try {
+				if (vkGetPipelineCacheData(vkbase.device, handle, pSize, data) != VK_SUCCESS) return;
+				byte[] bytes = new byte[(int)pSize.get(0)];
+				data.get(bytes);
+
+				File dir = file.getParentFile();
+				if (dir != null) dir.mkdirs();
+				File tmp = new File(file.getPath()+".tmp");
+				Files.write(tmp.toPath(), bytes);
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				savedBytes = bytes.length;
+			}
+			catch (IOException e) {
+				System.err.println("GL2VK WARNING  Couldn't write pipeline cache "+file+": "+e.getMessage());
+			}
+			finally {
+				MemoryUtil.memFree(data);
+			}
+		}
+	}
+
+	public void destroy() {
+		vkDestroyPipelineCache(vkbase.device, handle, null);
+		handle = VK_NULL_HANDLE;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// Stats
+
+	// Size of the cache that was loaded from disk, 0 if it was a cold start.
+	public int getLoadedBytes() {
+		return loadedBytes;
+	}
+
+	public int getSavedBytes() {
+		return savedBytes;
+	}
+}
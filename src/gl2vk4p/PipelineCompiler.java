@@ -0,0 +1,150 @@
+package gl2vk4p;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+// Creates pipelines on background threads so the main thread doesn't hitch for however
+// many milliseconds the driver takes to compile one.
+// Programs start creating their shader modules and layout as soon as they're linked, and
+// each pipeline variant is started the first time it's drawn with (GL2VKPipeline.getPipeline()).
+// The policy decides what a draw does when its pipeline isn't ready yet:
+// BLOCK     waits for it (what used to always happen, just on the main thread).
+// SKIP      drops the draw.
+// FALLBACK  draws with an already built variant of the same program that has the same vertex
+//           layout and topology (so e.g. blending might be off for a frame or two). Waits if
+//           there isn't one, otherwise the first frame of anything new would be missing it
+//           (which is all there is with noLoop()).
+// GL2VK also has a second one for compiling shaders (glCompileShader), which only uses submit().
+// Submitting and the counters are main thread only.
+public class PipelineCompiler {
+
+	public final static int BLOCK = 0;
+	public final static int SKIP = 1;
+	public final static int FALLBACK = 2;
+
+	private Executor executor;
+	// Only set if we made the threads ourselves
+	private ExecutorService ownExecutor = null;
+
+	private int policy = FALLBACK;
+
+	private int submitCount = 0;
+	private int blockCount = 0;
+	private int skipCount = 0;
+	private int fallbackCount = 0;
+
+	public PipelineCompiler(int threads) {
+		this(threads, "GL2VK pipeline compiler");
+	}
+
+	public PipelineCompiler(int threads, String threadName) {
+		ownExecutor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, threadName);
+			// Shouldn't keep the program alive on its own
+			t.setDaemon(true);
+			return t;
+		});
+		executor = ownExecutor;
+	}
+
+	// For debug mode and testing, e.g. Runnable::run to do everything straight away.
+	public PipelineCompiler(Executor executor) {
+		this.executor = executor;
+	}
+
+	// A couple of threads is plenty, drivers tend to lock internally anyway.
+	public static int defaultThreadCount() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+	}
+
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		submitCount++;
+		executor.execute(future);
+		return future;
+	}
+
+	// Waits for the result, anything thrown on the compile thread gets thrown here.
+	public static <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a pipeline", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException("Pipeline creation failed", e.getCause());
+		}
+	}
+
+	// Waits for everything that's been submitted to finish. Needs calling before destroying
+	// the programs/device.
+	public void shutdown() {
+		if (ownExecutor == null) return;
+		ownExecutor.shutdown();
+		try {
+			ownExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void setPolicy(int policy) {
+		this.policy = policy;
+	}
+
+	public int getPolicy() {
+		return policy;
+	}
+
+	// Called by GL2VKPipeline when a policy gets used.
+	public void blocked() {
+		blockCount++;
+	}
+
+	public void skipped() {
+		skipCount++;
+	}
+
+	public void fellBack() {
+		fallbackCount++;
+	}
+
+	// Stats
+
+	// Layouts and pipelines sent off to be created.
+	public int getSubmitCount() {
+		return submitCount;
+	}
+
+	// Draws that had to wait for their pipeline.
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	// Draws that got dropped, including FALLBACK with nothing to fall back to.
+	public int getSkipCount() {
+		return skipCount;
+	}
+
+	// Draws that used another variant.
+	public int getFallbackCount() {
+		return fallbackCount;
+	}
+
+	public void resetStats() {
+		submitCount = 0;
+		blockCount = 0;
+		skipCount = 0;
+		fallbackCount = 0;
+	}
+}
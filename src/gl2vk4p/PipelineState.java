@@ -0,0 +1,231 @@
+package gl2vk4p;
+
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_DST_ALPHA;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_DST_COLOR;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ONE;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ONE_MINUS_DST_ALPHA;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ONE_MINUS_DST_COLOR;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ONE_MINUS_SRC_COLOR;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_SRC_ALPHA;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_SRC_ALPHA_SATURATE;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_SRC_COLOR;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_FACTOR_ZERO;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_OP_ADD;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_OP_MAX;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_OP_MIN;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_OP_REVERSE_SUBTRACT;
+import static org.lwjgl.vulkan.VK10.VK_BLEND_OP_SUBTRACT;
+import static org.lwjgl.vulkan.VK10.VK_COMPARE_OP_LESS;
+import static org.lwjgl.vulkan.VK10.VK_CULL_MODE_BACK_BIT;
+import static org.lwjgl.vulkan.VK10.VK_CULL_MODE_FRONT_AND_BACK;
+import static org.lwjgl.vulkan.VK10.VK_CULL_MODE_FRONT_BIT;
+import static org.lwjgl.vulkan.VK10.VK_CULL_MODE_NONE;
+import static org.lwjgl.vulkan.VK10.VK_FRONT_FACE_CLOCKWISE;
+import static org.lwjgl.vulkan.VK10.VK_FRONT_FACE_COUNTER_CLOCKWISE;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_LINE_LIST;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_LINE_STRIP;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_POINT_LIST;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_FAN;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
+import static org.lwjgl.vulkan.VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_STRIP;
+
+// All the fixed function state that gets baked into a vulkan pipeline, which GL lets you
+// change whenever you like (glEnable(GL_BLEND), the mode passed to glDrawArrays etc).
+// GL2VK keeps one of these up to date, and each program keeps a pipeline per different
+// state it's been drawn with (see GL2VKPipeline.getPipeline()).
+// Values are all stored already converted to vulkan's.
+// getKey() packs the whole thing into a long, which is what the variants are looked up by.
+public class PipelineState {
+
+	public int topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
+
+	public boolean blend = false;
+	public int srcColor = VK_BLEND_FACTOR_ONE;
+	public int dstColor = VK_BLEND_FACTOR_ZERO;
+	public int srcAlpha = VK_BLEND_FACTOR_ONE;
+	public int dstAlpha = VK_BLEND_FACTOR_ZERO;
+	public int blendOp = VK_BLEND_OP_ADD;
+
+	// GL's defaults: culling off, counter clockwise is the front.
+	// Vulkan's y is upside down compared to GL's, which flips the winding, so GL's
+	// counter clockwise is vulkan's clockwise.
+	public int cullMode = VK_CULL_MODE_NONE;
+	public int frontFace = VK_FRONT_FACE_CLOCKWISE;
+
+	public boolean depthTest = false;
+	public boolean depthWrite = true;
+	public int depthCompare = VK_COMPARE_OP_LESS;
+
+	// Kept separately so glEnable(GL_CULL_FACE) can put back whatever glCullFace set.
+	private boolean cullEnabled = false;
+	private int cullFace = VK_CULL_MODE_BACK_BIT;
+
+	// GL constants we need to know about
+	public final static int GL_POINTS = 0x0000;
+	public final static int GL_LINES = 0x0001;
+	public final static int GL_LINE_LOOP = 0x0002;
+	public final static int GL_LINE_STRIP = 0x0003;
+	public final static int GL_TRIANGLES = 0x0004;
+	public final static int GL_TRIANGLE_STRIP = 0x0005;
+	public final static int GL_TRIANGLE_FAN = 0x0006;
+
+	public final static int GL_FRONT = 0x0404;
+	public final static int GL_BACK = 0x0405;
+	public final static int GL_FRONT_AND_BACK = 0x0408;
+	public final static int GL_CW = 0x0900;
+	public final static int GL_CCW = 0x0901;
+
+	public final static int GL_NEVER = 0x0200;
+	public final static int GL_ALWAYS = 0x0207;
+
+	public final static int GL_ZERO = 0;
+	public final static int GL_ONE = 1;
+	public final static int GL_SRC_COLOR = 0x0300;
+	public final static int GL_ONE_MINUS_SRC_COLOR = 0x0301;
+	public final static int GL_SRC_ALPHA = 0x0302;
+	public final static int GL_ONE_MINUS_SRC_ALPHA = 0x0303;
+	public final static int GL_DST_ALPHA = 0x0304;
+	public final static int GL_ONE_MINUS_DST_ALPHA = 0x0305;
+	public final static int GL_DST_COLOR = 0x0306;
+	public final static int GL_ONE_MINUS_DST_COLOR = 0x0307;
+	public final static int GL_SRC_ALPHA_SATURATE = 0x0308;
+
+	public final static int GL_FUNC_ADD = 0x8006;
+	public final static int GL_MIN = 0x8007;
+	public final static int GL_MAX = 0x8008;
+	public final static int GL_FUNC_SUBTRACT = 0x800A;
+	public final static int GL_FUNC_REVERSE_SUBTRACT = 0x800B;
+
+
+	public PipelineState copy() {
+		PipelineState s = new PipelineState();
+		s.topology = topology;
+		s.blend = blend;
+		s.srcColor = srcColor;
+		s.dstColor = dstColor;
+		s.srcAlpha = srcAlpha;
+		s.dstAlpha = dstAlpha;
+		s.blendOp = blendOp;
+		s.cullMode = cullMode;
+		s.frontFace = frontFace;
+		s.depthTest = depthTest;
+		s.depthWrite = depthWrite;
+		s.depthCompare = depthCompare;
+		s.cullEnabled = cullEnabled;
+		s.cullFace = cullFace;
+		return s;
+	}
+
+	// Returns false if mode isn't a draw mode we know.
+	// There's no line loop in vulkan, so those get drawn as a line strip (without the
+	// closing line).
+	public boolean setMode(int mode) {
+		switch (mode) {
+		case GL_POINTS:         topology = VK_PRIMITIVE_TOPOLOGY_POINT_LIST; return true;
+		case GL_LINES:          topology = VK_PRIMITIVE_TOPOLOGY_LINE_LIST; return true;
+		case GL_LINE_LOOP:
+		case GL_LINE_STRIP:     topology = VK_PRIMITIVE_TOPOLOGY_LINE_STRIP; return true;
+		case GL_TRIANGLES:      topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST; return true;
+		case GL_TRIANGLE_STRIP: topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_STRIP; return true;
+		case GL_TRIANGLE_FAN:   topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_FAN; return true;
+		}
+		return false;
+	}
+
+	public void setCullEnabled(boolean enabled) {
+		cullEnabled = enabled;
+		cullMode = enabled ? cullFace : VK_CULL_MODE_NONE;
+	}
+
+	public boolean setCullFace(int face) {
+		switch (face) {
+		case GL_FRONT:          cullFace = VK_CULL_MODE_FRONT_BIT; break;
+		case GL_BACK:           cullFace = VK_CULL_MODE_BACK_BIT; break;
+		case GL_FRONT_AND_BACK: cullFace = VK_CULL_MODE_FRONT_AND_BACK; break;
+		default: return false;
+		}
+		setCullEnabled(cullEnabled);
+		return true;
+	}
+
+	public boolean setFrontFace(int mode) {
+		switch (mode) {
+		case GL_CCW: frontFace = VK_FRONT_FACE_CLOCKWISE; return true;
+		case GL_CW:  frontFace = VK_FRONT_FACE_COUNTER_CLOCKWISE; return true;
+		}
+		return false;
+	}
+
+	// GL's compare functions are in the same order as vulkan's.
+	public boolean setDepthFunc(int func) {
+		if (func < GL_NEVER || func > GL_ALWAYS) return false;
+		depthCompare = func-GL_NEVER;
+		return true;
+	}
+
+	public boolean setBlendFunc(int srcRGB, int dstRGB, int srcA, int dstA) {
+		int s = vkBlendFactor(srcRGB);
+		int d = vkBlendFactor(dstRGB);
+		int sa = vkBlendFactor(srcA);
+		int da = vkBlendFactor(dstA);
+		if (s == -1 || d == -1 || sa == -1 || da == -1) return false;
+		srcColor = s;
+		dstColor = d;
+		srcAlpha = sa;
+		dstAlpha = da;
+		return true;
+	}
+
+	public boolean setBlendEquation(int mode) {
+		switch (mode) {
+		case GL_FUNC_ADD:              blendOp = VK_BLEND_OP_ADD; return true;
+		case GL_FUNC_SUBTRACT:         blendOp = VK_BLEND_OP_SUBTRACT; return true;
+		case GL_FUNC_REVERSE_SUBTRACT: blendOp = VK_BLEND_OP_REVERSE_SUBTRACT; return true;
+		case GL_MIN:                   blendOp = VK_BLEND_OP_MIN; return true;
+		case GL_MAX:                   blendOp = VK_BLEND_OP_MAX; return true;
+		}
+		return false;
+	}
+
+	// -1 if we don't know it
+	public static int vkBlendFactor(int glFactor) {
+		switch (glFactor) {
+		case GL_ZERO:                return VK_BLEND_FACTOR_ZERO;
+		case GL_ONE:                 return VK_BLEND_FACTOR_ONE;
+		case GL_SRC_COLOR:           return VK_BLEND_FACTOR_SRC_COLOR;
+		case GL_ONE_MINUS_SRC_COLOR: return VK_BLEND_FACTOR_ONE_MINUS_SRC_COLOR;
+		case GL_SRC_ALPHA:           return VK_BLEND_FACTOR_SRC_ALPHA;
+		case GL_ONE_MINUS_SRC_ALPHA: return VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA;
+		case GL_DST_ALPHA:           return VK_BLEND_FACTOR_DST_ALPHA;
+		case GL_ONE_MINUS_DST_ALPHA: return VK_BLEND_FACTOR_ONE_MINUS_DST_ALPHA;
+		case GL_DST_COLOR:           return VK_BLEND_FACTOR_DST_COLOR;
+		case GL_ONE_MINUS_DST_COLOR: return VK_BLEND_FACTOR_ONE_MINUS_DST_COLOR;
+		case GL_SRC_ALPHA_SATURATE:  return VK_BLEND_FACTOR_SRC_ALPHA_SATURATE;
+		}
+		return -1;
+	}
+
+	// Everything packed into 36 bits. Blend factors are only counted when blending's on,
+	// so different factors with blending off don't make pointless extra pipelines.
+	public long getKey() {
+		long key = topology;                        // 4 bits
+		key = (key << 1) | (blend ? 1 : 0);
+		if (blend) {
+			key = (key << 5) | srcColor;            // 5 bits each, up to 18
+			key = (key << 5) | dstColor;
+			key = (key << 5) | srcAlpha;
+			key = (key << 5) | dstAlpha;
+			key = (key << 3) | blendOp;
+		}
+		else {
+			key <<= 23;
+		}
+		key = (key << 2) | cullMode;
+		key = (key << 1) | frontFace;
+		key = (key << 1) | (depthTest ? 1 : 0);
+		key = (key << 1) | (depthWrite ? 1 : 0);
+		key = (key << 3) | depthCompare;
+		return key;
+	}
+}
@@ -1,5 +1,7 @@
 package gl2vk4p;
 
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.NativeResource;
 
 import java.io.File;
@@ -7,14 +9,107 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 
+import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 import static org.lwjgl.util.shaderc.Shaderc.*;
 
 public class ShaderSPIRVUtils {
 
+    // Everything we pass to shaderc besides the source and kind. Needs changing whenever
+    // the options do, otherwise cached SPIR-V compiled with the old options gets used.
+    public final static String COMPILE_OPTIONS = "entry=main;options=default";
+
+    // Memory only until GL2VK gives it a directory (it's static so debug mode/tests
+    // don't write to the home directory).
+    private static SpirvCache cache = new SpirvCache(SpirvCache.DEFAULT_MEMORY_SIZE, null, SpirvCache.DEFAULT_DISK_SIZE);
+    private static String compilerVersion = null;
+
+    public static SpirvCache getCache() {
+        return cache;
+    }
+
+    // null to always compile.
+    public static void setCache(SpirvCache spirvCache) {
+        cache = spirvCache;
+    }
+
+    // Options plus the SPIR-V version shaderc outputs, so updating LWJGL doesn't
+    // keep using SPIR-V from the old compiler.
+    private static String cacheOptions() {
+        if (compilerVersion == null) {
+            try(MemoryStack stack = stackPush()) {
+                IntBuffer version = stack.mallocInt(1);
+                IntBuffer revision = stack.mallocInt(1);
+                shaderc_get_spv_version(version, revision);
+                compilerVersion = ";spv="+version.get(0)+"."+revision.get(0);
+            }
+        }
+        return COMPILE_OPTIONS+compilerVersion;
+    }
+
+    // One shaderc compiler per thread that compiles shaders, made the first time it's needed
+    // and kept, instead of initializing and releasing one for every shader.
+    private static final class PooledCompiler {
+        long handle = NULL;
+    }
+
+    private static final ArrayList<PooledCompiler> pool = new ArrayList<PooledCompiler>();
+    private static final ThreadLocal<PooledCompiler> threadCompiler = ThreadLocal.withInitial(PooledCompiler::new);
+
+    private static long compiler() {
+        PooledCompiler compiler = threadCompiler.get();
+        if (compiler.handle == NULL) {
+            compiler.handle = shaderc_compiler_initialize();
+            if(compiler.handle == NULL) {
+                throw new RuntimeException("Failed to create shader compiler");
+            }
+            synchronized (pool) {
+                pool.add(compiler);
+            }
+        }
+        return compiler.handle;
+    }
+
+    // Releases every thread's compiler. Nothing can be compiling while this is called,
+    // threads that compile again afterwards just make a new one.
+    public static void releaseCompilers() {
+        synchronized (pool) {
+            for (PooledCompiler compiler : pool) {
+                shaderc_compiler_release(compiler.handle);
+                compiler.handle = NULL;
+            }
+            pool.clear();
+        }
+    }
+
+    // How many compilers are alive, i.e. how many threads have compiled something.
+    public static int getCompilerCount() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    private static SPIRV fromCache(String key) {
+        if (cache == null) return null;
+        byte[] spirv = cache.get(key);
+        if (spirv == null) return null;
+        ByteBuffer bytecode = MemoryUtil.memAlloc(spirv.length);
+        bytecode.put(spirv).flip();
+        return new SPIRV(bytecode);
+    }
+
+    private static void toCache(String key, ByteBuffer bytecode) {
+        if (cache == null) return;
+        byte[] spirv = new byte[bytecode.remaining()];
+        bytecode.duplicate().get(spirv);
+        cache.put(key, spirv);
+    }
+
     public static SPIRV compileShaderFile(String shaderFile, ShaderKind shaderKind) {
     	File f = new File(".");
     	String path = f.getAbsolutePath().replaceAll("\\\\", "/");
@@ -48,12 +143,11 @@ public class ShaderSPIRVUtils {
     }
 
     public static SPIRV compileShader(String filename, String source, ShaderKind shaderKind) {
+        String key = SpirvCache.key(source, shaderKind.kind, cacheOptions());
+        SPIRV cached = fromCache(key);
+        if (cached != null) return cached;
 
-        long compiler = shaderc_compiler_initialize();
-
-        if(compiler == NULL) {
-            throw new RuntimeException("Failed to create shader compiler");
-        }
+        long compiler = compiler();
 
         long result = shaderc_compile_into_spv(compiler, source, shaderKind.kind, filename, "main", NULL);
 
@@ -62,22 +156,23 @@ public class ShaderSPIRVUtils {
         }
 
         if(shaderc_result_get_compilation_status(result) != shaderc_compilation_status_success) {
-            throw new RuntimeException(shaderc_result_get_error_message(result));
+            String error = shaderc_result_get_error_message(result);
+            shaderc_result_release(result);
+            throw new RuntimeException(error);
         }
 
-        shaderc_compiler_release(compiler);
-
-        return new SPIRV(result, shaderc_result_get_bytes(result));
+        SPIRV spirv = new SPIRV(result, shaderc_result_get_bytes(result));
+        toCache(key, spirv.bytecode());
+        return spirv;
     }
     
 
     public static SPIRV compileShader(String source, ShaderKind shaderKind) {
+        String key = SpirvCache.key(source, shaderKind.kind, cacheOptions());
+        SPIRV cached = fromCache(key);
+        if (cached != null) return cached;
 
-        long compiler = shaderc_compiler_initialize();
-
-        if(compiler == NULL) {
-            throw new RuntimeException("Failed to create shader compiler");
-        }
+        long compiler = compiler();
 
         long result = shaderc_compile_into_spv(compiler, source, shaderKind.kind, "shader", "main", NULL);
 
@@ -86,12 +181,14 @@ public class ShaderSPIRVUtils {
         }
 
         if(shaderc_result_get_compilation_status(result) != shaderc_compilation_status_success) {
-            throw new RuntimeException(shaderc_result_get_error_message(result));
+            String error = shaderc_result_get_error_message(result);
+            shaderc_result_release(result);
+            throw new RuntimeException(error);
         }
 
-        shaderc_compiler_release(compiler);
-
-        return new SPIRV(result, shaderc_result_get_bytes(result));
+        SPIRV spirv = new SPIRV(result, shaderc_result_get_bytes(result));
+        toCache(key, spirv.bytecode());
+        return spirv;
     }
 
 
@@ -118,13 +215,19 @@ public class ShaderSPIRVUtils {
             this.bytecode = bytecode;
         }
 
+        // Not from shaderc (i.e. from the cache), bytecode's ours and gets memFree'd.
+        public SPIRV(ByteBuffer bytecode) {
+            this(NULL, bytecode);
+        }
+
         public ByteBuffer bytecode() {
             return bytecode;
         }
 
         @Override
         public void free() {
-            shaderc_result_release(handle);
+            if (handle != NULL) shaderc_result_release(handle);
+            else if (bytecode != null) MemoryUtil.memFree(bytecode);
             bytecode = null; // Help the GC
         }
     }
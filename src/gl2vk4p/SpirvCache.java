@@ -0,0 +1,278 @@
+package gl2vk4p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compiled SPIR-V, so shaderc only ever has to compile the same shader once.
+// Keyed by a hash of the converted source, the shader kind and the compiler options
+// (key()), so the same shader in different programs, or in a later run, is a hit.
+// Two tiers:
+// memory  most recently used first, evicts the least recently used once it's over its size.
+// disk    one <key>.spv file per shader in the directory, read with a memory mapped read.
+//         Also evicts the least recently used (by file modified time) once it's over its size.
+// Either limit can be 0 to turn that tier off, and the directory can be null for memory only.
+// Thread safe, shaders can get compiled off the main thread.
+public class SpirvCache {
+
+	public final static long DEFAULT_MEMORY_SIZE = 8L*1024L*1024L;
+	public final static long DEFAULT_DISK_SIZE = 64L*1024L*1024L;
+
+	private final static String EXTENSION = ".spv";
+
+	// Access ordered, so iterating goes least recently used first.
+	private LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long memoryBytes = 0L;
+	private long memoryLimit;
+
+	private File directory;
+	private long diskLimit;
+	// -1 until we've looked at what's already in the directory.
+	private long diskBytes = -1L;
+
+	private int memoryHits = 0;
+	private int diskHits = 0;
+	private int misses = 0;
+	private int evictions = 0;
+
+	public SpirvCache(long memoryLimit, File directory, long diskLimit) {
+		this.memoryLimit = memoryLimit;
+		this.directory = directory;
+		this.diskLimit = diskLimit;
+	}
+
+	// Memory only
+	public SpirvCache(long memoryLimit) {
+		this(memoryLimit, null, 0L);
+	}
+
+	// SHA-256 of everything that changes what comes out of the compiler, as hex so it
+	// works as a file name.
+	public static String key(String source, int kind, String options) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(source.getBytes(StandardCharsets.UTF_8));
+			// Separators so e.g. kind 1 + "0..." can't collide with kind 10 + "..."
+			digest.update((byte)0);
+			digest.update(Integer.toString(kind).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte)0);
+			digest.update(options.getBytes(StandardCharsets.UTF_8));
+			byte[] hash = digest.digest();
+
+			StringBuilder hex = new StringBuilder(hash.length*2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every JVM has to have SHA-256
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+
+	// null if it's not in either tier. Don't modify the returned array.
+	public synchronized byte[] get(String key) {
+		byte[] spirv = memory.get(key);
+		if (spirv != null) {
+			memoryHits++;
+			return spirv;
+		}
+
+		spirv = readFile(key);
+		if (spirv != null) {
+			diskHits++;
+			putMemory(key, spirv);
+			return spirv;
+		}
+
+		misses++;
+		return null;
+	}
+
+	public synchronized void put(String key, byte[] spirv) {
+		putMemory(key, spirv);
+		writeFile(key, spirv);
+	}
+
+	private void putMemory(String key, byte[] spirv) {
+		// Wouldn't fit anyway
+		if (spirv.length > memoryLimit) return;
+
+		byte[] old = memory.put(key, spirv);
+		if (old != null) memoryBytes -= old.length;
+		memoryBytes += spirv.length;
+
+		Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+		while (memoryBytes > memoryLimit && it.hasNext()) {
+			Map.Entry<String, byte[]> entry = it.next();
+			memoryBytes -= entry.getValue().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private File file(String key) {
+		return new File(directory, key+EXTENSION);
+	}
+
+	private byte[] readFile(String key) {
+		if (directory == null || diskLimit <= 0L) return null;
+		File f = file(key);
+		if (!f.isFile()) return null;
+
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			// SPIR-V's made of 32 bit words, anything else got cut short.
+			if (size == 0L || size % 4L != 0L || size > Integer.MAX_VALUE) return null;
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+			byte[] spirv = new byte[(int)size];
+			mapped.get(spirv);
+			// So it counts as recently used when evicting.
+			f.setLastModified(System.currentTimeMillis());
+			return spirv;
+		}
+		catch (IOException e) {
+			System.err.println("GL2VK WARNING  Couldn't read SPIR-V cache "+f+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	// Written to a temporary file first and moved, same as PipelineCache, so another
+	// run never maps a half written file.
+	private void writeFile(String key, byte[] spirv) {
+		if (directory == null || diskLimit <= 0L || spirv.length > diskLimit) return;
+		File f = file(key);
+		try {
+			directory.mkdirs();
+			if (diskBytes < 0L) diskBytes = directorySize();
+
+			long oldSize = f.isFile() ? f.length() : 0L;
+			File tmp = new File(directory, key+EXTENSION+".tmp");
+			Files.write(tmp.toPath(), spirv);
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			diskBytes += spirv.length-oldSize;
+
+			if (diskBytes > diskLimit) evictDisk();
+		}
+		catch (IOException e) {
+			System.err.println("GL2VK WARNING  Couldn't write SPIR-V cache "+f+": "+e.getMessage());
+		}
+	}
+
+	private File[] listFiles() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		return files != null ? files : new File[0];
+	}
+
+	private long directorySize() {
+		long total = 0L;
+		for (File f : listFiles()) {
+			total += f.length();
+		}
+		return total;
+	}
+
+	private void evictDisk() {
+		File[] files = listFiles();
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+		// Recount in case another run's been writing to the same directory.
+		diskBytes = 0L;
+		for (File f : files) {
+			diskBytes += f.length();
+		}
+		for (File f : files) {
+			if (diskBytes <= diskLimit) break;
+			long size = f.length();
+			if (f.delete()) {
+				diskBytes -= size;
+				evictions++;
+			}
+		}
+	}
+
+	// null for memory only. Whatever's in the new directory gets used from now on.
+	public synchronized void setDirectory(File directory) {
+		this.directory = directory;
+		diskBytes = -1L;
+	}
+
+	public synchronized File getDirectory() {
+		return directory;
+	}
+
+	public synchronized void setMemoryLimit(long bytes) {
+		memoryLimit = bytes;
+		Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+		while (memoryBytes > memoryLimit && it.hasNext()) {
+			memoryBytes -= it.next().getValue().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void setDiskLimit(long bytes) {
+		diskLimit = bytes;
+		if (directory != null && directory.isDirectory()) evictDisk();
+	}
+
+	// Empties the memory tier, the disk's left alone.
+	public synchronized void clearMemory() {
+		memory.clear();
+		memoryBytes = 0L;
+	}
+
+	// Stats
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized int getMemoryEntries() {
+		return memory.size();
+	}
+
+	// Only known once something's been written to disk, -1 before that.
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	public synchronized int getMemoryHits() {
+		return memoryHits;
+	}
+
+	public synchronized int getDiskHits() {
+		return diskHits;
+	}
+
+	// Compiles we had to do.
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	// Entries dropped from either tier.
+	public synchronized int getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void resetStats() {
+		memoryHits = 0;
+		diskHits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+}
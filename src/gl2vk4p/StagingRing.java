@@ -0,0 +1,199 @@
+package gl2vk4p;
+
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT;
+import static org.lwjgl.vulkan.VK10.vkDestroyBuffer;
+import static org.lwjgl.vulkan.VK10.vkFreeMemory;
+import static org.lwjgl.vulkan.VK10.vkMapMemory;
+import static org.lwjgl.vulkan.VK10.vkUnmapMemory;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+// One big host visible buffer that every upload gets staged through, instead of
+// each GraphicsBuffer keeping its own staging buffer and mapping/unmapping it every time.
+// It's split into one section per frame in flight. Uploads are handed out linearly
+// from the current frame's section, and the section is reused once the frame's
+// fence has been waited on (beginFrame()).
+// If an upload doesn't fit we make a temporary staging buffer for it, which gets
+// freed at the same point.
+// Main thread only.
+public class StagingRing {
+
+	// Per frame in flight
+	public final static int DEFAULT_FRAME_SIZE = 8*1024*1024;
+	// Copy offsets don't need aligning, but memcpy's faster when they are.
+	private final static int ALIGNMENT = 16;
+
+	private VKSetup vkbase;
+
+	private long buffer;
+	private long memory;
+	private long mapped;
+	private int frameSize;
+
+	private int frame = 0;
+	private int head = 0;
+
+	// Temporary buffers for uploads that didn't fit, per frame in flight.
+	private ArrayList<ArrayList<Long>> overflowBuffers = new ArrayList<ArrayList<Long>>();
+	private ArrayList<ArrayList<MemoryAllocator.Allocation>> overflowMemory = new ArrayList<ArrayList<MemoryAllocator.Allocation>>();
+
+	// Set by stage(), the buffer the staged data ended up in.
+	public long stagedBuffer;
+	// And where it is in memory.
+	public long stagedAddress;
+
+	private long bytesStaged = 0L;
+	private int overflowCount = 0;
+
+	public StagingRing(VKSetup vkbase, int frameSize) {
+		this.vkbase = vkbase;
+		this.frameSize = (frameSize+ALIGNMENT-1)/ALIGNMENT*ALIGNMENT;
+
+		for (int i = 0; i < VulkanSystem.MAX_FRAMES_IN_FLIGHT; i++) {
+			overflowBuffers.add(new ArrayList<Long>());
+			overflowMemory.add(new ArrayList<MemoryAllocator.Allocation>());
+		}
+
+		// Mapped once, stays mapped.
+		try(MemoryStack stack = stackPush()) {
+			LongBuffer pBuffer = stack.mallocLong(1);
+			LongBuffer pBufferMemory = stack.mallocLong(1);
+			vkbase.createBuffer((long)this.frameSize*VulkanSystem.MAX_FRAMES_IN_FLIGHT,
+					VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+					VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+					pBuffer,
+					pBufferMemory);
+			buffer = pBuffer.get(0);
+			memory = pBufferMemory.get(0);
+
+			PointerBuffer pData = stack.mallocPointer(1);
+			vkMapMemory(vkbase.device, memory, 0, (long)this.frameSize*VulkanSystem.MAX_FRAMES_IN_FLIGHT, 0, pData);
+			mapped = pData.get(0);
+		}
+	}
+
+	// Call once the frame's fence has been waited on, the GPU's done copying
+	// everything that was staged last time this frame was used.
+	public void beginFrame(int frame) {
+		this.frame = frame;
+		head = 0;
+
+		ArrayList<Long> buffers = overflowBuffers.get(frame);
+		ArrayList<MemoryAllocator.Allocation> allocs = overflowMemory.get(frame);
+		for (int i = 0; i < buffers.size(); i++) {
+			vkDestroyBuffer(vkbase.device, buffers.get(i), null);
+			vkbase.allocator.free(allocs.get(i));
+		}
+		buffers.clear();
+		allocs.clear();
+	}
+
+	// Copies the first size bytes of data into staging memory and returns the offset
+	// to copy from. The buffer to copy from is left in stagedBuffer.
+	// The data needs to stay there until the end of the frame's commands.
+	public long stage(ByteBuffer data, int size) {
+		return stage(data, 0, size);
+	}
+
+	// Same but starting from dataOffset in data.
+	public long stage(ByteBuffer data, int dataOffset, int size) {
+		long offset = reserve(size);
+		copy(data, dataOffset, stagedAddress, size);
+		return offset;
+	}
+
+	// Makes room for size bytes without copying anything in, for when the caller wants
+	// to write it themselves (see GraphicsBuffer.map()). Returns the offset like stage(),
+	// and the memory's at stagedAddress.
+	public long reserve(int size) {
+		bytesStaged += size;
+		long dst;
+		long offset;
+		if (head+size <= frameSize) {
+			offset = (long)frame*frameSize + head;
+			dst = mapped + offset;
+			stagedBuffer = buffer;
+			head += (size+ALIGNMENT-1)/ALIGNMENT*ALIGNMENT;
+		}
+		else {
+			// Doesn't fit, give it its own buffer for this frame.
+			overflowCount++;
+			try(MemoryStack stack = stackPush()) {
+				LongBuffer pBuffer = stack.mallocLong(1);
+				MemoryAllocator.Allocation alloc = vkbase.allocateBuffer(size,
+						VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+						VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+						pBuffer);
+				overflowBuffers.get(frame).add(pBuffer.get(0));
+				overflowMemory.get(frame).add(alloc);
+				stagedBuffer = pBuffer.get(0);
+				dst = alloc.mapped;
+				offset = 0L;
+			}
+		}
+
+		stagedAddress = dst;
+		return offset;
+	}
+
+	// Bulk copy from index 0 of data, regardless of its position.
+	public static void copy(ByteBuffer data, long dst, int size) {
+		copy(data, 0, dst, size);
+	}
+
+	public static void copy(ByteBuffer data, int dataOffset, long dst, int size) {
+		if (dataOffset+size > data.capacity()) {
+			System.err.println("Buffer overflow: tried to read "+size+" bytes from buffer of size "+data.capacity());
+			size = Math.max(0, data.capacity()-dataOffset);
+		}
+		if (data.isDirect()) {
+			MemoryUtil.memCopy(MemoryUtil.memAddress0(data)+dataOffset, dst, size);
+		}
+		else {
+			// Heap buffers can't be memcpy'd, but a bulk put still beats byte by byte.
+			ByteBuffer src = data.duplicate();
+			src.clear();
+			src.position(dataOffset);
+			src.limit(dataOffset+size);
+			MemoryUtil.memByteBuffer(dst, size).put(src);
+		}
+	}
+
+	public void destroy() {
+		for (int i = 0; i < VulkanSystem.MAX_FRAMES_IN_FLIGHT; i++) {
+			beginFrame(i);
+		}
+		vkUnmapMemory(vkbase.device, memory);
+		vkDestroyBuffer(vkbase.device, buffer, null);
+		vkFreeMemory(vkbase.device, memory, null);
+	}
+
+	// Which section uploads are currently going into (the frame in flight).
+	public int getSection() {
+		return frame;
+	}
+
+	// Stats
+
+	public long getBytesStaged() {
+		return bytesStaged;
+	}
+
+	// Uploads that didn't fit in the ring.
+	public int getOverflowCount() {
+		return overflowCount;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+}
@@ -3,15 +3,28 @@ package gl2vk4p;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.lwjgl.vulkan.VK10.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.lang.management.ManagementFactory;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
 import org.lwjgl.vulkan.VkVertexInputBindingDescription;
 
+import gl2vk4p.ShaderSPIRVUtils.SPIRV;
+import gl2vk4p.ShaderSPIRVUtils.ShaderKind;
+
 class Tests {
 
 	String code1 = 
@@ -1026,40 +1039,40 @@ void main() {
 	@Test
 	public void multiple_buffers_1() {
 		GL2VK gl = glProgram1(true);
-		ArrayList<Long> bindings = gl.getPipeline(glProgram1).getVKBuffers();
-		System.out.println("Buffer 1 value: "+bindings.get(0));
-		System.out.println("Buffer 2 value: "+bindings.get(1));
-		assertNotEquals(-1, bindings.get(0));
-		assertNotEquals(-1, bindings.get(1));
-		assertNotEquals(0, bindings.get(0));
-		assertNotEquals(0, bindings.get(1));
-		assertEquals(2, bindings.size());
+		long[] bindings = gl.getPipeline(glProgram1).getVKBuffers();
+		System.out.println("Buffer 1 value: "+bindings[0]);
+		System.out.println("Buffer 2 value: "+bindings[1]);
+		assertNotEquals(-1, bindings[0]);
+		assertNotEquals(-1, bindings[1]);
+		assertNotEquals(0, bindings[0]);
+		assertNotEquals(0, bindings[1]);
+		assertEquals(2, bindings.length);
 	}
 
 	@Test
 	public void multiple_buffers_2() {
 		GL2VK gl = glProgram1(false);
-		ArrayList<Long> bindings = gl.getPipeline(glProgram1).getVKBuffers();
-		System.out.println("Buffer 1 value: "+bindings.get(0));
-		assertNotEquals(-1, bindings.get(0));
-		assertEquals(1, bindings.size());
+		long[] bindings = gl.getPipeline(glProgram1).getVKBuffers();
+		System.out.println("Buffer 1 value: "+bindings[0]);
+		assertNotEquals(-1, bindings[0]);
+		assertEquals(1, bindings.length);
 	}
 
 	@Test
 	public void multiple_buffers_change() {
 		GL2VK gl = glProgram1(false);
 		
-		ArrayList<Long> bindings1 = gl.getPipeline(glProgram1).getVKBuffers();
-		System.out.println("Buffer 1 value: "+bindings1.get(0));
-		long beforeBinding = bindings1.get(0);
-		assertNotEquals(-1, bindings1.get(0));
-		assertEquals(1, bindings1.size());
+		long[] bindings1 = gl.getPipeline(glProgram1).getVKBuffers();
+		System.out.println("Buffer 1 value: "+bindings1[0]);
+		long beforeBinding = bindings1[0];
+		assertNotEquals(-1, bindings1[0]);
+		assertEquals(1, bindings1.length);
 		
 		// Change
 		gl.glBindBuffer(0, testbuffer1);
 		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 20, null, 0);
-		ArrayList<Long> bindings2 = gl.getPipeline(glProgram1).getVKBuffers();
-		assertNotEquals(beforeBinding, bindings2.get(0));
+		long[] bindings2 = gl.getPipeline(glProgram1).getVKBuffers();
+		assertNotEquals(beforeBinding, bindings2[0]);
 	}
 	
 	
@@ -2106,6 +2119,1408 @@ void main() {
 	
 	
 	
+	@Test
+	public void command_ring_roundtrip() {
+		CommandRing ring = new CommandRing(256);
+		
+		int p = ring.claim(3, 12);
+		ring.putInt(p, 1);
+		ring.putInt(p+4, 2);
+		ring.putInt(p+8, 3);
+		
+		// Not visible until published
+		assertEquals(CommandRing.NO_CMD, ring.next());
+		ring.publish();
+		
+		assertEquals(3, ring.next());
+		assertEquals(12, ring.payloadLength());
+		assertEquals(1, ring.getInt(ring.payload()));
+		assertEquals(2, ring.getInt(ring.payload()+4));
+		assertEquals(3, ring.getInt(ring.payload()+8));
+		ring.release();
+		
+		assertEquals(CommandRing.NO_CMD, ring.next());
+		assertTrue(ring.isDrained());
+	}
+	
+	@Test
+	public void command_ring_full() {
+		CommandRing ring = new CommandRing(128);
+		// 8 header + 56 payload = 64 bytes, two of these fill the ring.
+		assertNotEquals(-1, ring.claim(1, 56));
+		assertNotEquals(-1, ring.claim(2, 56));
+		assertEquals(-1, ring.claim(3, 8));
+		ring.publish();
+		
+		// Consume one and there's room again
+		assertEquals(1, ring.next());
+		ring.release();
+		assertNotEquals(-1, ring.claim(3, 8));
+	}
+	
+	@Test
+	public void command_ring_wrap() {
+		CommandRing ring = new CommandRing(128);
+		
+		// Go round the ring a bunch of times with records that don't divide
+		// evenly into the capacity, so we hit the padding case.
+		for (int i = 0; i < 100; i++) {
+			int p = ring.claim(7, 40);
+			assertNotEquals(-1, p);
+			ring.putLong(p, i);
+			ring.putLong(p+32, -i);
+			ring.publish();
+			
+			assertEquals(7, ring.next());
+			assertEquals(i, ring.getLong(ring.payload()));
+			assertEquals(-i, ring.getLong(ring.payload()+32));
+			ring.release();
+		}
+		assertEquals(0, ring.occupancy());
+	}
+	
+	@Test
+	public void command_ring_threaded() throws InterruptedException {
+		CommandRing ring = new CommandRing(1024);
+		final int count = 200000;
+		long[] sum = new long[1];
+		
+		Thread consumer = new Thread(() -> {
+			int received = 0;
+			while (received < count) {
+				int cmd = ring.next();
+				if (cmd == CommandRing.NO_CMD) continue;
+				sum[0] += ring.getLong(ring.payload());
+				ring.release();
+				received++;
+			}
+		});
+		consumer.start();
+		
+		long expected = 0;
+		for (int i = 0; i < count; i++) {
+			int p = ring.claim(1, 8);
+			while (p == -1) p = ring.claim(1, 8);
+			ring.putLong(p, i);
+			ring.publish();
+			expected += i;
+		}
+		consumer.join();
+		assertEquals(expected, sum[0]);
+	}
+	
+	
+	// Runs a consumer that waits using the given policy, with the producer
+	// taking a break every now and then so that the consumer actually goes to sleep.
+	private void waitStrategyRun(int policy) throws InterruptedException {
+		CommandQueue ring = new CommandQueue(1024);
+		WaitStrategy wait = WaitStrategy.create(policy);
+		final int count = 20000;
+		long[] sum = new long[1];
+		
+		Thread consumer = new Thread(() -> {
+			int received = 0;
+			while (received < count) {
+				int cmd = ring.next();
+				if (cmd == CommandQueue.NO_CMD) {
+					wait.idle(ring);
+					continue;
+				}
+				sum[0] += ring.getLong(ring.payload());
+				ring.release();
+				received++;
+			}
+		});
+		consumer.start();
+		
+		long expected = 0;
+		for (int i = 0; i < count; i++) {
+			int p = ring.claim(1, 8);
+			while (p == -1) p = ring.claim(1, 8);
+			ring.putLong(p, i);
+			ring.publish();
+			wait.wake(consumer);
+			expected += i;
+			if (i % 2000 == 0) Thread.sleep(2);
+		}
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(expected, sum[0]);
+	}
+	
+	@Test
+	public void wait_strategy_busy_spin() throws InterruptedException {
+		waitStrategyRun(WaitStrategy.BUSY_SPIN);
+	}
+	
+	@Test
+	public void wait_strategy_spin_yield() throws InterruptedException {
+		waitStrategyRun(WaitStrategy.SPIN_YIELD);
+	}
+	
+	@Test
+	public void wait_strategy_spin_park() throws InterruptedException {
+		waitStrategyRun(WaitStrategy.SPIN_PARK);
+	}
+	
+	@Test
+	public void wait_strategy_blocking() throws InterruptedException {
+		waitStrategyRun(WaitStrategy.BLOCKING);
+	}
+	
+	@Test
+	public void wait_strategy_bad_policy() {
+		assertThrows(IllegalArgumentException.class, () -> WaitStrategy.create(1234));
+	}
+	
+	
+	@Test
+	public void frame_barrier() throws InterruptedException {
+		FrameBarrier barrier = new FrameBarrier();
+		final int nodes = 7;
+		
+		// Few frames in a row, same as the main loop would.
+		for (int frame = 0; frame < 20; frame++) {
+			barrier.reset(nodes);
+			int[] done = new int[1];
+			Thread[] threads = new Thread[nodes];
+			for (int i = 0; i < nodes; i++) {
+				final int id = i;
+				threads[i] = new Thread(() -> {
+					try {
+						Thread.sleep(id % 3);
+					} catch (InterruptedException e) {
+					}
+					synchronized (done) {
+						done[0]++;
+					}
+					barrier.arrive();
+				});
+				threads[i].start();
+			}
+			barrier.await();
+			assertTrue(barrier.isDone());
+			synchronized (done) {
+				assertEquals(nodes, done[0]);
+			}
+			assertTrue(barrier.getLastWaitTime() > 0L);
+			for (Thread t : threads) t.join();
+		}
+	}
+	
+	@Test
+	public void frame_barrier_already_done() {
+		FrameBarrier barrier = new FrameBarrier();
+		barrier.reset(2);
+		barrier.arrive();
+		barrier.arrive();
+		// Shouldn't wait at all.
+		barrier.await();
+		assertTrue(barrier.isDone());
+	}
+	
+	
+	@Test
+	public void command_ring_batched_publish() {
+		CommandRing ring = new CommandRing(1024);
+		for (int i = 0; i < 3; i++) {
+			int p = ring.claim(1, 8);
+			ring.putLong(p, i);
+		}
+		// Nothing visible until we publish the whole batch.
+		assertTrue(ring.hasUnpublished());
+		assertEquals(3*(CommandRing.HEADER_SIZE+8), ring.unpublished());
+		assertEquals(CommandRing.NO_CMD, ring.next());
+		
+		ring.publish();
+		assertEquals(0, ring.unpublished());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, ring.next());
+			assertEquals(i, ring.getLong(ring.payload()));
+			ring.release();
+		}
+		assertEquals(CommandRing.NO_CMD, ring.next());
+		assertTrue(ring.isDrained());
+	}
+	
+	
+	@Test
+	public void sharder_by_draws() {
+		CommandSharder sharder = new CommandSharder(128);
+		sharder.setMode(CommandSharder.BY_DRAWS);
+		
+		// First frame, no idea how big it is so it all stays on one node.
+		sharder.beginFrame(4);
+		for (int i = 0; i < 100; i++) {
+			assertFalse(sharder.afterDraw(1));
+		}
+		sharder.endFrame();
+		assertEquals(100, sharder.getLastFrameLoad());
+		
+		// Now it should cut it into 4 segments of 25 draws.
+		sharder.beginFrame(4);
+		assertEquals(25, sharder.getShardTarget());
+		int switches = 0;
+		for (int i = 0; i < 100; i++) {
+			if (sharder.afterDraw(1)) {
+				switches++;
+				assertEquals(0, (i+1) % 25);
+			}
+		}
+		assertEquals(4, switches);
+		sharder.endFrame();
+	}
+	
+	@Test
+	public void sharder_by_cost() {
+		CommandSharder sharder = new CommandSharder(128);
+		sharder.setMode(CommandSharder.BY_COST);
+		sharder.beginFrame(2);
+		for (int i = 0; i < 10; i++) {
+			sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+			sharder.afterDraw(2);
+		}
+		sharder.endFrame();
+		long expected = 10*(CommandSharder.COST_PUSH_CONSTANT+CommandSharder.COST_DRAW+2*CommandSharder.COST_PER_BUFFER);
+		assertEquals(expected, sharder.getLastFrameLoad());
+		
+		// Small frames don't get split up into tiny segments
+		sharder.beginFrame(32);
+		assertEquals(CommandSharder.MIN_SHARD_SIZE, sharder.getShardTarget());
+	}
+	
+	@Test
+	public void sharder_push_constant_shadow() {
+		CommandSharder sharder = new CommandSharder(128);
+		sharder.setMode(CommandSharder.BY_DRAWS);
+		sharder.beginFrame(2);
+		
+		sharder.recordPushConstant(1L, GLUniform.VERTEX, 16, 8).putFloat(16, 1f);
+		sharder.recordPushConstant(1L, GLUniform.VERTEX, 0, 4).putFloat(0, 2f);
+		assertEquals(0, sharder.getPushStart(GLUniform.VERTEX));
+		assertEquals(24, sharder.getPushEnd(GLUniform.VERTEX));
+		
+		// Different layout = different program, old values get forgotten.
+		sharder.recordPushConstant(2L, GLUniform.VERTEX, 8, 4);
+		assertEquals(8, sharder.getPushStart(GLUniform.VERTEX));
+		assertEquals(12, sharder.getPushEnd(GLUniform.VERTEX));
+		
+		sharder.recordPipeline(5L);
+		assertEquals(5L, sharder.getPipeline());
+		
+		// New frame, new command buffers, nothing bound.
+		sharder.endFrame();
+		sharder.beginFrame(2);
+		assertEquals(0L, sharder.getPipeline());
+		assertFalse(sharder.getPushEnd(GLUniform.VERTEX) > sharder.getPushStart(GLUniform.VERTEX));
+		
+		assertThrows(IllegalArgumentException.class, () -> sharder.setMode(99));
+	}
+	
+	
+	@Test
+	public void node_metrics_frame() {
+		NodeMetrics m = new NodeMetrics();
+		m.countCommand(ThreadNode.CMD_DRAW_ARRAYS, 100, 1024);
+		m.countCommand(ThreadNode.CMD_DRAW_ARRAYS, 300, 1024);
+		m.countCommand(ThreadNode.CMD_PUSH_CONSTANT, 200, 1024);
+		m.busyTime = 5000L;
+		m.idleTime = 1000L;
+		m.stallSpins = 3;
+		m.publishes = 2;
+		m.wakeups = 1;
+		
+		// Nothing shows up until the frame's done.
+		assertEquals(0L, m.getCommandCount(ThreadNode.CMD_DRAW_ARRAYS));
+		
+		m.nodeFrameDone();
+		m.mainFrameDone();
+		assertEquals(2L, m.getCommandCount(ThreadNode.CMD_DRAW_ARRAYS));
+		assertEquals(1L, m.getCommandCount(ThreadNode.CMD_PUSH_CONSTANT));
+		assertEquals(3L, m.getTotalCommandCount());
+		assertEquals(300, m.getPeakOccupancy());
+		assertEquals(200, m.getAverageOccupancy());
+		assertEquals(300f*100f/1024f, m.getPeakOccupancyPercent(), 0.001f);
+		assertEquals(200f*100f/1024f, m.getAverageOccupancyPercent(), 0.001f);
+		assertEquals(1024, m.getQueueCapacity());
+		assertEquals(5000L, m.getBusyTime());
+		assertEquals(1000L, m.getIdleTime());
+		assertEquals(3L, m.getStallSpins());
+		assertEquals(2L, m.getPublishes());
+		assertEquals(1L, m.getWakeups());
+		// Out of range opcodes just get ignored
+		assertEquals(0L, m.getCommandCount(-1));
+		
+		// Spilled into a second ring, more bytes than one ring holds but still under 100%.
+		m.countCommand(ThreadNode.CMD_DRAW_ARRAYS, 1000, 1024);
+		m.countCommand(ThreadNode.CMD_DRAW_ARRAYS, 1536, 2048);
+		m.nodeFrameDone();
+		assertEquals(1536, m.getPeakOccupancy());
+		assertEquals(1000f*100f/1024f, m.getPeakOccupancyPercent(), 0.001f);
+		assertTrue(m.getAverageOccupancyPercent() <= 100f);
+		assertEquals(2048, m.getQueueCapacity());
+		
+		// Next frame the node wasn't used.
+		m.skippedFrame();
+		assertEquals(0L, m.getTotalCommandCount());
+		assertEquals(0f, m.getPeakOccupancyPercent());
+		assertEquals(0, m.getQueueCapacity());
+		assertEquals(0L, m.getBusyTime());
+		assertEquals(0L, m.getStallSpins());
+	}
+	
+	
+	// Fills the queue up past its capacity (with nothing reading it), using
+	// grow or spill, and checks everything comes back out in order.
+	private void commandQueueOverflow(boolean grow) {
+		CommandQueue queue = new CommandQueue(256);
+		final int count = 100;
+		for (int i = 0; i < count; i++) {
+			int p = queue.claim(1, 8);
+			if (p == -1) {
+				if (grow) assertTrue(queue.grow(1024*1024));
+				else queue.spill();
+				p = queue.claim(1, 8);
+			}
+			assertNotEquals(-1, p);
+			queue.putLong(p, i);
+		}
+		queue.publish();
+		if (grow) assertTrue(queue.capacity() > 256);
+		else assertEquals(256, queue.capacity());
+		
+		assertEquals(count*16, queue.occupancy());
+		// Occupancy's over one ring's worth, but not over all of the rings still in use.
+		assertTrue(queue.usedCapacity() >= queue.occupancy());
+		if (!grow) assertEquals(0, queue.usedCapacity() % 256);
+		for (int i = 0; i < count; i++) {
+			assertEquals(1, queue.next());
+			assertEquals(i, queue.getLong(queue.payload()));
+			queue.release();
+		}
+		assertEquals(CommandQueue.NO_CMD, queue.next());
+		assertFalse(queue.available());
+		assertEquals(queue.capacity(), queue.usedCapacity());
+	}
+	
+	@Test
+	public void command_queue_grow() {
+		commandQueueOverflow(true);
+		
+		CommandQueue queue = new CommandQueue(256);
+		// Can't grow past the max
+		assertFalse(queue.grow(256));
+	}
+	
+	@Test
+	public void command_queue_spill() {
+		commandQueueOverflow(false);
+	}
+	
+	@Test
+	public void command_queue_spill_threaded() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(256);
+		final int count = 100000;
+		long[] sum = new long[1];
+		
+		Thread consumer = new Thread(() -> {
+			int received = 0;
+			while (received < count) {
+				int cmd = queue.next();
+				if (cmd == CommandQueue.NO_CMD) continue;
+				sum[0] += queue.getLong(queue.payload());
+				queue.release();
+				received++;
+			}
+		});
+		consumer.start();
+		
+		long expected = 0;
+		for (int i = 0; i < count; i++) {
+			int p = queue.claim(1, 8);
+			if (p == -1) {
+				queue.spill();
+				p = queue.claim(1, 8);
+			}
+			queue.putLong(p, i);
+			queue.publish();
+			expected += i;
+		}
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(expected, sum[0]);
+		assertEquals(256, queue.capacity());
+	}
+	
+	@Test
+	public void command_queue_park() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(256);
+		final int count = 20000;
+		long[] sum = new long[1];
+		
+		Thread consumer = new Thread(() -> {
+			int received = 0;
+			while (received < count) {
+				int cmd = queue.next();
+				if (cmd == CommandQueue.NO_CMD) continue;
+				sum[0] += queue.getLong(queue.payload());
+				queue.release();
+				received++;
+				// Slow consumer so the producer has to park.
+				if (received % 1000 == 0) LockSupport.parkNanos(100000L);
+			}
+		});
+		consumer.start();
+		
+		long expected = 0;
+		for (int i = 0; i < count; i++) {
+			int p = queue.claimOrPark(1, 8);
+			queue.putLong(p, i);
+			queue.publish();
+			expected += i;
+		}
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(expected, sum[0]);
+	}
+	
+	
+	// The whole point of the long[]/preallocated LongBuffer draw path is that a draw
+	// doesn't create any garbage once things are warmed up.
+	// Real producer side (debug mode ThreadNode, batching and all), and we read the queue
+	// back out the same way the node's thread does.
+	@Test
+	public void draw_path_allocation_free() {
+		GL2VK gl = glProgram1(true);
+		GL2VKPipeline pipeline = gl.getPipeline(glProgram1);
+		ThreadNode node = new ThreadNode();
+		CommandQueue queue = node.getQueue();
+		LongBuffer vertexBuffers = org.lwjgl.BufferUtils.createLongBuffer(ThreadNode.MAX_VERTEX_BUFFERS);
+		long[] check = new long[1];
+		
+		Runnable draws = () -> {
+			for (int i = 0; i < 10000; i++) {
+				node.bindPipeline(1L+(i/100)%2);
+				long[] buffers = pipeline.getVKBuffers();
+				if (i % 2 == 0) node.drawArrays(buffers, 3, 0);
+				else node.drawIndexed(3, 7L, buffers, 0, GL2VK.GL_UNSIGNED_SHORT);
+				
+				if (i % 64 == 63) {
+					node.flush();
+					int cmd;
+					while ((cmd = queue.next()) != CommandQueue.NO_CMD) {
+						int p = queue.payload();
+						if (cmd == ThreadNode.CMD_DRAW_ARRAYS) {
+							int numBuffers = queue.getInt(p+8);
+							ThreadNode.getBuffers(queue, p+16, numBuffers, vertexBuffers);
+							check[0] += vertexBuffers.get(numBuffers-1);
+						}
+						else if (cmd == ThreadNode.CMD_DRAW_INDEXED) {
+							int numBuffers = queue.getInt(p+4);
+							ThreadNode.getBuffers(queue, p+24, numBuffers, vertexBuffers);
+							check[0] += vertexBuffers.get(numBuffers-1);
+						}
+						queue.release();
+					}
+				}
+			}
+		};
+		
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		// Warm up (and get everything JIT'd)
+		for (int i = 0; i < 20; i++) draws.run();
+		bean.getThreadAllocatedBytes(thread);
+		
+		long before = bean.getThreadAllocatedBytes(thread);
+		draws.run();
+		long after = bean.getThreadAllocatedBytes(thread);
+		
+		assertEquals(0L, after-before, "Draw path allocated "+(after-before)+" bytes");
+		assertNotEquals(0L, check[0]);
+	}
+	
+	
+	@Test
+	public void bound_state_elision() {
+		BoundState bound = new BoundState(128);
+		CommandQueue queue = new CommandQueue(256);
+		
+		int p = queue.claim(1, 16);
+		queue.putLong(p, 100L);
+		queue.putLong(p+8, 200L);
+		queue.publish();
+		queue.next();
+		p = queue.payload();
+		
+		// Nothing bound yet
+		assertTrue(bound.vertexBuffersChanged(queue, p, 2));
+		assertFalse(bound.vertexBuffersChanged(queue, p, 2));
+		// Fewer buffers is a different bind
+		assertTrue(bound.vertexBuffersChanged(queue, p, 1));
+		
+		assertTrue(bound.indexBufferChanged(5L, 0L, 1));
+		assertFalse(bound.indexBufferChanged(5L, 0L, 1));
+		assertTrue(bound.indexBufferChanged(5L, 64L, 1));
+		
+		assertTrue(bound.pipelineChanged(7L));
+		assertFalse(bound.pipelineChanged(7L));
+		
+		// Push constants: the 16 bytes at p as values at offset 32
+		assertTrue(bound.pushConstantChanged(queue, p, 1L, GLUniform.VERTEX, 32, 16));
+		assertFalse(bound.pushConstantChanged(queue, p, 1L, GLUniform.VERTEX, 32, 16));
+		// Part of what's already there
+		assertFalse(bound.pushConstantChanged(queue, p+8, 1L, GLUniform.VERTEX, 40, 8));
+		// Same values but not pushed to these bytes yet
+		assertTrue(bound.pushConstantChanged(queue, p, 1L, GLUniform.VERTEX, 0, 16));
+		// Different stage
+		assertTrue(bound.pushConstantChanged(queue, p, 1L, GLUniform.FRAGMENT, 32, 16));
+		// Different values
+		assertTrue(bound.pushConstantChanged(queue, p+8, 1L, GLUniform.VERTEX, 32, 8));
+		// Different layout forgets everything for that stage
+		assertTrue(bound.pushConstantChanged(queue, p+8, 2L, GLUniform.VERTEX, 32, 8));
+		assertTrue(bound.pushConstantChanged(queue, p+8, 1L, GLUniform.VERTEX, 32, 8));
+		
+		// New command buffer
+		bound.reset();
+		assertTrue(bound.vertexBuffersChanged(queue, p, 1));
+		assertTrue(bound.indexBufferChanged(5L, 64L, 1));
+		assertTrue(bound.pipelineChanged(7L));
+		assertTrue(bound.pushConstantChanged(queue, p, 1L, GLUniform.FRAGMENT, 32, 16));
+		queue.release();
+	}
+	
+	
+	@Test
+	public void display_list_invalidation() {
+		GL2VK gl = glProgram1(true);
+		GL2VKPipeline program = gl.getPipeline(glProgram1);
+		int id = gl.glGenLists(2);
+		assertTrue(gl.glIsList(id));
+		assertTrue(gl.glIsList(id+1));
+		DisplayList list = gl.getDisplayList(id);
+		
+		list.begin();
+		list.bindProgram(program, program.graphicsPipeline);
+		// Same program again doesn't need binding again
+		list.bindProgram(program, program.graphicsPipeline);
+		list.drawArrays(program, 0, 3);
+		list.pushConstant(program, GLUniform.VERTEX, 0, 1f, 2f);
+		list.drawArrays(program, 0, 3);
+		list.end();
+		assertEquals(4, list.size());
+		
+		// Never been recorded
+		assertTrue(list.needsRecord(0));
+		list.recorded(0);
+		assertFalse(list.needsRecord(0));
+		
+		// Buffer gets recreated (new size) so its handle's changed.
+		gl.glBindBuffer(0, testbuffer2);
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 20, null, 0);
+		assertTrue(list.needsRecord(0));
+		list.recorded(0);
+		assertFalse(list.needsRecord(0));
+		
+		// New uniform value for a program the list uses
+		program.setUniform(GLUniform.VERTEX, 0, 5f);
+		assertTrue(list.needsRecord(0));
+		list.recorded(0);
+		// Same value again is fine
+		program.setUniform(GLUniform.VERTEX, 0, 5f);
+		assertFalse(list.needsRecord(0));
+		assertEquals(3, list.getRebuildCount());
+		
+		// Recompiling starts from scratch
+		list.begin();
+		list.end();
+		assertEquals(0, list.size());
+		assertTrue(list.needsRecord(0));
+		
+		gl.glDeleteLists(id, 2);
+		assertFalse(gl.glIsList(id));
+		assertFalse(gl.glIsList(id+1));
+	}
+	
+	
+	@Test
+	public void glprogram_binding_description_divisor() {
+		GL2VK gl = glProgram1(true);
+		int color = gl.glGetAttribLocation(glProgram1, "inColor");
+		gl.glVertexAttribDivisor(color, 1);
+		VkVertexInputBindingDescription.Buffer descriptions = gl.getPipeline(glProgram1).getBindingDescriptions();
+		assertEquals(2, descriptions.capacity());
+		for (int i = 0; i < 2; i++) {
+			// Colour's in the 2nd buffer (binding 1), position's per vertex.
+			if (descriptions.get(i).binding() == 1) {
+				assertEquals(VK_VERTEX_INPUT_RATE_INSTANCE, descriptions.get(i).inputRate());
+			}
+			else {
+				assertEquals(VK_VERTEX_INPUT_RATE_VERTEX, descriptions.get(i).inputRate());
+			}
+		}
+		
+		// Back to per vertex
+		gl.glVertexAttribDivisor(color, 0);
+		descriptions = gl.getPipeline(glProgram1).getBindingDescriptions();
+		assertEquals(VK_VERTEX_INPUT_RATE_VERTEX, descriptions.get(0).inputRate());
+		assertEquals(VK_VERTEX_INPUT_RATE_VERTEX, descriptions.get(1).inputRate());
+	}
+	
+	
+	@Test
+	public void multi_draw_display_list() {
+		GL2VK gl = glProgram1(true);
+		int id = gl.glGenLists(1);
+		DisplayList list = gl.getDisplayList(id);
+		gl.useProgram(glProgram1);
+		// No vulkan in debug mode to create the pipeline with.
+		gl.getPipeline(glProgram1).initiated = true;
+		
+		// Lists can't use the per-frame indirect buffer, so the ranges become separate draws.
+		gl.glNewList(id, GL2VK.GL_COMPILE);
+		gl.glMultiDrawArrays(GL2VK.GL_TRIANGLES, new int[] {0, 3, 6}, new int[] {3, 3, 3}, 3);
+		gl.glEndList();
+		assertEquals(4, list.size());
+		
+		// Indices come from the GL_INDEX_BUFFER binding, even with something else bound since
+		IntBuffer out = IntBuffer.allocate(2);
+		gl.glGenBuffers(2, out);
+		gl.glBindBuffer(GL2VK.GL_INDEX_BUFFER, out.get(0));
+		gl.glBufferData(GL2VK.GL_INDEX_BUFFER, 64, null, 0);
+		gl.glBindBuffer(GL2VK.GL_DRAW_INDIRECT_BUFFER, out.get(1));
+		gl.glBufferData(GL2VK.GL_DRAW_INDIRECT_BUFFER, 64, null, 0);
+		int id2 = gl.glGenLists(1);
+		DisplayList list2 = gl.getDisplayList(id2);
+		gl.glNewList(id2, GL2VK.GL_COMPILE);
+		gl.glMultiDrawElements(GL2VK.GL_TRIANGLES, new int[] {3, 3}, GL2VK.GL_UNSIGNED_SHORT, new int[] {0, 6}, 2);
+		// drawcount bigger than the arrays
+		gl.glMultiDrawElements(GL2VK.GL_TRIANGLES, new int[] {3}, GL2VK.GL_UNSIGNED_SHORT, new int[] {0}, 2);
+		gl.glMultiDrawArrays(GL2VK.GL_TRIANGLES, new int[] {0}, new int[] {3, 3}, 2);
+		gl.glMultiDrawArrays(GL2VK.GL_TRIANGLES, new int[] {0}, new int[] {3}, -1);
+		gl.glEndList();
+		assertEquals(3, list2.size());
+		assertFalse(list2.isStale());
+		// Recreating the index buffer makes the list stale, so it was the one drawn with
+		gl.glBindBuffer(GL2VK.GL_INDEX_BUFFER, out.get(0));
+		gl.glBufferData(GL2VK.GL_INDEX_BUFFER, 128, null, 0);
+		assertTrue(list2.isStale());
+		
+		// Byte offsets into the index buffer turn into first indexes.
+		assertEquals(2, ThreadNode.indexSize(GL2VK.GL_UNSIGNED_SHORT));
+		assertEquals(4, ThreadNode.indexSize(GL2VK.GL_UNSIGNED_INT));
+		assertEquals(VK_INDEX_TYPE_UINT32, ThreadNode.vkIndexType(GL2VK.GL_UNSIGNED_INT));
+	}
+	
+	
+	@Test
+	public void memory_allocator_buddy() {
+		MemoryAllocator.Block block = new MemoryAllocator.Block(4096);
+		
+		// Rounded up to 256, then 1024
+		long a = block.allocate(100, 4);
+		long b = block.allocate(1000, 4);
+		assertEquals(0, a);
+		assertEquals(1024, b);
+		assertEquals(256+1024, block.getUsedBytes());
+		// Aligned to the alignment even if it's bigger than the size
+		long c = block.allocate(16, 512);
+		assertEquals(0, c % 512);
+		assertEquals(-1, block.allocate(8192, 4));
+		
+		// Freeing everything merges back into one chunk
+		block.free(a);
+		block.free(b);
+		block.free(c);
+		assertTrue(block.isEmpty());
+		assertEquals(4096, block.getLargestFree());
+	}
+	
+	@Test
+	public void memory_allocator_blocks() {
+		// Debug mode (no vulkan)
+		MemoryAllocator allocator = new MemoryAllocator(null, 4096);
+		
+		// Lots of buffers, few blocks
+		MemoryAllocator.Allocation[] allocs = new MemoryAllocator.Allocation[32];
+		for (int i = 0; i < allocs.length; i++) {
+			allocs[i] = allocator.allocate(256, 16, 0, 0);
+		}
+		assertEquals(32, allocator.getAllocationCount());
+		assertEquals(2, allocator.getBlockCount());
+		assertEquals(allocs[0].memory, allocs[15].memory);
+		assertNotEquals(allocs[0].memory, allocs[16].memory);
+		
+		// Different memory types don't share blocks
+		MemoryAllocator.Allocation other = allocator.allocate(256, 16, 1, 0);
+		assertEquals(3, allocator.getBlockCount());
+		// (one block per type is kept around even when empty)
+		allocator.free(other);
+		assertEquals(3, allocator.getBlockCount());
+		
+		// Big ones get their own
+		MemoryAllocator.Allocation big = allocator.allocate(3000, 16, 0, 0);
+		assertEquals(4, allocator.getBlockCount());
+		allocator.free(big);
+		assertEquals(3, allocator.getBlockCount());
+		
+		// Every other one freed in the first block, lots of holes.
+		for (int i = 0; i < 16; i += 2) {
+			allocator.free(allocs[i]);
+		}
+		assertTrue(allocator.getFragmentation() > 0.5f);
+		
+		// Empty blocks get freed except the last one of each type
+		for (int i = 0; i < allocs.length; i++) {
+			allocator.free(allocs[i]);
+		}
+		assertEquals(0, allocator.getAllocationCount());
+		assertEquals(2, allocator.getBlockCount());
+		assertEquals(0f, allocator.getFragmentation());
+	}
+	
+	
+	@Test
+	public void staging_ring_copy() {
+		ByteBuffer dst = BufferUtils.createByteBuffer(16);
+		long address = MemoryUtil.memAddress(dst);
+		
+		// Direct, copies from the start regardless of position
+		ByteBuffer direct = BufferUtils.createByteBuffer(8);
+		for (int i = 0; i < 8; i++) direct.put((byte)(i+1));
+		StagingRing.copy(direct, address, 8);
+		for (int i = 0; i < 8; i++) assertEquals(i+1, dst.get(i));
+		
+		// Heap
+		ByteBuffer heap = ByteBuffer.allocate(4);
+		heap.put(0, (byte)42);
+		heap.put(3, (byte)43);
+		StagingRing.copy(heap, address+8, 4);
+		assertEquals(42, dst.get(8));
+		assertEquals(43, dst.get(11));
+		assertEquals(4, heap.capacity());
+		assertEquals(0, dst.get(12));
+	}
+	
+	
+	@Test
+	public void buffer_sub_data_dirty_ranges() {
+		int[] start = {100, 0,  20, 1000, 40};
+		int[] end   = {110, 10, 30, 1010, 50};
+		// Without a gap, only the touching/overlapping ones merge
+		assertEquals(5, GraphicsBuffer.mergeRanges(start.clone(), end.clone(), 5, 0));
+		// 0-10, 20-30, 40-50 and 100-110 are all close enough
+		int count = GraphicsBuffer.mergeRanges(start, end, 5, 64);
+		assertEquals(2, count);
+		assertEquals(0, start[0]);
+		assertEquals(110, end[0]);
+		assertEquals(1000, start[1]);
+		assertEquals(1010, end[1]);
+		
+		GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+		IntBuffer out = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, out);
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(0));
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 4096, null, 0);
+		GraphicsBuffer buffer = gl.getBuffer(out.get(0));
+		int version = buffer.version;
+		
+		ByteBuffer data = ByteBuffer.allocate(16);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 0, 16, data);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 8, 16, data);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 2048, 16, data);
+		assertEquals(3, buffer.getDirtyCount());
+		// Out of range is ignored
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 4090, 16, data);
+		assertEquals(3, buffer.getDirtyCount());
+		// Never recreated
+		assertEquals(version, buffer.version);
+		
+		// Whole buffer replaced, nothing left to upload
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 4096, ByteBuffer.allocate(4096), 0);
+		assertEquals(0, buffer.getDirtyCount());
+	}
+	
+	@Test
+	public void buffer_sub_data_keeps_gaps() {
+		GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+		IntBuffer out = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, out);
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(0));
+		ByteBuffer full = ByteBuffer.allocate(4096);
+		for (int i = 0; i < 4096; i++) full.put(i, (byte)7);
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 4096, full, 0);
+		GraphicsBuffer buffer = gl.getBuffer(out.get(0));
+		
+		ByteBuffer ones = ByteBuffer.allocate(16);
+		ByteBuffer twos = ByteBuffer.allocate(16);
+		for (int i = 0; i < 16; i++) {
+			ones.put(i, (byte)1);
+			twos.put(i, (byte)2);
+		}
+		
+		// Shadow's only just been made, so the gap between them isn't known and mustn't be uploaded
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 0, 16, ones);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 100, 16, twos);
+		buffer.flushDirty();
+		ByteBuffer gpu = buffer.getDebugContents();
+		assertEquals(1, gpu.get(15));
+		for (int i = 16; i < 100; i++) {
+			assertEquals(7, gpu.get(i));
+		}
+		assertEquals(2, gpu.get(100));
+		assertEquals(7, gpu.get(116));
+		
+		// Once bufferData's filled the shadow, gaps get filled in from it
+		for (int i = 0; i < 4096; i++) full.put(i, (byte)(i % 100));
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 4096, full, 0);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 0, 16, ones);
+		gl.glBufferSubData(GL2VK.GL_VERTEX_BUFFER, 100, 16, twos);
+		buffer.flushDirty();
+		gpu = buffer.getDebugContents();
+		assertEquals(1, gpu.get(15));
+		for (int i = 16; i < 100; i++) {
+			assertEquals(i % 100, gpu.get(i));
+		}
+		assertEquals(2, gpu.get(115));
+		assertEquals(16, gpu.get(116));
+	}
+	
+	
+	@Test
+	public void map_buffer_range() {
+		GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+		IntBuffer out = IntBuffer.allocate(2);
+		gl.glGenBuffers(2, out);
+		
+		// Device local, goes through staging memory
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(0));
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 1024, null, 0);
+		assertFalse(gl.getBuffer(out.get(0)).isHostVisible());
+		ByteBuffer mapped = gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 256, 128, GL2VK.GL_MAP_WRITE_BIT);
+		assertNotNull(mapped);
+		assertTrue(mapped.isDirect());
+		assertEquals(128, mapped.capacity());
+		// Can't map twice
+		assertNull(gl.glMapBuffer(GL2VK.GL_VERTEX_BUFFER, GL2VK.GL_WRITE_ONLY));
+		assertTrue(gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER));
+		assertFalse(gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER));
+		// Out of range
+		assertNull(gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 1000, 128, GL2VK.GL_MAP_WRITE_BIT));
+		
+		// Persistent, points straight at the buffer's memory
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(1));
+		ByteBuffer data = BufferUtils.createByteBuffer(64);
+		data.put(0, (byte)42);
+		gl.glBufferStorage(GL2VK.GL_VERTEX_BUFFER, 64, data, GL2VK.GL_MAP_WRITE_BIT | GL2VK.GL_MAP_PERSISTENT_BIT | GL2VK.GL_MAP_COHERENT_BIT);
+		assertTrue(gl.getBuffer(out.get(1)).isHostVisible());
+		ByteBuffer a = gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 0, 64, GL2VK.GL_MAP_WRITE_BIT | GL2VK.GL_MAP_PERSISTENT_BIT);
+		assertEquals(42, a.get(0));
+		a.put(1, (byte)7);
+		assertTrue(gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER));
+		ByteBuffer b = gl.glMapBuffer(GL2VK.GL_VERTEX_BUFFER, GL2VK.GL_READ_ONLY);
+		assertEquals(MemoryUtil.memAddress(a), MemoryUtil.memAddress(b));
+		assertEquals(7, b.get(1));
+		gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER);
+	}
+	
+	@Test
+	public void map_buffer_keeps_unwritten() {
+		GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+		IntBuffer out = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, out);
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(0));
+		ByteBuffer full = ByteBuffer.allocate(256);
+		for (int i = 0; i < 256; i++) full.put(i, (byte)7);
+		
+		// Undefined after allocating, nothing to keep
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 256, null, 0);
+		GraphicsBuffer buffer = gl.getBuffer(out.get(0));
+		assertTrue(buffer.knowsContents());
+		
+		// Filled without a shadow, contents aren't known until it's filled again
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 256, full, 0);
+		assertFalse(buffer.knowsContents());
+		ByteBuffer mapped = gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 0, 64, GL2VK.GL_MAP_WRITE_BIT | GL2VK.GL_MAP_INVALIDATE_RANGE_BIT);
+		for (int i = 0; i < 64; i++) mapped.put(i, (byte)3);
+		gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER);
+		assertEquals(3, buffer.getDebugContents().get(63));
+		assertEquals(7, buffer.getDebugContents().get(64));
+		
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 256, full, 0);
+		assertTrue(buffer.knowsContents());
+		// Only byte 10 gets written, the rest of the range stays the same
+		mapped = gl.glMapBuffer(GL2VK.GL_VERTEX_BUFFER, GL2VK.GL_WRITE_ONLY);
+		assertEquals(256, mapped.capacity());
+		assertEquals(7, mapped.get(0));
+		mapped.put(10, (byte)1);
+		gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER);
+		ByteBuffer gpu = buffer.getDebugContents();
+		assertEquals(1, gpu.get(10));
+		for (int i = 0; i < 256; i++) {
+			if (i != 10) assertEquals(7, gpu.get(i));
+		}
+		
+		// Still known after the map, for the next one
+		assertTrue(buffer.knowsContents());
+		mapped = gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 8, 4, GL2VK.GL_MAP_WRITE_BIT);
+		assertEquals(7, mapped.get(0));
+		assertEquals(1, mapped.get(2));
+		gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER);
+	}
+	
+	@Test
+	public void buffer_usage_orphaning() {
+		GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+		IntBuffer out = IntBuffer.allocate(2);
+		gl.glGenBuffers(2, out);
+		ByteBuffer data = BufferUtils.createByteBuffer(64);
+		
+		// Static stays put
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(0));
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 64, data, GL2VK.GL_STATIC_DRAW);
+		GraphicsBuffer buffer = gl.getBuffer(out.get(0));
+		assertFalse(buffer.isDynamic());
+		assertFalse(buffer.isHostVisible());
+		long id = buffer.bufferID;
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 64, data, GL2VK.GL_STATIC_DRAW);
+		assertEquals(id, buffer.bufferID);
+		
+		// Stream moves on to the next region every time and wraps around
+		gl.glBindBuffer(GL2VK.GL_VERTEX_BUFFER, out.get(1));
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 64, null, GL2VK.GL_STREAM_DRAW);
+		buffer = gl.getBuffer(out.get(1));
+		assertTrue(buffer.isDynamic());
+		assertTrue(buffer.isHostVisible());
+		assertEquals(VulkanSystem.MAX_FRAMES_IN_FLIGHT, buffer.getRegionCount());
+		long first = buffer.bufferID;
+		int version = buffer.version;
+		data.put(0, (byte)5);
+		gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 64, data, GL2VK.GL_STREAM_DRAW);
+		assertNotEquals(first, buffer.bufferID);
+		assertNotEquals(version, buffer.version);
+		// Written straight into the region
+		ByteBuffer mapped = gl.glMapBufferRange(GL2VK.GL_VERTEX_BUFFER, 0, 64, GL2VK.GL_MAP_READ_BIT | GL2VK.GL_MAP_UNSYNCHRONIZED_BIT);
+		assertEquals(5, mapped.get(0));
+		gl.glUnmapBuffer(GL2VK.GL_VERTEX_BUFFER);
+		for (int i = 1; i < VulkanSystem.MAX_FRAMES_IN_FLIGHT; i++) {
+			gl.glBufferData(GL2VK.GL_VERTEX_BUFFER, 64, data, GL2VK.GL_STREAM_DRAW);
+		}
+		assertEquals(first, buffer.bufferID);
+		assertEquals(VulkanSystem.MAX_FRAMES_IN_FLIGHT, buffer.getRegionCount());
+	}
+	
+	@Test
+	public void pipeline_variants() {
+		GL2VK gl = glProgram1(true);
+		gl.useProgram(glProgram1);
+		GL2VKPipeline program = gl.getPipeline(glProgram1);
+		// No vulkan in debug mode to create the pipeline with.
+		program.initiated = true;
+		// Or draw with outside of a list
+		gl.glNewList(gl.glGenLists(1), GL2VK.GL_COMPILE);
+		
+		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, 3);
+		long triangles = program.graphicsPipeline;
+		assertEquals(1, program.getVariantCount());
+		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, 3);
+		assertEquals(1, program.getVariantCount());
+		
+		// New modes and state get their own pipelines
+		gl.glDrawArrays(GL2VK.GL_LINES, 0, 2);
+		gl.glDrawArrays(GL2VK.GL_POINTS, 0, 1);
+		assertEquals(3, program.getVariantCount());
+		gl.glEnable(GL2VK.GL_BLEND);
+		gl.glBlendFunc(GL2VK.GL_SRC_ALPHA, GL2VK.GL_ONE_MINUS_SRC_ALPHA);
+		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, 3);
+		assertEquals(4, program.getVariantCount());
+		
+		// Going back reuses the old one
+		gl.glDisable(GL2VK.GL_BLEND);
+		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, 3);
+		assertEquals(4, program.getVariantCount());
+		assertEquals(triangles, program.graphicsPipeline);
+		
+		// Blend factors don't matter with blending off
+		PipelineState state = new PipelineState();
+		long key = state.getKey();
+		state.setBlendFunc(GL2VK.GL_ONE, GL2VK.GL_ONE, GL2VK.GL_ONE, GL2VK.GL_ONE);
+		assertEquals(key, state.getKey());
+		state.setCullEnabled(true);
+		assertNotEquals(key, state.getKey());
+		
+		// Setting the same vertex layout again is the same pipeline, a different one isn't.
+		int color = gl.glGetAttribLocation(glProgram1, "inColor");
+		int layout = program.getHashState();
+		gl.glVertexAttribPointer(color, 3*4, 0, false, 5*4, 2*4);
+		assertEquals(layout, program.getHashState());
+		gl.glVertexAttribPointer(color, 3*4, 0, false, 6*4, 2*4);
+		assertNotEquals(layout, program.getHashState());
+		gl.glDrawArrays(GL2VK.GL_TRIANGLES, 0, 3);
+		assertEquals(5, program.getVariantCount());
+		gl.glEndList();
+		
+		// Layouts are compared in full, a hash collision isn't the same layout
+		GL2VKPipeline.VertexLayout a = new GL2VKPipeline.VertexLayout(new long[] {1L});
+		GL2VKPipeline.VertexLayout b = new GL2VKPipeline.VertexLayout(new long[] {1L << 32});
+		assertEquals(a.hashCode(), b.hashCode());
+		assertNotEquals(a, b);
+		assertEquals(a, new GL2VKPipeline.VertexLayout(new long[] {1L}));
+	}
+	
+	@Test
+	public void pipeline_cache_header() {
+		byte[] uuid = new byte[16];
+		for (int i = 0; i < 16; i++) uuid[i] = (byte)i;
+		ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(PipelineCache.HEADER_SIZE);
+		header.putInt(1);
+		header.putInt(0x10DE);
+		header.putInt(0x2204);
+		header.put(uuid);
+		byte[] data = header.array();
+		
+		assertTrue(PipelineCache.isValid(data, 0x10DE, 0x2204, uuid));
+		// Different GPU
+		assertFalse(PipelineCache.isValid(data, 0x1002, 0x2204, uuid));
+		assertFalse(PipelineCache.isValid(data, 0x10DE, 0x1234, uuid));
+		// Driver update
+		byte[] otherUuid = uuid.clone();
+		otherUuid[15] = 99;
+		assertFalse(PipelineCache.isValid(data, 0x10DE, 0x2204, otherUuid));
+		// Cut short
+		assertFalse(PipelineCache.isValid(Arrays.copyOf(data, 20), 0x10DE, 0x2204, uuid));
+		assertFalse(PipelineCache.isValid(null, 0x10DE, 0x2204, uuid));
+		
+		assertEquals("pipelines-10de-2204.bin", PipelineCache.fileName(0x10DE, 0x2204));
+	}
+	
+	@Test
+	public void pipeline_compile_policies() {
+		GL2VK gl = glProgram1(true);
+		GL2VKPipeline program = gl.getPipeline(glProgram1);
+		program.initiated = true;
+		// Tasks only run when we say so
+		ArrayList<Runnable> queued = new ArrayList<Runnable>();
+		PipelineCompiler compiler = new PipelineCompiler(queued::add);
+		assertEquals(PipelineCompiler.FALLBACK, compiler.getPolicy());
+		PipelineState state = new PipelineState();
+		
+		// Not ready, skipped
+		compiler.setPolicy(PipelineCompiler.SKIP);
+		assertEquals(-1, program.getPipeline(state, compiler));
+		assertEquals(1, compiler.getSkipCount());
+		queued.get(0).run();
+		long triangles = program.getPipeline(state, compiler);
+		assertNotEquals(-1, triangles);
+		
+		// Blending's still compiling, same layout and topology without it'll do
+		compiler.setPolicy(PipelineCompiler.FALLBACK);
+		state.blend = true;
+		assertEquals(triangles, program.getPipeline(state, compiler));
+		assertEquals(1, compiler.getFallbackCount());
+		
+		compiler.setPolicy(PipelineCompiler.SKIP);
+		assertEquals(-1, program.getPipeline(state, compiler));
+		assertEquals(2, compiler.getSkipCount());
+		assertEquals(2, compiler.getSubmitCount());
+		
+		for (Runnable r : queued) r.run();
+		long blended = program.getPipeline(state, compiler);
+		assertNotEquals(-1, blended);
+		assertNotEquals(triangles, blended);
+		
+		// Blocking waits for it
+		PipelineCompiler slow = slowPipelineCompiler();
+		slow.setPolicy(PipelineCompiler.BLOCK);
+		state.setMode(PipelineState.GL_POINTS);
+		assertNotEquals(-1, program.getPipeline(state, slow));
+		assertEquals(1, slow.getBlockCount());
+		assertEquals(0, slow.getSkipCount());
+		
+		// Fallback doesn't use a different topology, it waits instead of skipping.
+		PipelineCompiler slowFallback = slowPipelineCompiler();
+		state.setMode(PipelineState.GL_LINES);
+		long lines = program.getPipeline(state, slowFallback);
+		assertNotEquals(-1, lines);
+		assertNotEquals(triangles, lines);
+		assertNotEquals(blended, lines);
+		assertEquals(1, slowFallback.getBlockCount());
+		assertEquals(0, slowFallback.getFallbackCount());
+		assertEquals(0, slowFallback.getSkipCount());
+	}
+	
+	// Runs each task on its own thread after a bit, so getPipeline() sees it not ready.
+	private PipelineCompiler slowPipelineCompiler() {
+		return new PipelineCompiler(r -> new Thread(() -> {
+			LockSupport.parkNanos(50L*1000L*1000L);
+			r.run();
+		}).start());
+	}
+	
+	// First draw of a new program under the default policy has nothing to fall back to,
+	// it still has to be drawn (noLoop() sketches only get the one frame).
+	@Test
+	public void pipeline_first_draw_default_policy() {
+		GL2VK gl = glProgram1(true);
+		GL2VKPipeline program = gl.getPipeline(glProgram1);
+		program.initiated = true;
+		PipelineCompiler compiler = slowPipelineCompiler();
+		PipelineState state = new PipelineState();
+		
+		long pipeline = program.getPipeline(state, compiler);
+		assertNotEquals(-1, pipeline);
+		assertEquals(1, compiler.getBlockCount());
+		assertEquals(0, compiler.getSkipCount());
+		// Next frame's straight from the cache
+		assertEquals(pipeline, program.getPipeline(state, compiler));
+		assertEquals(1, compiler.getSubmitCount());
+	}
+	
+	@Test
+	public void spirv_cache() throws IOException {
+		File dir = Files.createTempDirectory("gl2vk-spirv").toFile();
+		try {
+			String vertKey = SpirvCache.key("void main() {}", 0, "opts");
+			assertEquals(64, vertKey.length());
+			assertEquals(vertKey, SpirvCache.key("void main() {}", 0, "opts"));
+			// Kind and options are part of the key
+			assertNotEquals(vertKey, SpirvCache.key("void main() {}", 1, "opts"));
+			assertNotEquals(vertKey, SpirvCache.key("void main() {}", 0, "opts2"));
+			
+			// Room for 2 in memory, 3 on disk
+			SpirvCache cache = new SpirvCache(200, dir, 300);
+			String[] keys = new String[4];
+			for (int i = 0; i < 4; i++) {
+				keys[i] = SpirvCache.key("shader "+i, 0, "opts");
+				byte[] spirv = new byte[100];
+				Arrays.fill(spirv, (byte)i);
+				cache.put(keys[i], spirv);
+			}
+			assertEquals(2, cache.getMemoryEntries());
+			assertEquals(200, cache.getMemoryBytes());
+			assertTrue(cache.getDiskBytes() <= 300);
+			assertEquals(3, dir.listFiles().length);
+			
+			// Most recent's still in memory
+			assertEquals(3, cache.get(keys[3])[0]);
+			assertEquals(1, cache.getMemoryHits());
+			
+			// Dropped from memory, comes back from disk
+			cache.clearMemory();
+			byte[] fromDisk = cache.get(keys[3]);
+			assertEquals(100, fromDisk.length);
+			assertEquals(3, fromDisk[99]);
+			assertEquals(1, cache.getDiskHits());
+			assertEquals(3, cache.get(keys[3])[0]);
+			assertEquals(2, cache.getMemoryHits());
+			
+			assertNull(cache.get(SpirvCache.key("not compiled", 0, "opts")));
+			assertEquals(1, cache.getMisses());
+			
+			// Truncated files don't get used
+			String brokenKey = SpirvCache.key("broken", 0, "opts");
+			Files.write(new File(dir, brokenKey+".spv").toPath(), new byte[5]);
+			assertNull(cache.get(brokenKey));
+			
+			// Compiling the same source twice only runs shaderc once
+			SpirvCache old = ShaderSPIRVUtils.getCache();
+			SpirvCache memoryOnly = new SpirvCache(SpirvCache.DEFAULT_MEMORY_SIZE);
+			ShaderSPIRVUtils.setCache(memoryOnly);
+			try {
+				String source = "#version 450\nvoid main() { gl_Position = vec4(0.0); }";
+				SPIRV first = ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER);
+				SPIRV second = ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER);
+				assertEquals(1, memoryOnly.getMisses());
+				assertEquals(1, memoryOnly.getMemoryHits());
+				assertEquals(first.bytecode(), second.bytecode());
+				first.free();
+				second.free();
+			}
+			finally {
+				ShaderSPIRVUtils.setCache(old);
+			}
+		}
+		finally {
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+	
+	@Test
+	public void shader_compiler_pool() throws Exception {
+		SpirvCache oldCache = ShaderSPIRVUtils.getCache();
+		// Make sure shaderc actually runs
+		ShaderSPIRVUtils.setCache(null);
+		try {
+			ShaderSPIRVUtils.releaseCompilers();
+			assertEquals(0, ShaderSPIRVUtils.getCompilerCount());
+			
+			String source = "#version 450\nvoid main() { gl_Position = vec4(0.0); }";
+			ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER).free();
+			ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER).free();
+			// Reused on the same thread
+			assertEquals(1, ShaderSPIRVUtils.getCompilerCount());
+			
+			// Failing doesn't lose the compiler
+			assertThrows(RuntimeException.class, () -> ShaderSPIRVUtils.compileShader("not glsl", ShaderKind.VERTEX_SHADER));
+			assertEquals(1, ShaderSPIRVUtils.getCompilerCount());
+			
+			// Another thread gets its own
+			Thread t = new Thread(() -> ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER).free());
+			t.start();
+			t.join();
+			assertEquals(2, ShaderSPIRVUtils.getCompilerCount());
+			
+			// Made again after being released
+			ShaderSPIRVUtils.releaseCompilers();
+			assertEquals(0, ShaderSPIRVUtils.getCompilerCount());
+			ShaderSPIRVUtils.compileShader(source, ShaderKind.VERTEX_SHADER).free();
+			assertEquals(1, ShaderSPIRVUtils.getCompilerCount());
+			
+			// Results get picked up by glGetShaderiv/glGetShaderInfoLog/glAttachShader
+			GL2VK gl = new GL2VK(GL2VK.DEBUG_MODE);
+			assertTrue(gl.isAsyncShaderCompile());
+			int program = gl.glCreateProgram();
+			int vert = gl.glCreateShader(GL2VK.GL_VERTEX_SHADER);
+			int frag = gl.glCreateShader(GL2VK.GL_FRAGMENT_SHADER);
+			gl.glShaderSource(vert, "#version 450\nvoid main() { this isn't glsl }");
+			gl.glCompileVKShader(vert);
+			IntBuffer status = IntBuffer.allocate(1);
+			gl.glGetShaderiv(vert, GL2VK.GL_COMPILE_STATUS, status);
+			assertEquals(GL2VK.GL_FALSE, status.get(0));
+			assertFalse(gl.glGetShaderInfoLog(vert).isEmpty());
+			
+			// Compiling again clears the old result
+			gl.glShaderSource(vert, vertSource1);
+			gl.glCompileVKShader(vert);
+			assertEquals("", gl.glGetShaderInfoLog(vert));
+			gl.glGetShaderiv(vert, GL2VK.GL_COMPILE_STATUS, status);
+			assertEquals(GL2VK.GL_TRUE, status.get(0));
+			
+			gl.setAsyncShaderCompile(false);
+			gl.glShaderSource(frag, fragSource1);
+			gl.glCompileVKShader(frag);
+			gl.glAttachShader(program, vert);
+			gl.glAttachShader(program, frag);
+			assertNotNull(gl.getPipeline(program).vertShaderSPIRV);
+			assertNotNull(gl.getPipeline(program).fragShaderSPIRV);
+			assertTrue(gl.glGetAttribLocation(program, "inPosition") >= 0);
+		}
+		finally {
+			ShaderSPIRVUtils.setCache(oldCache);
+		}
+	}
+	
+	// What VulkanSystem.activeNode() does.
+	private void executeOrderDraw(ExecuteOrder order, int node) {
+		if (order.needsSegment(node)) order.startSegment(node);
+	}
+	
+	private String executeOrderString(ExecuteOrder order) {
+		String s = "";
+		int count = order.build();
+		for (int i = 0; i < count; i++) {
+			if (order.getNode(i) == ExecuteOrder.LIST) s += "L"+order.getIndex(i)+" ";
+			else s += "n"+order.getNode(i)+"s"+order.getIndex(i)+" ";
+		}
+		return s.trim();
+	}
+	
+	@Test
+	public void call_list_execute_order() {
+		ExecuteOrder order = new ExecuteOrder();
+		
+		// A, glCallList(L), B all on node 0: B has to go in a new segment after L.
+		order.beginFrame(2);
+		executeOrderDraw(order, 0);
+		executeOrderDraw(order, 0);
+		order.callList();
+		executeOrderDraw(order, 0);
+		assertEquals(2, order.getSegmentCount(0));
+		assertEquals(0, order.getSegmentCount(1));
+		assertEquals("n0s0 L0 n0s1", executeOrderString(order));
+		
+		// Next frame starts from scratch. Lists with nothing in between don't make empty
+		// segments, and other nodes still go in node order within each epoch.
+		order.beginFrame(2);
+		executeOrderDraw(order, 1);
+		executeOrderDraw(order, 0);
+		order.callList();
+		order.callList();
+		executeOrderDraw(order, 1);
+		executeOrderDraw(order, 0);
+		order.callList();
+		assertEquals("n0s0 n1s0 L0 L1 n0s1 n1s1 L2", executeOrderString(order));
+		
+		// Only a list, nothing else
+		order.beginFrame(2);
+		order.callList();
+		assertEquals("L0", executeOrderString(order));
+		
+		// Node count changes
+		order.beginFrame(3);
+		executeOrderDraw(order, 2);
+		order.callList();
+		executeOrderDraw(order, 0);
+		assertEquals("n2s0 L0 n0s0", executeOrderString(order));
+	}
+	
+	// The node might be just about to wait on its old strategy when it gets swapped out
+	// (ThreadNode.setWaitStrategy()), in which case retire() has to get it going again.
+	private void waitStrategyRetire(int policy) throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			CommandQueue ring = new CommandQueue(1024);
+			WaitStrategy wait = WaitStrategy.create(policy);
+			Thread node = new Thread(() -> wait.idle(ring));
+			node.start();
+			// Sometimes before it waits, sometimes after.
+			if (i % 2 == 1) Thread.sleep(1);
+			wait.retire(node);
+			node.join(10000);
+			assertFalse(node.isAlive());
+		}
+		
+		// Never waits again once retired.
+		CommandQueue ring = new CommandQueue(1024);
+		WaitStrategy wait = WaitStrategy.create(policy);
+		wait.retire(null);
+		wait.idle(ring);
+	}
+	
+	@Test
+	public void wait_strategy_retire() throws InterruptedException {
+		waitStrategyRetire(WaitStrategy.SPIN_PARK);
+		waitStrategyRetire(WaitStrategy.BLOCKING);
+	}
+	
+	@Test
+	public void indirect_draw_validation() {
+		// Tightly packed, exactly fills the buffer
+		assertNull(GL2VK.indirectProblem(0, 4, 16, 16, 64));
+		assertNull(GL2VK.indirectProblem(20, 3, 20, 20, 80));
+		// Bigger stride, last one only needs the command itself
+		assertNull(GL2VK.indirectProblem(4, 2, 32, 16, 52));
+		assertNotNull(GL2VK.indirectProblem(4, 2, 32, 16, 51));
+		// Nothing to draw is fine, no matter the buffer
+		assertNull(GL2VK.indirectProblem(0, 0, 16, 16, 0));
+		
+		assertNotNull(GL2VK.indirectProblem(0, -1, 16, 16, 64));
+		// Alignment
+		assertNotNull(GL2VK.indirectProblem(2, 1, 16, 16, 64));
+		assertNotNull(GL2VK.indirectProblem(-4, 1, 16, 16, 64));
+		assertNotNull(GL2VK.indirectProblem(0, 2, 18, 16, 64));
+		// Stride smaller than a command
+		assertNotNull(GL2VK.indirectProblem(0, 2, 16, 20, 64));
+		assertNotNull(GL2VK.indirectProblem(0, 2, -16, 16, 64));
+		// Past the end
+		assertNotNull(GL2VK.indirectProblem(0, 5, 16, 16, 64));
+		assertNotNull(GL2VK.indirectProblem(64, 1, 16, 16, 64));
+		// Doesn't overflow
+		assertNotNull(GL2VK.indirectProblem(Integer.MAX_VALUE-3, 2, Integer.MAX_VALUE-3, 16, 64));
+	}
+	
 	// TODO: test using crazyAttribsCode.
 	
 	// TODO: test many bindings
@@ -24,6 +24,14 @@ import static org.lwjgl.vulkan.VK10.vkCmdBindPipeline;
 import static org.lwjgl.vulkan.VK10.vkCmdBindVertexBuffers;
 import static org.lwjgl.vulkan.VK10.vkCmdDraw;
 import static org.lwjgl.vulkan.VK10.vkCmdDrawIndexed;
+import static org.lwjgl.vulkan.VK10.vkCmdDrawIndexedIndirect;
+import static org.lwjgl.vulkan.VK10.vkCmdDrawIndirect;
+import static org.lwjgl.vulkan.VK10.vkDestroyBuffer;
+import static org.lwjgl.vulkan.VK10.vkFreeMemory;
+import static org.lwjgl.vulkan.VK10.vkMapMemory;
+import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT;
 import static org.lwjgl.vulkan.VK10.vkCreateCommandPool;
 import static org.lwjgl.vulkan.VK10.vkEndCommandBuffer;
 import static org.lwjgl.vulkan.VK10.vkFreeCommandBuffers;
@@ -37,9 +45,7 @@ import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
@@ -52,9 +58,6 @@ import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
 
 //import helloVulkan.VKSetup.QueueFamilyIndices;
 
-// TODO: time active vs. time idle query information
-// TODO: average % of cmdQueue used in a frame.
-
 public class ThreadNode {
 	final static boolean DEBUG = false;
 	
@@ -65,51 +68,104 @@ public class ThreadNode {
 	public final static int CMD_BEGIN_RECORD = 3;
 	public final static int CMD_END_RECORD = 4;
 	public final static int CMD_KILL = 5;
-	public final static int CMD_BUFFER_DATA = 6;
+	// 6 used to be CMD_BUFFER_DATA, but copies aren't allowed inside a render pass. They
+	// go in the frame's upload command buffer now (see UploadEngine).
 	public final static int CMD_BIND_PIPELINE = 7;
 	public final static int CMD_PUSH_CONSTANT = 8;
+	public final static int CMD_BEGIN_LIST = 9;
+	public final static int CMD_END_LIST = 10;
+	public final static int CMD_DRAW_ARRAYS_INSTANCED = 11;
+	public final static int CMD_DRAW_INDEXED_INSTANCED = 12;
+	public final static int CMD_MULTI_DRAW_ARRAYS = 13;
+	public final static int CMD_MULTI_DRAW_INDEXED = 14;
+	public final static int CMD_DRAW_INDIRECT = 15;
+	public final static int CMD_DRAW_INDEXED_INDIRECT = 16;
+	public final static int CMD_NEXT_SEGMENT = 17;
 
 	// ThreadNode state statuses
 	public final static int STATE_INACTIVE = 0;
 	public final static int STATE_SLEEPING = 1;
 	public final static int STATE_RUNNING = 2;
-	public final static int STATE_ENTERING_SLEEP = 3;
 	public final static int STATE_KILLED = 4;
-	public final static int STATE_WAKING = 5;
-	public final static int STATE_SLEEPING_INTERRUPTED = 6;
-	public final static int STATE_NEXT_CMD = 7;
-	
-	
-	// CURRENT BUGS:
-	// BUG WARNING signalled out of sleep with no work available.
-	// Let's say we're calling endCommands:
-	// - (1) executing cmd
-	// - (0) Set cmd id
-	// - (1) Oh look! A new command to execute.
-	// - (1) Done, let's go to sleep
-	// - (0) wakeThread (we're under the assumption that the thread hasn't done the work yet)
-	// - (1) Woke up, but wait! There isn't any work for me to do!
-	// Solution: check cmd is set to 0 or not
-	
-	// Other bug: 
-	// looplock'd waiting for a thread that won't respond (state 1)
-	// 
+	
 	
 	// To avoid clashing from the main thread accessing the front of the queue while the
 	// other thread is accessing the end of the queue, best solution is to make this big
 	// enough lol.
-	private final static int MAX_QUEUE_LENGTH = 1024;
+	// In bytes (see CommandRing). A draw call is ~40 bytes, so plenty of room.
+	private final static int QUEUE_SIZE = 256*1024;
+	// Most vertex buffers a single draw can bind
+	// (the minimum maxVertexInputBindings vulkan guarantees).
+	public final static int MAX_VERTEX_BUFFERS = 16;
+	
+	// BACKPRESSURE_GROW won't grow the queue past this.
+	private final static int MAX_QUEUE_SIZE = 64*1024*1024;
+	
+	// What to do when the queue's full (and the thread still hasn't caught up).
+	// Used to just spin forever, which would pin the main thread at 100% while the
+	// node it's waiting on is fighting it for the cpu.
+	// GROW:  carry on in a queue twice the size (up to MAX_QUEUE_SIZE, then PARK)
+	// SPILL: carry on in an extra segment the same size, recycled once the thread's done with it
+	// PARK:  spin for a bit, then park until the thread frees up some space (default)
+	public final static int BACKPRESSURE_GROW = 1;
+	public final static int BACKPRESSURE_SPILL = 2;
+	public final static int BACKPRESSURE_PARK = 3;
+	
+	// How many times to retry before parking.
+	private final static int STALL_SPIN_TRIES = 1000;
+	
+	// Commands aren't published one by one any more, they pile up in the queue
+	// (unpublished, so the node can't see them yet) until there's at least this
+	// many bytes of them, and then they all go out with one publish + one wakeup.
+	// Also flushed on endRecord() and GL2VK.flush().
+	// 0 means publish every command straight away like before.
+	public final static int DEFAULT_BATCH_SIZE = 4096;
+	
+	// Multi-draws with more ranges than this get split up into a few commands
+	// (so they always fit in the queue).
+	public final static int MAX_MULTI_DRAW = 4096;
+	// Size of each frame's buffer that the executor writes multi-draw ranges into as
+	// indirect draw commands (VkDrawIndexedIndirectCommand is 20 bytes, VkDrawIndirectCommand 16).
+	// Once a frame's used it all up we just fall back to one vkCmdDraw per range.
+	public final static int INDIRECT_BUFFER_SIZE = 64*1024;
 	
 	private VulkanSystem system;
 	private VKSetup vkbase;
 	private int myID = 0;
 	
 	private VkCommandBuffer[] cmdbuffers;
+	// Per frame, any extra command buffers for when the frame's split into segments
+	// (see nextSegment()). Segment 0 is always cmdbuffers[frame], so these start from
+	// segment 1. Allocated by the node thread as they're needed and kept for later frames.
+	// The main thread only reads them once we've arrived at the frame barrier.
+	private ArrayList<ArrayList<VkCommandBuffer>> segmentBuffers = new ArrayList<>();
 	
 	// NOT to be set by main thread
 	private AtomicInteger currentFrame = new AtomicInteger(0);
 	private AtomicInteger currentImage = new AtomicInteger(0);
 	private long commandPool;
+	
+	// Node thread only (the executor's scratch stuff)
+	// Vertex buffers of each draw get copied into here. Offsets are always 0.
+	// (these used to be stackPush()'d and calloc'd on every single draw)
+	private LongBuffer vertexBuffers = BufferUtils.createLongBuffer(MAX_VERTEX_BUFFERS);
+	private LongBuffer offsets = BufferUtils.createLongBuffer(MAX_VERTEX_BUFFERS);
+	// What's currently bound in the command buffer we're recording.
+	// Points to listBound while we're recording a display list, so we don't lose track
+	// of what's bound in our own.
+	private BoundState bound;
+	private BoundState ownBound;
+	private BoundState listBound;
+	// The command buffer (segment) of this frame we're recording into.
+	private VkCommandBuffer recordingBuffer;
+	private int segment = 0;
+	// One per frame in flight, persistently mapped. Only safe to write to once the
+	// frame's fence has been waited on, which VulkanSystem.beginRecord() does before
+	// we get CMD_BEGIN_RECORD.
+	private long[] indirectBuffers;
+	private long[] indirectMemory;
+	private ByteBuffer[] indirectData;
+	private int indirectOffset = 0;
 
 	private AtomicInteger threadState = new AtomicInteger(STATE_INACTIVE);
 	private AtomicBoolean openCmdBuffer = new AtomicBoolean(false);
@@ -122,27 +178,47 @@ public class ThreadNode {
 	private VkCommandBufferInheritanceInfo[] inheritanceInfos;
 	
 	
-	// There are two seperate indexes, one for our thread (main thread) and one for this thread.
-	// We add item to queue (cmdindex = 0 -> 1) and then eventually thread updates its own index
-	// as it works on cmd   (myIndex  = 0 -> 1)
-	private int cmdindex = 0;  // Start at one because thread will have already consumed index 0
 	private Thread thread;
 	
-	// Accessed by 2 threads so volatile (i was told that volatile avoids outdated caching issues)
-	// (source: the internet, the most truthful place, i think)
-//	private volatile CMD[] cmdqueue;
-
+	// How we wait when there's nothing in the queue (see WaitStrategy).
+	// Volatile because the main thread can swap it out while we're running.
+	private volatile WaitStrategy waitStrategy;
 	
 	// INNER COMMAND TYPES
 	// Originally was gonna create some classes which extend this class,
 	// but this would mean garbage collection for each command we call.
-	// The other option is to put all arguments from every command into
-	// the one cmd class, which isn't the most readable or memory efficient,
-	// but we care about going FAST.
-	private AtomicIntegerArray cmdID = new AtomicIntegerArray(MAX_QUEUE_LENGTH);
-	private AtomicLongArray[] cmdLongArgs = new AtomicLongArray[128];
-	private AtomicIntegerArray[] cmdIntArgs = new AtomicIntegerArray[128];
+	// Then it was one atomic array per argument, which was slow in its own way.
+	// Now every command is packed into the ring as opcode + length + payload,
+	// see CommandRing for the layout.
+	// The payload layout of each command is written next to the producer method
+	// (drawArrays(), pushConstant() etc) and read back in the executor.
+	private CommandQueue cmdQueue = new CommandQueue(QUEUE_SIZE);
 	public long currentPipeline = 0L;
+	// Main thread only.
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int backpressurePolicy = BACKPRESSURE_PARK;
+	// How many times each policy kicked in (ever, not per frame).
+	// For PARK it's the number of times we actually had to park.
+	private long growCount = 0L;
+	private long spillCount = 0L;
+	private long parkCount = 0L;
+	// Between beginRecord() and endRecord(). Nodes only begin recording when they're
+	// first given a command in a frame, so this is also "has been used this frame".
+	private boolean recording = false;
+	
+	// Number of binds/push constants skipped because they wouldn't have changed anything
+	// (see BoundState). Node thread counts them up during the frame and copies the total
+	// into lastFrameElided at the end of it, so that one's safe to read on the main
+	// thread after endRecord().
+	private long elided = 0L;
+	private long lastFrameElided = 0L;
+	
+	// Main thread, the pipeline that was bound before we started recording a display list.
+	private long pipelineBeforeList = 0L;
+	
+	// Null when metrics are turned off (see NodeMetrics).
+	// Not volatile; the thread picks it up with the next batch we publish.
+	private NodeMetrics metrics = null;
 	
 	
 
@@ -151,16 +227,18 @@ public class ThreadNode {
 		system = vk;
 		vkbase = vk.vkbase;
 		myID = id;
-		
-		// Initialise cmdqueue and all its objects
-		for (int i = 0; i < MAX_QUEUE_LENGTH; i++) {
-			cmdID.set(i, 0);
-		}
+		waitStrategy = WaitStrategy.create(vk.getWaitPolicy());
 		
 		createObjects();
 		startThread();
 	}
 	
+	// Debug mode constructor. No vulkan objects and no thread, so nothing executes what
+	// gets queued; for testing the producer side, read it back out of getQueue().
+	public ThreadNode() {
+		waitStrategy = WaitStrategy.create(WaitStrategy.BUSY_SPIN);
+	}
+	
 
 	private void println(String message) {
 		if (DEBUG) {
@@ -207,6 +285,34 @@ public class ThreadNode {
             }
         }
         
+        ownBound = new BoundState(vkbase.pushConstantsSizeLimit);
+        listBound = new BoundState(vkbase.pushConstantsSizeLimit);
+        bound = ownBound;
+        recordingBuffer = cmdbuffers[0];
+        for (int i = 0; i < commandBuffersCount; i++) {
+        	segmentBuffers.add(new ArrayList<VkCommandBuffer>());
+        }
+        
+        indirectBuffers = new long[commandBuffersCount];
+        indirectMemory = new long[commandBuffersCount];
+        indirectData = new ByteBuffer[commandBuffersCount];
+        try(MemoryStack stack = stackPush()) {
+        	LongBuffer pBuffer = stack.mallocLong(1);
+        	LongBuffer pBufferMemory = stack.mallocLong(1);
+        	PointerBuffer pData = stack.mallocPointer(1);
+        	for (int i = 0; i < commandBuffersCount; i++) {
+        		vkbase.createBuffer(INDIRECT_BUFFER_SIZE,
+        				VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT,
+        				VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+        				pBuffer,
+        				pBufferMemory);
+        		indirectBuffers[i] = pBuffer.get(0);
+        		indirectMemory[i] = pBufferMemory.get(0);
+        		vkMapMemory(vkbase.device, indirectMemory[i], 0, INDIRECT_BUFFER_SIZE, 0, pData);
+        		indirectData[i] = pData.getByteBuffer(0, INDIRECT_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        	}
+        }
+        
         int imagesSize = system.swapChainFramebuffers.size();
         // Create readonly beginInfo structs.
         beginInfos = new VkCommandBufferBeginInfo[imagesSize];
@@ -231,30 +337,26 @@ public class ThreadNode {
 		// and then executes the vk commands that correspond to the int
 		thread = new Thread(new Runnable() {
 	          public void run() {
-	        	  int myIndex = 0;
-
-        		  long sleepTime = 0L;
-        		  long runTime = 0L;
-        		  
         		  boolean pipelineBound = false;
         		  
-    			  ByteBuffer pushConstantBuffer = null;
+        		  // Allocated once at the max push constant size, we just change the limit
+        		  // for each command so we don't create a new buffer each time the size changes.
+    			  ByteBuffer pushConstantBuffer = BufferUtils.createByteBuffer(vkbase.pushConstantsSizeLimit);
+    			  
+    			  // Set between CMD_BEGIN_LIST and CMD_END_LIST, commands go into the
+    			  // display list's command buffer instead of ours.
+    			  VkCommandBuffer listBuffer = null;
 	        	  
 	        	  // Loop until receive KILL_THREAD cmd
 	        	  while (true) {
-    				  long runbefore = System.nanoTime();
+	        		  NodeMetrics m = metrics;
+	        		  // No timing at all when metrics are off.
+    				  long runbefore = m != null ? System.nanoTime() : 0L;
 	        		  boolean goToSleepMode = false;
 	        		  boolean kill = false;
+	        		  boolean frameDone = false;
 
-	        		  int index = (myIndex++)%MAX_QUEUE_LENGTH;
-	        		  
-	        		  VkCommandBuffer cmdbuffer = cmdbuffers[currentFrame.get()];
-	        		  
-	        		  
-//	        		  if (threadState.get() == STATE_WAKING) {
-//	        			  if (id == NO_CMD) System.err.println(myID+" NO_CMD warning");
-//        				  threadState.set(STATE_RUNNING);
-//	        		  }
+	        		  VkCommandBuffer cmdbuffer = listBuffer != null ? listBuffer : recordingBuffer;
 	        		  
 
 	        		  // ======================
@@ -262,57 +364,162 @@ public class ThreadNode {
 	        		  // ======================
 	        		  
 
-	        		  // As soon as we're at this point we need to tell the main thread that this is a 
-	        		  // time-sensitive point where we are in the process of getting the next
-	        		  // cmd, and in between that verrrry small timeframe, it could be set to something
-	        		  // different. The next command will most definitely be 0 -> something else, so
-	        		  // our thread may end up reading an outdated version (i.e. 0, or NO_CMD). 
-	        		  // If that happens, our main thread needs to see the state is STATE_NEXT_CMD, and
-	        		  // then call wakeThread which will make sure our thread's got the right value.
-	        		  
-        			  threadState.set(STATE_NEXT_CMD);
-	        		  
-	        		  switch (cmdID.getAndSet(index, 0)) {
+        			  int cmd = cmdQueue.next();
+        			  // Buffer index of where this command's arguments start
+        			  int p = cmdQueue.payload();
+        			  
+        			  if (m != null && cmd != NO_CMD) {
+        				  m.countCommand(cmd, cmdQueue.occupancy(), cmdQueue.usedCapacity());
+        			  }
+        			  
+	        		  switch (cmd) {
 	        		  case NO_CMD:
-	        			  threadState.set(STATE_ENTERING_SLEEP);
 	        			  goToSleepMode = true;
-	        			  myIndex--;
 	        			  break;
-	        		  case CMD_DRAW_ARRAYS: {
+	        		  case CMD_DRAW_ARRAYS:
+	        		  case CMD_DRAW_ARRAYS_INSTANCED: {
 	        			  // TODO: Similar to drawIndexed, pass a list of bound buffers
 	        			  // instead of the one interleaved list.
 	        			  
-	        			  threadState.set(STATE_RUNNING);
-	        			  println("CMD_DRAW_ARRAYS (index "+index+")");
-	        			  int size = cmdIntArgs[0].get(index);
-	        			  int first = cmdIntArgs[1].get(index);
-	        			  int numBuffers = cmdIntArgs[2].get(index);
+	        			  println("CMD_DRAW_ARRAYS");
+	        			  int size = cmdQueue.getInt(p);
+	        			  int first = cmdQueue.getInt(p+4);
+	        			  int numBuffers = cmdQueue.getInt(p+8);
+	        			  int instanceCount = 1;
+	        			  int firstInstance = 0;
+	        			  // Instanced version has the instance count/first instance before the buffers.
+	        			  int buffersIndex = p+16;
+	        			  if (cmd == CMD_DRAW_ARRAYS_INSTANCED) {
+	        				  instanceCount = cmdQueue.getInt(p+12);
+	        				  firstInstance = cmdQueue.getInt(p+16);
+	        				  buffersIndex = p+24;
+	        			  }
 	        			  
-	        			  try(MemoryStack stack = stackPush()) {
-	        			      LongBuffer vertexBuffers = stack.callocLong(numBuffers);
-	        			      LongBuffer offsets = stack.callocLong(numBuffers);
-	        			      
-	        			      // Longargs 1-x are buffers.
-	        			      for (int i = 0; i < numBuffers; i++) {
-	        			    	  vertexBuffers.put(i, cmdLongArgs[i].get(index));
-		        			      offsets.put(i, 0);
-	        			      }
-	        			      vkCmdBindVertexBuffers(cmdbuffer, 0, vertexBuffers, offsets);
+	        			  // Rest of the payload is the buffers.
+	        			  bindVertexBuffers(cmdbuffer, buffersIndex, numBuffers);
 	        			
-	        			      vkCmdDraw(cmdbuffer, size, 1, first, 0);
-	        		      }
+	        			  vkCmdDraw(cmdbuffer, size, instanceCount, first, firstInstance);
+	        			  break;
+	        		  }
+	        		  case CMD_MULTI_DRAW_ARRAYS: {
+	        			  println("CMD_MULTI_DRAW_ARRAYS");
+	        			  int drawCount = cmdQueue.getInt(p);
+	        			  int numBuffers = cmdQueue.getInt(p+4);
+	        			  // Vertex buffers, then (first, count) for each draw.
+	        			  bindVertexBuffers(cmdbuffer, p+8, numBuffers);
+	        			  int ranges = p+8+numBuffers*8;
+	        			  
+	        			  int frame = currentFrame.get();
+	        			  // Display lists last more than a frame, so they can't use the per-frame buffer.
+	        			  if (listBuffer == null && drawCount > 1 && vkbase.multiDrawIndirect
+	        					  && indirectOffset+drawCount*16 <= INDIRECT_BUFFER_SIZE) {
+	        				  ByteBuffer data = indirectData[frame];
+	        				  for (int i = 0; i < drawCount; i++) {
+	        					  // VkDrawIndirectCommand
+	        					  int c = indirectOffset+i*16;
+	        					  data.putInt(c,    cmdQueue.getInt(ranges+i*8+4));
+	        					  data.putInt(c+4,  1);
+	        					  data.putInt(c+8,  cmdQueue.getInt(ranges+i*8));
+	        					  data.putInt(c+12, 0);
+	        				  }
+	        				  vkCmdDrawIndirect(cmdbuffer, indirectBuffers[frame], indirectOffset, drawCount, 16);
+	        				  indirectOffset += drawCount*16;
+	        			  }
+	        			  else {
+	        				  for (int i = 0; i < drawCount; i++) {
+	        					  vkCmdDraw(cmdbuffer, cmdQueue.getInt(ranges+i*8+4), 1, cmdQueue.getInt(ranges+i*8), 0);
+	        				  }
+	        			  }
+	        			  break;
+	        		  }
+	        		  case CMD_MULTI_DRAW_INDEXED: {
+	        			  println("CMD_MULTI_DRAW_INDEXED");
+	        			  int drawCount = cmdQueue.getInt(p);
+	        			  int numBuffers = cmdQueue.getInt(p+4);
+	        			  int type = cmdQueue.getInt(p+8);
+	        			  long indicesBuffer = cmdQueue.getLong(p+16);
+	        			  // Vertex buffers, then (count, byte offset) for each draw.
+	        			  bindVertexBuffers(cmdbuffer, p+24, numBuffers);
+	        			  int ranges = p+24+numBuffers*8;
+	        			  
+	        			  // Bound at the start this time, the offsets get turned into first indexes.
+	        			  int vkType = vkIndexType(type);
+	        			  int indexSize = indexSize(type);
+	        			  if (bound.indexBufferChanged(indicesBuffer, 0L, vkType)) {
+	        				  vkCmdBindIndexBuffer(cmdbuffer, indicesBuffer, 0L, vkType);
+	        			  }
+	        			  else elided++;
+	        			  
+	        			  int frame = currentFrame.get();
+	        			  if (listBuffer == null && drawCount > 1 && vkbase.multiDrawIndirect
+	        					  && indirectOffset+drawCount*20 <= INDIRECT_BUFFER_SIZE) {
+	        				  ByteBuffer data = indirectData[frame];
+	        				  for (int i = 0; i < drawCount; i++) {
+	        					  // VkDrawIndexedIndirectCommand
+	        					  int c = indirectOffset+i*20;
+	        					  data.putInt(c,    cmdQueue.getInt(ranges+i*8));
+	        					  data.putInt(c+4,  1);
+	        					  data.putInt(c+8,  cmdQueue.getInt(ranges+i*8+4)/indexSize);
+	        					  data.putInt(c+12, 0);
+	        					  data.putInt(c+16, 0);
+	        				  }
+	        				  vkCmdDrawIndexedIndirect(cmdbuffer, indirectBuffers[frame], indirectOffset, drawCount, 20);
+	        				  indirectOffset += drawCount*20;
+	        			  }
+	        			  else {
+	        				  for (int i = 0; i < drawCount; i++) {
+	        					  vkCmdDrawIndexed(cmdbuffer, cmdQueue.getInt(ranges+i*8), 1, cmdQueue.getInt(ranges+i*8+4)/indexSize, 0, 0);
+	        				  }
+	        			  }
+	        			  break;
+	        		  }
+	        		  case CMD_DRAW_INDIRECT:
+	        		  case CMD_DRAW_INDEXED_INDIRECT: {
+	        			  println("CMD_DRAW_INDIRECT");
+	        			  // Long0: indirect buffer
+	        			  // Long1: offset into it
+	        			  // Int4:  drawCount
+	        			  // Int5:  stride
+	        			  // Int6:  numBuffers
+	        			  // Int7:  type (indexed only)
+	        			  // Long4: index buffer (indexed only)
+	        			  // LongX: vertex buffers
+	        			  long indirectBuffer = cmdQueue.getLong(p);
+	        			  long offset = cmdQueue.getLong(p+8);
+	        			  int drawCount = cmdQueue.getInt(p+16);
+	        			  int stride = cmdQueue.getInt(p+20);
+	        			  int numBuffers = cmdQueue.getInt(p+24);
+	        			  bindVertexBuffers(cmdbuffer, p+40, numBuffers);
+	        			  
+	        			  boolean indexed = cmd == CMD_DRAW_INDEXED_INDIRECT;
+	        			  if (indexed) {
+	        				  int vkType = vkIndexType(cmdQueue.getInt(p+28));
+	        				  long indicesBuffer = cmdQueue.getLong(p+32);
+	        				  if (bound.indexBufferChanged(indicesBuffer, 0L, vkType)) {
+	        					  vkCmdBindIndexBuffer(cmdbuffer, indicesBuffer, 0L, vkType);
+	        				  }
+	        				  else elided++;
+	        			  }
+	        			  
+	        			  // Without multiDrawIndirect the draw count has to be 1.
+	        			  int perCall = vkbase.multiDrawIndirect ? drawCount : 1;
+	        			  for (int i = 0; i < drawCount; i += perCall) {
+	        				  if (indexed) vkCmdDrawIndexedIndirect(cmdbuffer, indirectBuffer, offset+(long)i*stride, perCall, stride);
+	        				  else         vkCmdDrawIndirect(cmdbuffer, indirectBuffer, offset+(long)i*stride, perCall, stride);
+	        			  }
 	        			  break;
 	        		  }
 	        			  // Probably the most important command
 	        		  case CMD_BEGIN_RECORD:
-	        			  	threadState.set(STATE_RUNNING);
-	        			  	sleepTime = 0;
-	        			  	runTime = 0;
+	        			  	// Don't count the time we spent waiting in between frames.
+	        			  	if (m != null) m.idleTime = 0L;
 	        			  	println("CMD_BEGIN_RECORD");
 
-        			  		currentImage.set(cmdIntArgs[0].get(index));
-        			  		currentFrame.set(cmdIntArgs[1].get(index));
+        			  		currentImage.set(cmdQueue.getInt(p));
+        			  		currentFrame.set(cmdQueue.getInt(p+4));
         			  		cmdbuffer = cmdbuffers[currentFrame.get()];
+        			  		recordingBuffer = cmdbuffer;
+        			  		segment = 0;
 	        			  	
 	        			  	if (openCmdBuffer.get() == false) {
 	        			  		vkResetCommandBuffer(cmdbuffer, 0);
@@ -329,154 +536,135 @@ public class ThreadNode {
 	        			  	else System.err.println("("+myID+") Attempt to begin an already open command buffer."); 
 	        			  	
 	        	            openCmdBuffer.set(true);
+	        	            // New command buffer, nothing's bound.
+	        	            bound.reset();
+	        	            // The GPU's done with this frame's indirect buffer too.
+	        	            indirectOffset = 0;
+	        	            elided = 0L;
 //	        	            vkCmdBindPipeline(cmdbuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, system.graphicsPipeline);
 	        	            pipelineBound = false;
 	        	            break;
 	        		  case CMD_END_RECORD:
-	        			  	threadState.set(STATE_RUNNING);
-	        			  	println("CMD_END_RECORD (index "+index+")");
+	        			  	println("CMD_END_RECORD");
 
 	        			  	if (openCmdBuffer.get() == true) {
-							    if(vkEndCommandBuffer(cmdbuffer) != VK_SUCCESS) {
+							    if(vkEndCommandBuffer(recordingBuffer) != VK_SUCCESS) {
 							        throw new RuntimeException("Failed to record command buffer");
 							    }
 	        			  	}
 	        			  	else System.err.println("("+myID+") Attempt to close an already closed command buffer."); 
 
 	        	            openCmdBuffer.set(false);
+	        	            lastFrameElided = elided;
+	        	            // Let the main thread know we're done with this frame (once
+	        	            // we've released the command and sorted out the metrics)
+	        	            frameDone = true;
 	        	            // We should also really go into sleep mode now
-	        	            threadState.set(STATE_ENTERING_SLEEP);
+	        	            // (if there's already more work, the wait strategy just returns straight away)
 	        	            goToSleepMode = true;
 	        	            
-//	        	            System.out.println("("+myID+") Sleep time "+(sleepTime/1000L)+"us  Run time "+(runTime/1000L)+"us");
-	        	            
 						    break;
+	        		  case CMD_NEXT_SEGMENT: {
+	        			  println("CMD_NEXT_SEGMENT");
+	        			  if (vkEndCommandBuffer(recordingBuffer) != VK_SUCCESS) {
+	        				  throw new RuntimeException("Failed to record command buffer");
+	        			  }
+	        			  segment++;
+	        			  recordingBuffer = segmentBuffer(currentFrame.get(), segment);
+	        			  vkResetCommandBuffer(recordingBuffer, 0);
+	        			  if (vkBeginCommandBuffer(recordingBuffer, beginInfos[currentImage.get()]) != VK_SUCCESS) {
+	        				  throw new RuntimeException("Failed to begin recording command buffer");
+	        			  }
+	        			  // Carry on with whatever was bound in the last segment.
+	        			  bound.carryOver(recordingBuffer, pushConstantBuffer);
+	        			  break;
+	        		  }
+	        		  case CMD_BEGIN_LIST: {
+	        			  println("CMD_BEGIN_LIST");
+	        			  DisplayList list = system.getDisplayList(cmdQueue.getInt(p));
+	        			  int image = cmdQueue.getInt(p+4);
+	        			  listBuffer = list.getBuffer(image);
+	        			  // Main thread's already made sure the GPU's done with it.
+	        			  vkResetCommandBuffer(listBuffer, 0);
+	        			  if (vkBeginCommandBuffer(listBuffer, list.getBeginInfo(image)) != VK_SUCCESS) {
+	        				  throw new RuntimeException("Failed to begin recording display list");
+	        			  }
+	        			  bound = listBound;
+	        			  bound.reset();
+	        			  break;
+	        		  }
+	        		  case CMD_END_LIST:
+	        			  println("CMD_END_LIST");
+	        			  if (vkEndCommandBuffer(listBuffer) != VK_SUCCESS) {
+	        				  throw new RuntimeException("Failed to record display list");
+	        			  }
+	        			  listBuffer = null;
+	        			  // Back to our own command buffer, which still has what it had bound.
+	        			  bound = ownBound;
+	        			  break;
 	        		  case CMD_KILL:
-	        			  threadState.set(STATE_RUNNING);
 	        			  goToSleepMode = false;
 	        			  kill = true;
 	        			  break;
 	        			  
-	        		  // This goes pretty much unused.
-	        		  case CMD_BUFFER_DATA:
-	        			  threadState.set(STATE_RUNNING);
-	        			  println("CMD_BUFFER_DATA (index "+index+")");
-
-//	        			  vkCmdEndRenderPass(system.currentCommandBuffer);
-	        			  system.copyBufferFast(cmdbuffer, cmdLongArgs[0].get(index), cmdLongArgs[1].get(index), cmdIntArgs[0].get(index));
-//	        			  vkCmdBeginRenderPass(system.currentCommandBuffer, system.renderPassInfo, VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS);
-	        			  break;
-
 	        		  case CMD_BIND_PIPELINE:
 	        			  // Ensure we have a bound pipeline before anything
 	        			  
-	        			  threadState.set(STATE_RUNNING);
-	        			  println("CMD_BIND_PIPELINE (index "+index+")");
-	        	          vkCmdBindPipeline(cmdbuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, cmdLongArgs[0].get(index));
+	        			  println("CMD_BIND_PIPELINE");
+	        			  if (bound.pipelineChanged(cmdQueue.getLong(p))) {
+	        				  vkCmdBindPipeline(cmdbuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, cmdQueue.getLong(p));
+	        			  }
+	        			  else elided++;
 	        			  break;
 	        			  
-	        		  case CMD_DRAW_INDEXED: {
-	        			  threadState.set(STATE_RUNNING);
-	        			  println("CMD_DRAW_INDEXED (index "+index+")");
-	        			  // Int0: indiciesSize
-	        			  // Long0: indiciesBuffer
-	        			  // Int1: numBuffers
-	        			  // LongX: vertexBuffers
-	        			  // Int2: offset
-	        			  
-	        			  int indiciesSize = cmdIntArgs[0].get(index);
-	        			  int numBuffers = cmdIntArgs[1].get(index);
-	        			  int offsettype = cmdIntArgs[2].get(index);
-	        			  long indicesBuffer = cmdLongArgs[0].get(index);
-	        			  
-	        			  int offset = offsettype & 0x3FFFFFFF;
-	        			  int type   = offsettype & 0xC0000000;
+	        		  case CMD_DRAW_INDEXED:
+	        		  case CMD_DRAW_INDEXED_INSTANCED: {
+	        			  println("CMD_DRAW_INDEXED");
+	        			  int indiciesSize = cmdQueue.getInt(p);
+	        			  int numBuffers = cmdQueue.getInt(p+4);
+	        			  int offset = cmdQueue.getInt(p+8);
+	        			  int type = cmdQueue.getInt(p+12);
+	        			  long indicesBuffer = cmdQueue.getLong(p+16);
+	        			  int instanceCount = 1;
+	        			  int firstInstance = 0;
+	        			  int buffersIndex = p+24;
+	        			  if (cmd == CMD_DRAW_INDEXED_INSTANCED) {
+	        				  instanceCount = cmdQueue.getInt(p+24);
+	        				  firstInstance = cmdQueue.getInt(p+28);
+	        				  buffersIndex = p+32;
+	        			  }
 	        			  
-	        			  int vkType = 0;
-	        			  switch (type) {
-	        			  // Unsigned byte
-	        			  case 0x40000000:
-	        				  // TODO: Test this to see if vulkan accepts it.
-	        				  vkType = INDEXTYPEUINT8;
-	        				  break;
+	        			  int vkType = vkIndexType(type);
 	        			  
-	        		      // Unsigned int
-	        			  case 0x80000000:
-	        				  vkType = VK_INDEX_TYPE_UINT32;
-	        				  break;
-	        				  
-	        			  // Unsigned short
-	        			  case 0xC0000000:
-	        				  vkType = VK_INDEX_TYPE_UINT16;
-	        				  break;
-	        			  }
+	        			  // Rest of the payload is the vertex buffers.
+	        			  bindVertexBuffers(cmdbuffer, buffersIndex, numBuffers);
 	        			  
-	        			  try(MemoryStack stack = stackPush()) {
-	        			      LongBuffer vertexBuffers = stack.callocLong(numBuffers);
-	        			      LongBuffer offsets = stack.callocLong(numBuffers);
-	        			      
-	        			      // Longargs 1-x are buffers.
-	        			      for (int i = 0; i < numBuffers; i++) {
-	        			    	  vertexBuffers.put(i, cmdLongArgs[i+1].get(index));
-		        			      offsets.put(i, offset);
-	        			      }
-	        			      vertexBuffers.rewind();
-	        			      offsets.rewind();
-	        			      
-	        			      vkCmdBindVertexBuffers(cmdbuffer, 0, vertexBuffers, offsets);
-	        			      
-	        			      vkCmdBindIndexBuffer(cmdbuffer, indicesBuffer, offset, vkType);
-	        			      vkCmdDrawIndexed(cmdbuffer, indiciesSize, 1, offset, 0, 0);
+	        			  // Offset is a byte offset into the index buffer (like glDrawElements).
+	        			  if (bound.indexBufferChanged(indicesBuffer, offset, vkType)) {
+	        				  vkCmdBindIndexBuffer(cmdbuffer, indicesBuffer, offset, vkType);
 	        			  }
+	        			  else elided++;
+	        			  vkCmdDrawIndexed(cmdbuffer, indiciesSize, instanceCount, 0, 0, firstInstance);
 	        		      
 	        			  break;
 	        		  }
-	        		  case CMD_PUSH_CONSTANT:
-	        			  threadState.set(STATE_RUNNING);
-	        			  println("CMD_PUSH_CONSTANT (index "+index+")");
-	        			  // Long0:   pipelineLayout
-	        			  // Int0:    Size/offset/vertexOrFragment
-	        			  // Long1-X: bufferData (needs to be reconstructed
-
-	        			  long pipelineLayout = cmdLongArgs[0].get(index);
-
-	        			  // Layout: ssssssssoooooooooooooooovvvvvvvv
-	        			  int arg0 = cmdIntArgs[0].get(index);
-	        			  int size             = ((arg0 >> 24) & 0x000000FF);
-	        			  int offset           = ((arg0 >> 8) & 0x0000FFFF);
-	        			  int vertexOrFragment = (arg0 & 0x000000FF);
-	        			  	        			  
-	        			  // Needs to be in multiples of 8 for long buffer.
-	        			  // TODO: actually sort out.
-	        			  // buffer size = 12, we need to expand to 16.
-	        			  // This equasion would set it to 8.
-//	        			  size = ((size/8))*8;
-	        			  
-	        			  // Create buffer
-	        			  // It's a gobal variable so we don't have to recreate the variable each
-	        			  // time
-	        			  if (pushConstantBuffer == null || pushConstantBuffer.capacity() != size) {
-	        				  pushConstantBuffer = BufferUtils.createByteBuffer(size);
-	        				  pushConstantBuffer.order(ByteOrder.LITTLE_ENDIAN);
-	        			  }
-	        			  
-	        			  // Now we have to reconstruct the buffer from the longs
-	        			  pushConstantBuffer.rewind();
-	        			  int arg = 1;
+	        		  case CMD_PUSH_CONSTANT: {
+	        			  println("CMD_PUSH_CONSTANT");
+
+	        			  long pipelineLayout = cmdQueue.getLong(p);
+	        			  int size             = cmdQueue.getInt(p+8);
+	        			  int offset           = cmdQueue.getInt(p+12) & 0x0000FFFF;
+	        			  int vertexOrFragment = cmdQueue.getInt(p+12) >>> 16;
 	        			  
-	        			  // Long story short, we might store 8 bytes in a 4-byte buffer, 
-	        			  // which would cause an exception.
-	        			  // We have a special case to write the bytes in multiples of 8,
-	        			  // then write the remaining 4 bytes
-	        			  int ssize = size;
-	        			  if (size % 8 == 4) ssize -= 4;
-	        			  for (int i = 0; i < ssize; i += Long.BYTES) {
-	        				  pushConstantBuffer.putLong(cmdLongArgs[arg++].get(index));
-	        			  }
-	        			  if (size % 8 == 4) {
-	        				  int val = (int)cmdLongArgs[arg++].get(index);
-	        				  pushConstantBuffer.putInt(val);
+	        			  // Same values as last time (e.g. a uniform set to the same thing every frame)
+	        			  if (!bound.pushConstantChanged(cmdQueue, p+16, pipelineLayout, vertexOrFragment, offset, size)) {
+	        				  elided++;
+	        				  break;
 	        			  }
+	        			  	        			  
+	        			  // Raw bytes are already in the queue, just copy them over.
+	        			  pushConstantBuffer.limit(size);
+	        			  cmdQueue.getBytes(p+16, pushConstantBuffer, 0, size);
 	        			  pushConstantBuffer.rewind();
 
 	        			  
@@ -496,6 +684,20 @@ public class ThreadNode {
 	        			 
 	        			  break;
 	        		  }
+	        		  }
+	        		  
+	        		  // Done with the command, give the space back to the main thread.
+	        		  if (cmd != NO_CMD) {
+	        			  cmdQueue.release();
+	        		  }
+	        		  
+	        		  if (m != null) {
+	        			  if (cmd != NO_CMD) m.busyTime += System.nanoTime()-runbefore;
+	        			  if (frameDone) m.nodeFrameDone();
+	        		  }
+	        		  if (frameDone) {
+	        			  system.frameBarrier.arrive();
+	        		  }
 	        		  
 	        		  // ======================
 	        		  
@@ -506,22 +708,17 @@ public class ThreadNode {
 	        			  break;
 	        		  }
 
-	        		  runTime += System.nanoTime()-runbefore;
 	        		  // No more tasks to do? Take a lil nap.
 	        		  if (goToSleepMode) {
 	        			  println("NOW SLEEPING");
-        				  long before = System.nanoTime();
-	        			  try {
-	        				  // Sleep for an indefinite amount of time
-	        				  // (we gonna interrupt the thread later)
-	        				  threadState.set(STATE_SLEEPING);
-	        				  Thread.sleep(999999);
-	        			  }
-	        			  catch (InterruptedException e) {
-	        				  threadState.set(STATE_WAKING);
-	        				  println("WAKEUP");
-	        			  }
-        				  sleepTime += System.nanoTime()-before;
+        				  long before = m != null ? System.nanoTime() : 0L;
+        				  threadState.set(STATE_SLEEPING);
+        				  // Spins/parks/blocks until there's something in the queue.
+        				  // Might return early, in which case we just end up back here.
+        				  waitStrategy.idle(cmdQueue);
+        				  threadState.set(STATE_RUNNING);
+        				  println("WAKEUP");
+        				  if (m != null) m.idleTime += System.nanoTime()-before;
 	        		  }
 	        	  }
 	        	  threadState.set(STATE_KILLED);
@@ -531,152 +728,359 @@ public class ThreadNode {
 		);
 		thread.start();
 	}
-	int stalltime = 0;
-	
-	private int getNextCMDIndex() {
-		int ret = (cmdindex)%MAX_QUEUE_LENGTH;
-		while (cmdID.get(ret) != NO_CMD) {
-			// We're forced to wait until the thread has caught up with some of the queue
-//			try {
-//				Thread.sleep(0);
-//			} catch (InterruptedException e) {
-//			}
-//			println("WARNING  queue clash, cmdid is "+ret);
+	
+	// Reserves a record in the queue for a command, and returns where its
+	// payload should be written.
+	private int claim(int cmd, int payloadSize) {
+		int ret = cmdQueue.claim(cmd, payloadSize);
+		if (ret == -1) {
+			// Queue's full. Make sure the thread can actually see what's in our
+			// batch so far, otherwise we'd be waiting on it forever.
+			flush();
+			ret = claimFull(cmd, payloadSize);
 		}
-		cmdindex++;
 		return ret;
 	}
 	
-	private void setIntArg(int argIndex, int queueIndex, int value) {
-		if (cmdIntArgs[argIndex] == null) {
-			cmdIntArgs[argIndex] = new AtomicIntegerArray(MAX_QUEUE_LENGTH);
+	// Slow path of claim(), see BACKPRESSURE_*
+	private int claimFull(int cmd, int payloadSize) {
+		switch (backpressurePolicy) {
+		case BACKPRESSURE_GROW:
+			if (cmdQueue.grow(MAX_QUEUE_SIZE)) {
+				growCount++;
+				// New queue's empty so this always works.
+				return cmdQueue.claim(cmd, payloadSize);
+			}
+			// Already as big as we're gonna let it get, just wait.
+			break;
+		case BACKPRESSURE_SPILL:
+			cmdQueue.spill();
+			spillCount++;
+			return cmdQueue.claim(cmd, payloadSize);
+		}
+		
+		// We're forced to wait until the thread has caught up with some of the queue.
+		// Chances are it's nearly there, so spin for a bit first.
+		for (int i = 0; i < STALL_SPIN_TRIES; i++) {
+			if (metrics != null) metrics.stallSpins++;
+			Thread.onSpinWait();
+			int ret = cmdQueue.claim(cmd, payloadSize);
+			if (ret != -1) return ret;
+		}
+		parkCount++;
+		return cmdQueue.claimOrPark(cmd, payloadSize);
+	}
+	
+	public void setBackpressurePolicy(int policy) {
+		checkBackpressurePolicy(policy);
+		backpressurePolicy = policy;
+	}
+	
+	public static void checkBackpressurePolicy(int policy) {
+		if (policy != BACKPRESSURE_GROW && policy != BACKPRESSURE_SPILL && policy != BACKPRESSURE_PARK) {
+			throw new IllegalArgumentException("Unknown backpressure policy "+policy);
 		}
-		cmdIntArgs[argIndex].set(queueIndex, value);
 	}
 	
-	private void setLongArg(int argIndex, int queueIndex, long value) {
-		if (cmdLongArgs[argIndex] == null) {
-			cmdLongArgs[argIndex] = new AtomicLongArray(MAX_QUEUE_LENGTH);
+	// How many times the given policy has kicked in for this node.
+	public long getBackpressureCount(int policy) {
+		switch (policy) {
+		case BACKPRESSURE_GROW:
+			return growCount;
+		case BACKPRESSURE_SPILL:
+			return spillCount;
+		case BACKPRESSURE_PARK:
+			return parkCount;
+		default:
+			return 0L;
 		}
-		cmdLongArgs[argIndex].set(queueIndex, value);
-	}
-	
-	
-	private void wakeThread(int cmdindex) {
-		// There's a bug if we just call wakethread after setting cmdIndex.
-		// I'm going to copy+paste it here:
-		// Let's say we're calling endCommands:
-		// - (1) executing cmd
-		// - (0) Set cmd id
-		// - (1) Oh look! A new command to execute.
-		// - (1) Done, let's go to sleep
-		// - (0) wakeThread (we're under the assumption that the thread hasn't done the work yet)
-		// - (1) Woke up, but wait! There isn't any work for me to do!
-		// Solution: Check cmdid is non-zero, because thread sets it to 0 as soon as it executes
-		// the command
-		if (cmdID.get(cmdindex) == NO_CMD) {
-			return;
+	}
+	
+	// Remember, last thing we should do is submit, submit before and
+	// our thread may begin executing the command without all the arguments
+	// being properly set.
+	private void submit() {
+		if (cmdQueue.unpublished() >= batchSize) {
+			flush();
 		}
-		
-		
-		// Only need to interrupt if sleeping.
-		// We call it here because if wakeThread is called, then a command was called, and
-		// when a command was called, that means we should definitely not be asleep
-		// (avoids concurrency issues with await()
-		// If it's on STATE_NEXT_CMD, it means that it might have an outdated cmdid, which we can fix
-		// by simply interrupting it as soon as it eventually goes into sleep mode
-		if (threadState.get() == STATE_ENTERING_SLEEP || threadState.get() == STATE_NEXT_CMD) {
-			// Uhoh, unlucky. This means we just gotta wait until we're entering sleep state then wake up.
-			while (threadState.get() != STATE_SLEEPING) {
-				try {
-					Thread.sleep(0, 1000);
-				} catch (InterruptedException e) {
-				}
+	}
+	
+	// Publishes everything in the current batch and wakes up the thread.
+	public void flush() {
+		if (cmdQueue.hasUnpublished()) {
+			cmdQueue.publish();
+			boolean woke = wakeThread();
+			if (metrics != null) {
+				metrics.publishes++;
+				if (woke) metrics.wakeups++;
 			}
-			println("INTERRUPT");
-
-			threadState.set(STATE_SLEEPING_INTERRUPTED);
-			thread.interrupt();
 		}
-		if (threadState.get() == STATE_SLEEPING) {
-			println("INTERRUPT");
-
-			// We need to set status for only one interrupt otherwise we will keep calling
-			// interrupt interrupt interrupt interrupt interrupt interrupt interrupt interrupt 
-			// and it seems to be stored in some sort of queue. That means, when the thread tries
-			// to go back to sleep, it immediately wakes up because those interrupts are still in
-			// the queue. We tell it "it's been interrupted once, don't bother it any further."
-			threadState.set(STATE_SLEEPING_INTERRUPTED);
-			thread.interrupt();
+	}
+	
+	// Turn metrics on/off for this node.
+	public void setMetricsEnabled(boolean enabled) {
+		if (enabled && metrics == null) {
+			metrics = new NodeMetrics();
+		}
+		else if (!enabled) {
+			metrics = null;
 		}
-		
-		// We also need to consider the case for when a thread is ABOUT to enter sleep mode.
-		// Cus we can call interrupt() all we want, it's not going to stop the thread from
-		// entering sleep mode.
-		
-//		sleeping.set(false);
+	}
+	
+	public NodeMetrics getMetrics() {
+		return metrics;
+	}
+	
+	// For testing with the debug mode constructor, there's no thread to read the queue.
+	public CommandQueue getQueue() {
+		return cmdQueue;
+	}
+	
+	// Main thread, for a frame this node wasn't given anything in.
+	public void skippedFrame() {
+		lastFrameElided = 0L;
+		if (metrics != null) metrics.skippedFrame();
+	}
+	
+	// Binds/push constants skipped last frame. Only valid after endRecord().
+	public long getElidedCount() {
+		return lastFrameElided;
+	}
+	
+	public void setBatchSize(int bytes) {
+		// Any bigger and we'd never flush before the queue fills up
+		batchSize = Math.max(0, Math.min(bytes, QUEUE_SIZE/2));
+		// Don't leave anything sitting around from the old batch size.
+		flush();
+	}
+	
+	
+	private boolean wakeThread() {
+		// No more sleeping forever and interrupting. It's up to the wait strategy;
+		// they're all written so that a wake that comes in just before the thread
+		// goes to sleep isn't lost.
+		return waitStrategy.wake(thread);
+	}
+	
+	// Can be changed whenever. The thread might be waiting on the old strategy (or just
+	// about to), and wake() on the new one won't get it going again, so retire the old one
+	// and give it a nudge either way. It'll pick up the new one next time it idles.
+	public void setWaitStrategy(WaitStrategy strategy) {
+		WaitStrategy old = waitStrategy;
+		waitStrategy = strategy;
+		old.retire(thread);
+		LockSupport.unpark(thread);
 	}
 
 
-    public void drawArrays(ArrayList<Long> buffers, int size, int first) {
-        int index = getNextCMDIndex();
-		println("call CMD_DRAW_ARRAYS (index "+index+")");
-
-        for (int i = 0; i < buffers.size(); i++) {
-        	setLongArg(i, index, buffers.get(i));
-        }
-        
-		setIntArg(0, index, size);
-		setIntArg(1, index, first);
-		setIntArg(2, index, buffers.size());
-        // Remember, last thing we should set is cmdID, set it before and
-        // our thread may begin executing drawArrays without all the commands
-        // being properly set.
-        cmdID.set(index, CMD_DRAW_ARRAYS);
-        wakeThread(index);
+    // Node thread. Binds the vertex buffers at index in the queue, unless they're already bound.
+    private void bindVertexBuffers(VkCommandBuffer cmdbuffer, int index, int numBuffers) {
+    	if (numBuffers > vertexBuffers.capacity()) {
+    		// Silly amount of buffers, but we'll allow it.
+    		vertexBuffers = BufferUtils.createLongBuffer(numBuffers);
+    		offsets = BufferUtils.createLongBuffer(numBuffers);
+    	}
+    	if (bound.vertexBuffersChanged(cmdQueue, index, numBuffers)) {
+    		getBuffers(cmdQueue, index, numBuffers, vertexBuffers);
+    		offsets.limit(numBuffers);
+    		vkCmdBindVertexBuffers(cmdbuffer, 0, vertexBuffers, offsets);
+    	}
+    	else elided++;
     }
     
+    static int vkIndexType(int glType) {
+    	switch (glType) {
+    	case GL2VK.GL_UNSIGNED_BYTE:
+    		// TODO: Test this to see if vulkan accepts it.
+    		return INDEXTYPEUINT8;
+    	case GL2VK.GL_UNSIGNED_INT:
+    		return VK_INDEX_TYPE_UINT32;
+    	case GL2VK.GL_UNSIGNED_SHORT:
+    	default:
+    		return VK_INDEX_TYPE_UINT16;
+    	}
+    }
     
-    public void drawIndexed(int indiciesSize, long indiciesBuffer, ArrayList<Long> vertexBuffers, int offset, int type) {
-        int index = getNextCMDIndex();
-		println("call CMD_DRAW_INDEXED (index "+index+")");
-        
-		  // Int0: indiciesSize
-		  // Long0: indiciesBuffer
-		  // Int1: numBuffers
-		  // LongX: vertexBuffers
-		  // Int2: offset/type (higher bits type, lower bits offset)
-		
-        setIntArg(0, index, indiciesSize);
-        setLongArg(0, index, indiciesBuffer);
-        setIntArg(1, index, vertexBuffers.size());
-        
-        int offsettype = offset & 0x3FFFFFFF | 0xC0000000;
-        // Replace last 2 bits with type
-        
-        switch (type) {
-        case GL2VK.GL_UNSIGNED_BYTE:
-        	// 1
-        	offsettype &= 0x40000000;
-        	break;
-        case GL2VK.GL_UNSIGNED_INT:
-        	// 2
-        	offsettype &= 0x80000000;
-        	break;
-        case GL2VK.GL_UNSIGNED_SHORT:
-        	// 3
-        	offsettype &= 0xC0000000;
-        	break;
-        }
-        
-        setIntArg(2, index, offsettype);
-        
-        for (int i = 0; i < vertexBuffers.size(); i++) {
-        	setLongArg(i+1, index, vertexBuffers.get(i));
+    // In bytes
+    static int indexSize(int glType) {
+    	switch (glType) {
+    	case GL2VK.GL_UNSIGNED_BYTE:
+    		return 1;
+    	case GL2VK.GL_UNSIGNED_INT:
+    		return 4;
+    	case GL2VK.GL_UNSIGNED_SHORT:
+    	default:
+    		return 2;
+    	}
+    }
+    
+    // Vertex buffers in a draw get packed into the payload as longs.
+    // Both sides of this are static so the tests can check they don't allocate.
+    static void putBuffers(CommandQueue queue, int index, long[] buffers) {
+        for (int i = 0; i < buffers.length; i++) {
+        	queue.putLong(index+i*8, buffers[i]);
         }
+    }
+    
+    // Reads count buffers into out (and sets its limit to count).
+    static void getBuffers(CommandQueue queue, int index, int count, LongBuffer out) {
+    	out.limit(count);
+    	for (int i = 0; i < count; i++) {
+    		out.put(i, queue.getLong(index+i*8));
+    	}
+    }
+
+    public void drawArrays(long[] buffers, int size, int first) {
+		println("call CMD_DRAW_ARRAYS");
+		// Int0:  size
+		// Int1:  first
+		// Int2:  numBuffers
+		// (4 bytes padding)
+		// LongX: vertexBuffers
+    	int numBuffers = buffers.length;
+        int p = claim(CMD_DRAW_ARRAYS, 16+numBuffers*8);
+
+        cmdQueue.putInt(p, size);
+        cmdQueue.putInt(p+4, first);
+        cmdQueue.putInt(p+8, numBuffers);
+        putBuffers(cmdQueue, p+16, buffers);
+        submit();
+    }
+    
+    
+    public void drawIndexed(int indiciesSize, long indiciesBuffer, long[] vertexBuffers, int offset, int type) {
+		println("call CMD_DRAW_INDEXED");
+		// Int0:  indiciesSize
+		// Int1:  numBuffers
+		// Int2:  offset
+		// Int3:  type (GL type)
+		// Long0: indiciesBuffer
+		// LongX: vertexBuffers
+    	int numBuffers = vertexBuffers.length;
+        int p = claim(CMD_DRAW_INDEXED, 24+numBuffers*8);
+
+        cmdQueue.putInt(p, indiciesSize);
+        cmdQueue.putInt(p+4, numBuffers);
+        cmdQueue.putInt(p+8, offset);
+        cmdQueue.putInt(p+12, type);
+        cmdQueue.putLong(p+16, indiciesBuffer);
+        putBuffers(cmdQueue, p+24, vertexBuffers);
+        submit();
+    }
+    
+    public void drawArraysInstanced(long[] buffers, int size, int first, int instanceCount, int firstInstance) {
+		println("call CMD_DRAW_ARRAYS_INSTANCED");
+		// Int0:  size
+		// Int1:  first
+		// Int2:  numBuffers
+		// Int3:  instanceCount
+		// Int4:  firstInstance
+		// (4 bytes padding)
+		// LongX: vertexBuffers
+    	int numBuffers = buffers.length;
+        int p = claim(CMD_DRAW_ARRAYS_INSTANCED, 24+numBuffers*8);
 
-        cmdID.set(index, CMD_DRAW_INDEXED);
-        wakeThread(index);
+        cmdQueue.putInt(p, size);
+        cmdQueue.putInt(p+4, first);
+        cmdQueue.putInt(p+8, numBuffers);
+        cmdQueue.putInt(p+12, instanceCount);
+        cmdQueue.putInt(p+16, firstInstance);
+        putBuffers(cmdQueue, p+24, buffers);
+        submit();
+    }
+    
+    public void drawIndexedInstanced(int indiciesSize, long indiciesBuffer, long[] vertexBuffers, int offset, int type, int instanceCount, int firstInstance) {
+		println("call CMD_DRAW_INDEXED_INSTANCED");
+		// Same as drawIndexed plus
+		// Int6:  instanceCount
+		// Int7:  firstInstance
+		// LongX: vertexBuffers
+    	int numBuffers = vertexBuffers.length;
+        int p = claim(CMD_DRAW_INDEXED_INSTANCED, 32+numBuffers*8);
+
+        cmdQueue.putInt(p, indiciesSize);
+        cmdQueue.putInt(p+4, numBuffers);
+        cmdQueue.putInt(p+8, offset);
+        cmdQueue.putInt(p+12, type);
+        cmdQueue.putLong(p+16, indiciesBuffer);
+        cmdQueue.putInt(p+24, instanceCount);
+        cmdQueue.putInt(p+28, firstInstance);
+        putBuffers(cmdQueue, p+32, vertexBuffers);
+        submit();
+    }
+    
+    
+    // Draws count[i] vertices from first[i] for each i < drawCount, all in one command
+    // (as long as there's no more than MAX_MULTI_DRAW of them).
+    public void multiDrawArrays(long[] buffers, int[] first, int[] count, int drawCount) {
+    	for (int start = 0; start < drawCount; start += MAX_MULTI_DRAW) {
+    		int n = Math.min(MAX_MULTI_DRAW, drawCount-start);
+    		println("call CMD_MULTI_DRAW_ARRAYS");
+    		// Int0:  drawCount
+    		// Int1:  numBuffers
+    		// LongX: vertexBuffers
+    		// then (Int first, Int count) for each draw
+    		int numBuffers = buffers.length;
+    		int p = claim(CMD_MULTI_DRAW_ARRAYS, 8+numBuffers*8+n*8);
+    		
+    		cmdQueue.putInt(p, n);
+    		cmdQueue.putInt(p+4, numBuffers);
+    		putBuffers(cmdQueue, p+8, buffers);
+    		int ranges = p+8+numBuffers*8;
+    		for (int i = 0; i < n; i++) {
+    			cmdQueue.putInt(ranges+i*8, first[start+i]);
+    			cmdQueue.putInt(ranges+i*8+4, count[start+i]);
+    		}
+    		submit();
+    	}
+    }
+    
+    // Same idea, offsets are byte offsets into the index buffer like glDrawElements
+    // (and need to be a multiple of the index size).
+    public void multiDrawIndexed(long indiciesBuffer, long[] vertexBuffers, int[] count, int[] offsets, int type, int drawCount) {
+    	for (int start = 0; start < drawCount; start += MAX_MULTI_DRAW) {
+    		int n = Math.min(MAX_MULTI_DRAW, drawCount-start);
+    		println("call CMD_MULTI_DRAW_INDEXED");
+    		// Int0:  drawCount
+    		// Int1:  numBuffers
+    		// Int2:  type (GL type)
+    		// (4 bytes padding)
+    		// Long0: indiciesBuffer
+    		// LongX: vertexBuffers
+    		// then (Int count, Int offset) for each draw
+    		int numBuffers = vertexBuffers.length;
+    		int p = claim(CMD_MULTI_DRAW_INDEXED, 24+numBuffers*8+n*8);
+    		
+    		cmdQueue.putInt(p, n);
+    		cmdQueue.putInt(p+4, numBuffers);
+    		cmdQueue.putInt(p+8, type);
+    		cmdQueue.putLong(p+16, indiciesBuffer);
+    		putBuffers(cmdQueue, p+24, vertexBuffers);
+    		int ranges = p+24+numBuffers*8;
+    		for (int i = 0; i < n; i++) {
+    			cmdQueue.putInt(ranges+i*8, count[start+i]);
+    			cmdQueue.putInt(ranges+i*8+4, offsets[start+i]);
+    		}
+    		submit();
+    	}
+    }
+    
+    // Draws straight from an indirect buffer on the GPU. indiciesBuffer and type are
+    // only used when indexed.
+    public void drawIndirect(boolean indexed, long indirectBuffer, long offset, int drawCount, int stride, long[] vertexBuffers, long indiciesBuffer, int type) {
+    	println("call CMD_DRAW_INDIRECT");
+    	int numBuffers = vertexBuffers.length;
+    	int p = claim(indexed ? CMD_DRAW_INDEXED_INDIRECT : CMD_DRAW_INDIRECT, 40+numBuffers*8);
+    	
+    	cmdQueue.putLong(p, indirectBuffer);
+    	cmdQueue.putLong(p+8, offset);
+    	cmdQueue.putInt(p+16, drawCount);
+    	cmdQueue.putInt(p+20, stride);
+    	cmdQueue.putInt(p+24, numBuffers);
+    	cmdQueue.putInt(p+28, type);
+    	cmdQueue.putLong(p+32, indiciesBuffer);
+    	putBuffers(cmdQueue, p+40, vertexBuffers);
+    	submit();
     }
     
     
@@ -685,146 +1089,168 @@ public class ThreadNode {
     // mat4, vec2, another vec2
     // We would need a class that contains the args we wanna pass tho.
     public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, ByteBuffer buffer) {
-    	int index = getNextCMDIndex();
-		println("call CMD_PUSH_CONSTANT (index "+index+")");
-		  // Long0:   pipelineLayout
-		  // Int0:    Size/offset/vertexOrFragment
-		  // Long1-X: bufferData (needs to be reconstructed
-    	setLongArg(0, index, pipelineLayout);
-    	
-    	int size = buffer.capacity();
-
-    	// Let's combine it into a single int argument to reduce memory usage
-    	// Layout: ssssssssoooooooooooooooovvvvvvvv
-    	// Remember that none of these should ever be bigger than their limits
-    	int arg0 = 0;
-    	arg0 |= size << 24;
-    	arg0 |= ((offset << 8) & 0x00FFFF00);
-    	arg0 |= (vertexOrFragment & 0x000000FF);
-    	setIntArg(0, index, arg0);
+		println("call CMD_PUSH_CONSTANT");
+    	pushConstant(pipelineLayout, vertexOrFragment, offset, buffer, 0, buffer.capacity());
+    }
+    
+    // Same as above but only pushes size bytes starting from bufferOffset in the buffer.
+    public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, ByteBuffer buffer, int bufferOffset, int size) {
+    	int p = pushConstant(pipelineLayout, vertexOrFragment, offset, size);
     	
-    	// Now, we need to do the unhinged:
-    	// Stuff an entire buffer into the long args.
-    	// If we use the entire 256 bytes of pushConstant space,
-    	// we will need 32 long args altogether so it's not too bad I guess??
-    	int arg = 1;
-    	for (int i = 0; i < size; i += Long.BYTES) {
-    		setLongArg(arg++, index, buffer.getLong());
-    	}
+    	// Much nicer than the old way of stuffing the entire buffer into
+    	// long args 8 bytes at a time.
+    	cmdQueue.putBytes(p+16, buffer, bufferOffset, size);
 
-        cmdID.set(index, CMD_PUSH_CONSTANT);
-        wakeThread(index);
+    	submit();
     }
     
     private int pushConstant(long pipelineLayout, int vertexOrFragment, int offset, int size) {
-    	int index = getNextCMDIndex();
-    	
-    	println("call CMD_PUSH_CONSTANT (index "+index+")");
 		  // Long0:   pipelineLayout
-		  // Int0:    Size/offset/vertexOrFragment
-		  // Long1-X: bufferData (needs to be reconstructed
-	  	setLongArg(0, index, pipelineLayout);
-	
-	  	// Let's combine it into a single int argument to reduce memory usage
-	  	// Layout: ssssssssoooooooooooooooovvvvvvvv
+		  // Int0:    size
+		  // Int1:    vertexOrFragment/offset
+		  //          Layout: vvvvvvvvvvvvvvvvoooooooooooooooo
+		  // Bytes:   bufferData
+    	int p = claim(CMD_PUSH_CONSTANT, 16+size);
+    	
+    	cmdQueue.putLong(p, pipelineLayout);
+    	cmdQueue.putInt(p+8, size);
 	  	// Remember that none of these should ever be bigger than their limits
-	  	int arg0 = 0;
-	  	arg0 |= size << 24;
-	  	arg0 |= ((offset << 8) & 0x00FFFF00);
-	  	arg0 |= (vertexOrFragment & 0x000000FF);
-	  	setIntArg(0, index, arg0);
+    	cmdQueue.putInt(p+12, (vertexOrFragment << 16) | (offset & 0x0000FFFF));
 	  	
-	  	return index;
+	  	return p;
     }
     
     public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, float val) {
-		int index = pushConstant(pipelineLayout, vertexOrFragment, offset, 4);
+		int p = pushConstant(pipelineLayout, vertexOrFragment, offset, 4);
 
-		setLongArg(1, index, Float.floatToIntBits(val) & 0xFFFFFFFFL);
+		cmdQueue.putFloat(p+16, val);
 		
-        cmdID.set(index, CMD_PUSH_CONSTANT);
-        wakeThread(index);
+        submit();
     }
 
     public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, float val0, float val1) {
-		int index = pushConstant(pipelineLayout, vertexOrFragment, offset, 8);
+		int p = pushConstant(pipelineLayout, vertexOrFragment, offset, 8);
 
-		setLongArg(1, index, (Float.floatToIntBits(val0) & 0xFFFFFFFFL) | ((Float.floatToIntBits(val1) & 0xFFFFFFFFL) << 32));
+		cmdQueue.putFloat(p+16, val0);
+		cmdQueue.putFloat(p+20, val1);
 		
-        cmdID.set(index, CMD_PUSH_CONSTANT);
-        wakeThread(index);
+        submit();
     }
 
     public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, float val0, float val1, float val2) {
-		int index = pushConstant(pipelineLayout, vertexOrFragment, offset, 12);
+		int p = pushConstant(pipelineLayout, vertexOrFragment, offset, 12);
 
-		setLongArg(1, index, (Float.floatToIntBits(val0) & 0xFFFFFFFFL) | ((Float.floatToIntBits(val1) & 0xFFFFFFFFL) << 32));
-		setLongArg(2, index, (Float.floatToIntBits(val2) & 0xFFFFFFFFL));
+		cmdQueue.putFloat(p+16, val0);
+		cmdQueue.putFloat(p+20, val1);
+		cmdQueue.putFloat(p+24, val2);
 		
-        cmdID.set(index, CMD_PUSH_CONSTANT);
-        wakeThread(index);
+        submit();
     }
 
     public void pushConstant(long pipelineLayout, int vertexOrFragment, int offset, float val0, float val1, float val2, float val3) {
-		int index = pushConstant(pipelineLayout, vertexOrFragment, offset, 16);
+		int p = pushConstant(pipelineLayout, vertexOrFragment, offset, 16);
 
-		setLongArg(1, index, (Float.floatToIntBits(val0) & 0xFFFFFFFFL) | ((Float.floatToIntBits(val1) & 0xFFFFFFFFL) << 32));
-		setLongArg(2, index, (Float.floatToIntBits(val2) & 0xFFFFFFFFL) | ((Float.floatToIntBits(val3) & 0xFFFFFFFFL) << 32));
+		cmdQueue.putFloat(p+16, val0);
+		cmdQueue.putFloat(p+20, val1);
+		cmdQueue.putFloat(p+24, val2);
+		cmdQueue.putFloat(p+28, val3);
 		
-        cmdID.set(index, CMD_PUSH_CONSTANT);
-        wakeThread(index);
+        submit();
     }
     
     
-    public void bufferData(long srcBuffer, long dstBuffer, int size) {
-        int index = getNextCMDIndex();
-        setLongArg(0, index, srcBuffer);
-        setLongArg(1, index, dstBuffer);
-        setIntArg(0, index, size);
-        // Remember, last thing we should set is cmdID, set it before and
-        // our thread may begin executing drawArrays without all the commands
-        // being properly set.
-        cmdID.set(index, CMD_BUFFER_DATA);
-        wakeThread(index);
-    }
-    
     public void bindPipeline(long pipeline) {
     	if (currentPipeline != pipeline) {
-	        int index = getNextCMDIndex();
-			println("call CMD_BIND_PIPELINE (index "+index+")");
+			println("call CMD_BIND_PIPELINE");
 			currentPipeline = pipeline;
-			setLongArg(0, index, pipeline);
-	        cmdID.set(index, CMD_BIND_PIPELINE);
-	        wakeThread(index);
+	        int p = claim(CMD_BIND_PIPELINE, 8);
+	        cmdQueue.putLong(p, pipeline);
+	        submit();
     	}
     }
 
     
 	public void beginRecord(int currentFrame, int currentImage) {
 		println("call begin record");
-        int index = getNextCMDIndex();
-        setIntArg(0, index, currentImage);
-        setIntArg(1, index, currentFrame);
-        cmdID.set(index, CMD_BEGIN_RECORD);
-        
-        wakeThread(index);
+        int p = claim(CMD_BEGIN_RECORD, 8);
+        cmdQueue.putInt(p, currentImage);
+        cmdQueue.putInt(p+4, currentFrame);
+        submit();
+        recording = true;
+	}
+	
+	// Records a display list's commands into its command buffer for the given image.
+	// Everything between this and endList() goes into the list instead of this node's
+	// command buffer. Needs to be in the middle of a frame.
+	public void beginList(int listID, int image) {
+		println("call CMD_BEGIN_LIST");
+        int p = claim(CMD_BEGIN_LIST, 8);
+        cmdQueue.putInt(p, listID);
+        cmdQueue.putInt(p+4, image);
+        submit();
+        // New command buffer, so nothing's bound.
+        pipelineBeforeList = currentPipeline;
+        currentPipeline = 0L;
+	}
+	
+	public void endList() {
+		println("call CMD_END_LIST");
+        claim(CMD_END_LIST, 0);
+        submit();
+        currentPipeline = pipelineBeforeList;
+	}
+	
+	// Ends the command buffer we're recording this frame and carries on in a new one,
+	// with the same pipeline and push constants bound, so that something else (a display
+	// list) can be executed in between the two. See ExecuteOrder.
+	// currentPipeline stays as it is since the node binds it again itself.
+	public void nextSegment() {
+		println("call CMD_NEXT_SEGMENT");
+        claim(CMD_NEXT_SEGMENT, 0);
+        submit();
+	}
+	
+	// Node thread. Segment 0 is the frame's normal command buffer.
+	private VkCommandBuffer segmentBuffer(int frame, int segment) {
+		if (segment == 0) return cmdbuffers[frame];
+		ArrayList<VkCommandBuffer> extra = segmentBuffers.get(frame);
+		while (extra.size() < segment) {
+			try(MemoryStack stack = stackPush()) {
+	            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack);
+	            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+	            allocInfo.commandPool(commandPool);
+	            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_SECONDARY);
+	            allocInfo.commandBufferCount(1);
+	            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+	            if(vkAllocateCommandBuffers(vkbase.device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+	                throw new RuntimeException("Failed to allocate command buffers");
+	            }
+	            extra.add(new VkCommandBuffer(pCommandBuffer.get(0), vkbase.device));
+			}
+		}
+		return extra.get(segment-1);
+	}
+	
+	public boolean isRecording() {
+		return recording;
 	}
 	
 	public void endRecord() {
-        int index = getNextCMDIndex();
-        cmdID.set(index, CMD_END_RECORD);
-		println("call CMD_END_RECORD (index "+index+")");
+		println("call CMD_END_RECORD");
+        claim(CMD_END_RECORD, 0);
         // No arguments
-        wakeThread(index);
+        // End of the frame, so send out whatever's left of the batch.
+        flush();
 		currentPipeline = 0;
+		recording = false;
+		if (metrics != null) metrics.mainFrameDone();
 	}
 
 	public void kill() {
 		println("kill thread");
-        int index = getNextCMDIndex();
-        cmdID.set(index, CMD_KILL);
+        claim(CMD_KILL, 0);
         // No arguments
-        wakeThread(index);
+        flush();
 	}
 	
 	public void killAndCleanup() {
@@ -840,43 +1266,37 @@ public class ThreadNode {
 		// Now clean up our mess
 		
 		if (openCmdBuffer.get() == true) {
-			vkEndCommandBuffer(cmdbuffers[currentFrame.get()]);
+			vkEndCommandBuffer(recordingBuffer);
 		}
 		
 		try(MemoryStack stack = stackPush()) {
 			ArrayList<VkCommandBuffer> deleteList = new ArrayList<VkCommandBuffer>();
 			for (int i = 0; i < cmdbuffers.length; i++) {
 				deleteList.add(cmdbuffers[i]);
+				deleteList.addAll(segmentBuffers.get(i));
 			}
 			vkFreeCommandBuffers(system.device, commandPool, Util.asPointerBuffer(stack, deleteList));
 		}
 		vkDestroyCommandPool(system.device, commandPool, null);
+		
+		for (int i = 0; i < indirectBuffers.length; i++) {
+			vkDestroyBuffer(system.device, indirectBuffers[i], null);
+			vkFreeMemory(system.device, indirectMemory[i], null);
+		}
 	}
 	
 	public VkCommandBuffer getBuffer() {
 		return cmdbuffers[currentFrame.get()];
 	}
 	
-	public void await() {
-		int count = 0;
-		// We wait until it has finished its commands
-		
-		// In order for the thread to be properly done its work it must:
-		// - be in sleep mode
-		// - its cmd buffer must be closed
-		while (
-				!(threadState.get() == STATE_SLEEPING &&
-				openCmdBuffer.get() == false)
-				) {
-			
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-			}
-			if (count == 500) {
-				System.err.println("("+this.myID+") BUG WARNING  looplock'd waiting for a thread that won't respond (state "+threadState.get()+")");
-			}
-			count++;
-		}
+	// For the main thread, which already knows which frame it is.
+	public VkCommandBuffer getBuffer(int frame) {
+		return cmdbuffers[frame];
+	}
+	
+	// Main thread, only once the node's finished the frame (after the frame barrier).
+	public VkCommandBuffer getBuffer(int frame, int segment) {
+		if (segment == 0) return cmdbuffers[frame];
+		return segmentBuffers.get(frame).get(segment-1);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,521 @@
+package gl2vk4p;
+
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSemaphoreCreateInfo;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+// Non-danger-mode glBufferData used to submit a copy and vkQueueWaitIdle straight away,
+// so every upload stalled the main thread until the GPU was done with it.
+// Now the copies just get queued up here, and all of a frame's copies go in one
+// submission on the transfer queue right before the frame's graphics submission,
+// which waits on our semaphore instead of the CPU waiting on anything.
+// With a separate transfer queue family, the buffers are exclusive to the graphics
+// family, so the transfer queue releases them after copying and the graphics queue
+// acquires them (in an acquire command buffer that goes in front of the frame's command buffer).
+// Copies can overwrite a buffer the previous frame's still drawing with, so they wait for
+// that first: a barrier on the same queue, or a semaphore from the last graphics submission
+// (graphicsSignal()) across queue families.
+// Danger mode uploads (in the middle of a frame) don't go on the transfer queue,
+// they get recorded into the frame's upload command buffer instead, which runs on the
+// graphics queue before the frame's render pass (copies aren't allowed inside one).
+// Main thread only.
+public class UploadEngine {
+
+	// Each frame flushes once (normally), and a slot is only reused once its fence
+	// has signalled.
+	private final static int SLOTS = VulkanSystem.MAX_FRAMES_IN_FLIGHT*2;
+	// Where the graphics submission waits on our semaphore.
+	public final static int WAIT_STAGES = VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT
+			| VK_PIPELINE_STAGE_TRANSFER_BIT;
+
+	private VKSetup vkbase;
+	private VkQueue queue;
+	private boolean crossFamily;
+	private int transferFamily;
+	private int graphicsFamily;
+
+	private long transferPool;
+	private long graphicsPool;
+
+	private VkCommandBuffer[] transferCmds = new VkCommandBuffer[SLOTS];
+	private VkCommandBuffer[] acquireCmds = new VkCommandBuffer[SLOTS];
+	private long[] semaphores = new long[SLOTS];
+	private long[] fences = new long[SLOTS];
+	private boolean[] submitted = new boolean[SLOTS];
+	// Which staging ring sections each slot's copies read from.
+	private int[] sectionMasks = new int[SLOTS];
+	private int nextSlot = 0;
+
+	// Cross family only. Each frame's graphics submission signals one (by frame number), and
+	// the next flush waits on the latest. Twice as many as frames in flight, so one nobody
+	// waited on can be waited on by a later frame (graphicsStale()) before it comes round again.
+	private final static int GRAPHICS_SEMAPHORES = VulkanSystem.MAX_FRAMES_IN_FLIGHT*2;
+	private long[] graphicsSemaphores = new long[GRAPHICS_SEMAPHORES];
+	// Signalled but not waited on yet.
+	private boolean[] graphicsUnwaited = new boolean[GRAPHICS_SEMAPHORES];
+	private int lastGraphics = -1;
+
+	// Copies waiting for the next flush
+	private long[] srcBuffers = new long[64];
+	private long[] srcOffsets = new long[64];
+	private long[] dstBuffers = new long[64];
+	private int[] sizes = new int[64];
+	private int pendingCount = 0;
+	private int pendingSections = 0;
+	
+	// Copies for the current frame's upload command buffer
+	private VkCommandBuffer[] frameCmds = new VkCommandBuffer[VulkanSystem.MAX_FRAMES_IN_FLIGHT];
+	private long[] frameSrcBuffers = new long[64];
+	private long[] frameSrcOffsets = new long[64];
+	private long[] frameDstBuffers = new long[64];
+	private long[] frameDstOffsets = new long[64];
+	private int[] frameSizes = new int[64];
+	private int frameCount = 0;
+
+	private long uploadCount = 0L;
+	private long flushCount = 0L;
+
+	public UploadEngine(VKSetup vkbase) {
+		this.vkbase = vkbase;
+		crossFamily = vkbase.useTransferQueue;
+		graphicsFamily = vkbase.queueIndicies.graphicsFamily;
+		if (crossFamily) {
+			transferFamily = vkbase.queueIndicies.transferFamily;
+			queue = vkbase.transferQueue;
+		}
+		else {
+			transferFamily = graphicsFamily;
+			queue = vkbase.graphicsQueue;
+		}
+
+		try(MemoryStack stack = stackPush()) {
+			VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.calloc(stack);
+			poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+			poolInfo.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+			LongBuffer pCommandPool = stack.mallocLong(1);
+
+			poolInfo.queueFamilyIndex(transferFamily);
+			if (vkCreateCommandPool(vkbase.device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create upload command pool");
+			}
+			transferPool = pCommandPool.get(0);
+
+			poolInfo.queueFamilyIndex(graphicsFamily);
+			if (vkCreateCommandPool(vkbase.device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create upload command pool");
+			}
+			graphicsPool = pCommandPool.get(0);
+
+			allocateCommandBuffers(stack, transferPool, transferCmds);
+			allocateCommandBuffers(stack, graphicsPool, acquireCmds);
+			allocateCommandBuffers(stack, graphicsPool, frameCmds);
+
+			VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.calloc(stack);
+			semaphoreInfo.sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.calloc(stack);
+			fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			LongBuffer pSemaphore = stack.mallocLong(1);
+			LongBuffer pFence = stack.mallocLong(1);
+			for (int i = 0; i < SLOTS; i++) {
+				if (vkCreateSemaphore(vkbase.device, semaphoreInfo, null, pSemaphore) != VK_SUCCESS
+				|| vkCreateFence(vkbase.device, fenceInfo, null, pFence) != VK_SUCCESS) {
+					throw new RuntimeException("Failed to create upload synchronization objects");
+				}
+				semaphores[i] = pSemaphore.get(0);
+				fences[i] = pFence.get(0);
+			}
+			if (crossFamily) {
+				for (int i = 0; i < GRAPHICS_SEMAPHORES; i++) {
+					if (vkCreateSemaphore(vkbase.device, semaphoreInfo, null, pSemaphore) != VK_SUCCESS) {
+						throw new RuntimeException("Failed to create upload synchronization objects");
+					}
+					graphicsSemaphores[i] = pSemaphore.get(0);
+				}
+			}
+		}
+	}
+
+	private void allocateCommandBuffers(MemoryStack stack, long pool, VkCommandBuffer[] out) {
+		VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack);
+		allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+		allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+		allocInfo.commandPool(pool);
+		allocInfo.commandBufferCount(out.length);
+		PointerBuffer pCommandBuffers = stack.mallocPointer(out.length);
+		if (vkAllocateCommandBuffers(vkbase.device, allocInfo, pCommandBuffers) != VK_SUCCESS) {
+			throw new RuntimeException("Failed to allocate upload command buffers");
+		}
+		for (int i = 0; i < out.length; i++) {
+			out[i] = new VkCommandBuffer(pCommandBuffers.get(i), vkbase.device);
+		}
+	}
+
+	// Buffers the uploads go into need to be exclusive to the graphics family for
+	// the release/acquire to mean anything.
+	public boolean exclusiveBuffers() {
+		return crossFamily;
+	}
+
+	// Queues a copy for the next flush. The staging data needs to stay put until then
+	// (section is the StagingRing section it's in).
+	public void copy(long srcBuffer, long srcOffset, long dstBuffer, int size, int section) {
+		if (pendingCount == sizes.length) {
+			int newLength = sizes.length*2;
+			srcBuffers = Arrays.copyOf(srcBuffers, newLength);
+			srcOffsets = Arrays.copyOf(srcOffsets, newLength);
+			dstBuffers = Arrays.copyOf(dstBuffers, newLength);
+			sizes = Arrays.copyOf(sizes, newLength);
+		}
+		srcBuffers[pendingCount] = srcBuffer;
+		srcOffsets[pendingCount] = srcOffset;
+		dstBuffers[pendingCount] = dstBuffer;
+		sizes[pendingCount] = size;
+		pendingCount++;
+		pendingSections |= 1 << section;
+		uploadCount++;
+	}
+
+	// Queues a copy for the current frame's upload command buffer. Happens on the graphics
+	// queue before the render pass, so before every draw in the frame.
+	// Consecutive copies between the same two buffers get recorded as one vkCmdCopyBuffer.
+	public void copyInFrame(long srcBuffer, long srcOffset, long dstBuffer, long dstOffset, int size) {
+		if (frameCount == frameSizes.length) {
+			int newLength = frameSizes.length*2;
+			frameSrcBuffers = Arrays.copyOf(frameSrcBuffers, newLength);
+			frameSrcOffsets = Arrays.copyOf(frameSrcOffsets, newLength);
+			frameDstBuffers = Arrays.copyOf(frameDstBuffers, newLength);
+			frameDstOffsets = Arrays.copyOf(frameDstOffsets, newLength);
+			frameSizes = Arrays.copyOf(frameSizes, newLength);
+		}
+		frameSrcBuffers[frameCount] = srcBuffer;
+		frameSrcOffsets[frameCount] = srcOffset;
+		frameDstBuffers[frameCount] = dstBuffer;
+		frameDstOffsets[frameCount] = dstOffset;
+		frameSizes[frameCount] = size;
+		frameCount++;
+		uploadCount++;
+	}
+
+	// The buffer's about to be destroyed, drop any copies into it that haven't been submitted.
+	public void cancel(long dstBuffer) {
+		int j = 0;
+		for (int i = 0; i < pendingCount; i++) {
+			if (dstBuffers[i] == dstBuffer) continue;
+			srcBuffers[j] = srcBuffers[i];
+			srcOffsets[j] = srcOffsets[i];
+			dstBuffers[j] = dstBuffers[i];
+			sizes[j] = sizes[i];
+			j++;
+		}
+		pendingCount = j;
+		
+		j = 0;
+		for (int i = 0; i < frameCount; i++) {
+			if (frameDstBuffers[i] == dstBuffer) continue;
+			frameSrcBuffers[j] = frameSrcBuffers[i];
+			frameSrcOffsets[j] = frameSrcOffsets[i];
+			frameDstBuffers[j] = frameDstBuffers[i];
+			frameDstOffsets[j] = frameDstOffsets[i];
+			frameSizes[j] = frameSizes[i];
+			j++;
+		}
+		frameCount = j;
+	}
+	
+	// Frame copies that were made between frames (after the last submit) would end up in
+	// the next frame's upload command buffer, but their staging data's in the previous
+	// frame's section. Send them the transfer queue way instead, that keeps track of sections.
+	// Only whole buffer copies can go that way though (the transfer queue would need to own
+	// the buffer to keep the rest of it). Partial ones only come from GraphicsBuffer.flushDirty()
+	// right before recordFrame() anyway, so they shouldn't be here.
+	public void deferFrameCopies(int section) {
+		int j = 0;
+		for (int i = 0; i < frameCount; i++) {
+			if (frameDstOffsets[i] == 0L) {
+				copy(frameSrcBuffers[i], frameSrcOffsets[i], frameDstBuffers[i], frameSizes[i], section);
+				// Already counted
+				uploadCount--;
+			}
+			else {
+				frameSrcBuffers[j] = frameSrcBuffers[i];
+				frameSrcOffsets[j] = frameSrcOffsets[i];
+				frameDstBuffers[j] = frameDstBuffers[i];
+				frameDstOffsets[j] = frameDstOffsets[i];
+				frameSizes[j] = frameSizes[i];
+				j++;
+			}
+		}
+		frameCount = j;
+	}
+	
+	// Records the frame's upload command buffer, or returns null if there's nothing this frame.
+	// Only call once the frame's fence has been waited on.
+	public VkCommandBuffer recordFrame(int frame) {
+		if (frameCount == 0) return null;
+		
+		VkCommandBuffer cmd = frameCmds[frame];
+		try(MemoryStack stack = stackPush()) {
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc(stack);
+			beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+			beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			vkResetCommandBuffer(cmd, 0);
+			vkBeginCommandBuffer(cmd, beginInfo);
+			
+			int readStages = VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT;
+			// The previous frame might still be drawing with the old contents, so wait for
+			// that (execution only, nothing to make visible).
+			vkCmdPipelineBarrier(cmd, readStages, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, null);
+			
+			VkBufferCopy.Buffer copyRegions = VkBufferCopy.calloc(frameCount, stack);
+			int i = 0;
+			while (i < frameCount) {
+				// Run of copies between the same buffers
+				int n = 0;
+				do {
+					VkBufferCopy region = copyRegions.get(n++);
+					region.srcOffset(frameSrcOffsets[i+n-1]);
+					region.dstOffset(frameDstOffsets[i+n-1]);
+					region.size(frameSizes[i+n-1]);
+				} while (i+n < frameCount && frameSrcBuffers[i+n] == frameSrcBuffers[i] && frameDstBuffers[i+n] == frameDstBuffers[i]);
+				copyRegions.limit(n);
+				vkCmdCopyBuffer(cmd, frameSrcBuffers[i], frameDstBuffers[i], copyRegions);
+				copyRegions.clear();
+				i += n;
+			}
+			
+			// One barrier for the whole lot.
+			VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, stack);
+			barrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+			barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+			barrier.dstAccessMask(VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT | VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_INDIRECT_COMMAND_READ_BIT);
+			vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, readStages, 0, barrier, null, null);
+			
+			vkEndCommandBuffer(cmd);
+		}
+		frameCount = 0;
+		return cmd;
+	}
+
+	public boolean hasPending() {
+		return pendingCount > 0;
+	}
+
+	// Semaphore for the given frame's graphics submission to signal, VK_NULL_HANDLE if
+	// there's only the one queue family.
+	public long graphicsSignal(long frame) {
+		if (!crossFamily) return VK_NULL_HANDLE;
+		int i = (int)(frame % GRAPHICS_SEMAPHORES);
+		graphicsUnwaited[i] = true;
+		lastGraphics = i;
+		return graphicsSemaphores[i];
+	}
+
+	// Semaphore the given frame's graphics submission needs to wait on (anywhere, it's long
+	// done) or VK_NULL_HANDLE. That's the one from MAX_FRAMES_IN_FLIGHT frames ago if no flush
+	// waited on it, a binary semaphore has to be waited on before it can be signalled again.
+	public long graphicsStale(long frame) {
+		if (!crossFamily || frame < VulkanSystem.MAX_FRAMES_IN_FLIGHT) return VK_NULL_HANDLE;
+		int i = (int)((frame-VulkanSystem.MAX_FRAMES_IN_FLIGHT) % GRAPHICS_SEMAPHORES);
+		if (!graphicsUnwaited[i]) return VK_NULL_HANDLE;
+		graphicsUnwaited[i] = false;
+		return graphicsSemaphores[i];
+	}
+
+	// Submits all the queued copies in one go. Returns the slot, which has a semaphore
+	// (and with a separate transfer family, an acquire command buffer) that the graphics
+	// submission needs to wait on/run first. Returns -1 if there was nothing to do.
+	public int flush() {
+		if (pendingCount == 0) return -1;
+
+		int slot = nextSlot;
+		nextSlot = (nextSlot+1) % SLOTS;
+		waitSlot(slot);
+
+		try(MemoryStack stack = stackPush()) {
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc(stack);
+			beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+			beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+			// Transfer side: copies, then release
+			VkCommandBuffer cmd = transferCmds[slot];
+			vkResetCommandBuffer(cmd, 0);
+			vkBeginCommandBuffer(cmd, beginInfo);
+			if (!crossFamily) {
+				// Same as recordFrame(), the previous frame might still be drawing with what we're
+				// about to overwrite (execution only). Across families the semaphore sorts that out.
+				vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT,
+						VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, null);
+			}
+			VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack);
+			for (int i = 0; i < pendingCount; i++) {
+				copyRegion.srcOffset(srcOffsets[i]);
+				copyRegion.dstOffset(0);
+				copyRegion.size(sizes[i]);
+				vkCmdCopyBuffer(cmd, srcBuffers[i], dstBuffers[i], copyRegion);
+			}
+
+			// Transfer too, since the frame's upload command buffer might write the same buffers.
+			int dstStages = WAIT_STAGES;
+			int dstAccess = VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT | VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_INDIRECT_COMMAND_READ_BIT
+					| VK_ACCESS_TRANSFER_WRITE_BIT;
+			if (crossFamily) {
+				VkBufferMemoryBarrier.Buffer release = ownershipBarriers(stack);
+				for (VkBufferMemoryBarrier b : release) b.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT).dstAccessMask(0);
+				vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, release, null);
+			}
+			else {
+				// Same queue, a plain memory barrier does it.
+				VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, stack);
+				barrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+				barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+				barrier.dstAccessMask(dstAccess);
+				vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, dstStages, 0, barrier, null, null);
+			}
+			vkEndCommandBuffer(cmd);
+
+			// Graphics side: acquire
+			if (crossFamily) {
+				VkCommandBuffer acquireCmd = acquireCmds[slot];
+				vkResetCommandBuffer(acquireCmd, 0);
+				vkBeginCommandBuffer(acquireCmd, beginInfo);
+				VkBufferMemoryBarrier.Buffer acquire = ownershipBarriers(stack);
+				for (VkBufferMemoryBarrier b : acquire) b.srcAccessMask(0).dstAccessMask(dstAccess);
+				vkCmdPipelineBarrier(acquireCmd, dstStages, dstStages, 0, null, acquire, null);
+				vkEndCommandBuffer(acquireCmd);
+			}
+
+			VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack);
+			submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+			submitInfo.pCommandBuffers(stack.pointers(cmd));
+			submitInfo.pSignalSemaphores(stack.longs(semaphores[slot]));
+			if (crossFamily && lastGraphics != -1 && graphicsUnwaited[lastGraphics]) {
+				// Wait for the last frame (and everything before it on the graphics queue)
+				// to be done with the buffers.
+				submitInfo.waitSemaphoreCount(1);
+				submitInfo.pWaitSemaphores(stack.longs(graphicsSemaphores[lastGraphics]));
+				submitInfo.pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_TRANSFER_BIT));
+				graphicsUnwaited[lastGraphics] = false;
+			}
+
+			vkResetFences(vkbase.device, fences[slot]);
+			if (vkQueueSubmit(queue, submitInfo, fences[slot]) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to submit upload command buffer");
+			}
+		}
+
+		submitted[slot] = true;
+		sectionMasks[slot] = pendingSections;
+		pendingCount = 0;
+		pendingSections = 0;
+		flushCount++;
+		return slot;
+	}
+
+	// Flush without a graphics submission to hand the semaphore to. Runs the acquire
+	// on its own instead (still no CPU wait).
+	public void flushStandalone() {
+		int slot = flush();
+		if (slot == -1) return;
+		try(MemoryStack stack = stackPush()) {
+			VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack);
+			submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+			submitInfo.waitSemaphoreCount(1);
+			submitInfo.pWaitSemaphores(stack.longs(semaphores[slot]));
+			submitInfo.pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT));
+			if (crossFamily) {
+				submitInfo.pCommandBuffers(stack.pointers(acquireCmds[slot]));
+			}
+			if (vkQueueSubmit(vkbase.graphicsQueue, submitInfo, VK_NULL_HANDLE) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to submit upload acquire");
+			}
+		}
+	}
+
+	private VkBufferMemoryBarrier.Buffer ownershipBarriers(MemoryStack stack) {
+		VkBufferMemoryBarrier.Buffer barriers = VkBufferMemoryBarrier.calloc(pendingCount, stack);
+		for (int i = 0; i < pendingCount; i++) {
+			VkBufferMemoryBarrier b = barriers.get(i);
+			b.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER);
+			b.srcQueueFamilyIndex(transferFamily);
+			b.dstQueueFamilyIndex(graphicsFamily);
+			b.buffer(dstBuffers[i]);
+			b.offset(0);
+			b.size(VK_WHOLE_SIZE);
+		}
+		return barriers;
+	}
+
+	public long getSemaphore(int slot) {
+		return semaphores[slot];
+	}
+
+	// null if there's no ownership transfer (same queue family).
+	public VkCommandBuffer getAcquireBuffer(int slot) {
+		return crossFamily ? acquireCmds[slot] : null;
+	}
+
+	// Called before the staging ring reuses a section. Makes sure every copy reading from
+	// it is done.
+	public void waitForSection(int section) {
+		if ((pendingSections & (1 << section)) != 0) {
+			// Never got flushed (no frame got submitted since?)
+			flushStandalone();
+		}
+		for (int i = 0; i < SLOTS; i++) {
+			if ((sectionMasks[i] & (1 << section)) != 0) {
+				waitSlot(i);
+			}
+		}
+	}
+
+	private void waitSlot(int slot) {
+		if (submitted[slot]) {
+			vkWaitForFences(vkbase.device, fences[slot], true, Util.UINT64_MAX);
+			submitted[slot] = false;
+			sectionMasks[slot] = 0;
+		}
+	}
+
+	public void destroy() {
+		for (int i = 0; i < SLOTS; i++) {
+			waitSlot(i);
+			vkDestroySemaphore(vkbase.device, semaphores[i], null);
+			vkDestroyFence(vkbase.device, fences[i], null);
+		}
+		if (crossFamily) {
+			for (int i = 0; i < GRAPHICS_SEMAPHORES; i++) {
+				vkDestroySemaphore(vkbase.device, graphicsSemaphores[i], null);
+			}
+		}
+		// Frees the command buffers with them
+		vkDestroyCommandPool(vkbase.device, transferPool, null);
+		vkDestroyCommandPool(vkbase.device, graphicsPool, null);
+	}
+
+	// Stats
+
+	public long getUploadCount() {
+		return uploadCount;
+	}
+
+	// Number of transfer submissions.
+	public long getFlushCount() {
+		return flushCount;
+	}
+}
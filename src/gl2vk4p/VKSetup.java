@@ -96,6 +96,7 @@ import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO;
 import static org.lwjgl.vulkan.VK10.VK_QUEUE_TRANSFER_BIT;
 import static org.lwjgl.vulkan.VK10.VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT;
+import static org.lwjgl.vulkan.VK10.VK_UUID_SIZE;
 
 
 import java.nio.IntBuffer;
@@ -185,6 +186,14 @@ public class VKSetup {
     public long transferCommandPool;
     public QueueFamilyIndices queueIndicies;
     public int pushConstantsSizeLimit = 0;
+    // What a pipeline cache from disk has to match (see PipelineCache)
+    public int vendorID = 0;
+    public int deviceID = 0;
+    public byte[] pipelineCacheUUID = new byte[VK_UUID_SIZE];
+    // Whether vkCmdDraw(Indexed)Indirect can take a drawCount more than 1.
+    public boolean multiDrawIndirect = false;
+    // Where GraphicsBuffers get their memory from.
+    public MemoryAllocator allocator;
     
     public boolean useTransferQueue = true;
     
@@ -196,6 +205,7 @@ public class VKSetup {
         vkwindow.createSurface(instance);
         pickPhysicalDevice();
         createLogicalDevice();
+        allocator = new MemoryAllocator(this, MemoryAllocator.DEFAULT_BLOCK_SIZE);
         createSwapChain();
         createImageViews();
     }
@@ -235,6 +245,8 @@ public class VKSetup {
     }
     
     public void destroyOtherThings() {
+    	allocator.destroy();
+    	
     	// Only need to destroy these "other things" (transfer stuff)
     	// if we're using the transfer queue.
 		if (useTransferQueue) {
@@ -442,6 +454,7 @@ public class VKSetup {
             }
 
             VkPhysicalDeviceFeatures deviceFeatures = VkPhysicalDeviceFeatures.calloc(stack);
+            deviceFeatures.multiDrawIndirect(multiDrawIndirect);
 
             VkDeviceCreateInfo createInfo = VkDeviceCreateInfo.calloc(stack);
 
@@ -639,6 +652,10 @@ public class VKSetup {
         boolean swapChainAdequate = false;
         boolean integrated = false;
         int pushConstantsSize = 0;
+        boolean multiDraw = false;
+        int vendor = 0;
+        int deviceId = 0;
+        byte[] uuid = new byte[VK_UUID_SIZE];
 
         if(extensionsSupported) {
             try(MemoryStack stack = stackPush()) {
@@ -649,6 +666,10 @@ public class VKSetup {
                 vkGetPhysicalDeviceFeatures(device, deviceFeatures);
                 
                 pushConstantsSize = deviceProperties.limits().maxPushConstantsSize();
+                multiDraw = deviceFeatures.multiDrawIndirect();
+                vendor = deviceProperties.vendorID();
+                deviceId = deviceProperties.deviceID();
+                deviceProperties.pipelineCacheUUID().get(uuid);
                 
                 SwapChainSupportDetails swapChainSupport = querySwapChainSupport(device, stack);
                 swapChainAdequate = swapChainSupport.formats.hasRemaining() && swapChainSupport.presentModes.hasRemaining();
@@ -660,6 +681,10 @@ public class VKSetup {
         // Set values here cus I'm too lazy to do it properly
         if (suitable) {
         	pushConstantsSizeLimit = pushConstantsSize;
+        	multiDrawIndirect = multiDraw;
+        	vendorID = vendor;
+        	deviceID = deviceId;
+        	pipelineCacheUUID = uuid;
         }
         return suitable;
     }
@@ -700,7 +725,7 @@ public class VKSetup {
                 // Only if transferQueue is enabled.
                 if(useTransferQueue && queueFamilies.capacity() == 1){
 //                    indices.transferFamily = i;
-                	useTransferQueue = false;
+                	useTransferQueue = false;
                 }
 
                 vkGetPhysicalDeviceSurfaceSupportKHR(device, i, vkwindow.surface, presentSupport);
@@ -862,8 +887,61 @@ public class VKSetup {
         }
     }
 
+    // Same as createBuffer, but the memory comes out of the allocator's blocks instead
+    // of its own vkAllocateMemory. Free it with allocator.free().
+    public MemoryAllocator.Allocation allocateBuffer(long size, int usage, int properties, LongBuffer pBuffer) {
+    	return allocateBuffer(size, usage, properties, false, pBuffer);
+    }
+    
+    // exclusive: owned by one queue family at a time, and handed between the transfer and
+    // graphics queues with release/acquire barriers (see UploadEngine) instead of being concurrent.
+    public MemoryAllocator.Allocation allocateBuffer(long size, int usage, int properties, boolean exclusive, LongBuffer pBuffer) {
+    	return allocateBuffer(size, usage, properties, 0, exclusive, pBuffer);
+    }
     
-    public void copyBufferTransfer(long srcBuffer, long dstBuffer, long size) {
+    // preferredProperties are used too if there's a memory type that has them
+    // (e.g. host visible memory that's also device local).
+    public MemoryAllocator.Allocation allocateBuffer(long size, int usage, int properties, int preferredProperties, boolean exclusive, LongBuffer pBuffer) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkBufferCreateInfo bufferInfo = VkBufferCreateInfo.calloc(stack);
+            bufferInfo.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO);
+            bufferInfo.size(size);
+            bufferInfo.usage(usage);
+            
+            if (useTransferQueue && !exclusive) {
+	            QueueFamilyIndices queueFamilies = findQueueFamilies(physicalDevice);
+	            bufferInfo.pQueueFamilyIndices(stack.ints(queueFamilies.graphicsFamily, queueFamilies.transferFamily));
+	            bufferInfo.sharingMode(VK_SHARING_MODE_CONCURRENT);
+            }
+            else {
+                bufferInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+            }
+
+            if(vkCreateBuffer(device, bufferInfo, null, pBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create vertex buffer");
+            }
+
+            VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
+            vkGetBufferMemoryRequirements(device, pBuffer.get(0), memRequirements);
+
+            int memoryType = -1;
+            if (preferredProperties != 0) {
+            	memoryType = findMemoryTypeOrNone(stack, memRequirements.memoryTypeBits(), properties | preferredProperties);
+            }
+            if (memoryType == -1) {
+            	memoryType = findMemoryType(stack, memRequirements.memoryTypeBits(), properties);
+            }
+            MemoryAllocator.Allocation alloc = allocator.allocate(memRequirements.size(), memRequirements.alignment(), memoryType, memoryTypeFlags(stack, memoryType));
+
+            vkBindBufferMemory(device, pBuffer.get(0), alloc.memory, alloc.offset);
+            return alloc;
+        }
+    }
+
+    
+    public void copyBufferTransfer(long srcBuffer, long srcOffset, long dstBuffer, long size) {
 //    	
         try(MemoryStack stack = stackPush()) {
 
@@ -876,6 +954,7 @@ public class VKSetup {
             vkBeginCommandBuffer(transferCommandBuffer, beginInfo);
             {
                 VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack);
+                copyRegion.srcOffset(srcOffset);
                 copyRegion.size(size);
                 vkCmdCopyBuffer(transferCommandBuffer, srcBuffer, dstBuffer, copyRegion);
             }
@@ -894,14 +973,14 @@ public class VKSetup {
     
     
     
-    public void copyBufferAndWait(long srcBuffer, long dstBuffer, long size) {
+    public void copyBufferAndWait(long srcBuffer, long srcOffset, long dstBuffer, long size) {
     	// Too lazy to combine it into one function
     	if (useTransferQueue) {
-    		copyBufferTransfer(srcBuffer, dstBuffer, size);
+    		copyBufferTransfer(srcBuffer, srcOffset, dstBuffer, size);
             vkQueueWaitIdle(transferQueue);
     	}
     	else {
-    		copyBufferDefault(srcBuffer, dstBuffer, size);
+    		copyBufferDefault(srcBuffer, srcOffset, dstBuffer, size);
             vkQueueWaitIdle(graphicsQueue);
     	}
 
@@ -910,7 +989,7 @@ public class VKSetup {
     
 
     
-    private void copyBufferDefault(long srcBuffer, long dstBuffer, long size) {
+    private void copyBufferDefault(long srcBuffer, long srcOffset, long dstBuffer, long size) {
 
         try(MemoryStack stack = stackPush()) {
 
@@ -931,6 +1010,7 @@ public class VKSetup {
             vkBeginCommandBuffer(commandBuffer, beginInfo);
             {
                 VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack);
+                copyRegion.srcOffset(srcOffset);
                 copyRegion.size(size);
                 vkCmdCopyBuffer(commandBuffer, srcBuffer, dstBuffer, copyRegion);
             }
@@ -952,6 +1032,22 @@ public class VKSetup {
 
 
     private int findMemoryType(MemoryStack stack, int typeFilter, int properties) {
+    	int type = findMemoryTypeOrNone(stack, typeFilter, properties);
+    	if (type == -1) {
+    		throw new RuntimeException("Failed to find suitable memory type");
+    	}
+    	return type;
+    }
+    
+    // What the memory type actually is, can be more than what was asked for.
+    private int memoryTypeFlags(MemoryStack stack, int memoryType) {
+        VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
+        vkGetPhysicalDeviceMemoryProperties(physicalDevice, memProperties);
+        return memProperties.memoryTypes(memoryType).propertyFlags();
+    }
+    
+    // -1 if there isn't one
+    private int findMemoryTypeOrNone(MemoryStack stack, int typeFilter, int properties) {
 
         VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
         vkGetPhysicalDeviceMemoryProperties(physicalDevice, memProperties);
@@ -962,7 +1058,7 @@ public class VKSetup {
             }
         }
 
-        throw new RuntimeException("Failed to find suitable memory type");
+        return -1;
     }
 
 
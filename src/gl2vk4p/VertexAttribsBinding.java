@@ -1,7 +1,9 @@
 package gl2vk4p;
 
+import static org.lwjgl.vulkan.VK10.VK_VERTEX_INPUT_RATE_INSTANCE;
 import static org.lwjgl.vulkan.VK10.VK_VERTEX_INPUT_RATE_VERTEX;
 
+import java.util.Arrays;
 import java.util.HashSet;
 
 import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
@@ -67,8 +69,6 @@ public class VertexAttribsBinding {
 	public GraphicsBuffer buffer = null;
 	private ShaderAttribInfo attribInfo;
 	
-	private int stateHash = 0;
-	
 	private HashSet<Integer> usedLocations = new HashSet<Integer>();
 	
 	public VertexAttribsBinding(int binding, ShaderAttribInfo attribInfo) {
@@ -103,27 +103,38 @@ public class VertexAttribsBinding {
 		usedLocations.add(location);
 		
 		// What's set by this function determines the state of the pipeline (if
-		// it changes at any point, we need to recreate the pipeline with new
-		// vertex bindings)
-		
-		// TODO: Remove this, move it to getStateHash() instead.
-		stateHash += (location+1L)*usedLocations.size()*100L + size*2 + offset*3;
+		// it changes at any point, we need a pipeline with different vertex bindings,
+		// see getHashState())
 	}
 	
 	// Mostly used for testing purposes
 	public void vertexAttribPointer(int location) {
 		// We're using those attribs
 		usedLocations.add(location);
-		
-		// TODO: Remove this, move it to getStateHash() instead.
-		stateHash += (location+1L)*usedLocations.size()*100L + 
-				attribInfo.locationToAttrib[location].size*2 + 
-				attribInfo.locationToAttrib[location].offset*3;
 	}
 	
-	// TODO: Calculate hash state on the spot instead of relying on possibly invalid states.
-	public int getHashState() {
-		return stateHash;
+	// Everything that ends up in the binding/attribute descriptions, packed into longs:
+	// binding+stride, attrib count, then location+format and offset+divisor for each attrib
+	// in location order. Same layout = same values, no matter how many times
+	// vertexAttribPointer was called to get there.
+	public long[] getLayout(int[] divisors) {
+		int[] locations = new int[usedLocations.size()];
+		int i = 0;
+		for (Integer loc : usedLocations) {
+			locations[i++] = loc;
+		}
+		Arrays.sort(locations);
+		
+		long[] layout = new long[2+locations.length*2];
+		layout[0] = ((long)myBinding << 32) | (bindingStride & 0xFFFFFFFFL);
+		layout[1] = locations.length;
+		i = 2;
+		for (int loc : locations) {
+			ShaderAttribInfo.AttribInfo attrib = attribInfo.locationToAttrib[loc];
+			layout[i++] = ((long)loc << 32) | (attrib.format & 0xFFFFFFFFL);
+			layout[i++] = ((long)attrib.offset << 32) | (divisors[loc] & 0xFFFFFFFFL);
+		}
+		return layout;
 	}
 	
 	public void updateAttributeDescriptions(VkVertexInputAttributeDescription.Buffer attribDescrptions, int index) {
@@ -140,10 +151,23 @@ public class VertexAttribsBinding {
 		return usedLocations.size();
 	}
 	
-	public void updateBindingDescription(VkVertexInputBindingDescription bindingDescription) {
+	// divisors is indexed by vk location (see glVertexAttribDivisor). In vulkan the input
+	// rate is for the whole binding, not each attrib, so if any of our attribs are per-instance
+	// the whole binding is.
+	public void updateBindingDescription(VkVertexInputBindingDescription bindingDescription, int[] divisors) {
 		bindingDescription.binding(myBinding);
 		bindingDescription.stride(bindingStride);
-		bindingDescription.inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
+		
+		boolean perInstance = false;
+		boolean perVertex = false;
+		for (Integer loc : usedLocations) {
+			if (divisors[loc] > 0) perInstance = true;
+			else perVertex = true;
+		}
+		if (perInstance && perVertex) {
+			System.err.println("BUG WARNING  binding "+myBinding+" has both per-vertex and per-instance attribs, put the per-instance ones in their own buffer.");
+		}
+		bindingDescription.inputRate(perInstance ? VK_VERTEX_INPUT_RATE_INSTANCE : VK_VERTEX_INPUT_RATE_VERTEX);
 	}
 	
 }
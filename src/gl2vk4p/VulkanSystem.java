@@ -4,6 +4,7 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
@@ -51,16 +52,72 @@ public class VulkanSystem {
     private List<Frame> inFlightFrames;
     private Map<Integer, Frame> imagesInFlight;
     private int currentFrame;
+    // Counts up every beginRecord(). Every frame up to completedFrame is done on the GPU.
+    public long frameNumber = 0L;
+    public long completedFrame = 0L;
+    // Buffers that got replaced or deleted (GraphicsBuffer.destroy()) while a frame in flight
+    // might still be using them, with the frameNumber they were retired in. Freed once
+    // completedFrame's caught up with that, same idea as StagingRing's overflow buffers.
+    private ArrayList<Long> retiredBuffers = new ArrayList<Long>();
+    private ArrayList<MemoryAllocator.Allocation> retiredMemory = new ArrayList<MemoryAllocator.Allocation>();
+    private ArrayList<Long> retiredFrame = new ArrayList<Long>();
+    
+    // Created when the first pipeline is, so the directory can still be changed until then.
+    private PipelineCache pipelineCache = null;
+    private File cacheDirectory = defaultCacheDirectory();
 
     boolean framebufferResize;
     
     public VKSetup vkbase;
+    // All uploads get staged through this.
+    public StagingRing stagingRing;
+    // And non-danger-mode uploads get submitted by this.
+    public UploadEngine uploader;
+    // Buffers with glBufferSubData ranges waiting to be uploaded.
+    public ArrayList<GraphicsBuffer> dirtyBuffers = new ArrayList<GraphicsBuffer>();
     
 	private int selectedNode = 0;
-	private ThreadNode[] threadNodes = new ThreadNode[7];
+	private ThreadNode[] threadNodes;
+	// Set by setNodeCount(), the pool gets resized at the start of the next frame.
+	private int requestedNodeCount;
+	private int activeNodeCount = 0;
+	// How the nodes wait for work, see WaitStrategy.
+	private int waitPolicy = WaitStrategy.SPIN_PARK;
+	private int batchSize = ThreadNode.DEFAULT_BATCH_SIZE;
+	private boolean metricsEnabled = false;
+	// Reused every frame for vkCmdExecuteCommands.
+	private List<VkCommandBuffer> executeList = new ArrayList<>();
+	private int backpressurePolicy = ThreadNode.BACKPRESSURE_PARK;
+	// Nodes arrive here once they've ended their command buffer.
+	public FrameBarrier frameBarrier = new FrameBarrier();
+	// Splits the frame up across the nodes (when enabled, see CommandSharder).
+	private CommandSharder sharder;
+	
+	// Display lists by id. Copied when it grows, so the nodes can look lists up without locking.
+	private volatile DisplayList[] displayLists = new DisplayList[1];
+	// Deleted lists get destroyed at the start of the next frame, once the GPU's done with them.
+	private ArrayList<DisplayList> deletedLists = new ArrayList<>();
+	// Lists called this frame, in order. Each call starts a new "epoch", anything given
+	// to a node after a call gets executed after that list (see ExecuteOrder).
+	private ArrayList<DisplayList> calledLists = new ArrayList<>();
+	private ExecuteOrder executeOrder = new ExecuteOrder();
     
 
     // ======= METHODS ======= //
+    
+    public VulkanSystem() {
+    	this(defaultNodeCount());
+    }
+    
+    public VulkanSystem(int nodeCount) {
+    	threadNodes = new ThreadNode[0];
+    	requestedNodeCount = Math.max(1, nodeCount);
+    }
+    
+    // One node per core, leaving one for the main thread.
+    public static int defaultNodeCount() {
+    	return Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+    }
 
     public void run() {
         initVulkan();
@@ -79,6 +136,9 @@ public class VulkanSystem {
         createCommandPool();
         createCommandBuffers();
         createSyncObjects();
+        sharder = new CommandSharder(vkbase.pushConstantsSizeLimit);
+        stagingRing = new StagingRing(vkbase, StagingRing.DEFAULT_FRAME_SIZE);
+        uploader = new UploadEngine(vkbase);
         createThreadNodes();
     }
     
@@ -96,9 +156,92 @@ public class VulkanSystem {
     	for (ThreadNode n : threadNodes) {
     		n.killAndCleanup();
     	}
+    	
+    	for (DisplayList list : displayLists) {
+    		if (list != null) list.destroy();
+    	}
+    	for (DisplayList list : deletedLists) {
+    		list.destroy();
+    	}
+    	deletedLists.clear();
+    }
+    
+    // Waits until the GPU's finished every frame that's been submitted.
+    public void waitForFrames() {
+        for(int i = 0; i < inFlightFrames.size(); i++) {
+            vkWaitForFences(device, inFlightFrames.get(i).pFence(), true, Util.UINT64_MAX);
+        }
+        completedFrame = frameNumber;
+        freeRetiredBuffers();
+    }
+    
+    // The buffer could still be used by the frame being recorded (or the last one that was
+    // submitted, if we're in between frames), so that's the frame it's retired in.
+    public void retireBuffer(long buffer, MemoryAllocator.Allocation memory) {
+    	retiredBuffers.add(buffer);
+    	retiredMemory.add(memory);
+    	retiredFrame.add(frameNumber);
+    }
+    
+    private void freeRetiredBuffers() {
+    	// Retired in order, so the done ones are all at the start.
+    	int done = 0;
+    	while (done < retiredFrame.size() && retiredFrame.get(done) <= completedFrame) {
+    		vkDestroyBuffer(device, retiredBuffers.get(done), null);
+    		vkbase.allocator.free(retiredMemory.get(done));
+    		done++;
+    	}
+    	if (done > 0) {
+    		retiredBuffers.subList(0, done).clear();
+    		retiredMemory.subList(0, done).clear();
+    		retiredFrame.subList(0, done).clear();
+    	}
+    }
+    
+    public int getRetiredBufferCount() {
+    	return retiredBuffers.size();
+    }
+    
+    public static File defaultCacheDirectory() {
+    	return new File(System.getProperty("user.home"), ".gl2vk4p");
+    }
+    
+    // null to not keep anything on disk. Only works before the first pipeline's created.
+    public void setCacheDirectory(File directory) {
+    	if (pipelineCache != null) {
+    		System.err.println("GL2VK WARNING  setCacheDirectory: pipeline cache's already been loaded, this won't do anything.");
+    		return;
+    	}
+    	cacheDirectory = directory;
+    }
+    
+    public File getCacheDirectory() {
+    	return cacheDirectory;
+    }
+    
+    // Handle to pass to vkCreateGraphicsPipelines
+    public long getPipelineCache() {
+    	if (pipelineCache == null) {
+    		pipelineCache = new PipelineCache(vkbase, cacheDirectory);
+    	}
+    	return pipelineCache.handle;
+    }
+    
+    // null if no pipelines have been created yet
+    public PipelineCache getPipelineCacheObject() {
+    	return pipelineCache;
     }
     
     public void cleanupRest() {
+    	if (pipelineCache != null) {
+    		pipelineCache.save();
+    		pipelineCache.destroy();
+    	}
+    	uploader.destroy();
+    	stagingRing.destroy();
+    	// cleanupNodes() has already waited for every frame.
+    	completedFrame = frameNumber;
+    	freeRetiredBuffers();
     	vkbase.destroyOtherThings();
 
         cleanupSwapChain();
@@ -130,9 +273,66 @@ public class VulkanSystem {
     
     
     private void createThreadNodes() {
-    	for (int i = 0; i < threadNodes.length; i++) {
-    		threadNodes[i] = new ThreadNode(this, i);
+    	resizeNodePool(requestedNodeCount);
+    }
+    
+    // Only safe between frames.
+    private void resizeNodePool(int count) {
+    	int oldCount = threadNodes.length;
+    	if (count == oldCount) return;
+    	
+    	ThreadNode[] newNodes = Arrays.copyOf(threadNodes, count);
+    	
+    	if (count < oldCount) {
+    		// The nodes we're getting rid of might still have command buffers in flight.
+            for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+                vkWaitForFences(device, inFlightFrames.get(i).pFence(), true, Util.UINT64_MAX);
+            }
+    		for (int i = count; i < oldCount; i++) {
+    			threadNodes[i].killAndCleanup();
+    		}
+    	}
+    	else {
+    		for (int i = oldCount; i < count; i++) {
+    			newNodes[i] = new ThreadNode(this, i);
+    			newNodes[i].setBatchSize(batchSize);
+    			newNodes[i].setMetricsEnabled(metricsEnabled);
+    			newNodes[i].setBackpressurePolicy(backpressurePolicy);
+    		}
+    	}
+    	threadNodes = newNodes;
+    	if (selectedNode >= count) {
+    		selectedNode = 0;
+    	}
+    }
+    
+    // Grows or shrinks the node pool. Can be called whenever, but it only
+    // actually happens at the start of the next frame.
+    public void setNodeCount(int count) {
+    	requestedNodeCount = Math.max(1, count);
+    }
+    
+    // Returns the node that commands should go to, and starts its command buffer
+    // if it's the first thing it's been given this frame. Nodes that don't get
+    // given anything never begin/end recording and get left out of vkCmdExecuteCommands.
+    // If a list's been called since the node started recording, it moves onto a new
+    // segment so this goes after the list.
+    private ThreadNode activeNode() {
+    	ThreadNode n = threadNodes[selectedNode];
+    	if (executeOrder.needsSegment(selectedNode)) {
+    		if (!n.isRecording()) {
+	    		n.beginRecord(currentFrame, currentImageIndex);
+	    		// Automatic sharding: carry on with the state the last node left behind.
+	    		if (sharder.enabled()) {
+	    			sharder.replay(n);
+	    		}
+    		}
+    		else {
+    			n.nextSegment();
+    		}
+    		executeOrder.startSegment(selectedNode);
     	}
+    	return n;
     }
     
 
@@ -326,6 +526,12 @@ public class VulkanSystem {
     public VkRenderPassBeginInfo renderPassInfo = null;
 
     public void beginRecord() {
+    	// Good time to change the number of nodes since none of them are doing anything.
+    	resizeNodePool(requestedNodeCount);
+    	destroyDeletedLists();
+    	calledLists.clear();
+    	executeOrder.beginFrame(threadNodes.length);
+    	
     	// All the stuff that was before recordCommandBuffer()
         try(MemoryStack stack = stackPush()) {
         	
@@ -333,6 +539,14 @@ public class VulkanSystem {
             Frame thisFrame = inFlightFrames.get(currentFrame);
 
             vkWaitForFences(device, thisFrame.pFence(), true, Util.UINT64_MAX);
+            frameNumber++;
+            completedFrame = frameNumber-MAX_FRAMES_IN_FLIGHT;
+            freeRetiredBuffers();
+            // GPU's done copying out of this frame's staging memory.
+            // (the transfer queue might not be though)
+            uploader.deferFrameCopies(stagingRing.getSection());
+            uploader.waitForSection(currentFrame);
+            stagingRing.beginFrame(currentFrame);
             
             IntBuffer currentImageIndex = stack.mallocInt(1);
 
@@ -397,10 +611,13 @@ public class VulkanSystem {
 //            vkCmdBindPipeline(currentCommandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, graphicsPipeline);
         }
 
-        // And then begin our thread nodes (secondary command buffers)
-        // TODO: other thread nodes
-    	for (ThreadNode n : threadNodes) {
-    		n.beginRecord(currentFrame, imageIndex);
+        // Our thread nodes (secondary command buffers) begin when they're first
+        // given a command (see activeNode()).
+    	
+    	if (sharder.enabled()) {
+    		// Always start from the first node so that the segments are in order.
+    		selectedNode = 0;
+    		sharder.beginFrame(threadNodes.length);
     	}
         
     }
@@ -409,23 +626,51 @@ public class VulkanSystem {
     public void endRecord() {
     	// Before we can end recording, we need to think about our secondary command buffers
 
+    	sharder.endFrame();
+    	
+    	// Only the nodes that actually got given something this frame.
+    	List<VkCommandBuffer> cmdbuffers = executeList;
+    	cmdbuffers.clear();
+    	activeNodeCount = 0;
     	for (ThreadNode n : threadNodes) {
-	    	n.endRecord();
+    		if (n.isRecording()) {
+    			activeNodeCount++;
+    		}
+    		else {
+    			n.skippedFrame();
+    		}
     	}
-    	for (ThreadNode n : threadNodes) {
-    		n.await();
+    	if (activeNodeCount > 0) {
+	    	// Barrier needs to be set up before any of the nodes can possibly finish.
+	    	frameBarrier.reset(activeNodeCount);
+	    	for (ThreadNode n : threadNodes) {
+	    		if (n.isRecording()) {
+	    			n.endRecord();
+	    		}
+	    	}
+	    	// Wakes up as soon as the last node's done (including any display lists
+	    	// they were recording).
+	    	frameBarrier.await();
     	}
     	
-    	// TODO: TEST NODE
-    	try(MemoryStack stack = stackPush()) {
-    		// TODO: avoid garbage collection by making it assign list only once.
-	    	List<VkCommandBuffer> cmdbuffers = new ArrayList<>();
-
-	    	for (ThreadNode n : threadNodes) {
-	    		cmdbuffers.add(n.getBuffer());
+    	// Only now that the nodes are done, since they allocate any extra segments themselves.
+    	// Still in node order, that's what keeps the draws in order, with each display list
+    	// after everything given to the nodes before it was called.
+    	int count = executeOrder.build();
+    	for (int i = 0; i < count; i++) {
+    		int node = executeOrder.getNode(i);
+    		if (node == ExecuteOrder.LIST) {
+    			cmdbuffers.add(calledLists.get(executeOrder.getIndex(i)).getBuffer(currentImageIndex));
+    		}
+    		else {
+    			cmdbuffers.add(threadNodes[node].getBuffer(currentFrame, executeOrder.getIndex(i)));
+    		}
+    	}
+    	
+    	if (cmdbuffers.size() > 0) {
+	    	try(MemoryStack stack = stackPush()) {
+		    	vkCmdExecuteCommands(currentCommandBuffer, Util.asPointerBuffer(stack, cmdbuffers));
 	    	}
-	    	
-	    	vkCmdExecuteCommands(currentCommandBuffer, Util.asPointerBuffer(stack, cmdbuffers));
     	}
     	
         vkCmdEndRenderPass(currentCommandBuffer);
@@ -438,30 +683,124 @@ public class VulkanSystem {
     }
     
     public void selectNode(int node) {
-    	selectedNode = node;
+    	// Automatic sharding decides the nodes for us.
+    	if (sharder.enabled()) return;
+    	// Wrap around so that code written for a bigger pool still works on a smaller one.
+    	selectedNode = node % threadNodes.length;
     }
     
     public void updateNodePipeline(long pipeline) {
     	if (pipeline != threadNodes[selectedNode].currentPipeline) {
-        	threadNodes[selectedNode].bindPipeline(pipeline);
+        	nodeBindPipeline(pipeline);
     	}
     }
     
+    // CommandSharder.MANUAL (use selectNode()), BY_DRAWS or BY_COST.
+    // Takes effect from the next frame.
+    public void setShardMode(int mode) {
+    	sharder.setMode(mode);
+    }
+    
+    public int getShardMode() {
+    	return sharder.getMode();
+    }
+    
     public int getNodesCount() {
     	return threadNodes.length;
     }
     
-
-    public void copyBufferFast(VkCommandBuffer cmdbuffer, long srcBuffer, long dstBuffer, long size) {
-        try(MemoryStack stack = stackPush()) {
-            {
-                VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack);
-                copyRegion.size(size);
-                vkCmdCopyBuffer(cmdbuffer, srcBuffer, dstBuffer, copyRegion);
-            }
-        }
+    // How many nodes actually had something to do last frame.
+    public int getActiveNodeCount() {
+    	return activeNodeCount;
     }
     
+    // How long the main thread waited for the nodes to finish in the last
+    // endRecord(), in nanoseconds.
+    public long getNodeWaitTime() {
+    	return frameBarrier.getLastWaitTime();
+    }
+    
+    // Publishes any commands that are sitting in the nodes' batches.
+    // Happens automatically at endRecord(), only needed if you want the nodes
+    // to get started early.
+    public void flushNodes() {
+    	for (ThreadNode n : threadNodes) {
+    		n.flush();
+    	}
+    }
+    
+    // In bytes, 0 to send each command to the node as soon as it's called.
+    public void setBatchSize(int bytes) {
+    	batchSize = bytes;
+    	for (ThreadNode n : threadNodes) {
+    		if (n != null) {
+    			n.setBatchSize(bytes);
+    		}
+    	}
+    }
+    
+    // What the nodes do when their queue fills up,
+    // ThreadNode.BACKPRESSURE_GROW, BACKPRESSURE_SPILL or BACKPRESSURE_PARK (default)
+    public void setBackpressurePolicy(int policy) {
+    	// Here too, there might not be any nodes to check it yet.
+    	ThreadNode.checkBackpressurePolicy(policy);
+    	for (ThreadNode n : threadNodes) {
+    		n.setBackpressurePolicy(policy);
+    	}
+    	backpressurePolicy = policy;
+    }
+    
+    // How many times the given policy has kicked in, across all nodes.
+    public long getBackpressureCount(int policy) {
+    	long total = 0L;
+    	for (ThreadNode n : threadNodes) {
+    		total += n.getBackpressureCount(policy);
+    	}
+    	return total;
+    }
+    
+    // Total binds/push constants the nodes skipped last frame because they
+    // wouldn't have changed anything (see BoundState).
+    public long getElidedCount() {
+    	long total = 0L;
+    	for (ThreadNode n : threadNodes) {
+    		total += n.getElidedCount();
+    	}
+    	return total;
+    }
+    
+    // Per-node stats (see NodeMetrics). Off by default.
+    public void setMetricsEnabled(boolean enabled) {
+    	metricsEnabled = enabled;
+    	for (ThreadNode n : threadNodes) {
+    		n.setMetricsEnabled(enabled);
+    	}
+    }
+    
+    // Last frame's stats for a node, or null if metrics are off.
+    public NodeMetrics getNodeMetrics(int node) {
+    	if (node < 0 || node >= threadNodes.length) return null;
+    	return threadNodes[node].getMetrics();
+    }
+    
+    public int getWaitPolicy() {
+    	return waitPolicy;
+    }
+    
+    // Can be called before or after the nodes are created.
+    // Each node gets its own strategy object.
+    public void setWaitPolicy(int policy) {
+    	// Create one first so that a bad policy throws before we change anything.
+    	WaitStrategy.create(policy);
+    	waitPolicy = policy;
+    	for (ThreadNode n : threadNodes) {
+    		if (n != null) {
+    			n.setWaitStrategy(WaitStrategy.create(policy));
+    		}
+    	}
+    }
+    
+
     public void submitAndPresent() {
         try(MemoryStack stack = stackPush()) {
 
@@ -471,13 +810,58 @@ public class VulkanSystem {
 	        VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
 	        submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
 	
-	        submitInfo.waitSemaphoreCount(1);
-	        submitInfo.pWaitSemaphores(thisFrame.pImageAvailableSemaphore());
-	        submitInfo.pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT));
-	
-	        submitInfo.pSignalSemaphores(thisFrame.pRenderFinishedSemaphore());
+	        // This frame's uploads go off on the transfer queue first, and we wait on
+	        // them on the GPU (before any vertex input).
+	        // glBufferSubData'd buffers upload their merged dirty ranges now, once per frame.
+	        for (int i = 0; i < dirtyBuffers.size(); i++) {
+	        	dirtyBuffers.get(i).flushDirty();
+	        }
+	        dirtyBuffers.clear();
+	        int uploadSlot = uploader.flush();
+	        // Command buffers go: acquire (from the transfer queue), the frame's in-frame
+	        // uploads, then the frame itself. First two are only there if there's anything to do.
+	        PointerBuffer pCommandBuffers = stack.mallocPointer(3);
+	        LongBuffer pWaitSemaphores = stack.mallocLong(3);
+	        IntBuffer pWaitStages = stack.mallocInt(3);
+	        pWaitSemaphores.put(thisFrame.imageAvailableSemaphore());
+	        pWaitStages.put(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+	        // Signal from a few frames back that no flush waited on (see UploadEngine.graphicsStale()).
+	        long stale = uploader.graphicsStale(frameNumber);
+	        if (stale != VK_NULL_HANDLE) {
+	        	pWaitSemaphores.put(stale);
+	        	pWaitStages.put(VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT);
+	        }
+	        if (uploadSlot != -1) {
+	        	pWaitSemaphores.put(uploader.getSemaphore(uploadSlot));
+	        	pWaitStages.put(UploadEngine.WAIT_STAGES);
+		        VkCommandBuffer acquire = uploader.getAcquireBuffer(uploadSlot);
+		        if (acquire != null) {
+		        	// Takes ownership of the buffers back from the transfer queue
+		        	pCommandBuffers.put(acquire);
+		        }
+	        }
+	        VkCommandBuffer frameUploads = uploader.recordFrame(currentFrame);
+	        if (frameUploads != null) {
+	        	pCommandBuffers.put(frameUploads);
+	        }
+	        pCommandBuffers.put(commandBuffers.get(currentFrame));
+	        pCommandBuffers.flip();
+	        submitInfo.pCommandBuffers(pCommandBuffers);
+	        pWaitSemaphores.flip();
+	        pWaitStages.flip();
+	        submitInfo.waitSemaphoreCount(pWaitSemaphores.remaining());
+	        submitInfo.pWaitSemaphores(pWaitSemaphores);
+	        submitInfo.pWaitDstStageMask(pWaitStages);
 	
-	        submitInfo.pCommandBuffers(stack.pointers(commandBuffers.get(currentFrame)));
+	        // With a separate transfer queue, the next flush waits on this so it doesn't
+	        // overwrite buffers this frame's still drawing with.
+	        long uploadsWait = uploader.graphicsSignal(frameNumber);
+	        if (uploadsWait != VK_NULL_HANDLE) {
+	        	submitInfo.pSignalSemaphores(stack.longs(thisFrame.renderFinishedSemaphore(), uploadsWait));
+	        }
+	        else {
+	        	submitInfo.pSignalSemaphores(thisFrame.pRenderFinishedSemaphore());
+	        }
 	
 	        vkResetFences(device, thisFrame.pFence());
 	
@@ -534,41 +918,186 @@ public class VulkanSystem {
     ////////////////
     // NODE COMMANDS
     ////////////////
-    public void nodeDrawArrays(ArrayList<Long> buffers, int size, int first) {
-    	threadNodes[selectedNode].drawArrays(buffers, size, first);
+    public void nodeDrawArrays(long[] buffers, int size, int first) {
+    	activeNode().drawArrays(buffers, size, first);
+    	afterDraw(buffers.length);
     }
     
-    public void nodeBufferData(long srcBuffer, long dstBuffer, int size) {
-    	threadNodes[selectedNode].bufferData(srcBuffer, dstBuffer, size);
+    public void nodeDrawArraysInstanced(long[] buffers, int size, int first, int instanceCount, int firstInstance) {
+    	activeNode().drawArraysInstanced(buffers, size, first, instanceCount, firstInstance);
+    	afterDraw(buffers.length);
+    }
+    
+    public void nodeDrawIndexedInstanced(int indiciesSize, long indiciesBuffer, long[] vertexBuffers, int offset, int type, int instanceCount, int firstInstance) {
+    	activeNode().drawIndexedInstanced(indiciesSize, indiciesBuffer, vertexBuffers, offset, type, instanceCount, firstInstance);
+    	afterDraw(vertexBuffers.length);
+    }
+    
+    // Multi-draws all go to the one node (in one command), but count as drawCount draws
+    // for the sharder.
+    public void nodeMultiDrawArrays(long[] buffers, int[] first, int[] count, int drawCount) {
+    	if (drawCount <= 0) return;
+    	activeNode().multiDrawArrays(buffers, first, count, drawCount);
+    	sharder.addCost((drawCount-1)*CommandSharder.COST_DRAW);
+    	afterDraw(buffers.length);
+    }
+    
+    public void nodeMultiDrawIndexed(long indiciesBuffer, long[] vertexBuffers, int[] count, int[] offsets, int type, int drawCount) {
+    	if (drawCount <= 0) return;
+    	activeNode().multiDrawIndexed(indiciesBuffer, vertexBuffers, count, offsets, type, drawCount);
+    	sharder.addCost((drawCount-1)*CommandSharder.COST_DRAW);
+    	afterDraw(vertexBuffers.length);
+    }
+    
+    public void nodeDrawIndirect(long indirectBuffer, long offset, int drawCount, int stride, long[] vertexBuffers) {
+    	if (drawCount <= 0) return;
+    	activeNode().drawIndirect(false, indirectBuffer, offset, drawCount, stride, vertexBuffers, 0L, 0);
+    	sharder.addCost((drawCount-1)*CommandSharder.COST_DRAW);
+    	afterDraw(vertexBuffers.length);
+    }
+    
+    public void nodeDrawIndexedIndirect(long indirectBuffer, long offset, int drawCount, int stride, long indiciesBuffer, long[] vertexBuffers, int type) {
+    	if (drawCount <= 0) return;
+    	activeNode().drawIndirect(true, indirectBuffer, offset, drawCount, stride, vertexBuffers, indiciesBuffer, type);
+    	sharder.addCost((drawCount-1)*CommandSharder.COST_DRAW);
+    	afterDraw(vertexBuffers.length);
     }
     
     public void nodeBindPipeline(long pipeline) {
-    	threadNodes[selectedNode].bindPipeline(pipeline);
+    	activeNode().bindPipeline(pipeline);
+    	if (sharder.enabled()) {
+    		sharder.recordPipeline(pipeline);
+    		sharder.addCost(CommandSharder.COST_BIND_PIPELINE);
+    	}
     }
     
-    public void nodeDrawIndexed(int indiciesSize, long indiciesBuffer, ArrayList<Long> vertexBuffers, int offset, int type) {
-    	threadNodes[selectedNode].drawIndexed(indiciesSize, indiciesBuffer, vertexBuffers, offset, type);
+    public void nodeDrawIndexed(int indiciesSize, long indiciesBuffer, long[] vertexBuffers, int offset, int type) {
+    	activeNode().drawIndexed(indiciesSize, indiciesBuffer, vertexBuffers, offset, type);
+    	afterDraw(vertexBuffers.length);
     }
     
     public void nodePushConstants(long pipelineLayout, int vertexOfFragment, int offset, ByteBuffer buffer) {
     	// We need a size because the buffer must be in multiples of 8, but we may have a half-filled long of one float.
-    	threadNodes[selectedNode].pushConstant(pipelineLayout, vertexOfFragment, offset, buffer); // TODO
+    	activeNode().pushConstant(pipelineLayout, vertexOfFragment, offset, buffer); // TODO
+    	if (sharder.enabled()) {
+    		sharder.recordPushConstant(pipelineLayout, vertexOfFragment, offset, buffer);
+    		sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+    	}
     }
     
     public void nodePushConstants(long pipelineLayout, int vertexOfFragment, int offset, float val) {
-    	threadNodes[selectedNode].pushConstant(pipelineLayout, vertexOfFragment, offset, val);
+    	activeNode().pushConstant(pipelineLayout, vertexOfFragment, offset, val);
+    	if (sharder.enabled()) {
+    		ByteBuffer shadow = sharder.recordPushConstant(pipelineLayout, vertexOfFragment, offset, 4);
+    		shadow.putFloat(offset, val);
+    		sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+    	}
     }
 
     public void nodePushConstants(long pipelineLayout, int vertexOfFragment, int offset, float val0, float val1) {
-    	threadNodes[selectedNode].pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1);
+    	activeNode().pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1);
+    	if (sharder.enabled()) {
+    		ByteBuffer shadow = sharder.recordPushConstant(pipelineLayout, vertexOfFragment, offset, 8);
+    		shadow.putFloat(offset, val0);
+    		shadow.putFloat(offset+4, val1);
+    		sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+    	}
     }
 
     public void nodePushConstants(long pipelineLayout, int vertexOfFragment, int offset, float val0, float val1, float val2) {
-    	threadNodes[selectedNode].pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1, val2);
+    	activeNode().pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1, val2);
+    	if (sharder.enabled()) {
+    		ByteBuffer shadow = sharder.recordPushConstant(pipelineLayout, vertexOfFragment, offset, 12);
+    		shadow.putFloat(offset, val0);
+    		shadow.putFloat(offset+4, val1);
+    		shadow.putFloat(offset+8, val2);
+    		sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+    	}
     }
 
     public void nodePushConstants(long pipelineLayout, int vertexOfFragment, int offset, float val0, float val1, float val2, float val3) {
-    	threadNodes[selectedNode].pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1, val2, val3);
+    	activeNode().pushConstant(pipelineLayout, vertexOfFragment, offset, val0, val1, val2, val3);
+    	if (sharder.enabled()) {
+    		ByteBuffer shadow = sharder.recordPushConstant(pipelineLayout, vertexOfFragment, offset, 16);
+    		shadow.putFloat(offset, val0);
+    		shadow.putFloat(offset+4, val1);
+    		shadow.putFloat(offset+8, val2);
+    		shadow.putFloat(offset+12, val3);
+    		sharder.addCost(CommandSharder.COST_PUSH_CONSTANT);
+    	}
+    }
+    
+    // Automatic sharding: once the current node's segment is full, move onto the next
+    // node and give it the state it needs to carry on where the last one left off.
+    private void afterDraw(int numBuffers) {
+    	if (sharder.enabled() && sharder.afterDraw(numBuffers) && selectedNode < threadNodes.length-1) {
+    		// Done with this node for the frame, let it get started.
+    		threadNodes[selectedNode].flush();
+    		// Shadow state gets replayed once the next node's given something (see activeNode()).
+    		selectedNode++;
+    	}
+    }
+    
+    
+    ////////////////
+    // DISPLAY LISTS
+    ////////////////
+    
+    public DisplayList createDisplayList(int id) {
+    	DisplayList list = new DisplayList(id, this, swapChainFramebuffers.size());
+    	DisplayList[] lists = displayLists;
+    	if (id >= lists.length) {
+    		lists = Arrays.copyOf(lists, Math.max(id+1, lists.length*2));
+    	}
+    	else {
+    		lists = lists.clone();
+    	}
+    	lists[id] = list;
+    	displayLists = lists;
+    	return list;
+    }
+    
+    // Called by the nodes
+    public DisplayList getDisplayList(int id) {
+    	return displayLists[id];
+    }
+    
+    // Executes a display list at this point in the frame, re-recording it first
+    // (on the current node) if anything it uses has changed.
+    // Anything given to a node after this goes after the list (see ExecuteOrder). In manual
+    // mode that means the node starts a new segment, with automatic sharding we just
+    // move onto the next node.
+    public void callList(DisplayList list) {
+    	if (list.needsRecord(currentImageIndex)) {
+    		list.record(activeNode(), currentImageIndex);
+    	}
+    	calledLists.add(list);
+    	executeOrder.callList();
+    	
+    	if (sharder.enabled() && threadNodes[selectedNode].isRecording() && selectedNode < threadNodes.length-1) {
+    		threadNodes[selectedNode].flush();
+    		selectedNode++;
+    	}
+    }
+    
+    public void deleteDisplayList(int id) {
+    	DisplayList[] lists = displayLists.clone();
+    	if (id < 0 || id >= lists.length || lists[id] == null) return;
+    	deletedLists.add(lists[id]);
+    	lists[id] = null;
+    	displayLists = lists;
+    }
+    
+    private void destroyDeletedLists() {
+    	if (deletedLists.isEmpty()) return;
+    	// Could still be in use by any of the frames in flight.
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            vkWaitForFences(device, inFlightFrames.get(i).pFence(), true, Util.UINT64_MAX);
+        }
+    	for (DisplayList list : deletedLists) {
+    		list.destroy();
+    	}
+    	deletedLists.clear();
     }
     
     
@@ -0,0 +1,170 @@
+package gl2vk4p;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// How a ThreadNode waits for work when its queue is empty, and how the main
+// thread gets it going again.
+// We used to Thread.sleep() forever and then interrupt() the thread, which was slow
+// (a few microseconds per wakeup) and needed a whole bunch of states to avoid races.
+// Each node gets its own instance since some of them keep state.
+//
+// Pick one with VulkanSystem.setWaitPolicy():
+// - BUSY_SPIN:  never sleeps. Lowest latency, but eats a whole core per node even when idle.
+// - SPIN_YIELD: spins for a bit, then keeps yielding to other threads.
+// - SPIN_PARK:  spins for a bit, then parks until the main thread unparks it (default).
+// - BLOCKING:   waits on a lock/condition straight away. Least CPU, most latency.
+public abstract class WaitStrategy {
+
+	public final static int BUSY_SPIN = 1;
+	public final static int SPIN_YIELD = 2;
+	public final static int SPIN_PARK = 3;
+	public final static int BLOCKING = 4;
+
+	// How many times we check the queue before giving up the cpu.
+	// Thread.onSpinWait() is roughly 10s of ns so this is in the range of tens of us.
+	protected final static int SPIN_TRIES = 1000;
+
+	// Set once the node's been given a different strategy. The node might still be
+	// about to park/block on this one, so after this it never does.
+	protected volatile boolean retired = false;
+
+	public static WaitStrategy create(int policy) {
+		switch (policy) {
+		case BUSY_SPIN:
+			return new BusySpin();
+		case SPIN_YIELD:
+			return new SpinYield();
+		case SPIN_PARK:
+			return new SpinPark();
+		case BLOCKING:
+			return new Blocking();
+		default:
+			throw new IllegalArgumentException("Unknown wait policy "+policy);
+		}
+	}
+
+	// Called by the node's thread when there's nothing left in the queue.
+	// It's allowed to return without any new work (e.g. a spurious wakeup), the
+	// node just checks its queue and calls idle() again.
+	public abstract void idle(CommandQueue queue);
+
+	// Called by the main thread after publishing commands.
+	// Returns true if the thread was actually asleep and needed waking up.
+	public abstract boolean wake(Thread nodeThread);
+
+	// Main thread, when the node's switching to another strategy. Wakes it up if it's
+	// waiting on this one, and makes sure it can't start waiting on it afterwards.
+	// Same as wake(), the fence in wake() means either we see it waiting or it sees retired.
+	public void retire(Thread nodeThread) {
+		retired = true;
+		wake(nodeThread);
+	}
+
+
+
+	public static class BusySpin extends WaitStrategy {
+		public void idle(CommandQueue queue) {
+			while (!queue.available()) {
+				Thread.onSpinWait();
+			}
+		}
+
+		public boolean wake(Thread nodeThread) {
+			// Always awake.
+			return false;
+		}
+	}
+
+
+	public static class SpinYield extends WaitStrategy {
+		public void idle(CommandQueue queue) {
+			for (int i = 0; i < SPIN_TRIES; i++) {
+				if (queue.available()) return;
+				Thread.onSpinWait();
+			}
+			while (!queue.available()) {
+				Thread.yield();
+			}
+		}
+
+		public boolean wake(Thread nodeThread) {
+			// Never actually sleeps, so nothing to do.
+			return false;
+		}
+	}
+
+
+	public static class SpinPark extends WaitStrategy {
+		private AtomicBoolean parked = new AtomicBoolean(false);
+
+		public void idle(CommandQueue queue) {
+			for (int i = 0; i < SPIN_TRIES; i++) {
+				if (queue.available()) return;
+				Thread.onSpinWait();
+			}
+			// Say we're about to park BEFORE checking the queue one last time.
+			// The main thread does the opposite (publish, then check parked), so
+			// one of us is guaranteed to see the other. unpark() before park() is fine,
+			// park() just returns straight away.
+			parked.set(true);
+			VarHandle.fullFence();
+			if (!queue.available() && !retired) {
+				LockSupport.park(this);
+			}
+			parked.set(false);
+		}
+
+		public boolean wake(Thread nodeThread) {
+			// Publishing is only a release-store, so we need a full fence before
+			// reading the flag or we might read it before the publish is visible.
+			VarHandle.fullFence();
+			if (parked.get()) {
+				LockSupport.unpark(nodeThread);
+				return true;
+			}
+			return false;
+		}
+	}
+
+
+	public static class Blocking extends WaitStrategy {
+		private ReentrantLock lock = new ReentrantLock();
+		private Condition workAvailable = lock.newCondition();
+		private AtomicBoolean waiting = new AtomicBoolean(false);
+
+		public void idle(CommandQueue queue) {
+			lock.lock();
+			try {
+				waiting.set(true);
+				VarHandle.fullFence();
+				if (!queue.available() && !retired) {
+					workAvailable.awaitUninterruptibly();
+				}
+			}
+			finally {
+				waiting.set(false);
+				lock.unlock();
+			}
+		}
+
+		public boolean wake(Thread nodeThread) {
+			VarHandle.fullFence();
+			// Only take the lock if someone's actually waiting on it.
+			if (waiting.get()) {
+				lock.lock();
+				try {
+					workAvailable.signal();
+				}
+				finally {
+					lock.unlock();
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}